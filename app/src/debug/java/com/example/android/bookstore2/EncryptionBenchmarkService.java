@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.util.Log;
+
+import com.example.android.bookstore2.data.EncryptionBenchmark;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+
+/**
+ * Runs the {@link EncryptionBenchmark} in the background (debug builds only).
+ * The service isn't exported, so it is started as the app, e.g.:
+ * adb shell run-as com.example.android.bookstore2 am startservice -n com.example.android.bookstore2/.EncryptionBenchmarkService --ei rows 2000
+ *
+ * The report is written to the log under the EncryptionBenchmarkService tag.
+ */
+public class EncryptionBenchmarkService extends IntentService {
+
+    private static final String LOG_TAG = EncryptionBenchmarkService.class.getSimpleName();
+
+    public static final String EXTRA_ROWS = "rows";
+
+    public EncryptionBenchmarkService() {
+        super(LOG_TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        EncryptionBenchmark benchmark = new EncryptionBenchmark(
+                new File(getCacheDir(), "encryption-benchmark.db"), intent.getIntExtra(EXTRA_ROWS, 1000));
+        try {
+            Log.i(LOG_TAG, benchmark.run());
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "Encryption benchmark failed", e);
+        }
+    }
+}
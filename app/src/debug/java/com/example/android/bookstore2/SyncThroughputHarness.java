@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.example.android.bookstore2.data.BookContract;
+import com.example.android.bookstore2.data.ScratchContext;
+import com.example.android.bookstore2.sync.LoopbackSyncServer;
+import com.example.android.bookstore2.sync.SyncEngine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Throughput harness of the {@link SyncEngine} (debug builds only).
+ *
+ * Several tills, each a provider on a scratch database of its own, sync against one
+ * {@link LoopbackSyncServer}. The first till imports the books in a single bulk insert, so they
+ * all share one change sequence and take several batches to push. Then the sellers of every till
+ * sell copies while a sync thread per till keeps syncing. Once everything is synced, the harness
+ * checks that the server and every till agree on the stock of every book, that no sale was lost
+ * or counted twice, and that no book is left dirty.
+ */
+public final class SyncThroughputHarness {
+
+    private static final String SUPPLIER = "Sync harness";
+
+    private final Context mContext;
+    private final int mTillCount;
+    private final int mSellersPerTill;
+    private final int mSalesPerSeller;
+    private final int mBookCount;
+
+    /**
+     * @param tillCount      Number of tills syncing with the server
+     * @param sellersPerTill Number of threads selling on each till at the same time
+     * @param salesPerSeller Number of sales made by each thread
+     * @param bookCount      Number of books the sales fight over
+     */
+    public SyncThroughputHarness(Context context, int tillCount, int sellersPerTill, int salesPerSeller,
+                                 int bookCount) {
+        mContext = context;
+        mTillCount = tillCount;
+        mSellersPerTill = sellersPerTill;
+        mSalesPerSeller = salesPerSeller;
+        mBookCount = bookCount;
+    }
+
+    /**
+     * Run the harness and return its report. Must not be called on the UI thread.
+     */
+    public String run() throws InterruptedException, IOException {
+        LoopbackSyncServer server = new LoopbackSyncServer();
+        ScratchContext[] tills = new ScratchContext[mTillCount];
+        try {
+            SyncEngine[] engines = new SyncEngine[mTillCount];
+            for (int till = 0; till < mTillCount; till++) {
+                tills[till] = new ScratchContext(mContext, "sync-harness-" + till + ".db");
+                engines[till] = new SyncEngine(tills[till], "harness", server);
+            }
+            // Enough stock that no till ever runs out, so every sale must succeed
+            int initialStock = mTillCount * mSellersPerTill * mSalesPerSeller;
+            String[] globalIds = importBooks(tills[0].getContentResolver(), initialStock);
+            syncAll(engines);
+            int unknown = 0;
+            for (String globalId : globalIds) {
+                if (server.getQuantity(globalId) == -1) {
+                    unknown++;
+                }
+            }
+            if (unknown != 0) {
+                return "FAILED: " + unknown + " of " + globalIds.length + " imported books never pushed";
+            }
+            return sell(tills, engines, server, globalIds, initialStock);
+        } finally {
+            for (ScratchContext till : tills) {
+                if (till != null) {
+                    till.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Import the books on a till in one bulk insert, and return their global IDs.
+     */
+    private String[] importBooks(ContentResolver resolver, int quantity) {
+        ContentValues[] rows = new ContentValues[mBookCount];
+        for (int i = 0; i < mBookCount; i++) {
+            ContentValues values = new ContentValues();
+            values.put(BookContract.BookEntry.COLUMN_BOOK_NAME, "Sync book " + i);
+            values.put(BookContract.BookEntry.COLUMN_BOOK_AUTHOR, "Harness");
+            values.put(BookContract.BookEntry.COLUMN_BOOK_PRICE, 9.99);
+            values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, quantity);
+            values.put(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME, SUPPLIER);
+            values.put(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR, "5550000000");
+            rows[i] = values;
+        }
+        resolver.bulkInsert(BookContract.BookEntry.CONTENT_URI, rows);
+        return getLocalIds(resolver).keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Return the local ID of every book of a till, by global ID.
+     */
+    private static Map<String, Long> getLocalIds(ContentResolver resolver) {
+        Map<String, Long> ids = new HashMap<>();
+        Cursor cursor = resolver.query(BookContract.BookEntry.CONTENT_URI,
+                new String[]{BookContract.BookEntry._ID, BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID},
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ids.put(cursor.getString(1), cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Sync every till twice, so the changes pushed by the last one reach the first ones.
+     */
+    private static void syncAll(SyncEngine[] engines) throws IOException {
+        for (int round = 0; round < 2; round++) {
+            for (SyncEngine engine : engines) {
+                engine.sync();
+            }
+        }
+    }
+
+    private String sell(ScratchContext[] tills, final SyncEngine[] engines, LoopbackSyncServer server,
+                        final String[] globalIds, int initialStock) throws InterruptedException, IOException {
+        final long[][] localIds = new long[mTillCount][globalIds.length];
+        for (int till = 0; till < mTillCount; till++) {
+            Map<String, Long> ids = getLocalIds(tills[till].getContentResolver());
+            for (int book = 0; book < globalIds.length; book++) {
+                Long id = ids.get(globalIds[book]);
+                if (id == null) {
+                    return "FAILED: till " + till + " never pulled " + globalIds[book];
+                }
+                localIds[till][book] = id;
+            }
+        }
+
+        final AtomicIntegerArray sold = new AtomicIntegerArray(globalIds.length);
+        final int[] failedSales = new int[1];
+        final Throwable[] failure = new Throwable[1];
+        final List<Long> syncLatencies = new ArrayList<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch sellersDone = new CountDownLatch(mTillCount * mSellersPerTill);
+        final CountDownLatch syncersDone = new CountDownLatch(mTillCount);
+
+        for (int t = 0; t < mTillCount; t++) {
+            final int till = t;
+            final ContentResolver resolver = tills[till].getContentResolver();
+            for (int s = 0; s < mSellersPerTill; s++) {
+                final Random random = new Random(till * 1000 + s);
+                new Thread("SyncHarness-seller-" + till + "-" + s) {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int i = 0; i < mSalesPerSeller; i++) {
+                                int book = random.nextInt(globalIds.length);
+                                Bundle result = resolver.call(BookContract.BookEntry.CONTENT_URI,
+                                        BookContract.BookEntry.METHOD_SELL, String.valueOf(localIds[till][book]), null);
+                                if (result != null && result.getBoolean(BookContract.BookEntry.EXTRA_SUCCESS)) {
+                                    sold.incrementAndGet(book);
+                                } else {
+                                    synchronized (failedSales) {
+                                        failedSales[0]++;
+                                    }
+                                }
+                            }
+                        } catch (Throwable e) {
+                            synchronized (failure) {
+                                failure[0] = e;
+                            }
+                        } finally {
+                            sellersDone.countDown();
+                        }
+                    }
+                }.start();
+            }
+            new Thread("SyncHarness-sync-" + till) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (sellersDone.getCount() != 0) {
+                            long begin = System.nanoTime();
+                            engines[till].sync();
+                            synchronized (syncLatencies) {
+                                syncLatencies.add(System.nanoTime() - begin);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } finally {
+                        syncersDone.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long begin = SystemClock.elapsedRealtime();
+        start.countDown();
+        sellersDone.await();
+        syncersDone.await();
+        syncAll(engines);
+        long elapsed = SystemClock.elapsedRealtime() - begin;
+
+        // Every sale of every till must show in the merged stock, exactly once, everywhere
+        List<String> violations = new ArrayList<>();
+        for (int book = 0; book < globalIds.length; book++) {
+            int expected = initialStock - sold.get(book);
+            int merged = server.getQuantity(globalIds[book]);
+            if (merged != expected) {
+                violations.add(globalIds[book] + ": server quantity " + merged + ", expected " + expected);
+            }
+            for (int till = 0; till < mTillCount; till++) {
+                int local = getQuantity(tills[till].getContentResolver(), localIds[till][book]);
+                if (local != expected) {
+                    violations.add(globalIds[book] + ": till " + till + " quantity " + local + ", expected " + expected);
+                }
+            }
+        }
+        for (int till = 0; till < mTillCount; till++) {
+            int dirty = countDirty(tills[till].getContentResolver());
+            if (dirty != 0) {
+                violations.add("till " + till + ": " + dirty + " books left dirty");
+            }
+        }
+
+        long[] latencies = new long[syncLatencies.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = syncLatencies.get(i);
+        }
+        Arrays.sort(latencies);
+        int sales = mTillCount * mSellersPerTill * mSalesPerSeller;
+        StringBuilder report = new StringBuilder();
+        report.append(violations.isEmpty() && failure[0] == null && failedSales[0] == 0 ? "PASSED" : "FAILED")
+                .append(": ").append(sales).append(" sales on ").append(mTillCount).append(" tills in ")
+                .append(elapsed).append("ms, ")
+                .append(String.format("%.1f", elapsed == 0 ? 0 : sales * 1000.0 / elapsed)).append(" sales/s\n")
+                .append("syncs: ").append(latencies.length)
+                .append(", p50 ").append(getPercentile(latencies, 50))
+                .append("ms, p99 ").append(getPercentile(latencies, 99))
+                .append("ms, max ").append(getPercentile(latencies, 100)).append("ms\n")
+                .append("failed sales: ").append(failedSales[0]).append('\n');
+        for (String violation : violations) {
+            report.append(violation).append('\n');
+        }
+        if (failure[0] != null) {
+            report.append("failure: ").append(failure[0]);
+        }
+        return report.toString();
+    }
+
+    private static int getQuantity(ContentResolver resolver, long id) {
+        Bundle result = resolver.call(BookContract.BookEntry.CONTENT_URI, BookContract.BookEntry.METHOD_GET_QUANTITY,
+                String.valueOf(id), null);
+        return result.getInt(BookContract.BookEntry.EXTRA_QUANTITY);
+    }
+
+    private static int countDirty(ContentResolver resolver) {
+        Cursor cursor = resolver.query(BookContract.BookEntry.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_DIRTY, "true").build(),
+                new String[]{BookContract.BookEntry._ID}, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the given percentile of sorted latencies, in milliseconds.
+     */
+    private static long getPercentile(long[] latencies, double percentile) {
+        if (latencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+        return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1000000;
+    }
+}
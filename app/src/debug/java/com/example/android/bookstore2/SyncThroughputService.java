@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Runs the {@link SyncThroughputHarness} in the background (debug builds only).
+ * The service isn't exported, so it is started as the app, e.g.:
+ * adb shell run-as com.example.android.bookstore2 am startservice -n com.example.android.bookstore2/.SyncThroughputService --ei tills 4
+ *
+ * The report is written to the log under the SyncThroughputService tag.
+ */
+public class SyncThroughputService extends IntentService {
+
+    private static final String LOG_TAG = SyncThroughputService.class.getSimpleName();
+
+    public static final String EXTRA_TILLS = "tills";
+    public static final String EXTRA_SELLERS = "sellers";
+    public static final String EXTRA_SALES = "sales";
+    public static final String EXTRA_BOOKS = "books";
+
+    public SyncThroughputService() {
+        super(LOG_TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        SyncThroughputHarness harness = new SyncThroughputHarness(this,
+                intent.getIntExtra(EXTRA_TILLS, 3),
+                intent.getIntExtra(EXTRA_SELLERS, 4),
+                intent.getIntExtra(EXTRA_SALES, 500),
+                intent.getIntExtra(EXTRA_BOOKS, 250));
+        try {
+            Log.i(LOG_TAG, harness.run());
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, "Sync run interrupted");
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Sync run failed", e);
+        }
+    }
+}
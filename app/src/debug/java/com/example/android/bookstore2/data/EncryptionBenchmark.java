@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Locale;
+
+/**
+ * Benchmark of the encrypted storage of the supplier contacts (debug builds only).
+ *
+ * Writes and reads the same rows of phone numbers in a scratch database, once in plain text and
+ * once through {@link SupplierCipher}, and compares the throughput of both. The reads are timed
+ * twice, with the cache of the cipher cold and then warm. The benchmark uses a key of its own,
+ * deleted at the end, whatever the mode of the build.
+ */
+public final class EncryptionBenchmark {
+
+    private static final String KEY_ALIAS = "bookstore_benchmark";
+    private static final String TABLE = "benchmark";
+
+    private final File mDatabaseFile;
+    private final int mRowCount;
+
+    /**
+     * @param databaseFile Scratch database, deleted at the end
+     * @param rowCount     Number of rows written and read
+     */
+    public EncryptionBenchmark(File databaseFile, int rowCount) {
+        mDatabaseFile = databaseFile;
+        mRowCount = rowCount;
+    }
+
+    /**
+     * Run the benchmark and return its report. Must not be called on the UI thread.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    public String run() throws GeneralSecurityException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return "No key store on this device, supplier contacts can't be encrypted";
+        }
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+        SQLiteDatabase database = SQLiteDatabase.openOrCreateDatabase(mDatabaseFile, null);
+        try {
+            database.execSQL("CREATE TABLE " + TABLE + "(_id INTEGER PRIMARY KEY, "
+                    + SupplierCipher.COLUMN + " TEXT)");
+
+            long plainWrite = write(database, null);
+            long plainRead = read(database, null);
+
+            SupplierCipher cipher = new SupplierCipher(SupplierCipher.generateKey(KEY_ALIAS), true);
+            database.execSQL("DELETE FROM " + TABLE);
+            long encryptedWrite = write(database, cipher);
+            // A new cipher has an empty cache, like the provider after a restart
+            SupplierCipher coldCipher = new SupplierCipher(cipher.getKey(), true);
+            long coldRead = read(database, coldCipher);
+            long warmRead = read(database, coldCipher);
+
+            return String.format(Locale.US, "%d rows\n"
+                            + "write: plain %s, encrypted %s (x%.1f)\n"
+                            + "read: plain %s, encrypted cold %s (x%.1f), warm %s (x%.1f)",
+                    mRowCount,
+                    throughput(plainWrite), throughput(encryptedWrite), ratio(encryptedWrite, plainWrite),
+                    throughput(plainRead), throughput(coldRead), ratio(coldRead, plainRead),
+                    throughput(warmRead), ratio(warmRead, plainRead));
+        } finally {
+            database.close();
+            SQLiteDatabase.deleteDatabase(mDatabaseFile);
+            deleteKey();
+        }
+    }
+
+    /**
+     * Write the rows in a single transaction, encrypted if a cipher is given. Return the time
+     * taken in nanoseconds.
+     */
+    private long write(SQLiteDatabase database, SupplierCipher cipher) {
+        SQLiteStatement insert = database.compileStatement("INSERT INTO " + TABLE + "("
+                + SupplierCipher.COLUMN + ") VALUES (?)");
+        long start = System.nanoTime();
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < mRowCount; i++) {
+                // Distinct numbers, so the cache of the cipher doesn't hide the cost of the key
+                String phoneNr = String.format(Locale.US, "555%07d", i);
+                insert.bindString(1, cipher != null ? cipher.encrypt(phoneNr) : phoneNr);
+                insert.executeInsert();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            insert.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Read all the rows, decrypted if a cipher is given. Return the time taken in nanoseconds.
+     */
+    private long read(SQLiteDatabase database, SupplierCipher cipher) {
+        long start = System.nanoTime();
+        Cursor cursor = database.query(TABLE, null, null, null, null, null, null);
+        if (cipher != null) {
+            cursor = cipher.wrap(cursor);
+        }
+        try {
+            int column = cursor.getColumnIndexOrThrow(SupplierCipher.COLUMN);
+            while (cursor.moveToNext()) {
+                if (cursor.getString(column) == null) {
+                    throw new IllegalStateException("Row " + cursor.getPosition() + " not decrypted");
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private String throughput(long nanos) {
+        return String.format(Locale.US, "%.0f rows/s", mRowCount * 1e9 / Math.max(nanos, 1));
+    }
+
+    private static double ratio(long nanos, long baselineNanos) {
+        return (double) nanos / Math.max(baselineNanos, 1);
+    }
+
+    private static void deleteKey() {
+        try {
+            KeyStore keyStore = KeyStore.getInstance(SupplierCipher.KEY_STORE);
+            keyStore.load(null);
+            keyStore.deleteEntry(KEY_ALIAS);
+        } catch (Exception e) {
+            // Nothing to clean up
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.test.mock.MockContentResolver;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Context of the debug harnesses that gives them a {@link BookProvider} of their own, on a
+ * scratch database (debug builds only).
+ *
+ * The content resolver of this context only knows that provider, so the sales, imports and
+ * deletes of a harness never reach the till database, its sales ledger or its sync state. The
+ * shared preferences are kept apart from the ones of the app too, and start empty.
+ * {@link #close()} deletes the database and the preferences.
+ */
+public final class ScratchContext extends ContextWrapper {
+
+    private final String mDatabaseName;
+    private final BookDbHelper mDbHelper;
+    private final MockContentResolver mResolver;
+
+    /**
+     * Names of the shared preferences handed out, cleared by {@link #close()}
+     */
+    private final Set<String> mPreferenceNames = new HashSet<>();
+
+    /**
+     * Constructs a context over a fresh scratch database of the given name. Leftovers of an
+     * interrupted run under that name are dropped.
+     */
+    public ScratchContext(Context context, String databaseName) {
+        super(context.getApplicationContext());
+        mDatabaseName = databaseName;
+        deleteDatabase(databaseName);
+        mDbHelper = new BookDbHelper(getBaseContext(), databaseName);
+
+        BookProvider provider = new BookProvider(mDbHelper, null);
+        mResolver = new MockContentResolver(this);
+        mResolver.addProvider(BookContract.CONTENT_AUTHORITY, provider);
+        provider.attachInfo(this, null);
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return mResolver;
+    }
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        String scratchName = mDatabaseName + "_" + name;
+        SharedPreferences preferences = super.getSharedPreferences(scratchName, mode);
+        synchronized (mPreferenceNames) {
+            if (mPreferenceNames.add(scratchName)) {
+                preferences.edit().clear().commit();
+            }
+        }
+        return preferences;
+    }
+
+    /**
+     * Close and delete the scratch database, and clear the preferences written through this
+     * context.
+     */
+    public void close() {
+        mDbHelper.close();
+        deleteDatabase(mDatabaseName);
+        synchronized (mPreferenceNames) {
+            for (String name : mPreferenceNames) {
+                super.getSharedPreferences(name, MODE_PRIVATE).edit().clear().commit();
+            }
+        }
+    }
+}
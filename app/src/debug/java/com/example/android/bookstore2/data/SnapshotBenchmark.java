@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Benchmark of the snapshot backups on a large catalog (debug builds only).
+ *
+ * Fills a scratch database with the given number of books, backs it up with {@link BookBackup},
+ * moves the change sequence on as the till would, and restores the backup. It reports the time
+ * taken by both, the size of the backup, and checks that the restore brought every book back
+ * with a change sequence past the one before the restore.
+ */
+public final class SnapshotBenchmark {
+
+    private static final String DATABASE_NAME = "snapshot-benchmark.db";
+
+    /**
+     * Number of books inserted per transaction while filling the database
+     */
+    private static final int BATCH_SIZE = 10000;
+
+    private final Context mContext;
+    private final int mRowCount;
+
+    /**
+     * @param context  Context the scratch database and backup are created in, both deleted at the end
+     * @param rowCount Number of books in the database
+     */
+    public SnapshotBenchmark(Context context, int rowCount) {
+        mContext = context;
+        mRowCount = rowCount;
+    }
+
+    /**
+     * Run the benchmark and return its report. Must not be called on the UI thread.
+     */
+    public String run() throws IOException {
+        mContext.deleteDatabase(DATABASE_NAME);
+        File backupFile = new File(mContext.getCacheDir(), "snapshot-benchmark.db.gz");
+        BookDbHelper dbHelper = new BookDbHelper(mContext, DATABASE_NAME);
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            long fill = fill(database);
+            long databaseSize = mContext.getDatabasePath(DATABASE_NAME).length();
+
+            long start = System.nanoTime();
+            BookBackup.backup(mContext, dbHelper, new FileOutputStream(backupFile));
+            long backup = System.nanoTime() - start;
+
+            // Sales after the backup, which the restore must not make the change feed forget
+            for (int i = 0; i < 100; i++) {
+                SqliteBookStore.nextChangeSeq(database);
+            }
+            long lastChangeSeq = readChangeSeq(database);
+            database.delete(BookContract.BookEntry.TABLE_NAME, BookContract.BookEntry._ID + "%2=0", null);
+
+            start = System.nanoTime();
+            if (!BookBackup.restore(mContext, dbHelper, new FileInputStream(backupFile))) {
+                throw new IllegalStateException("Backup could not be restored");
+            }
+            long restore = System.nanoTime() - start;
+
+            long books = DatabaseUtils.queryNumEntries(database, BookContract.BookEntry.TABLE_NAME);
+            if (books != mRowCount) {
+                throw new IllegalStateException("Restored " + books + " books instead of " + mRowCount);
+            }
+            long restoredChangeSeq = DatabaseUtils.longForQuery(database, "SELECT MIN("
+                    + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + ") FROM " + BookContract.BookEntry.TABLE_NAME, null);
+            if (restoredChangeSeq <= lastChangeSeq || readChangeSeq(database) < restoredChangeSeq) {
+                throw new IllegalStateException("Change sequence went back from " + lastChangeSeq
+                        + " to " + restoredChangeSeq);
+            }
+
+            return String.format(Locale.US, "%d books, database %d KB, backup %d KB\n"
+                            + "fill %s, backup %s, restore %s",
+                    mRowCount, databaseSize / 1024, backupFile.length() / 1024,
+                    throughput(fill), throughput(backup), throughput(restore));
+        } finally {
+            dbHelper.close();
+            mContext.deleteDatabase(DATABASE_NAME);
+            backupFile.delete();
+        }
+    }
+
+    /**
+     * Insert the books in batches of transactions. Return the time taken in nanoseconds.
+     */
+    private long fill(SQLiteDatabase database) {
+        SQLiteStatement insert = database.compileStatement("INSERT INTO " + BookContract.BookEntry.TABLE_NAME + "("
+                + BookContract.BookEntry.COLUMN_BOOK_NAME + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_AUTHOR + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_PRICE + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        long start = System.nanoTime();
+        try {
+            for (int batch = 0; batch < mRowCount; batch += BATCH_SIZE) {
+                database.beginTransaction();
+                try {
+                    for (int i = batch; i < Math.min(batch + BATCH_SIZE, mRowCount); i++) {
+                        insert.bindString(1, "Book " + i);
+                        insert.bindString(2, "Author " + i % 5000);
+                        insert.bindDouble(3, 5 + i % 9000 / 100.0);
+                        insert.bindLong(4, i % 50);
+                        insert.bindString(5, "Supplier " + i % 200);
+                        insert.bindString(6, String.format(Locale.US, "555%07d", i % 200));
+                        insert.bindLong(7, i + 1);
+                        insert.bindString(8, "benchmark-" + i);
+                        insert.executeInsert();
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            }
+            database.execSQL("UPDATE " + BookDbHelper.CHANGE_SEQUENCE_TABLE_NAME + " SET "
+                    + BookDbHelper.COLUMN_CHANGE_SEQUENCE_VALUE + "=" + mRowCount);
+        } finally {
+            insert.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long readChangeSeq(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database, "SELECT " + BookDbHelper.COLUMN_CHANGE_SEQUENCE_VALUE
+                + " FROM " + BookDbHelper.CHANGE_SEQUENCE_TABLE_NAME, null);
+    }
+
+    private String throughput(long nanos) {
+        return String.format(Locale.US, "%dms (%.0f rows/s)", nanos / 1000000, mRowCount * 1e9 / Math.max(nanos, 1));
+    }
+}
@@ -15,19 +15,18 @@
  */
 package com.example.android.bookstore2;
 
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.CursorAdapter;
+import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.example.android.bookstore2.data.BookContract;
+import com.example.android.bookstore2.data.Book;
+import com.example.android.bookstore2.data.BookCursorReader;
 
 /**
  * {@link BookCursorAdapter} is an adapter for a list or grid view
@@ -40,17 +39,50 @@ public class BookCursorAdapter extends CursorAdapter {
     public TextView priceTextView;
     public TextView quantityTextView;
     public Button addToCartButton;
+    public ImageView coverImageView;
 
+    /**
+     * Cart the buy button adds the books to
+     */
+    private final Cart mCart;
+
+    /**
+     * Buffer of the sales not written yet, which are already shown in the list
+     */
+    private final UndoBuffer mUndoBuffer;
+
+    /**
+     * Reader of the current cursor, so the column indexes are only looked up once per cursor
+     */
+    private BookCursorReader mReader;
+    private Cursor mReaderCursor;
+
+    /**
+     * Whether the rows are a preview of the catalogue, whose quantities may be stale
+     */
+    private boolean mPreview;
 
     /**
      * Constructs a new {@link BookCursorAdapter}.
      *
      * @param context The context
      * @param c       The cursor from which to get the data.
+     * @param cart       The cart the buy button adds the books to
+     * @param undoBuffer The buffer of the sales not written yet
      */
 
-    public BookCursorAdapter(Context context, Cursor c) {
+    public BookCursorAdapter(Context context, Cursor c, Cart cart, UndoBuffer undoBuffer) {
         super(context, c, 0);
+        mCart = cart;
+        mUndoBuffer = undoBuffer;
+    }
+
+    /**
+     * Show the rows as a preview, e.g. read from the snapshot of the catalogue before the live
+     * query returns. No copies can be added to the cart from a preview.
+     */
+    public void setPreview(boolean preview) {
+        mPreview = preview;
     }
 
     /**
@@ -85,22 +117,28 @@ public class BookCursorAdapter extends CursorAdapter {
         priceTextView = (TextView) view.findViewById(R.id.price_text_view);
         quantityTextView = (TextView) view.findViewById(R.id.quantity_number_text_view);
         addToCartButton = (Button) view.findViewById(R.id.buy_button);
-
-        // Find the columns of book attributes that we're interested in
-        int nameColumnIndex = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_NAME);
-        int authorColumnIndex = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_AUTHOR);
-        int priceColumnIndex = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_PRICE);
-        int quantityColumnIndex = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
+        coverImageView = (ImageView) view.findViewById(R.id.cover_image_view);
 
         // Read the book attributes from the Cursor for the current book
-        final Long bookId = cursor.getLong(cursor.getColumnIndexOrThrow(BookContract.BookEntry._ID));
-        String bookName = cursor.getString(nameColumnIndex);
-        String bookAuthor = cursor.getString(authorColumnIndex);
-        double bookPriceDouble = cursor.getDouble(priceColumnIndex);
-        int bookPriceInt = cursor.getInt(priceColumnIndex);
-        final String bookQuantity = cursor.getString(quantityColumnIndex);
-
-        if (Integer.parseInt(bookQuantity)>0){
+        if (mReaderCursor != cursor) {
+            mReader = new BookCursorReader(cursor);
+            mReaderCursor = cursor;
+        }
+        Book book = mReader.readBook(cursor);
+        final long bookId = book.getId();
+        String bookName = book.getName();
+        String bookAuthor = book.getAuthor();
+        double bookPriceDouble = book.getPrice();
+        int bookPriceInt = (int) bookPriceDouble;
+        // Copies already in the cart, or sold but not written yet, are not available anymore
+        final int bookQuantity = book.getQuantity() - mCart.getQuantity(bookId) - mUndoBuffer.getPendingSold(bookId);
+        long coverVersion = book.getCoverUpdatedAt();
+
+        // Load the cover thumbnail in the background. This also cancels the load still pending
+        // if this row was recycled from another book.
+        ThumbnailLoader.getInstance(context).load(coverImageView, bookId, coverVersion);
+
+        if (bookQuantity > 0 && !mPreview){
             addToCartButton.setActivated(true);
         }else{
             addToCartButton.setActivated(false);
@@ -114,18 +152,16 @@ public class BookCursorAdapter extends CursorAdapter {
             bookPrice = Double.toString(bookPriceDouble) + "€";
         }
 
-        //Add listener to the sale button
+        //Add listener to the sale button, which puts a copy in the cart.
+        //The copies are sold all at once on checkout.
         addToCartButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                int quantity = Integer.parseInt(bookQuantity) - 1;
-                if (quantity < 0) {
-                    addToCartButton.setActivated(false);
+                if (bookQuantity > 0 && !mPreview) {
+                    mCart.add(bookId);
+                    notifyDataSetChanged();
                 } else {
-                    ContentValues values = new ContentValues();
-                    values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, quantity);
-                    Uri currentBookUri = ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, bookId);
-                    context.getContentResolver().update(currentBookUri, values, null, null);
+                    view.setActivated(false);
                 }
             }
 
@@ -134,7 +170,7 @@ public class BookCursorAdapter extends CursorAdapter {
         // Update the TextViews with the attributes for the current book
         nameTextView.setText(bookName);
         authorTextView.setText(bookAuthor);
-        quantityTextView.setText(bookQuantity);
+        quantityTextView.setText(String.valueOf(bookQuantity));
         priceTextView.setText(bookPrice);
     }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2;
+
+import android.content.ContentValues;
+
+import com.example.android.bookstore2.data.BookContract;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Line items collected before a sale. Tapping the buy button of a book only adds a copy to the
+ * cart; on checkout {@link UndoBuffer#stageCheckout} takes all of them as a single staged sale.
+ */
+public class Cart {
+
+    /**
+     * Interface to be told when the line items of the cart change
+     */
+    public interface OnChangeListener {
+        void onCartChanged(Cart cart);
+    }
+
+    /**
+     * Number of copies of each book in the cart, by book ID, in the order they were added
+     */
+    private final Map<Long, Integer> mItems = new LinkedHashMap<>();
+
+    private OnChangeListener mListener;
+
+    public void setOnChangeListener(OnChangeListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Add a copy of the given book to the cart.
+     */
+    public void add(long bookId) {
+        add(bookId, 1);
+    }
+
+    /**
+     * Add copies of the given book to the cart.
+     */
+    public void add(long bookId, int quantity) {
+        mItems.put(bookId, getQuantity(bookId) + quantity);
+        notifyChanged();
+    }
+
+    /**
+     * Return the number of copies of the given book in the cart.
+     */
+    public int getQuantity(long bookId) {
+        Integer quantity = mItems.get(bookId);
+        return quantity == null ? 0 : quantity;
+    }
+
+    /**
+     * Return the total number of copies in the cart.
+     */
+    public int getCount() {
+        int count = 0;
+        for (int quantity : mItems.values()) {
+            count += quantity;
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return mItems.isEmpty();
+    }
+
+    public void clear() {
+        mItems.clear();
+        notifyChanged();
+    }
+
+    /**
+     * Return the line items of the cart, as expected by
+     * {@link BookContract.BookEntry#CONTENT_CHECKOUT_URI}.
+     */
+    public ContentValues[] toLineItems() {
+        ContentValues[] lineItems = new ContentValues[mItems.size()];
+        int i = 0;
+        for (Map.Entry<Long, Integer> item : mItems.entrySet()) {
+            ContentValues values = new ContentValues();
+            values.put(BookContract.BookEntry._ID, item.getKey());
+            values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, item.getValue());
+            lineItems[i++] = values;
+        }
+        return lineItems;
+    }
+
+    private void notifyChanged() {
+        if (mListener != null) {
+            mListener.onCartChanged(this);
+        }
+    }
+}
@@ -15,41 +15,123 @@
  */
 package com.example.android.bookstore2;
 
-import android.app.LoaderManager;
+import android.app.AlertDialog;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
 import android.support.v7.app.AppCompatActivity;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.Toast;
 
+import com.example.android.bookstore2.data.BookBackup;
 import com.example.android.bookstore2.data.BookContract;
+import com.example.android.bookstore2.data.CatalogSnapshot;
+import com.example.android.bookstore2.data.InventoryJobs;
+import com.example.android.bookstore2.data.ObservableQueries;
+import com.example.android.bookstore2.data.QuerySnapshot;
+
+import java.io.IOException;
 
 /**
  * Displays list of books that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class CatalogActivity extends AppCompatActivity implements ObservableQueries.Listener {
 
     /**
-     * Identifier for the book data loader
+     * Request codes for picking the backup file to write or to restore
      */
-    private static final int BOOK_LOADER = 0;
+    private static final int REQUEST_BACKUP = 1;
+    private static final int REQUEST_RESTORE = 2;
+
+    /**
+     * Preference holding the location this till sells from
+     */
+    private static final String PREF_LOCATION_ID = "location_id";
 
     /**
      * Adapter for the ListView
      */
     BookCursorAdapter mCursorAdapter;
 
+    /**
+     * Cart filled by the buy buttons of the list, sold on checkout
+     */
+    private final Cart mCart = new Cart();
+
+    /**
+     * Sales and deletes that can still be undone, written to the provider in batches
+     */
+    private UndoBuffer mUndoBuffer;
+
+    /**
+     * Books loaded from the provider, before the pending deletes are applied
+     */
+    private Cursor mBooksCursor;
+
+    /**
+     * Books read from the snapshot of the catalogue, shown until the live query returns the
+     * live ones, null once replaced
+     */
+    private Cursor mSnapshotCursor;
+
+    /**
+     * Subscription to the books of the location, while the screen is started
+     */
+    private ObservableQueries.Subscription mBooksSubscription;
+
+    /**
+     * Latest snapshot of the locations, null until the first one arrives
+     */
+    private QuerySnapshot mLocations;
+
+    /**
+     * Subscription to the locations, while the screen is started
+     */
+    private ObservableQueries.Subscription mLocationsSubscription;
+
+    /**
+     * Shows the name of the current location whenever the locations change
+     */
+    private final ObservableQueries.Listener mLocationsListener = new ObservableQueries.Listener() {
+        @Override
+        public void onSnapshot(QuerySnapshot snapshot) {
+            mLocations = snapshot;
+            showLocationName();
+        }
+    };
+
+    /**
+     * Snackbar offering to undo the pending mutations, null when it isn't shown
+     */
+    private Snackbar mUndoSnackbar;
+
+    /**
+     * Location whose stock is shown and sold
+     */
+    private long mLocationId;
+
+    /**
+     * Location just added by the user, until a snapshot of the locations includes it
+     */
+    private long mNewLocationId = -1;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -73,10 +155,41 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         bookListView.setEmptyView(emptyView);
 
         // Setup an Adapter to create a list item for each row of book data in the Cursor.
-        // There is no book data yet (until the loader finishes) so pass in null for the Cursor.
-        mCursorAdapter = new BookCursorAdapter(this, null);
+        // There is no book data yet (until the live query returns) so pass in null for the Cursor.
+        mUndoBuffer = new UndoBuffer(getContentResolver());
+        mCursorAdapter = new BookCursorAdapter(this, null, mCart, mUndoBuffer);
         bookListView.setAdapter(mCursorAdapter);
 
+        // Show the pending mutations as if they were already written
+        mUndoBuffer.setListener(new UndoBuffer.Listener() {
+            @Override
+            public void onStagedChanged(UndoBuffer buffer) {
+                if (buffer.isEmpty() && mUndoSnackbar != null) {
+                    mUndoSnackbar.dismiss();
+                    mUndoSnackbar = null;
+                }
+                showBooks();
+            }
+
+            @Override
+            public void onCommitFailed(ContentValues[] lineItems) {
+                // Nothing was sold, the copies go back to the cart so the clerk can fix it
+                for (ContentValues lineItem : lineItems) {
+                    mCart.add(lineItem.getAsLong(BookContract.BookEntry._ID),
+                            lineItem.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_QUANTITY));
+                }
+                Toast.makeText(CatalogActivity.this, R.string.checkout_failed, Toast.LENGTH_LONG).show();
+            }
+        });
+
+        // Keep the number of copies shown on the checkout menu option up to date
+        mCart.setOnChangeListener(new Cart.OnChangeListener() {
+            @Override
+            public void onCartChanged(Cart cart) {
+                invalidateOptionsMenu();
+            }
+        });
+
 
         // Setup the item click listener on the ListView item
         bookListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
@@ -97,8 +210,44 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
                 startActivity(intent);
             }
         });
-        // Kick off the loader
-        getLoaderManager().initLoader(BOOK_LOADER, null, this);
+        // Sell from the location picked last time
+        mLocationId = PreferenceManager.getDefaultSharedPreferences(this)
+                .getLong(PREF_LOCATION_ID, BookContract.LocationEntry.DEFAULT_LOCATION_ID);
+        mUndoBuffer.setCheckoutUri(BookContract.LocationEntry.buildCheckoutUri(mLocationId));
+
+        // Show the snapshot of the first screenful right away, as a preview until the live
+        // query catches up
+        mSnapshotCursor = CatalogSnapshot.read(this, mLocationId);
+        if (mSnapshotCursor != null) {
+            mBooksCursor = mSnapshotCursor;
+            mCursorAdapter.setPreview(true);
+            showBooks();
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        subscribeBooks();
+        // The name of the location and the choices of the location dialog, read off the UI thread
+        mLocationsSubscription = ObservableQueries.getInstance(this).subscribe(
+                BookContract.LocationEntry.CONTENT_URI,
+                new String[]{BookContract.LocationEntry._ID, BookContract.LocationEntry.COLUMN_LOCATION_NAME},
+                null, null, BookContract.LocationEntry._ID, mLocationsListener);
+    }
+
+    /**
+     * Start watching the books of the current location. The query is shared with the other
+     * screens showing them, and run again whenever they change.
+     */
+    private void subscribeBooks() {
+        mBooksSubscription = ObservableQueries.getInstance(this).subscribe(
+                BookContract.LocationEntry.buildBooksUri(mLocationId), // Books at the location
+                BookContract.BookEntry.PROJECTION_LIST, // Columns shown by the list rows
+                null,                         // No selection clause
+                null,                      // No selection arguments
+                null,                        // Default sort order
+                this);
     }
 
     /**
@@ -124,11 +273,173 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
     }
 
     /**
-     * Helper method to delete all books in the database.
+     * Helper method to delete all books in the database. The delete is only written once it
+     * can't be undone from the snackbar anymore.
      */
     private void deleteAllBooks() {
-        int rowsDeleted = getContentResolver().delete(BookContract.BookEntry.CONTENT_URI, null, null);
-        Log.v("CatalogActivity", rowsDeleted + " rows deleted from books database");
+        mUndoBuffer.stageDeleteAll();
+        showUndoSnackbar(R.string.books_deleted);
+    }
+
+    /**
+     * Sell all the books in the cart. The sale is only written once it can't be undone from the
+     * snackbar anymore, together with the other mutations staged meanwhile.
+     */
+    private void checkout() {
+        mUndoBuffer.stageCheckout(mCart);
+        showUndoSnackbar(R.string.checkout_successful);
+    }
+
+    /**
+     * Show the stock of another location, and sell from it.
+     */
+    private void selectLocation(long locationId) {
+        mLocationId = locationId;
+        PreferenceManager.getDefaultSharedPreferences(this).edit()
+                .putLong(PREF_LOCATION_ID, locationId).apply();
+        // The copies in the cart were taken from the stock of the previous location
+        mCart.clear();
+        mUndoBuffer.setCheckoutUri(BookContract.LocationEntry.buildCheckoutUri(locationId));
+        showLocationName();
+        // Not subscribed yet when called from onCreate, onStart subscribes to the new location
+        if (mBooksSubscription != null) {
+            mBooksSubscription.unsubscribe();
+            subscribeBooks();
+        }
+    }
+
+    /**
+     * Show the name of the current location below the title, once the locations are loaded.
+     */
+    private void showLocationName() {
+        if (mLocations == null) {
+            return;
+        }
+        int row = findLocation(mLocationId);
+        if (row != -1) {
+            getSupportActionBar().setSubtitle(mLocations.getString(row, 1));
+            if (mLocationId == mNewLocationId) {
+                mNewLocationId = -1;
+            }
+        } else if (mLocationId != BookContract.LocationEntry.DEFAULT_LOCATION_ID
+                && mLocationId != mNewLocationId) {
+            // The location is gone, e.g. after restoring a backup
+            selectLocation(BookContract.LocationEntry.DEFAULT_LOCATION_ID);
+        }
+    }
+
+    /**
+     * Return the row of the given location in the snapshot of the locations, or -1 if it isn't
+     * there.
+     */
+    private int findLocation(long locationId) {
+        for (int row = 0; row < mLocations.getCount(); row++) {
+            if (mLocations.getLong(row, 0) == locationId) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Let the user pick the location to show and sell from, or add a new one.
+     */
+    private void showLocationDialog() {
+        if (mLocations == null) {
+            // Not loaded yet, the menu option can be tapped again in a moment
+            return;
+        }
+        // Keep the snapshot the dialog was built from, a newer one may arrive while it is shown
+        final QuerySnapshot locations = mLocations;
+        String[] names = new String[locations.getCount()];
+        for (int row = 0; row < names.length; row++) {
+            names[row] = locations.getString(row, 1);
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_location);
+        builder.setSingleChoiceItems(names, findLocation(mLocationId),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        selectLocation(locations.getLong(which, 0));
+                        dialog.dismiss();
+                    }
+                });
+        builder.setNeutralButton(R.string.new_location, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                showNewLocationDialog();
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Ask for the name of a new store, and sell from it.
+     */
+    private void showNewLocationDialog() {
+        final EditText nameEditText = new EditText(this);
+        nameEditText.setHint(R.string.hint_location_name);
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.new_location);
+        builder.setView(nameEditText);
+        builder.setPositiveButton(R.string.action_save, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                String name = nameEditText.getText().toString().trim();
+                if (TextUtils.isEmpty(name)) {
+                    return;
+                }
+                ContentValues values = new ContentValues();
+                values.put(BookContract.LocationEntry.COLUMN_LOCATION_NAME, name);
+                Uri newUri = getContentResolver().insert(BookContract.LocationEntry.CONTENT_URI, values);
+                if (newUri != null) {
+                    // The snapshot of the locations may predate it for a moment
+                    mNewLocationId = ContentUris.parseId(newUri);
+                    getSupportActionBar().setSubtitle(name);
+                    selectLocation(mNewLocationId);
+                }
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Offer to undo the mutations staged so far.
+     */
+    private void showUndoSnackbar(int messageId) {
+        mUndoSnackbar = Snackbar.make(findViewById(R.id.list_view), messageId, Snackbar.LENGTH_INDEFINITE);
+        mUndoSnackbar.setAction(R.string.undo, new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                mUndoSnackbar = null;
+                mUndoBuffer.undo();
+            }
+        });
+        mUndoSnackbar.show();
+    }
+
+    /**
+     * Show the loaded books, minus the pending deletes.
+     */
+    private void showBooks() {
+        mCursorAdapter.swapCursor(mUndoBuffer.isDeleteAllPending() ? null : mBooksCursor);
+        // The pending sales may have changed even if the cursor didn't
+        mCursorAdapter.notifyDataSetChanged();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mBooksSubscription.unsubscribe();
+        mBooksSubscription = null;
+        mLocationsSubscription.unsubscribe();
+        mLocationsSubscription = null;
+        // Don't keep anything in memory only once the screen is gone
+        mUndoBuffer.flush();
+        // Purge the old tombstones of deleted books and tune the database in the background,
+        // while the till is idle
+        InventoryJobs.schedule(this);
     }
 
     @Override
@@ -139,10 +450,36 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        // The backup file is picked with the storage access framework, which needs KitKat
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            menu.findItem(R.id.action_backup).setVisible(false);
+            menu.findItem(R.id.action_restore).setVisible(false);
+        }
+        MenuItem checkoutItem = menu.findItem(R.id.action_checkout);
+        checkoutItem.setVisible(!mCart.isEmpty());
+        checkoutItem.setTitle(getString(R.string.action_checkout, mCart.getCount()));
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // Respond to a click on the "Insert dummy data" menu option
         switch (item.getItemId()) {
+            // Respond to a click on the "Location" menu option
+            case R.id.action_location:
+                showLocationDialog();
+                return true;
+            // Respond to a click on the "Purchase orders" menu option
+            case R.id.action_purchase_orders:
+                startActivity(new Intent(this, PurchaseOrderActivity.class));
+                return true;
+            // Respond to a click on the "Suppliers" menu option
+            case R.id.action_suppliers:
+                startActivity(new Intent(this, SupplierActivity.class));
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertBook();
@@ -151,39 +488,103 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             case R.id.action_delete_all_entries:
                 deleteAllBooks();
                 return true;
+            // Respond to a click on the "Checkout" menu option
+            case R.id.action_checkout:
+                checkout();
+                return true;
+            // Respond to a click on the "Back up books" menu option
+            case R.id.action_backup:
+                Intent backupIntent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                backupIntent.addCategory(Intent.CATEGORY_OPENABLE);
+                backupIntent.setType(BookBackup.MIME_TYPE);
+                backupIntent.putExtra(Intent.EXTRA_TITLE, BookBackup.FILE_NAME);
+                startActivityForResult(backupIntent, REQUEST_BACKUP);
+                return true;
+            // Respond to a click on the "Restore backup" menu option
+            case R.id.action_restore:
+                Intent restoreIntent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                restoreIntent.addCategory(Intent.CATEGORY_OPENABLE);
+                restoreIntent.setType("*/*");
+                startActivityForResult(restoreIntent, REQUEST_RESTORE);
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // Define a projection that specifies the columns from the table we care about.
-        String[] projection = {
-                BookContract.BookEntry._ID,
-                BookContract.BookEntry.COLUMN_BOOK_NAME,
-                BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
-                BookContract.BookEntry.COLUMN_BOOK_PRICE,
-                BookContract.BookEntry.COLUMN_BOOK_QUANTITY};
-
-        // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
-                BookContract.BookEntry.CONTENT_URI,   // Provider content URI to query
-                projection,                           // Columns to include in the resulting Cursor
-                null,                         // No selection clause
-                null,                      // No selection arguments
-                null);                       // Default sort order
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        // The snapshot can take a while on a big catalogue, so never on the UI thread
+        if (requestCode == REQUEST_BACKUP || requestCode == REQUEST_RESTORE) {
+            new BackupTask(requestCode == REQUEST_BACKUP).execute(data.getData());
+        }
     }
 
-    @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@link BookCursorAdapter} with this new cursor containing updated book data
-        mCursorAdapter.swapCursor(data);
+    /**
+     * Writes a backup to, or restores a backup from, the file picked by the user.
+     */
+    private class BackupTask extends AsyncTask<Uri, Void, Boolean> {
+
+        private final boolean mBackup;
+
+        BackupTask(boolean backup) {
+            mBackup = backup;
+        }
+
+        @Override
+        protected Boolean doInBackground(Uri... uris) {
+            ContentResolver resolver = getContentResolver();
+            try {
+                if (mBackup) {
+                    BookBackup.backup(CatalogActivity.this, resolver.openOutputStream(uris[0]));
+                    return true;
+                }
+                return BookBackup.restore(CatalogActivity.this, resolver.openInputStream(uris[0]));
+            } catch (IOException e) {
+                Log.e("CatalogActivity", "Backup failed", e);
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean successful) {
+            int message;
+            if (mBackup) {
+                message = successful ? R.string.backup_successful : R.string.backup_failed;
+            } else {
+                message = successful ? R.string.restore_successful : R.string.restore_failed;
+            }
+            Toast.makeText(CatalogActivity.this, message, Toast.LENGTH_SHORT).show();
+        }
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        // Callback called when the data needs to be deleted
+    protected void onDestroy() {
+        super.onDestroy();
         mCursorAdapter.swapCursor(null);
+        if (mBooksCursor != null) {
+            mBooksCursor.close();
+            mBooksCursor = null;
+        }
+    }
+
+    @Override
+    public void onSnapshot(QuerySnapshot snapshot) {
+        // Update {@link BookCursorAdapter} with a cursor over the new books. The live books
+        // always replace the snapshot of the catalogue, which is rewritten if they differ.
+        Cursor previous = mBooksCursor;
+        mBooksCursor = snapshot.toCursor();
+        mCursorAdapter.setPreview(false);
+        showBooks();
+        // The adapter doesn't hold the previous cursor anymore, which may be the snapshot one
+        if (previous != null) {
+            previous.close();
+        }
+        mSnapshotCursor = null;
+        CatalogSnapshot.reconcile(this, mLocationId, mBooksCursor);
     }
 }
 
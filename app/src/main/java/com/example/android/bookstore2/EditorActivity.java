@@ -17,18 +17,24 @@ package com.example.android.bookstore2;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
@@ -37,7 +43,14 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Toast;
 
+import com.example.android.bookstore2.data.Book;
 import com.example.android.bookstore2.data.BookContract;
+import com.example.android.bookstore2.data.BookCursorReader;
+import com.example.android.bookstore2.data.BookValidator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * Allows user to create a new book or edit an existing one.
@@ -50,6 +63,16 @@ public class EditorActivity extends AppCompatActivity implements
      */
     private static final int EXISTING_BOOK_LOADER = 0;
 
+    /**
+     * Request code for picking the cover image of the book
+     */
+    private static final int REQUEST_COVER = 1;
+
+    /**
+     * Longest side of the stored cover images, in pixels
+     */
+    private static final int COVER_MAX_SIZE = 1024;
+
     /**
      * Content URI for the existing book (null if it's a new book)
      */
@@ -114,10 +137,14 @@ public class EditorActivity extends AppCompatActivity implements
         phoneCall.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                String phoneNumber = mSupplierPhoneNrEditText.getText().toString();
-                if (phoneNumber.length() >= 8 && phoneNumber.length() <= 14) {
-                    Intent intent = new Intent(Intent.ACTION_DIAL, Uri.fromParts("tel", phoneNumber, null));
-                    startActivity(intent);
+                // The number typed in the editor wins, the directory only fills in a missing one
+                String typedNumber = mSupplierPhoneNrEditText.getText().toString().trim();
+                if (typedNumber.isEmpty()) {
+                    new DialTask().execute(mSupplierEditText.getText().toString().trim());
+                } else if (!dial(typedNumber)) {
+                    Toast.makeText(EditorActivity.this, getString(R.string.editor_invalid_supplier_phone_nr_length,
+                            BookValidator.PHONE_NR_MIN_LENGTH, BookValidator.PHONE_NR_MAX_LENGTH),
+                            Toast.LENGTH_SHORT).show();
                 }
             }
         });
@@ -215,6 +242,33 @@ public class EditorActivity extends AppCompatActivity implements
         mBookHasChanged = true;
     }
 
+    /**
+     * Return the message telling the user how to fix the given validation error.
+     */
+    private String getValidationMessage(int error) {
+        switch (error) {
+            case BookValidator.ERROR_NAME:
+                return getString(R.string.editor_invalid_name);
+            case BookValidator.ERROR_AUTHOR:
+                return getString(R.string.editor_invalid_author);
+            case BookValidator.ERROR_QUANTITY:
+                return getString(R.string.editor_invalid_quantity);
+            case BookValidator.ERROR_PRICE:
+                return getString(R.string.editor_invalid_price);
+            case BookValidator.ERROR_SUPPLIER_NAME:
+                return getString(R.string.editor_invalid_supplier_name);
+            case BookValidator.ERROR_SUPPLIER_PHONE_NR:
+                return getString(R.string.editor_invalid_supplier_phone_nr);
+            case BookValidator.ERROR_REORDER_LEVEL:
+                return getString(R.string.editor_invalid_reorder_level);
+            case BookValidator.ERROR_REORDER_TARGET:
+                return getString(R.string.editor_invalid_reorder_target);
+            default:
+                return getString(R.string.editor_invalid_supplier_phone_nr_length,
+                        BookValidator.PHONE_NR_MIN_LENGTH, BookValidator.PHONE_NR_MAX_LENGTH);
+        }
+    }
+
     /**
      * Get user input from editor and save book into database.
      */
@@ -242,20 +296,11 @@ public class EditorActivity extends AppCompatActivity implements
             Toast.makeText(this, "Fill the fields to save a new book", Toast.LENGTH_SHORT).show();
             return;
         }
-        if (TextUtils.isEmpty(nameString)) {
-            Toast.makeText(this, "Book need to have a valid title", Toast.LENGTH_LONG).show();
-        } else if (TextUtils.isEmpty(authorString)) {
-            Toast.makeText(this, "Book need to have a valid author", Toast.LENGTH_LONG).show();
-        } else if (TextUtils.isEmpty(quantityString)) {
-            Toast.makeText(this, "Book need to have a specified quantity", Toast.LENGTH_LONG).show();
-        } else if (TextUtils.isEmpty(priceString)) {
-            Toast.makeText(this, "Book need to have a valid price", Toast.LENGTH_LONG).show();
-        } else if (TextUtils.isEmpty(supplierString)) {
-            Toast.makeText(this, "Book need to have a valid supplier name", Toast.LENGTH_LONG).show();
-        } else if (TextUtils.isEmpty(supplierPhoneNrString)) {
-            Toast.makeText(this, "Book need to have a valid supplier phone number", Toast.LENGTH_LONG).show();
-        } else if (supplierPhoneNrString.length() < 8 || supplierPhoneNrString.length() > 14) {
-            Toast.makeText(this, "The phone number has to be 8-13 digits", Toast.LENGTH_LONG).show();
+        // Check the fields against the rules shared with the provider
+        int error = BookValidator.firstError(BookValidator.validateFields(nameString, authorString,
+                priceString, quantityString, supplierString, supplierPhoneNrString));
+        if (error != BookValidator.VALID) {
+            Toast.makeText(this, getValidationMessage(error), Toast.LENGTH_LONG).show();
         } else {
 
             // Create a ContentValues object where column names are the keys,
@@ -334,6 +379,8 @@ public class EditorActivity extends AppCompatActivity implements
         if (mCurrentBookUri == null) {
             MenuItem menuItem = menu.findItem(R.id.action_delete);
             menuItem.setVisible(false);
+            // A cover can only be added once the book is saved
+            menu.findItem(R.id.action_choose_cover).setVisible(false);
         }
         return true;
     }
@@ -347,6 +394,13 @@ public class EditorActivity extends AppCompatActivity implements
                 // Save book to database
                 saveBook();
                 return true;
+            // Respond to a click on the "Choose cover" menu option
+            case R.id.action_choose_cover:
+                Intent coverIntent = new Intent(Intent.ACTION_GET_CONTENT);
+                coverIntent.addCategory(Intent.CATEGORY_OPENABLE);
+                coverIntent.setType("image/*");
+                startActivityForResult(coverIntent, REQUEST_COVER);
+                return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
                 // Pop up confirmation dialog for deletion
@@ -380,6 +434,126 @@ public class EditorActivity extends AppCompatActivity implements
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_COVER && resultCode == RESULT_OK && data != null && data.getData() != null) {
+            new CoverTask(ContentUris.parseId(mCurrentBookUri)).execute(data.getData());
+        }
+    }
+
+    /**
+     * Dials the supplier of the book, at the number of the supplier directory. The number typed
+     * in the editor is only used for a supplier the directory doesn't know yet.
+     */
+    /**
+     * Open the dialer with the given number. Return false if the number has an invalid length.
+     */
+    private boolean dial(String phoneNumber) {
+        if (phoneNumber.length() < BookValidator.PHONE_NR_MIN_LENGTH
+                || phoneNumber.length() > BookValidator.PHONE_NR_MAX_LENGTH) {
+            return false;
+        }
+        startActivity(new Intent(Intent.ACTION_DIAL, Uri.fromParts("tel", phoneNumber, null)));
+        return true;
+    }
+
+    /**
+     * Looks up the number of the supplier in the supplier directory and dials it, for the books
+     * whose number hasn't been typed in.
+     */
+    private class DialTask extends AsyncTask<String, Void, String> {
+
+        @Override
+        protected String doInBackground(String... supplierNames) {
+            if (TextUtils.isEmpty(supplierNames[0])) {
+                return null;
+            }
+            // A lookup in the cached directory, no scan of the books
+            Cursor cursor = getContentResolver().query(BookContract.SupplierEntry.buildSupplierUri(supplierNames[0]),
+                    new String[]{BookContract.SupplierEntry.COLUMN_SUPPLIER_PHONE_NR}, null, null, null);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                return cursor.moveToFirst() ? cursor.getString(
+                        cursor.getColumnIndexOrThrow(BookContract.SupplierEntry.COLUMN_SUPPLIER_PHONE_NR)) : null;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String directoryNumber) {
+            if (!TextUtils.isEmpty(directoryNumber)) {
+                dial(directoryNumber);
+            }
+        }
+    }
+
+    /**
+     * Stores the picked image as the cover of the book, scaled down and compressed as JPEG.
+     */
+    private class CoverTask extends AsyncTask<Uri, Void, Boolean> {
+
+        private final long mBookId;
+
+        CoverTask(long bookId) {
+            mBookId = bookId;
+        }
+
+        @Override
+        protected Boolean doInBackground(Uri... uris) {
+            ContentResolver resolver = getContentResolver();
+            try {
+                // Read the size of the picked image first, to decode it subsampled
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                decodeImage(resolver, uris[0], options);
+                if (options.outWidth <= 0) {
+                    return false;
+                }
+                options.inSampleSize = 1;
+                while (Math.max(options.outWidth, options.outHeight) / (options.inSampleSize * 2) >= COVER_MAX_SIZE) {
+                    options.inSampleSize *= 2;
+                }
+                options.inJustDecodeBounds = false;
+                Bitmap cover = decodeImage(resolver, uris[0], options);
+                if (cover == null) {
+                    return false;
+                }
+
+                OutputStream out = resolver.openOutputStream(BookContract.BookEntry.buildCoverUri(mBookId));
+                try {
+                    return cover.compress(Bitmap.CompressFormat.JPEG, 85, out);
+                } finally {
+                    out.close();
+                    cover.recycle();
+                }
+            } catch (IOException e) {
+                Log.e("EditorActivity", "Failed to save the cover", e);
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean successful) {
+            Toast.makeText(EditorActivity.this, successful ? R.string.editor_cover_successful
+                    : R.string.editor_cover_failed, Toast.LENGTH_SHORT).show();
+        }
+
+        private Bitmap decodeImage(ContentResolver resolver, Uri uri, BitmapFactory.Options options) throws IOException {
+            InputStream in = resolver.openInputStream(uri);
+            try {
+                return BitmapFactory.decodeStream(in, null, options);
+            } finally {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+    }
+
     /**
      * This method is called when the back button is pressed.
      */
@@ -408,21 +582,10 @@ public class EditorActivity extends AppCompatActivity implements
 
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // Since the editor shows all book attributes, define a projection that contains
-        // all columns from the book table
-        String[] projection = {
-                BookContract.BookEntry._ID,
-                BookContract.BookEntry.COLUMN_BOOK_NAME,
-                BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
-                BookContract.BookEntry.COLUMN_BOOK_QUANTITY,
-                BookContract.BookEntry.COLUMN_BOOK_PRICE,
-                BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME,
-                BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR};
-
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
                 mCurrentBookUri,         // Query the content URI for the current book
-                projection,             // Columns to include in the resulting Cursor
+                BookContract.BookEntry.PROJECTION_DETAILS, // All the attributes of the book
                 null,                   // No selection clause
                 null,                   // No selection arguments
                 null);                  // Default sort order
@@ -439,21 +602,14 @@ public class EditorActivity extends AppCompatActivity implements
         // Proceed with moving to the first row of the cursor and reading data from it
         // (This should be the only row in the cursor)
         if (cursor.moveToFirst()) {
-            // Find the columns of book attributes that we're interested in
-            int nameColumnIndex = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_NAME);
-            int authorColumnIndex = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_AUTHOR);
-            int quantityColumnIndex = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
-            int priceColumnIndex = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_PRICE);
-            int supplierColumnIndex = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME);
-            int supplierPhoneNrColumnIndex = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR);
-
-            // Extract out the value from the Cursor for the given column index
-            String name = cursor.getString(nameColumnIndex);
-            String author = cursor.getString(authorColumnIndex);
-            String quantity = Integer.toString(cursor.getInt(quantityColumnIndex));
-            String price = Double.toString(cursor.getDouble(priceColumnIndex));
-            String supplier = cursor.getString(supplierColumnIndex);
-            String supplierPhoneNr = cursor.getString(supplierPhoneNrColumnIndex);
+            // Read the book from the Cursor
+            Book book = new BookCursorReader(cursor).readBook(cursor);
+            String name = book.getName();
+            String author = book.getAuthor();
+            String quantity = String.valueOf(book.getQuantity());
+            String price = Double.toString(book.getPrice());
+            String supplier = book.getSupplierName();
+            String supplierPhoneNr = book.getSupplierPhoneNr();
 
             // Update the views on the screen with the values from the database
             mNameEditText.setText(name);
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.CursorAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.example.android.bookstore2.data.BookContract;
+import com.example.android.bookstore2.data.BookContract.PurchaseOrderEntry;
+import com.example.android.bookstore2.data.ObservableQueries;
+import com.example.android.bookstore2.data.QuerySnapshot;
+
+/**
+ * Displays the purchase orders sent to the suppliers, and receives them when the books arrive.
+ */
+public class PurchaseOrderActivity extends AppCompatActivity implements ObservableQueries.Listener {
+
+    /**
+     * Adapter for the ListView
+     */
+    private OrderCursorAdapter mCursorAdapter;
+
+    /**
+     * Subscription to the purchase orders, while the screen is started
+     */
+    private ObservableQueries.Subscription mSubscription;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_purchase_orders);
+
+        ListView orderListView = (ListView) findViewById(R.id.list_view);
+        orderListView.setEmptyView(findViewById(R.id.empty_view));
+        mCursorAdapter = new OrderCursorAdapter(this);
+        orderListView.setAdapter(mCursorAdapter);
+
+        // Only the open orders can be received
+        orderListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+                Cursor cursor = (Cursor) mCursorAdapter.getItem(position);
+                int status = cursor.getInt(cursor.getColumnIndexOrThrow(PurchaseOrderEntry.COLUMN_ORDER_STATUS));
+                if (status == PurchaseOrderEntry.ORDER_OPEN) {
+                    showReceiveConfirmationDialog(id);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // The purchase order queries have fixed columns, so no projection. Shared with the
+        // other screens showing it, and refreshed whenever it changes.
+        mSubscription = ObservableQueries.getInstance(this).subscribe(
+                PurchaseOrderEntry.CONTENT_URI, null, null, null, null, this);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mSubscription.unsubscribe();
+        mSubscription = null;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCursorAdapter.changeCursor(null);
+    }
+
+    /**
+     * Turn the books running low into one purchase order per supplier.
+     */
+    private void createOrders() {
+        Bundle result = getContentResolver().call(BookContract.BookEntry.CONTENT_URI,
+                PurchaseOrderEntry.METHOD_CREATE_ORDERS, null, null);
+        int ordersCreated = result == null ? 0 : (int) result.getLong(BookContract.BookEntry.EXTRA_COUNT);
+        Toast.makeText(this, getString(R.string.orders_created, ordersCreated), Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Add the books of an order to the stock, in a single transaction.
+     */
+    private void receiveOrder(long orderId) {
+        int rowsUpdated = getContentResolver().update(PurchaseOrderEntry.buildReceiveUri(orderId), null, null, null);
+        if (rowsUpdated == 0) {
+            Toast.makeText(this, R.string.order_receive_failed, Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(this, R.string.order_received, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Prompt the user to confirm that the books of the order have arrived.
+     */
+    private void showReceiveConfirmationDialog(final long orderId) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.receive_dialog_msg);
+        builder.setPositiveButton(R.string.receive, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                receiveOrder(orderId);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
+            }
+        });
+        AlertDialog alertDialog = builder.create();
+        alertDialog.show();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_purchase_orders, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            // Respond to a click on the "Create orders" menu option
+            case R.id.action_create_orders:
+                createOrders();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    public void onSnapshot(QuerySnapshot snapshot) {
+        // Every snapshot gets a cursor of its own, the previous one is closed
+        mCursorAdapter.changeCursor(snapshot.toCursor());
+    }
+
+    /**
+     * Shows the supplier, size and status of each purchase order.
+     */
+    private static class OrderCursorAdapter extends CursorAdapter {
+
+        OrderCursorAdapter(Context context) {
+            super(context, null, 0);
+        }
+
+        @Override
+        public View newView(Context context, Cursor cursor, ViewGroup parent) {
+            return LayoutInflater.from(context).inflate(R.layout.purchase_order_item, parent, false);
+        }
+
+        @Override
+        public void bindView(View view, Context context, Cursor cursor) {
+            TextView supplierTextView = (TextView) view.findViewById(R.id.supplier_text_view);
+            TextView summaryTextView = (TextView) view.findViewById(R.id.summary_text_view);
+            TextView statusTextView = (TextView) view.findViewById(R.id.status_text_view);
+
+            supplierTextView.setText(cursor.getString(cursor.getColumnIndexOrThrow(PurchaseOrderEntry.COLUMN_ORDER_SUPPLIER_NAME)));
+            summaryTextView.setText(context.getString(R.string.order_summary,
+                    cursor.getInt(cursor.getColumnIndexOrThrow(PurchaseOrderEntry.COLUMN_ORDER_BOOK_COUNT)),
+                    cursor.getInt(cursor.getColumnIndexOrThrow(PurchaseOrderEntry.COLUMN_ORDER_UNITS))));
+            int status = cursor.getInt(cursor.getColumnIndexOrThrow(PurchaseOrderEntry.COLUMN_ORDER_STATUS));
+            statusTextView.setText(status == PurchaseOrderEntry.ORDER_OPEN
+                    ? R.string.order_status_open : R.string.order_status_received);
+        }
+    }
+}
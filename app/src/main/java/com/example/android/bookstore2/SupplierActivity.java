@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2;
+
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.CursorAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.example.android.bookstore2.data.BookContract.SupplierEntry;
+import com.example.android.bookstore2.data.ObservableQueries;
+import com.example.android.bookstore2.data.QuerySnapshot;
+
+/**
+ * Displays the supplier directory, and dials a supplier when it is clicked on.
+ */
+public class SupplierActivity extends AppCompatActivity implements ObservableQueries.Listener {
+
+    /**
+     * Adapter for the ListView
+     */
+    private SupplierCursorAdapter mCursorAdapter;
+
+    /**
+     * Subscription to the supplier directory, while the screen is started
+     */
+    private ObservableQueries.Subscription mSubscription;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_suppliers);
+
+        ListView supplierListView = (ListView) findViewById(R.id.list_view);
+        supplierListView.setEmptyView(findViewById(R.id.empty_view));
+        mCursorAdapter = new SupplierCursorAdapter(this);
+        supplierListView.setAdapter(mCursorAdapter);
+
+        supplierListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+                Cursor cursor = (Cursor) mCursorAdapter.getItem(position);
+                String phoneNumber = cursor.getString(cursor.getColumnIndexOrThrow(SupplierEntry.COLUMN_SUPPLIER_PHONE_NR));
+                if (!TextUtils.isEmpty(phoneNumber)) {
+                    startActivity(new Intent(Intent.ACTION_DIAL, Uri.fromParts("tel", phoneNumber, null)));
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // The supplier directory has fixed columns, so no projection. Shared with the
+        // other screens showing it, and refreshed whenever it changes.
+        mSubscription = ObservableQueries.getInstance(this).subscribe(
+                SupplierEntry.CONTENT_URI, null, null, null, null, this);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mSubscription.unsubscribe();
+        mSubscription = null;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCursorAdapter.changeCursor(null);
+    }
+
+    @Override
+    public void onSnapshot(QuerySnapshot snapshot) {
+        // Every snapshot gets a cursor of its own, the previous one is closed
+        mCursorAdapter.changeCursor(snapshot.toCursor());
+    }
+
+    /**
+     * Shows the name, books and phone number of each supplier.
+     */
+    private static class SupplierCursorAdapter extends CursorAdapter {
+
+        SupplierCursorAdapter(Context context) {
+            super(context, null, 0);
+        }
+
+        @Override
+        public View newView(Context context, Cursor cursor, ViewGroup parent) {
+            return LayoutInflater.from(context).inflate(R.layout.supplier_item, parent, false);
+        }
+
+        @Override
+        public void bindView(View view, Context context, Cursor cursor) {
+            TextView supplierTextView = (TextView) view.findViewById(R.id.supplier_text_view);
+            TextView summaryTextView = (TextView) view.findViewById(R.id.summary_text_view);
+            TextView phoneTextView = (TextView) view.findViewById(R.id.phone_text_view);
+
+            supplierTextView.setText(cursor.getString(cursor.getColumnIndexOrThrow(SupplierEntry.COLUMN_SUPPLIER_NAME)));
+            summaryTextView.setText(context.getString(R.string.supplier_summary,
+                    cursor.getInt(cursor.getColumnIndexOrThrow(SupplierEntry.COLUMN_SUPPLIER_BOOK_COUNT)),
+                    cursor.getInt(cursor.getColumnIndexOrThrow(SupplierEntry.COLUMN_SUPPLIER_STOCK))));
+            phoneTextView.setText(cursor.getString(cursor.getColumnIndexOrThrow(SupplierEntry.COLUMN_SUPPLIER_PHONE_NR)));
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.bookstore2.data.BookContract;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the cover thumbnails of the catalogue list.
+ *
+ * Thumbnails are looked up in an LRU memory cache sized in bytes, then in a disk cache of small
+ * JPEG files, and only decoded from the full cover as a last resort. Everything but the memory
+ * lookup runs on background threads, and the pending load of a row is cancelled as soon as the
+ * row is recycled for another book, so scrolling never decodes on the UI thread.
+ */
+public class ThumbnailLoader {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = ThumbnailLoader.class.getSimpleName();
+
+    /**
+     * Directory of the disk cache, inside the app's cache directory
+     */
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+
+    /**
+     * Quality of the thumbnails written to the disk cache
+     */
+    private static final int THUMBNAIL_QUALITY = 80;
+
+    private static ThumbnailLoader sInstance;
+
+    private final ContentResolver mResolver;
+    private final File mDiskCacheDir;
+    private final int mWidth;
+    private final int mHeight;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(2);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Return the loader shared by all the lists of the app.
+     */
+    public static synchronized ThumbnailLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ThumbnailLoader(Context context) {
+        mResolver = context.getContentResolver();
+        mDiskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+        mWidth = context.getResources().getDimensionPixelSize(R.dimen.cover_thumbnail_width);
+        mHeight = context.getResources().getDimensionPixelSize(R.dimen.cover_thumbnail_height);
+
+        // Use an eighth of the app's memory for the thumbnails, counted in bytes
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+        mMemoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Show the cover thumbnail of a book in the given view. Any load still pending for the view
+     * is cancelled first.
+     *
+     * @param view         The view of the list row
+     * @param id           ID of the book
+     * @param coverVersion Cover time of the book, 0 if it has no cover
+     */
+    public void load(final ImageView view, final long id, final long coverVersion) {
+        cancel(view);
+        if (coverVersion == 0) {
+            view.setImageResource(R.drawable.logo_libro);
+            return;
+        }
+
+        // The cover time is part of the key, so a new cover never shows a stale thumbnail
+        final String key = id + "_" + coverVersion;
+        Bitmap cached = mMemoryCache.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        view.setImageResource(R.drawable.logo_libro);
+        final Object[] holder = new Object[1];
+        Future<?> task = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = loadThumbnail(id, key);
+                if (bitmap == null || Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                mMemoryCache.put(key, bitmap);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Only if the row wasn't recycled for another book meanwhile
+                        if (view.getTag(R.id.cover_image_view) == holder[0]) {
+                            view.setTag(R.id.cover_image_view, null);
+                            view.setImageBitmap(bitmap);
+                        }
+                    }
+                });
+            }
+        });
+        holder[0] = task;
+        view.setTag(R.id.cover_image_view, task);
+    }
+
+    /**
+     * Cancel the load pending for the given view, if any.
+     */
+    public void cancel(ImageView view) {
+        Object task = view.getTag(R.id.cover_image_view);
+        if (task instanceof Future) {
+            ((Future<?>) task).cancel(true);
+        }
+        view.setTag(R.id.cover_image_view, null);
+    }
+
+    /**
+     * Read a thumbnail from the disk cache, or decode it from the cover and add it to the disk
+     * cache. Runs on a background thread.
+     */
+    private Bitmap loadThumbnail(long id, String key) {
+        File cachedFile = new File(mDiskCacheDir, key + ".jpg");
+        if (cachedFile.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(cachedFile.getPath());
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+
+        try {
+            // First pass only reads the size of the cover, to decode it subsampled
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeCover(id, options);
+            if (options.outWidth <= 0 || Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            options.inSampleSize = 1;
+            while (options.outWidth / (options.inSampleSize * 2) >= mWidth
+                    && options.outHeight / (options.inSampleSize * 2) >= mHeight) {
+                options.inSampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            Bitmap decoded = decodeCover(id, options);
+            if (decoded == null) {
+                return null;
+            }
+            Bitmap thumbnail = Bitmap.createScaledBitmap(decoded, mWidth, mHeight, true);
+            if (thumbnail != decoded) {
+                decoded.recycle();
+            }
+
+            // Drop the thumbnails of the book's previous covers
+            mDiskCacheDir.mkdirs();
+            File[] staleFiles = mDiskCacheDir.listFiles();
+            if (staleFiles != null) {
+                for (File staleFile : staleFiles) {
+                    if (staleFile.getName().startsWith(id + "_")) {
+                        staleFile.delete();
+                    }
+                }
+            }
+            OutputStream out = new FileOutputStream(cachedFile);
+            try {
+                thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+            } finally {
+                out.close();
+            }
+            return thumbnail;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to load the cover of book " + id, e);
+            return null;
+        }
+    }
+
+    private Bitmap decodeCover(long id, BitmapFactory.Options options) throws IOException {
+        InputStream in = mResolver.openInputStream(BookContract.BookEntry.buildCoverUri(id));
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.bookstore2.data.BookContract;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Short-lived buffer of the catalogue mutations that can still be undone.
+ *
+ * Sales and deletes are staged in memory and shown right away in the list, then committed to the
+ * provider together, in a single batch, once nothing was staged for {@link #GRACE_PERIOD_MILLIS}.
+ * Undoing only drops the staged mutations, and several checkouts in a row are merged into one
+ * write. All the methods must be called on the UI thread.
+ */
+public class UndoBuffer {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = UndoBuffer.class.getSimpleName();
+
+    /**
+     * How long the staged mutations can be undone after the last one
+     */
+    public static final int GRACE_PERIOD_MILLIS = 5000;
+
+    /**
+     * Interface to be told when the staged mutations change, and when a commit fails
+     */
+    public interface Listener {
+        void onStagedChanged(UndoBuffer buffer);
+
+        /**
+         * Nothing was written. The line items of the sales are given back, so they can be put
+         * back in the cart.
+         */
+        void onCommitFailed(ContentValues[] lineItems);
+    }
+
+    /**
+     * Mutations waiting to be committed together
+     */
+    private static class Batch {
+        /**
+         * Number of copies sold of each book, by book ID
+         */
+        final Map<Long, Integer> mSales = new LinkedHashMap<>();
+        boolean mDeleteAll;
+
+        /**
+         * URI the sales are written to, which depends on the location
+         */
+        final Uri mCheckoutUri;
+
+        Batch(Uri checkoutUri) {
+            mCheckoutUri = checkoutUri;
+        }
+
+        boolean isEmpty() {
+            return mSales.isEmpty() && !mDeleteAll;
+        }
+
+        int getSold(long bookId) {
+            Integer quantity = mSales.get(bookId);
+            return quantity == null ? 0 : quantity;
+        }
+    }
+
+    /**
+     * Single background thread, so the batches are committed in the order they were staged
+     */
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Listener mListener;
+
+    /**
+     * Mutations that can still be undone
+     */
+    private Batch mStaged = new Batch(BookContract.BookEntry.CONTENT_CHECKOUT_URI);
+
+    /**
+     * Batches being written, still shown until their write is done
+     */
+    private final List<Batch> mCommitting = new ArrayList<>();
+
+    private final Runnable mCommitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            commit();
+        }
+    };
+
+    public UndoBuffer(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set the URI the following sales are written to, e.g. the checkout URI of another
+     * location. The mutations staged so far are committed first.
+     */
+    public void setCheckoutUri(Uri checkoutUri) {
+        if (!checkoutUri.equals(mStaged.mCheckoutUri)) {
+            flush();
+            mStaged = new Batch(checkoutUri);
+            notifyChanged();
+        }
+    }
+
+    /**
+     * Stage the sale of all the line items of the cart, and empty it.
+     */
+    public void stageCheckout(Cart cart) {
+        for (ContentValues lineItem : cart.toLineItems()) {
+            long bookId = lineItem.getAsLong(BookContract.BookEntry._ID);
+            int quantity = lineItem.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
+            mStaged.mSales.put(bookId, mStaged.getSold(bookId) + quantity);
+        }
+        cart.clear();
+        staged();
+    }
+
+    /**
+     * Stage the deletion of all the books.
+     */
+    public void stageDeleteAll() {
+        mStaged.mDeleteAll = true;
+        staged();
+    }
+
+    /**
+     * Drop all the mutations staged since the last commit.
+     */
+    public void undo() {
+        mHandler.removeCallbacks(mCommitRunnable);
+        mStaged = new Batch(mStaged.mCheckoutUri);
+        notifyChanged();
+    }
+
+    /**
+     * Return true if there is nothing left to undo.
+     */
+    public boolean isEmpty() {
+        return mStaged.isEmpty();
+    }
+
+    /**
+     * Return the number of copies of the given book sold but not written yet, from the stock
+     * the current checkout URI sells from.
+     */
+    public int getPendingSold(long bookId) {
+        int sold = mStaged.getSold(bookId);
+        for (Batch batch : mCommitting) {
+            if (batch.mCheckoutUri.equals(mStaged.mCheckoutUri)) {
+                sold += batch.getSold(bookId);
+            }
+        }
+        return sold;
+    }
+
+    /**
+     * Return true if all the books are deleted, but not in the database yet.
+     */
+    public boolean isDeleteAllPending() {
+        if (mStaged.mDeleteAll) {
+            return true;
+        }
+        for (Batch batch : mCommitting) {
+            if (batch.mDeleteAll) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Commit the staged mutations now, without waiting for the end of the grace period,
+     * e.g. when leaving the screen.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mCommitRunnable);
+        commit();
+    }
+
+    /**
+     * Restart the grace period after a new mutation.
+     */
+    private void staged() {
+        mHandler.removeCallbacks(mCommitRunnable);
+        mHandler.postDelayed(mCommitRunnable, GRACE_PERIOD_MILLIS);
+        notifyChanged();
+    }
+
+    /**
+     * Write the staged mutations in a single batch on the background thread.
+     */
+    private void commit() {
+        if (mStaged.isEmpty()) {
+            return;
+        }
+        final Batch batch = mStaged;
+        mStaged = new Batch(batch.mCheckoutUri);
+        mCommitting.add(batch);
+
+        // The sales come first, the copies of deleted books can't be sold anymore
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (Map.Entry<Long, Integer> sale : batch.mSales.entrySet()) {
+            operations.add(ContentProviderOperation.newInsert(batch.mCheckoutUri)
+                    .withValue(BookContract.BookEntry._ID, sale.getKey())
+                    .withValue(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, sale.getValue())
+                    .build());
+        }
+        if (batch.mDeleteAll) {
+            operations.add(ContentProviderOperation.newDelete(BookContract.BookEntry.CONTENT_URI).build());
+        }
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean committed = false;
+                try {
+                    mResolver.applyBatch(BookContract.CONTENT_AUTHORITY, operations);
+                    committed = true;
+                } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+                    // The provider rejects invalid operations with runtime exceptions, e.g. a
+                    // line item without a valid quantity
+                    Log.e(LOG_TAG, "Failed to commit " + operations.size() + " operations", e);
+                } finally {
+                    // Whatever happened, the batch must leave the committing list and its
+                    // sales be handed back if they weren't written
+                    final boolean successful = committed;
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            committed(batch, successful);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Called on the UI thread once a batch was written, or failed to be.
+     */
+    private void committed(Batch batch, boolean successful) {
+        mCommitting.remove(batch);
+        if (!successful && mListener != null) {
+            ContentValues[] lineItems = new ContentValues[batch.mSales.size()];
+            int i = 0;
+            for (Map.Entry<Long, Integer> sale : batch.mSales.entrySet()) {
+                ContentValues values = new ContentValues();
+                values.put(BookContract.BookEntry._ID, sale.getKey());
+                values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, sale.getValue());
+                lineItems[i++] = values;
+            }
+            mListener.onCommitFailed(lineItems);
+        }
+        notifyChanged();
+    }
+
+    private void notifyChanged() {
+        if (mListener != null) {
+            mListener.onStagedChanged(this);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+/**
+ * Immutable book, as read from a row of the books table by {@link BookCursorReader}.
+ * Attributes missing from the projection of the row are left to 0 or null.
+ */
+public final class Book {
+
+    private final long mId;
+    private final String mName;
+    private final String mAuthor;
+    private final double mPrice;
+    private final int mQuantity;
+    private final String mSupplierName;
+    private final String mSupplierPhoneNr;
+    private final long mCoverUpdatedAt;
+
+    public Book(long id, String name, String author, double price, int quantity,
+                String supplierName, String supplierPhoneNr, long coverUpdatedAt) {
+        mId = id;
+        mName = name;
+        mAuthor = author;
+        mPrice = price;
+        mQuantity = quantity;
+        mSupplierName = supplierName;
+        mSupplierPhoneNr = supplierPhoneNr;
+        mCoverUpdatedAt = coverUpdatedAt;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getAuthor() {
+        return mAuthor;
+    }
+
+    public double getPrice() {
+        return mPrice;
+    }
+
+    public int getQuantity() {
+        return mQuantity;
+    }
+
+    public String getSupplierName() {
+        return mSupplierName;
+    }
+
+    public String getSupplierPhoneNr() {
+        return mSupplierPhoneNr;
+    }
+
+    /**
+     * Return the time the cover was last written, 0 if the book has no cover.
+     */
+    public long getCoverUpdatedAt() {
+        return mCoverUpdatedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "Book{" + mId + ", " + mName + ", " + mAuthor + ", " + mPrice + ", " + mQuantity + "}";
+    }
+}
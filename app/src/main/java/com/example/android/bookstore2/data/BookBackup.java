@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressed snapshot backups of the bookstore database.
+ *
+ * A backup copies the database into a snapshot file from a consistent read transaction on its
+ * own connection, so with write-ahead logging the till keeps selling while it runs. The snapshot
+ * is then streamed through gzip into the file chosen by the user.
+ *
+ * A restore unpacks and validates the snapshot next to the database, brings it up to the current
+ * schema, then copies its rows into the live database in one transaction. The database file is
+ * never swapped, so the loaders, sync and jobs that hold a connection keep working throughout.
+ *
+ * None of these methods may be called on the UI thread.
+ */
+public final class BookBackup {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = BookBackup.class.getSimpleName();
+
+    /**
+     * MIME type of the backup files
+     */
+    public static final String MIME_TYPE = "application/gzip";
+
+    /**
+     * Suggested name of the backup files
+     */
+    public static final String FILE_NAME = "bookstore-backup.db.gz";
+
+    /**
+     * Name the snapshot database is attached under on the backup connection
+     */
+    private static final String SNAPSHOT_SCHEMA = "snapshot";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private BookBackup() {
+    }
+
+    /**
+     * Write a compressed snapshot of the database to the given stream, and close it.
+     */
+    public static void backup(Context context, OutputStream out) throws IOException {
+        backup(context, BookDbHelper.getInstance(context), out);
+    }
+
+    /**
+     * Write a compressed snapshot of the database of the given helper to the given stream, and
+     * close it.
+     */
+    static void backup(Context context, BookDbHelper dbHelper, OutputStream out) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        File databaseFile = context.getDatabasePath(dbHelper.getDatabaseName());
+        File snapshotFile = new File(context.getCacheDir(), "snapshot-" + dbHelper.getDatabaseName());
+        snapshotFile.delete();
+
+        // Make sure the database exists and is up to date before copying it
+        dbHelper.getReadableDatabase();
+
+        try {
+            // The backup uses its own connection, so the connection the till writes with
+            // stays free while the snapshot is taken. As the helper keeps its connection open,
+            // this one can't switch the database out of write-ahead logging.
+            // Without localized collators it doesn't write its locale into the database either.
+            SQLiteDatabase database = SQLiteDatabase.openDatabase(databaseFile.getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+            try {
+                takeSnapshot(database, snapshotFile);
+            } catch (SQLiteException e) {
+                throw new IOException("Failed to take a snapshot of the database", e);
+            } finally {
+                database.close();
+            }
+            long snapshotTime = SystemClock.elapsedRealtime() - start;
+
+            copy(new FileInputStream(snapshotFile), new GZIPOutputStream(out, BUFFER_SIZE));
+            Log.v(LOG_TAG, "Backup of " + snapshotFile.length() + " bytes: snapshot in " + snapshotTime
+                    + "ms, total " + (SystemClock.elapsedRealtime() - start) + "ms");
+        } finally {
+            snapshotFile.delete();
+        }
+    }
+
+    /**
+     * Copy the database into the snapshot file, from a single read transaction.
+     */
+    private static void takeSnapshot(SQLiteDatabase database, File snapshotFile) {
+        String sqliteVersion = DatabaseUtils.stringForQuery(database, "SELECT sqlite_version()", null);
+        if (compareVersions(sqliteVersion, "3.27.0") >= 0) {
+            // Newer SQLite versions can write the snapshot themselves
+            database.execSQL("VACUUM INTO ?", new Object[]{snapshotFile.getPath()});
+            return;
+        }
+
+        // Otherwise attach an empty database and copy the schema and the rows into it.
+        database.execSQL("ATTACH DATABASE ? AS " + SNAPSHOT_SCHEMA, new Object[]{snapshotFile.getPath()});
+        try {
+            // A savepoint outside of a transaction starts a deferred transaction: the copy reads
+            // from one consistent snapshot of the bookstore database, and only takes the write
+            // lock of the snapshot database. (beginTransaction() would lock both of them.)
+            database.execSQL("SAVEPOINT " + SNAPSHOT_SCHEMA);
+            try {
+                List<String> tables = new ArrayList<>();
+                List<String> otherObjects = new ArrayList<>();
+                Cursor cursor = database.rawQuery("SELECT type, name, sql FROM main.sqlite_master"
+                        + " WHERE sql IS NOT NULL AND name NOT LIKE 'sqlite_%'", null);
+                try {
+                    while (cursor.moveToNext()) {
+                        String sql = qualify(cursor.getString(2));
+                        if ("table".equals(cursor.getString(0))) {
+                            database.execSQL(sql);
+                            tables.add(cursor.getString(1));
+                        } else {
+                            otherObjects.add(sql);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                // Copy the rows before creating the indexes and triggers, which is faster and
+                // doesn't fire the triggers a second time
+                for (String table : tables) {
+                    database.execSQL("INSERT INTO " + SNAPSHOT_SCHEMA + "." + table + " SELECT * FROM main." + table);
+                }
+                for (String sql : otherObjects) {
+                    database.execSQL(sql);
+                }
+                database.execSQL("DELETE FROM " + SNAPSHOT_SCHEMA + ".sqlite_sequence");
+                database.execSQL("INSERT INTO " + SNAPSHOT_SCHEMA + ".sqlite_sequence SELECT * FROM main.sqlite_sequence");
+                database.execSQL("PRAGMA " + SNAPSHOT_SCHEMA + ".user_version = " + database.getVersion());
+            } finally {
+                // A failed snapshot file is deleted by the caller anyway
+                database.execSQL("RELEASE SAVEPOINT " + SNAPSHOT_SCHEMA);
+            }
+        } finally {
+            database.execSQL("DETACH DATABASE " + SNAPSHOT_SCHEMA);
+        }
+    }
+
+    /**
+     * Put a CREATE statement read from sqlite_master into the snapshot schema.
+     */
+    private static String qualify(String sql) {
+        // sqlite_master keeps the statements normalized as "CREATE [UNIQUE] TYPE name ..."
+        String prefix = sql.startsWith("CREATE UNIQUE ") ? "CREATE UNIQUE INDEX "
+                : sql.substring(0, sql.indexOf(' ', "CREATE ".length()) + 1);
+        return prefix + SNAPSHOT_SCHEMA + "." + sql.substring(prefix.length());
+    }
+
+    /**
+     * Replace the database with a backup read from the given stream, and close it.
+     * Return false if the backup isn't a valid bookstore database, leaving the database untouched.
+     */
+    public static boolean restore(Context context, InputStream in) throws IOException {
+        if (!restore(context, BookDbHelper.getInstance(context), in)) {
+            return false;
+        }
+        // Everything may have changed
+        context.getContentResolver().notifyChange(BookContract.BASE_CONTENT_URI, null);
+        return true;
+    }
+
+    /**
+     * Replace the contents of the database of the given helper with a backup read from the given
+     * stream, and close it. Return false if the backup isn't a valid bookstore database or can't
+     * be restored, leaving the database untouched.
+     */
+    static boolean restore(Context context, BookDbHelper dbHelper, InputStream in) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        String restoreName = "restore-" + dbHelper.getDatabaseName();
+        File restoreFile = context.getDatabasePath(restoreName);
+        context.deleteDatabase(restoreName);
+
+        try {
+            GZIPInputStream gzip = new GZIPInputStream(in, BUFFER_SIZE);
+            copy(gzip, new FileOutputStream(restoreFile));
+
+            if (!isValidSnapshot(restoreFile)) {
+                Log.e(LOG_TAG, "Invalid backup, database left untouched");
+                return false;
+            }
+            // Opening the snapshot with a helper of its own runs the migrations of older backups
+            BookDbHelper restoreHelper = new BookDbHelper(context, restoreName);
+            try {
+                dbHelper.restoreFrom(restoreHelper.getWritableDatabase());
+            } catch (SQLiteException e) {
+                Log.e(LOG_TAG, "Failed to restore the backup, database left untouched", e);
+                return false;
+            } finally {
+                restoreHelper.close();
+            }
+            Log.v(LOG_TAG, "Restore of " + restoreFile.length() + " bytes in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+        } finally {
+            context.deleteDatabase(restoreName);
+        }
+        return true;
+    }
+
+    /**
+     * Check that the file is an intact bookstore database that this app can open.
+     */
+    private static boolean isValidSnapshot(File file) {
+        SQLiteDatabase database;
+        try {
+            database = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        } catch (SQLiteException e) {
+            return false;
+        }
+        try {
+            int version = database.getVersion();
+            if (version < 1 || version > BookDbHelper.DATABASE_VERSION) {
+                return false;
+            }
+            if (DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name=?",
+                    new String[]{BookContract.BookEntry.TABLE_NAME}) != 1) {
+                return false;
+            }
+            return "ok".equals(DatabaseUtils.stringForQuery(database, "PRAGMA integrity_check", null));
+        } catch (SQLiteException e) {
+            return false;
+        } finally {
+            database.close();
+        }
+    }
+
+    /**
+     * Compare two dotted version numbers.
+     */
+    static int compareVersions(String version, String other) {
+        String[] parts = version.split("\\.");
+        String[] otherParts = other.split("\\.");
+        for (int i = 0; i < Math.max(parts.length, otherParts.length); i++) {
+            int part = i < parts.length ? Integer.parseInt(parts[i]) : 0;
+            int otherPart = i < otherParts.length ? Integer.parseInt(otherParts[i]) : 0;
+            if (part != otherPart) {
+                return part < otherPart ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Copy a stream into another one, and close both of them.
+     */
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
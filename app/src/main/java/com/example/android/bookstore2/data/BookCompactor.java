@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background job that purges the tombstones left behind by soft deletes in {@link BookProvider}.
+ * Rows are purged in small batches, each one in its own short transaction, so the job never holds
+ * the write lock for long while the till is selling books. It runs as an {@link InventoryJob},
+ * once a day while the device is idle.
+ */
+public final class BookCompactor {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = BookCompactor.class.getSimpleName();
+
+    /**
+     * How long a tombstone is kept before being purged, so the delete can still be restored
+     * and observed by anyone syncing the books table.
+     */
+    public static final long TOMBSTONE_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Number of tombstones purged in a single transaction
+     */
+    private static final int BATCH_SIZE = 200;
+
+    /**
+     * Number of free pages given back to the file system by a single incremental vacuum step
+     */
+    private static final int VACUUM_PAGES = 100;
+
+    /**
+     * Value of PRAGMA auto_vacuum when incremental vacuum is enabled
+     */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Share of free pages that makes the one-off VACUUM switching an older database to
+     * incremental vacuum worth its exclusive lock
+     */
+    private static final double CONVERSION_FREE_SHARE = 0.25;
+
+    /**
+     * The compaction job: first the tombstones are purged batch by batch, in ID order with the
+     * last purged ID as checkpoint, then the free pages are vacuumed a few at a time.
+     */
+    static final InventoryJob JOB = new InventoryJob(1, "compaction", TimeUnit.DAYS.toMillis(1),
+            true, false, true) {
+        @Override
+        void runChunk(Context context, SQLiteDatabase database, Progress progress) {
+            if (progress.phase == 0) {
+                long[] ids = new long[BATCH_SIZE];
+                int batchPurged = purgeBatch(context, database,
+                        System.currentTimeMillis() - TOMBSTONE_RETENTION_MILLIS, progress.checkpoint, ids);
+                progress.items += batchPurged;
+                if (batchPurged == BATCH_SIZE) {
+                    progress.checkpoint = ids[batchPurged - 1];
+                } else {
+                    progress.phase = 1;
+                    progress.checkpoint = 0;
+                    // Nothing to vacuum if nothing was purged
+                    progress.done = progress.items == 0;
+                }
+            } else {
+                progress.done = !vacuumStep(context, database);
+            }
+        }
+    };
+
+    private BookCompactor() {
+    }
+
+    /**
+     * Purge the tombstones deleted before the given time, with their cover images, and give the
+     * free pages back to the file system. Return the number of purged rows.
+     * Must not be called on the UI thread.
+     */
+    public static int compact(Context context, SQLiteDatabase database, long deletedBefore) {
+        long[] ids = new long[BATCH_SIZE];
+        long lastId = 0;
+        int rowsPurged = 0;
+        int batchPurged;
+        do {
+            batchPurged = purgeBatch(context, database, deletedBefore, lastId, ids);
+            if (batchPurged > 0) {
+                lastId = ids[batchPurged - 1];
+            }
+            rowsPurged += batchPurged;
+        } while (batchPurged == BATCH_SIZE);
+
+        if (rowsPurged > 0) {
+            vacuum(context, database);
+        }
+        Log.v(LOG_TAG, rowsPurged + " tombstones purged from books database");
+        return rowsPurged;
+    }
+
+    /**
+     * Purge the next batch of tombstones deleted before the given time, in ID order after the
+     * given ID, with their cover images. Fill the array with their IDs and return how many.
+     */
+    private static int purgeBatch(Context context, SQLiteDatabase database, long deletedBefore, long afterId,
+                                  long[] ids) {
+        String[] selectionArgs = new String[]{String.valueOf(deletedBefore), String.valueOf(afterId)};
+        String selectBatch = "SELECT " + BookContract.BookEntry._ID
+                + " FROM " + BookContract.BookEntry.TABLE_NAME
+                + " WHERE " + BookContract.BookEntry.COLUMN_BOOK_DELETED + "=" + BookContract.BookEntry.BOOK_DELETED
+                + " AND " + BookContract.BookEntry.COLUMN_BOOK_DELETED_AT + "<?"
+                + " AND " + BookContract.BookEntry._ID + ">?"
+                + " ORDER BY " + BookContract.BookEntry._ID
+                + " LIMIT " + ids.length;
+
+        int batchPurged = 0;
+        // Every batch commits on its own, so writers waiting for the lock get their turn
+        database.beginTransaction();
+        try {
+            Cursor cursor = database.rawQuery(selectBatch, selectionArgs);
+            try {
+                while (cursor.moveToNext()) {
+                    ids[batchPurged++] = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (batchPurged > 0) {
+                    // The stock the purged books had left at the other locations goes with them,
+                    // and so do their entries in the search index and their price history
+                database.execSQL("DELETE FROM " + BookContract.StockEntry.TABLE_NAME
+                        + " WHERE " + BookContract.StockEntry.COLUMN_STOCK_BOOK_ID + " IN (" + selectBatch + ")", selectionArgs);
+                database.execSQL("DELETE FROM " + BookDbHelper.TRIGRAMS_TABLE_NAME
+                        + " WHERE " + BookDbHelper.COLUMN_TRIGRAM_BOOK_ID + " IN (" + selectBatch + ")", selectionArgs);
+                database.execSQL("DELETE FROM " + BookContract.PriceHistoryEntry.TABLE_NAME
+                        + " WHERE " + BookContract.PriceHistoryEntry.COLUMN_PRICE_BOOK_ID + " IN (" + selectBatch + ")", selectionArgs);
+                database.execSQL("DELETE FROM " + BookContract.BookEntry.TABLE_NAME
+                        + " WHERE " + BookContract.BookEntry._ID + " IN (" + selectBatch + ")", selectionArgs);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        for (int i = 0; i < batchPurged; i++) {
+            BookProvider.getCoverFile(context, ids[i]).delete();
+        }
+        return batchPurged;
+    }
+
+    /**
+     * Give the free pages of the database back to the file system, a few pages at a time.
+     */
+    static void vacuum(Context context, SQLiteDatabase database) {
+        while (vacuumStep(context, database)) {
+            // Until no free page is left
+        }
+    }
+
+    /**
+     * Give up to {@link #VACUUM_PAGES} free pages back to the file system. Return whether free
+     * pages are left for another step.
+     */
+    static boolean vacuumStep(Context context, SQLiteDatabase database) {
+        long freePages = DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+        if (freePages == 0) {
+            return false;
+        }
+        long autoVacuum = DatabaseUtils.longForQuery(database, "PRAGMA auto_vacuum", null);
+        if (autoVacuum != AUTO_VACUUM_INCREMENTAL) {
+            convertToIncremental(context, database, freePages);
+            return false;
+        }
+        // The pages are freed while stepping through the pragma, so read it to the end
+        Cursor cursor = database.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+        long remainingPages = DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+        // If nothing could be freed, don't spin
+        return remainingPages > 0 && remainingPages < freePages;
+    }
+
+    /**
+     * Switch a database created before incremental vacuum was enabled to it. That takes one full
+     * VACUUM, which holds the write lock for as long as it rewrites the whole file, so it is only
+     * run while the device is charging, on top of the idle mode the job waits for, and once
+     * enough pages are free to be worth it. Otherwise the free pages stay until a later run.
+     */
+    private static void convertToIncremental(Context context, SQLiteDatabase database, long freePages) {
+        if (!InventoryJobs.isCharging(context)) {
+            Log.v(LOG_TAG, "Switch to incremental vacuum skipped, device not charging");
+            return;
+        }
+        long pages = DatabaseUtils.longForQuery(database, "PRAGMA page_count", null);
+        if (freePages < pages * CONVERSION_FREE_SHARE) {
+            Log.v(LOG_TAG, "Switch to incremental vacuum skipped, only " + freePages + " of " + pages + " pages free");
+            return;
+        }
+        // After this VACUUM the cheap incremental steps are enough
+        database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        database.execSQL("VACUUM");
+        Log.v(LOG_TAG, "Switched to incremental vacuum, " + freePages + " free pages given back");
+    }
+}
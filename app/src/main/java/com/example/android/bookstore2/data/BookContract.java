@@ -46,15 +46,279 @@ public final class BookContract {
      */
     public static final String PATH_BOOKS = "books";
 
+    /**
+     * Possible path (appended to a books URI) used to restore soft-deleted books
+     */
+    public static final String PATH_RESTORE = "restore";
+
+    /**
+     * Possible path (appended to the books URI) for the change feed of the books table
+     */
+    public static final String PATH_CHANGES = "changes";
+
+    /**
+     * Possible path (appended to a single book URI) for the cover image of the book
+     */
+    public static final String PATH_COVER = "cover";
+
+    /**
+     * Possible path (appended to the books URI) to sell several books at once
+     */
+    public static final String PATH_CHECKOUT = "checkout";
+
+    /**
+     * Possible path (appended to the books URI) for the fuzzy search of the books
+     */
+    public static final String PATH_SEARCH = "search";
+
+    /**
+     * Possible path (appended to the books URI) for the groups of duplicate books
+     */
+    public static final String PATH_DUPLICATES = "duplicates";
+
+    /**
+     * Possible path (appended to a single book URI) for the price history of the book
+     */
+    public static final String PATH_PRICE = "price";
+
+    /**
+     * Possible path (appended to base content URI) for the sales records
+     */
+    public static final String PATH_SALES = "sales";
+
+    /**
+     * Possible path (appended to the sales URI) for the sales reports
+     */
+    public static final String PATH_REPORT = "report";
+
+    /**
+     * Possible path (appended to base content URI) for the purchase orders
+     */
+    public static final String PATH_PURCHASE_ORDERS = "purchase_orders";
+
+    /**
+     * Possible paths (appended to the purchase orders URI) for the reorder suggestions, and
+     * (appended to a single purchase order URI) for its items and to receive it
+     */
+    public static final String PATH_SUGGESTIONS = "suggestions";
+    public static final String PATH_ITEMS = "items";
+    public static final String PATH_RECEIVE = "receive";
+
+    /**
+     * Possible path (appended to base content URI) for the locations holding stock
+     */
+    public static final String PATH_LOCATIONS = "locations";
+
+    /**
+     * Possible path (appended to base content URI) for the supplier directory
+     */
+    public static final String PATH_SUPPLIERS = "suppliers";
+
+    /**
+     * Possible path (appended to base content URI) for the diagnostics of the database, and
+     * (appended to the diagnostics URI) for the recent queries and the maintenance jobs
+     */
+    public static final String PATH_DIAGNOSTICS = "diagnostics";
+    public static final String PATH_QUERIES = "queries";
+    public static final String PATH_JOBS = "jobs";
+
     /**
      * Inner class that defines constant values for the books database table.
      * Each entry in the table represents a single book.
      */
     public static abstract class BookEntry implements BaseColumns {
 
-        /** The content URI to access the book data in the provider */
+        /**
+         * The content URI to access the book data in the provider. bulkInsert() on it imports
+         * many books at once: the rows rejected by {@link BookValidator} are skipped, and the
+         * number of books actually inserted is returned.
+         *
+         * The books are filtered by query parameters, e.g. {@link #QUERY_PARAMETER_MIN_PRICE},
+         * and selections are rejected. The sort order is a single column, optionally followed by
+         * ASC or DESC, and {@link #QUERY_PARAMETER_LIMIT} limits the number of books returned.
+         */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_BOOKS);
 
+        /**
+         * The content URI to restore soft-deleted books. Call update() on it (or on a single
+         * book URI with {@link #PATH_RESTORE} appended) to bring tombstoned rows back.
+         */
+        public static final Uri CONTENT_RESTORE_URI = Uri.withAppendedPath(CONTENT_URI, PATH_RESTORE);
+
+        /**
+         * The content URI of the change feed. It returns every book (tombstones included) whose
+         * {@link #COLUMN_BOOK_CHANGE_SEQ} is greater than the {@link #QUERY_PARAMETER_SINCE}
+         * query parameter, ordered by change sequence, then by {@link #_ID} to page through
+         * the books of a change sequence with {@link #QUERY_PARAMETER_AFTER_ID}.
+         */
+        public static final Uri CONTENT_CHANGES_URI = Uri.withAppendedPath(CONTENT_URI, PATH_CHANGES);
+
+        /**
+         * The content URI to sell the line items of a cart. Call bulkInsert() on it with one
+         * ContentValues per line item, holding the {@link #_ID} of the book and the
+         * {@link #COLUMN_BOOK_QUANTITY} sold. All the line items are sold in a single transaction,
+         * or none of them if any book is out of stock: bulkInsert() then returns 0.
+         */
+        public static final Uri CONTENT_CHECKOUT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_CHECKOUT);
+
+        /**
+         * The content URI of the fuzzy search on the title and the author, which tolerates typos.
+         * It returns the books matching the {@link #QUERY_PARAMETER_QUERY} query parameter with
+         * their {@link #COLUMN_SEARCH_SCORE}, best match first, at most
+         * {@link #QUERY_PARAMETER_LIMIT} of them. The selection and sort order are ignored.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * Query parameters of {@link #CONTENT_SEARCH_URI}: the text searched, and the maximum
+         * number of books returned (50 if missing). The limit also applies to
+         * {@link #CONTENT_URI} and {@link #CONTENT_CHANGES_URI}, which return all the books if
+         * it's missing.
+         */
+        public static final String QUERY_PARAMETER_QUERY = "q";
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * The content URI of the duplicate books: one row per group of active books with the
+         * same {@link #COLUMN_BOOK_DEDUP_KEY}, with the title, author and supplier of its oldest
+         * book, its {@link #COLUMN_DUPLICATE_COUNT} and the total {@link #COLUMN_BOOK_QUANTITY}.
+         * The projection, selection and sort order are ignored.
+         */
+        public static final Uri CONTENT_DUPLICATES_URI = Uri.withAppendedPath(CONTENT_URI, PATH_DUPLICATES);
+
+        /**
+         * Method of {@link ContentResolver#call} on {@link #CONTENT_URI} merging duplicate books,
+         * in a single transaction. The string argument is the {@link #COLUMN_BOOK_DEDUP_KEY} of
+         * the group to merge, or null to merge all of them. The oldest book of each group gets
+         * the copies, sales, rollups, order items and stock of the others, which become
+         * tombstones. Returns the number of books merged away as {@link #EXTRA_COUNT}.
+         */
+        public static final String METHOD_MERGE_DUPLICATES = "merge_duplicates";
+
+        /**
+         * Computed column of {@link #CONTENT_DUPLICATES_URI}: number of books in the group.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_DUPLICATE_COUNT = "Duplicate_Count";
+
+        /**
+         * Computed column of {@link #CONTENT_SEARCH_URI}: share of the trigrams of the searched
+         * text found in the title and author of the book, from 0 to 1.
+         *
+         * Type: REAL
+         */
+        public static final String COLUMN_SEARCH_SCORE = "Score";
+
+        /**
+         * Methods of {@link ContentResolver#call} on {@link #CONTENT_URI}, for the hot operations
+         * that only need a number and not a cursor. The book ID is given as the string argument,
+         * and the results are returned in a Bundle of primitive values:
+         * <ul>
+         * <li>{@link #METHOD_GET_QUANTITY}: {@link #EXTRA_EXISTS} and {@link #EXTRA_QUANTITY} of the book</li>
+         * <li>{@link #METHOD_SELL}: sells {@link #EXTRA_QUANTITY} copies (1 if missing), returns
+         * {@link #EXTRA_SUCCESS} (false if out of stock) and the {@link #EXTRA_QUANTITY} left</li>
+         * <li>{@link #METHOD_RESTOCK}: adds {@link #EXTRA_QUANTITY} copies, returns
+         * {@link #EXTRA_SUCCESS} and the new {@link #EXTRA_QUANTITY}</li>
+         * <li>{@link #METHOD_COUNT}: no argument, returns the {@link #EXTRA_COUNT} of books</li>
+         * <li>{@link #METHOD_EXISTS}: returns {@link #EXTRA_EXISTS}</li>
+         * </ul>
+         */
+        public static final String METHOD_GET_QUANTITY = "get_quantity";
+        public static final String METHOD_SELL = "sell";
+        public static final String METHOD_RESTOCK = "restock";
+        public static final String METHOD_COUNT = "count";
+        public static final String METHOD_EXISTS = "exists";
+
+        /**
+         * Keys of the Bundles given to and returned by the {@link ContentResolver#call} methods.
+         */
+        public static final String EXTRA_QUANTITY = "quantity";
+        public static final String EXTRA_COUNT = "count";
+        public static final String EXTRA_EXISTS = "exists";
+        public static final String EXTRA_SUCCESS = "success";
+
+        /**
+         * Query parameter of {@link #CONTENT_CHANGES_URI}: the last change sequence already seen
+         * by the consumer (0 to read all the books).
+         */
+        public static final String QUERY_PARAMETER_SINCE = "since";
+
+        /**
+         * Query parameter of {@link #buildPriceUri(long, long)}: the time the price is looked up
+         * at, in milliseconds since the epoch.
+         */
+        public static final String QUERY_PARAMETER_AT = "at";
+
+        /**
+         * Query parameter set to "true" by the sync engine. Writes made by the sync engine don't
+         * mark the books as dirty, and its queries also return the tombstones.
+         */
+        public static final String QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER = "caller_is_sync_adapter";
+
+        /**
+         * Range filter query parameters of {@link #CONTENT_URI}. Bounds are inclusive, and the
+         * filters given together are combined, e.g. books under 10€ still in stock:
+         * books?max_price=10&min_quantity=1
+         */
+        public static final String QUERY_PARAMETER_MIN_PRICE = "min_price";
+        public static final String QUERY_PARAMETER_MAX_PRICE = "max_price";
+        public static final String QUERY_PARAMETER_MIN_QUANTITY = "min_quantity";
+        public static final String QUERY_PARAMETER_MAX_QUANTITY = "max_quantity";
+
+        /**
+         * Exact match filter query parameters of {@link #CONTENT_URI}, on the author and the
+         * supplier name.
+         */
+        public static final String QUERY_PARAMETER_AUTHOR = "author";
+        public static final String QUERY_PARAMETER_SUPPLIER = "supplier";
+
+        /**
+         * Filter query parameters of the books URIs used by the sync engine: the global ID of a
+         * book, whether the books have changes to push ("true" or "false"), and the change
+         * sequence a book must still have for an update to apply.
+         */
+        public static final String QUERY_PARAMETER_GLOBAL_ID = "global_id";
+        public static final String QUERY_PARAMETER_DIRTY = "dirty";
+        public static final String QUERY_PARAMETER_CHANGE_SEQ = "change_seq";
+
+        /**
+         * Query parameter of {@link #CONTENT_CHANGES_URI}: the ID of the last book already seen
+         * by the consumer in the change sequence given by {@link #QUERY_PARAMETER_SINCE}, whose
+         * books with a greater ID are returned too.
+         */
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+        /**
+         * The MIME type of the cover image of a book. Covers are stored as JPEG files.
+         */
+        public static final String COVER_TYPE = "image/jpeg";
+
+        /**
+         * Return the content URI of the cover image of a book, to open with
+         * {@link ContentResolver#openInputStream} or {@link ContentResolver#openOutputStream}.
+         */
+        public static Uri buildCoverUri(long id) {
+            return CONTENT_URI.buildUpon().appendPath(String.valueOf(id)).appendPath(PATH_COVER).build();
+        }
+
+        /**
+         * Return the content URI of the price history of a book, newest price first. Queries
+         * return the {@link PriceHistoryEntry} columns.
+         */
+        public static Uri buildPriceUri(long id) {
+            return CONTENT_URI.buildUpon().appendPath(String.valueOf(id)).appendPath(PATH_PRICE).build();
+        }
+
+        /**
+         * Return the content URI of the price a book had at the given time, in milliseconds
+         * since the epoch. The cursor is empty if the book had no price yet.
+         */
+        public static Uri buildPriceUri(long id, long at) {
+            return buildPriceUri(id).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AT, String.valueOf(at)).build();
+        }
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of books.
          */
@@ -119,6 +383,715 @@ public final class BookContract {
          * Type: INTEGER
          */
         public static final String COLUMN_BOOK_SUPPLIER_PHONE_NR = "Supplier_Phone_Number";
+
+        /**
+         * Tombstone flag of the book. Deleting a book only sets this flag, the row itself is
+         * purged later by {@link BookCompactor}.
+         *
+         * Possible values are {@link #BOOK_ACTIVE} or {@link #BOOK_DELETED}.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_DELETED = "Deleted";
+
+        /**
+         * Time the book was deleted, in milliseconds since the epoch (null if not deleted).
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_DELETED_AT = "Deleted_At";
+
+        /**
+         * Change sequence of the book. Every insert, update, delete or restore of the book stamps
+         * it with a new value of a monotonically increasing counter.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_CHANGE_SEQ = "Change_Seq";
+
+        /**
+         * Identifier of the book shared by all the tills syncing the same inventory
+         * (generated on insert when not given).
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_BOOK_GLOBAL_ID = "Global_Id";
+
+        /**
+         * Dirty flag of the book: 1 if it has local changes that haven't been pushed to the sync
+         * server yet, 0 otherwise.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_DIRTY = "Dirty";
+
+        /**
+         * Quantity of the book the last time it was agreed with the sync server. The difference
+         * with {@link #COLUMN_BOOK_QUANTITY} is the local sales and restocks not pushed yet.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_SYNCED_QUANTITY = "Synced_Quantity";
+
+        /**
+         * Time the cover image of the book was last written, in milliseconds since the epoch
+         * (0 if the book has no cover). The image itself is stored outside of the table.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_COVER_UPDATED_AT = "Cover_Updated_At";
+
+        /**
+         * Stock threshold of the book: once its quantity drops to this level, the book is
+         * reordered from its supplier.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_REORDER_LEVEL = "Reorder_Level";
+
+        /**
+         * Quantity the book is brought back to when it's reordered.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_REORDER_TARGET = "Reorder_Target";
+
+        /**
+         * Hash of the normalised title, author and supplier name of the book, kept up to date by
+         * the provider: books with the same key are duplicates. Written by the provider only.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_DEDUP_KEY = "Dedup_Key";
+
+        /**
+         * Default reorder level and target of the books.
+         */
+        public static final int DEFAULT_REORDER_LEVEL = 2;
+        public static final int DEFAULT_REORDER_TARGET = 10;
+
+        /**
+         * Possible values for the tombstone flag of the book.
+         */
+        public static final int BOOK_ACTIVE = 0;
+        public static final int BOOK_DELETED = 1;
+
+        /**
+         * Projection of the catalogue list: what a list row shows of a book.
+         */
+        public static final String[] PROJECTION_LIST = {
+                _ID,
+                COLUMN_BOOK_NAME,
+                COLUMN_BOOK_AUTHOR,
+                COLUMN_BOOK_PRICE,
+                COLUMN_BOOK_QUANTITY,
+                COLUMN_BOOK_COVER_UPDATED_AT};
+
+        /**
+         * Projection of all the attributes of a book shown by the editor, also read by
+         * {@link BookCursorReader} into a {@link Book}.
+         */
+        public static final String[] PROJECTION_DETAILS = {
+                _ID,
+                COLUMN_BOOK_NAME,
+                COLUMN_BOOK_AUTHOR,
+                COLUMN_BOOK_PRICE,
+                COLUMN_BOOK_QUANTITY,
+                COLUMN_BOOK_SUPPLIER_NAME,
+                COLUMN_BOOK_SUPPLIER_PHONE_NR,
+                COLUMN_BOOK_COVER_UPDATED_AT};
     }
-}
 
+    /**
+     * Inner class that defines constant values for the sales database table.
+     * Each entry in the table records one line item sold at checkout.
+     */
+    public static abstract class SaleEntry implements BaseColumns {
+
+        /** The content URI to read the sales records from the provider */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SALES);
+
+        /**
+         * The content URI of the sales reports. It returns the units sold and the revenue of
+         * every period, grouped by {@link #QUERY_PARAMETER_GROUP_BY}, most recent period first.
+         * The columns are fixed: {@link #COLUMN_REPORT_PERIOD_START}, {@link #COLUMN_REPORT_GROUP},
+         * {@link #COLUMN_REPORT_UNITS} and {@link #COLUMN_REPORT_REVENUE}, e.g. the weekly revenue
+         * per author: sales/report?period=weekly&group_by=author
+         */
+        public static final Uri CONTENT_REPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_REPORT);
+
+        /**
+         * Query parameter of {@link #CONTENT_REPORT_URI}: length of the periods,
+         * {@link #PERIOD_DAILY} (default) or {@link #PERIOD_WEEKLY}.
+         */
+        public static final String QUERY_PARAMETER_PERIOD = "period";
+        public static final String PERIOD_DAILY = "daily";
+        public static final String PERIOD_WEEKLY = "weekly";
+
+        /**
+         * Query parameter of {@link #CONTENT_REPORT_URI}: what the sales are grouped by,
+         * {@link #GROUP_BY_TITLE} (default), {@link #GROUP_BY_AUTHOR} or {@link #GROUP_BY_SUPPLIER}.
+         */
+        public static final String QUERY_PARAMETER_GROUP_BY = "group_by";
+        public static final String GROUP_BY_TITLE = "title";
+        public static final String GROUP_BY_AUTHOR = "author";
+        public static final String GROUP_BY_SUPPLIER = "supplier";
+
+        /**
+         * Query parameters of {@link #CONTENT_REPORT_URI}: only report the periods holding sales
+         * made from / until the given time, in milliseconds since the epoch.
+         */
+        public static final String QUERY_PARAMETER_FROM = "from";
+        public static final String QUERY_PARAMETER_TO = "to";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of sales.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SALES;
+
+        /**
+         * The MIME type of the {@link #CONTENT_REPORT_URI}.
+         */
+        public static final String CONTENT_REPORT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SALES + "_" + PATH_REPORT;
+
+        /** Name of database table for sales */
+        public static final String TABLE_NAME = "sales";
+
+        /**
+         * Unique ID number for the sale (only for use in the database table).
+         *
+         * Type: INTEGER
+         */
+        public static final String _ID = BaseColumns._ID;
+
+        /**
+         * ID of the book sold.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_SALE_BOOK_ID = "Book_Id";
+
+        /**
+         * Number of copies sold.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_SALE_QUANTITY = "Quantity";
+
+        /**
+         * Price of a single copy at the time of the sale.
+         *
+         * Type: REAL
+         */
+        public static final String COLUMN_SALE_UNIT_PRICE = "Unit_Price";
+
+        /**
+         * Time of the sale, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_SALE_SOLD_AT = "Sold_At";
+
+        /**
+         * Columns of the sales reports: first day of the period (local date as "yyyy-MM-dd"),
+         * title, author or supplier the row is about, units sold and revenue (REAL, as the
+         * prices are decimals).
+         */
+        public static final String COLUMN_REPORT_PERIOD_START = "Period_Start";
+        public static final String COLUMN_REPORT_GROUP = "Group_Key";
+        public static final String COLUMN_REPORT_UNITS = "Units";
+        public static final String COLUMN_REPORT_REVENUE = "Revenue";
+    }
+
+    /**
+     * Inner class that defines constant values for the purchase orders database table.
+     * Each entry in the table is an order of books sent to a single supplier.
+     */
+    public static abstract class PurchaseOrderEntry implements BaseColumns {
+
+        /**
+         * The content URI of the purchase orders. Queries return the orders with their
+         * {@link #COLUMN_ORDER_BOOK_COUNT} and {@link #COLUMN_ORDER_UNITS}, open orders first.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PURCHASE_ORDERS);
+
+        /**
+         * The content URI of the reorder suggestions: one row per supplier of the books whose
+         * quantity dropped to their {@link BookEntry#COLUMN_BOOK_REORDER_LEVEL} and that aren't
+         * on an open order yet, with {@link #COLUMN_ORDER_SUPPLIER_NAME},
+         * {@link #COLUMN_ORDER_SUPPLIER_PHONE_NR}, {@link #COLUMN_ORDER_BOOK_COUNT} and
+         * {@link #COLUMN_ORDER_UNITS}.
+         */
+        public static final Uri CONTENT_SUGGESTIONS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SUGGESTIONS);
+
+        /**
+         * Method of {@link ContentResolver#call} on {@link #CONTENT_URI} turning all the reorder
+         * suggestions into open purchase orders, in a single transaction. Returns the number of
+         * orders created as {@link BookEntry#EXTRA_COUNT}.
+         */
+        public static final String METHOD_CREATE_ORDERS = "create_purchase_orders";
+
+        /**
+         * Return the content URI of the items of a purchase order. Queries return the
+         * {@link PurchaseOrderItemEntry} columns with the {@link BookEntry#COLUMN_BOOK_NAME}.
+         */
+        public static Uri buildItemsUri(long id) {
+            return CONTENT_URI.buildUpon().appendPath(String.valueOf(id)).appendPath(PATH_ITEMS).build();
+        }
+
+        /**
+         * Return the content URI to receive a purchase order. Call update() on it to add the
+         * quantities of all its items to the stock in a single transaction; it returns 0 if the
+         * order isn't open.
+         */
+        public static Uri buildReceiveUri(long id) {
+            return CONTENT_URI.buildUpon().appendPath(String.valueOf(id)).appendPath(PATH_RECEIVE).build();
+        }
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of purchase orders.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PURCHASE_ORDERS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single purchase order.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PURCHASE_ORDERS;
+
+        /** Name of database table for purchase orders */
+        public static final String TABLE_NAME = "purchase_orders";
+
+        /**
+         * Unique ID number for the purchase order (only for use in the database table).
+         *
+         * Type: INTEGER
+         */
+        public static final String _ID = BaseColumns._ID;
+
+        /**
+         * Supplier the order is sent to, and its phone number.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_ORDER_SUPPLIER_NAME = "Supplier_Name";
+        public static final String COLUMN_ORDER_SUPPLIER_PHONE_NR = "Supplier_Phone_Number";
+
+        /**
+         * Status of the order, {@link #ORDER_OPEN} or {@link #ORDER_RECEIVED}.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ORDER_STATUS = "Status";
+
+        /**
+         * Times the order was created and received, in milliseconds since the epoch
+         * (received is null while the order is open).
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ORDER_CREATED_AT = "Created_At";
+        public static final String COLUMN_ORDER_RECEIVED_AT = "Received_At";
+
+        /**
+         * Computed columns: number of books and total number of copies ordered.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ORDER_BOOK_COUNT = "Book_Count";
+        public static final String COLUMN_ORDER_UNITS = "Units";
+
+        /**
+         * Possible values for the status of the order.
+         */
+        public static final int ORDER_OPEN = 0;
+        public static final int ORDER_RECEIVED = 1;
+    }
+
+    /**
+     * Inner class that defines constant values for the purchase order items database table.
+     * Each entry in the table is the number of copies of a book ordered.
+     */
+    public static abstract class PurchaseOrderItemEntry implements BaseColumns {
+
+        /** Name of database table for purchase order items */
+        public static final String TABLE_NAME = "purchase_order_items";
+
+        /**
+         * Unique ID number for the item (only for use in the database table).
+         *
+         * Type: INTEGER
+         */
+        public static final String _ID = BaseColumns._ID;
+
+        /**
+         * ID of the purchase order of the item.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ITEM_ORDER_ID = "Order_Id";
+
+        /**
+         * ID of the book ordered.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ITEM_BOOK_ID = "Book_Id";
+
+        /**
+         * Number of copies ordered.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ITEM_QUANTITY = "Quantity";
+    }
+
+    /**
+     * Inner class that defines constant values for the locations database table.
+     * Each entry in the table is a store or a warehouse holding stock.
+     */
+    public static abstract class LocationEntry implements BaseColumns {
+
+        /**
+         * The content URI of the locations. insert() on it adds a location.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_LOCATIONS);
+
+        /**
+         * ID of the location created with the database. Its stock is the
+         * {@link BookEntry#COLUMN_BOOK_QUANTITY} of the books table, so everything written
+         * before there were locations keeps working on it.
+         */
+        public static final long DEFAULT_LOCATION_ID = 1;
+
+        /**
+         * Return the content URI of the books at a location. Queries return the
+         * {@link BookEntry} columns, with the stock of the location as
+         * {@link BookEntry#COLUMN_BOOK_QUANTITY}. update() on a single book of it (the URI with
+         * the ID of the book appended) sets the stock of that book at the location.
+         */
+        public static Uri buildBooksUri(long locationId) {
+            return CONTENT_URI.buildUpon().appendPath(String.valueOf(locationId)).appendPath(PATH_BOOKS).build();
+        }
+
+        /**
+         * Return the content URI selling from the stock of a location. It takes the same line
+         * items as {@link BookEntry#CONTENT_CHECKOUT_URI}, but only writes the stock rows of the
+         * location, so tills in different stores never write the same rows.
+         */
+        public static Uri buildCheckoutUri(long locationId) {
+            return buildBooksUri(locationId).buildUpon().appendPath(PATH_CHECKOUT).build();
+        }
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of locations.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_LOCATIONS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single location.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_LOCATIONS;
+
+        /** Name of database table for locations */
+        public static final String TABLE_NAME = "locations";
+
+        /**
+         * Unique ID number for the location (only for use in the database table).
+         *
+         * Type: INTEGER
+         */
+        public static final String _ID = BaseColumns._ID;
+
+        /**
+         * Name of the location.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_LOCATION_NAME = "Name";
+
+        /**
+         * Kind of location, {@link #KIND_STORE} or {@link #KIND_WAREHOUSE}.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_LOCATION_KIND = "Kind";
+
+        /**
+         * Possible values for the kind of location.
+         */
+        public static final int KIND_STORE = 0;
+        public static final int KIND_WAREHOUSE = 1;
+    }
+
+    /**
+     * Inner class that defines constant values for the stock database table.
+     * Each entry in the table is the number of copies of a book held at a location other than
+     * the {@link LocationEntry#DEFAULT_LOCATION_ID default one}.
+     */
+    public static abstract class StockEntry {
+
+        /** Name of database table for stock */
+        public static final String TABLE_NAME = "stock";
+
+        /**
+         * ID of the location.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_STOCK_LOCATION_ID = "Location_Id";
+
+        /**
+         * ID of the book.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_STOCK_BOOK_ID = "Book_Id";
+
+        /**
+         * Number of copies of the book at the location.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_STOCK_QUANTITY = "Stock";
+    }
+
+    /**
+     * Inner class that defines constant values for the price history database table.
+     * Each entry in the table is a price of a book, from the time it was set until the next one.
+     * The history is written by the provider: every book gets an entry when it is inserted, and
+     * a new one whenever an update changes its price.
+     */
+    public static abstract class PriceHistoryEntry {
+
+        /**
+         * The MIME types of the {@link BookEntry#buildPriceUri} URIs.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PRICE;
+
+        /** Name of database table for the price history */
+        public static final String TABLE_NAME = "price_history";
+
+        /**
+         * ID of the book.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_PRICE_BOOK_ID = "Book_Id";
+
+        /**
+         * Time the price was set, in milliseconds since the epoch. The prices the books had when
+         * the history started are dated 0.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_PRICE_EFFECTIVE_FROM = "Effective_From";
+
+        /**
+         * Price of the book from that time on.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_PRICE_PRICE = "Price";
+    }
+
+    /**
+     * Inner class that defines constant values for the supplier directory: one row per supplier
+     * of the books, computed from the books table. Read only.
+     */
+    public static abstract class SupplierEntry implements BaseColumns {
+
+        /**
+         * The content URI of the supplier directory, sorted by name. The projection, selection
+         * and sort order are ignored.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SUPPLIERS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of suppliers.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+
+        /**
+         * The MIME type of the {@link #buildSupplierUri} URIs for a single supplier.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+
+        /**
+         * Return the content URI of a single supplier, by name, e.g. to look up its phone number.
+         */
+        public static Uri buildSupplierUri(String name) {
+            return CONTENT_URI.buildUpon().appendPath(name).build();
+        }
+
+        /**
+         * Name of the supplier, as written on its books.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_SUPPLIER_NAME = "Supplier_Name";
+
+        /**
+         * Phone number of the supplier. If its books don't all have the same number, one of them.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_SUPPLIER_PHONE_NR = "Supplier_Phone_Number";
+
+        /**
+         * Number of books of the supplier.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_SUPPLIER_BOOK_COUNT = "Book_Count";
+
+        /**
+         * Total number of copies of the books of the supplier, at the default location.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_SUPPLIER_STOCK = "Stock";
+    }
+
+    /**
+     * Inner class that defines constant values for the diagnostics of the database, to spot the
+     * slow queries and the full table scans of the provider.
+     */
+    public static abstract class DiagnosticsEntry {
+
+        /**
+         * The content URI of the most recent queries run on the database, slowest first, with
+         * their query plan. Read only; the projection, selection and sort order are ignored.
+         */
+        public static final Uri CONTENT_QUERIES_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_DIAGNOSTICS + "/" + PATH_QUERIES);
+
+        /**
+         * The content URI of the maintenance jobs run in the background, with their progress
+         * and the timing of their last run. Read only; the projection, selection and sort order
+         * are ignored.
+         */
+        public static final Uri CONTENT_JOBS_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_DIAGNOSTICS + "/" + PATH_JOBS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_QUERIES_URI} for a list of queries, and of the
+         * {@link #CONTENT_JOBS_URI} for a list of jobs.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_DIAGNOSTICS;
+
+        /**
+         * SQL of the query, with its arguments left as ? placeholders.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_QUERY_SQL = "Sql";
+
+        /**
+         * Time the query took to run, in microseconds.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_QUERY_DURATION = "Duration_Us";
+
+        /**
+         * Number of rows the query returned.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_QUERY_ROWS = "Rows";
+
+        /**
+         * Time the query ran, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_QUERY_EXECUTED_AT = "Executed_At";
+
+        /**
+         * Output of EXPLAIN QUERY PLAN for the query, one step per line.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_QUERY_PLAN = "Plan";
+
+        /**
+         * 1 if the plan scans a whole table without any index, 0 otherwise.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_QUERY_FULL_SCAN = "Full_Scan";
+
+        /**
+         * Name of the job.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_JOB_NAME = "Job";
+
+        /**
+         * Step the current run of the job is at.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_JOB_PHASE = "Phase";
+
+        /**
+         * Position the current run of the job is at in its step, e.g. the last ID processed.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_JOB_CHECKPOINT = "Checkpoint";
+
+        /**
+         * Number of items processed by the current run of the job, over all its resumptions.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_JOB_ITEMS = "Items";
+
+        /**
+         * 1 if the last run of the job completed, 0 if it is to be resumed.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_JOB_COMPLETE = "Complete";
+
+        /**
+         * Time the job last ran, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_JOB_LAST_RUN_AT = "Last_Run_At";
+
+        /**
+         * Time the last run of the job took, in milliseconds.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_JOB_DURATION = "Duration_Ms";
+
+        /**
+         * Number of chunks the last run of the job ran.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_JOB_CHUNKS = "Chunks";
+
+        /**
+         * Time a run of the job last completed, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_JOB_FINISHED_AT = "Finished_At";
+    }
+}
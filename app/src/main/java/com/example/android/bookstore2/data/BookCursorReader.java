@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.database.Cursor;
+
+/**
+ * Reads the books of a cursor, looking up the index of every column only once.
+ *
+ * A reader is bound to the columns of the cursor it was created for; any of the
+ * {@link BookContract.BookEntry} columns may be missing from the projection, the matching
+ * attributes are then read as 0 or null.
+ */
+public final class BookCursorReader {
+
+    private final int mIdColumn;
+    private final int mNameColumn;
+    private final int mAuthorColumn;
+    private final int mPriceColumn;
+    private final int mQuantityColumn;
+    private final int mSupplierNameColumn;
+    private final int mSupplierPhoneNrColumn;
+    private final int mCoverUpdatedAtColumn;
+
+    public BookCursorReader(Cursor cursor) {
+        mIdColumn = cursor.getColumnIndexOrThrow(BookContract.BookEntry._ID);
+        mNameColumn = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_NAME);
+        mAuthorColumn = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_AUTHOR);
+        mPriceColumn = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_PRICE);
+        mQuantityColumn = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
+        mSupplierNameColumn = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME);
+        mSupplierPhoneNrColumn = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR);
+        mCoverUpdatedAtColumn = cursor.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_COVER_UPDATED_AT);
+    }
+
+    /**
+     * Read the book at the current position of the cursor.
+     */
+    public Book readBook(Cursor cursor) {
+        return new Book(cursor.getLong(mIdColumn),
+                getString(cursor, mNameColumn),
+                getString(cursor, mAuthorColumn),
+                getDouble(cursor, mPriceColumn),
+                getInt(cursor, mQuantityColumn),
+                getString(cursor, mSupplierNameColumn),
+                getString(cursor, mSupplierPhoneNrColumn),
+                getLong(cursor, mCoverUpdatedAtColumn));
+    }
+
+    /**
+     * Read the ID and the quantity only, e.g. to total the stock without building books.
+     */
+    public long readId(Cursor cursor) {
+        return cursor.getLong(mIdColumn);
+    }
+
+    public int readQuantity(Cursor cursor) {
+        return getInt(cursor, mQuantityColumn);
+    }
+
+    /**
+     * Fill the page with the next rows of the cursor, starting after its current position.
+     * Return the number of rows read, 0 once the cursor is exhausted.
+     */
+    public int readPage(Cursor cursor, BookPage page) {
+        int size = 0;
+        while (size < page.getCapacity() && cursor.moveToNext()) {
+            page.mIds[size] = cursor.getLong(mIdColumn);
+            page.mNames[size] = getString(cursor, mNameColumn);
+            page.mAuthors[size] = getString(cursor, mAuthorColumn);
+            page.mPrices[size] = getDouble(cursor, mPriceColumn);
+            page.mQuantities[size] = getInt(cursor, mQuantityColumn);
+            page.mSupplierNames[size] = getString(cursor, mSupplierNameColumn);
+            page.mSupplierPhoneNrs[size] = getString(cursor, mSupplierPhoneNrColumn);
+            page.mCoverUpdatedAts[size] = getLong(cursor, mCoverUpdatedAtColumn);
+            size++;
+        }
+        // Drop the strings of the previous page, so they can be collected
+        for (int row = size; row < page.mSize; row++) {
+            page.mNames[row] = null;
+            page.mAuthors[row] = null;
+            page.mSupplierNames[row] = null;
+            page.mSupplierPhoneNrs[row] = null;
+        }
+        page.mSize = size;
+        return size;
+    }
+
+    private static String getString(Cursor cursor, int column) {
+        return column == -1 ? null : cursor.getString(column);
+    }
+
+    private static double getDouble(Cursor cursor, int column) {
+        return column == -1 ? 0 : cursor.getDouble(column);
+    }
+
+    private static int getInt(Cursor cursor, int column) {
+        return column == -1 ? 0 : cursor.getInt(column);
+    }
+
+    private static long getLong(Cursor cursor, int column) {
+        return column == -1 ? 0 : cursor.getLong(column);
+    }
+}
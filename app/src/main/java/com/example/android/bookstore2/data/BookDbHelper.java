@@ -15,24 +15,202 @@
  */
 package com.example.android.bookstore2.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Database helper for Bookstore app. Manages database creation and version management.
  */
 public class BookDbHelper extends SQLiteOpenHelper {
 
-    private static final int DATABASE_VERSION = 1;
-    private static final String DATABASE_NAME = "bookstore.db";
+    static final int DATABASE_VERSION = 14;
+    static final String DATABASE_NAME = "bookstore.db";
+
+    /**
+     * Single helper shared by the provider and the background jobs, so that all of them go
+     * through the same connection pool instead of fighting over the database file.
+     */
+    private static BookDbHelper sInstance;
+
+    public static synchronized BookDbHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BookDbHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Times the queries run on the database, for the diagnostics
+     */
+    private final QueryLog mQueryLog;
 
     public BookDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Create a helper of a database with the bookstore schema under another name, e.g. a
+     * scratch database for a benchmark.
+     */
+    BookDbHelper(Context context, String name) {
+        this(context, name, new QueryLog());
+    }
+
+    private BookDbHelper(Context context, String name, QueryLog queryLog) {
+        super(context, name, queryLog, DATABASE_VERSION);
+        mQueryLog = queryLog;
+        // Readers (and backups) work on a snapshot and never block the writes of the till
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Return the log of the most recent queries run on the database.
+     */
+    QueryLog getQueryLog() {
+        return mQueryLog;
+    }
+
+    /**
+     * Number of rows read from the snapshot at a time during a restore
+     */
+    private static final int RESTORE_PAGE_SIZE = 1000;
+
+    /**
+     * Replace the contents of the database with the ones of the given snapshot, which must
+     * already have the schema of this version.
+     *
+     * The rows are copied in a single transaction on the connection of the helper, so the file
+     * and the connections other threads hold stay valid: readers keep seeing the old contents
+     * until the commit, and writers wait for it. The change sequence is moved past both the old
+     * and the restored values, and every restored book is stamped with it, so the changes feed
+     * never goes backwards and its readers pick up the restored books.
+     */
+    void restoreFrom(SQLiteDatabase snapshot) {
+        SQLiteDatabase database = getWritableDatabase();
+        database.beginTransaction();
+        try {
+            long lastChangeSeq = readChangeSeq(database);
+            for (String table : readTables(database)) {
+                database.delete(table, null, null);
+                copyTable(snapshot, database, table);
+            }
+            // sqlite_sequence keeps the highest ids ever handed out, so deleted ids aren't reused
+            long changeSeq = Math.max(lastChangeSeq, readChangeSeq(database)) + 1;
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_CHANGE_SEQUENCE_VALUE, changeSeq);
+            database.update(CHANGE_SEQUENCE_TABLE_NAME, values, null, null);
+            values.clear();
+            values.put(BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ, changeSeq);
+            database.update(BookContract.BookEntry.TABLE_NAME, values, null, null);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        // Whatever was computed from the old contents is stale
+        SupplierDirectory.invalidate();
+    }
+
+    private static long readChangeSeq(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database, "SELECT " + COLUMN_CHANGE_SEQUENCE_VALUE
+                + " FROM " + CHANGE_SEQUENCE_TABLE_NAME, null);
+    }
+
+    /**
+     * Return the tables of the bookstore, without the internal ones of SQLite and Android.
+     */
+    private static List<String> readTables(SQLiteDatabase database) {
+        List<String> tables = new ArrayList<>();
+        Cursor cursor = database.rawQuery("SELECT name FROM sqlite_master WHERE type='table'"
+                + " AND name NOT LIKE 'sqlite_%' AND name<>'android_metadata'", null);
+        try {
+            while (cursor.moveToNext()) {
+                tables.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tables;
+    }
+
+    /**
+     * Copy the rows of a table from the snapshot into the database, page by page in the order of
+     * their row IDs. The columns are named, as a migrated snapshot may order them differently.
+     */
+    private static void copyTable(SQLiteDatabase snapshot, SQLiteDatabase database, String table) {
+        List<String> columns = new ArrayList<>();
+        Cursor cursor = database.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(cursor.getColumnIndexOrThrow("name")));
+            }
+        } finally {
+            cursor.close();
+        }
+        String columnList = TextUtils.join(COMMA_SEP, columns);
+        String[] placeholders = new String[columns.size()];
+        Arrays.fill(placeholders, "?");
+
+        SQLiteStatement insert = database.compileStatement("INSERT INTO " + table + "(" + columnList
+                + ") VALUES (" + TextUtils.join(COMMA_SEP, placeholders) + ")");
+        try {
+            long lastRowId = Long.MIN_VALUE;
+            int count;
+            do {
+                // Paging on the row ID keeps every page a range scan, where a cursor over the
+                // whole table would step over all the rows before each window it fills
+                cursor = snapshot.rawQuery("SELECT rowid, " + columnList + " FROM " + table
+                        + " WHERE rowid>" + lastRowId + " ORDER BY rowid LIMIT " + RESTORE_PAGE_SIZE, null);
+                try {
+                    count = cursor.getCount();
+                    while (cursor.moveToNext()) {
+                        lastRowId = cursor.getLong(0);
+                        for (int i = 1; i <= columns.size(); i++) {
+                            bindColumn(insert, i, cursor, i);
+                        }
+                        insert.executeInsert();
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } while (count == RESTORE_PAGE_SIZE);
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static void bindColumn(SQLiteStatement statement, int index, Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                statement.bindLong(index, cursor.getLong(column));
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                statement.bindDouble(index, cursor.getDouble(column));
+                break;
+            case Cursor.FIELD_TYPE_STRING:
+                statement.bindString(index, cursor.getString(column));
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                statement.bindBlob(index, cursor.getBlob(column));
+                break;
+            default:
+                statement.bindNull(index);
+                break;
+        }
     }
 
     private static final String INTEGER_TYPE = " INTEGER";
+    private static final String REAL_TYPE = " REAL";
     private static final String ID_ATTRIBUTES = " PRIMARY KEY AUTOINCREMENT";
     private static final String TEXT_TYPE = " TEXT";
     private static final String NOT_NULL = " NOT NULL";
@@ -40,6 +218,195 @@ public class BookDbHelper extends SQLiteOpenHelper {
     private static final String COMMA_SEP = ", ";
 
 
+    /**
+     * Index used by {@link BookCompactor} to find the tombstones to purge.
+     */
+    private static final String SQL_CREATE_DELETED_INDEX = "CREATE INDEX IF NOT EXISTS books_deleted_idx ON "
+            + BookContract.BookEntry.TABLE_NAME + "("
+            + BookContract.BookEntry.COLUMN_BOOK_DELETED + COMMA_SEP
+            + BookContract.BookEntry.COLUMN_BOOK_DELETED_AT + ")";
+
+    /**
+     * Index used to read the change feed of the books table.
+     */
+    private static final String SQL_CREATE_CHANGE_SEQ_INDEX = "CREATE INDEX IF NOT EXISTS books_change_seq_idx ON "
+            + BookContract.BookEntry.TABLE_NAME + "(" + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + ")";
+
+    /**
+     * Indexes used by the sync engine to find a book by its global ID and the books to push.
+     */
+    private static final String SQL_CREATE_GLOBAL_ID_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS books_global_id_idx ON "
+            + BookContract.BookEntry.TABLE_NAME + "(" + BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID + ")";
+    private static final String SQL_CREATE_DIRTY_INDEX = "CREATE INDEX IF NOT EXISTS books_dirty_idx ON "
+            + BookContract.BookEntry.TABLE_NAME + "(" + BookContract.BookEntry.COLUMN_BOOK_DIRTY + ")";
+
+    /**
+     * Index used to group the duplicate books in a single pass.
+     */
+    private static final String SQL_CREATE_DEDUP_KEY_INDEX = "CREATE INDEX IF NOT EXISTS books_dedup_key_idx ON "
+            + BookContract.BookEntry.TABLE_NAME + "(" + BookContract.BookEntry.COLUMN_BOOK_DELETED + COMMA_SEP
+            + BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY + ")";
+
+    /**
+     * Composite indexes serving the range filters of the catalogue. Every catalogue query
+     * hides the tombstones, so they all start with the deleted flag.
+     */
+    private static final String SQL_CREATE_PRICE_INDEX = "CREATE INDEX IF NOT EXISTS books_price_idx ON "
+            + BookContract.BookEntry.TABLE_NAME + "(" + BookContract.BookEntry.COLUMN_BOOK_DELETED + COMMA_SEP
+            + BookContract.BookEntry.COLUMN_BOOK_PRICE + COMMA_SEP + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ")";
+    private static final String SQL_CREATE_QUANTITY_INDEX = "CREATE INDEX IF NOT EXISTS books_quantity_idx ON "
+            + BookContract.BookEntry.TABLE_NAME + "(" + BookContract.BookEntry.COLUMN_BOOK_DELETED + COMMA_SEP
+            + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ")";
+    private static final String SQL_CREATE_AUTHOR_INDEX = "CREATE INDEX IF NOT EXISTS books_author_idx ON "
+            + BookContract.BookEntry.TABLE_NAME + "(" + BookContract.BookEntry.COLUMN_BOOK_DELETED + COMMA_SEP
+            + BookContract.BookEntry.COLUMN_BOOK_AUTHOR + COMMA_SEP + BookContract.BookEntry.COLUMN_BOOK_PRICE + ")";
+    private static final String SQL_CREATE_SUPPLIER_INDEX = "CREATE INDEX IF NOT EXISTS books_supplier_idx ON "
+            + BookContract.BookEntry.TABLE_NAME + "(" + BookContract.BookEntry.COLUMN_BOOK_DELETED + COMMA_SEP
+            + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME + COMMA_SEP + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ")";
+
+    /**
+     * Covering index of the supplier directory: {@link SupplierDirectory} groups the books by
+     * supplier in index order, without reading the books table.
+     */
+    private static final String SQL_CREATE_SUPPLIER_DIRECTORY_INDEX = "CREATE INDEX IF NOT EXISTS books_supplier_directory_idx ON "
+            + BookContract.BookEntry.TABLE_NAME + "(" + BookContract.BookEntry.COLUMN_BOOK_DELETED + COMMA_SEP
+            + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME + COMMA_SEP + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR
+            + COMMA_SEP + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ")";
+
+    /**
+     * Name of the single row table that holds the last change sequence given to a book.
+     * It is kept apart from the books, so purging tombstones never makes the sequence go back.
+     */
+    static final String CHANGE_SEQUENCE_TABLE_NAME = "book_change_sequence";
+    static final String COLUMN_CHANGE_SEQUENCE_VALUE = "value";
+
+    private static final String SQL_CREATE_CHANGE_SEQUENCE_TABLE = "CREATE TABLE " + CHANGE_SEQUENCE_TABLE_NAME + "("
+            + COLUMN_CHANGE_SEQUENCE_VALUE + INTEGER_TYPE + NOT_NULL + ")";
+
+    /**
+     * Rollup tables of the sales, maintained by {@link SalesLedger} in the transaction of every
+     * sale: one row per book and per local day (or week), holding the units sold and the revenue.
+     * The title, author and supplier are copied in, so reports never join the books table and
+     * still cover the books purged since.
+     */
+    static final String SALES_DAILY_TABLE_NAME = "sales_daily";
+    static final String SALES_WEEKLY_TABLE_NAME = "sales_weekly";
+    static final String COLUMN_ROLLUP_BUCKET = "Bucket";
+    static final String COLUMN_ROLLUP_UNITS = "Units";
+    static final String COLUMN_ROLLUP_REVENUE = "Revenue";
+
+    /**
+     * Prices are decimals, so the unit price of the sales and the revenue of the rollups are REAL.
+     */
+    private static String buildCreateSalesTable(String tableName) {
+        return "CREATE TABLE " + tableName + "("
+                + BookContract.SaleEntry._ID + INTEGER_TYPE + ID_ATTRIBUTES + COMMA_SEP
+                + BookContract.SaleEntry.COLUMN_SALE_BOOK_ID + INTEGER_TYPE + NOT_NULL + COMMA_SEP
+                + BookContract.SaleEntry.COLUMN_SALE_QUANTITY + INTEGER_TYPE + NOT_NULL + COMMA_SEP
+                + BookContract.SaleEntry.COLUMN_SALE_UNIT_PRICE + REAL_TYPE + NOT_NULL + COMMA_SEP
+                + BookContract.SaleEntry.COLUMN_SALE_SOLD_AT + INTEGER_TYPE + NOT_NULL + ")";
+    }
+
+    /**
+     * Indexes used to list the sales by time and by book.
+     */
+    private static final String SQL_CREATE_SALES_SOLD_AT_INDEX = "CREATE INDEX IF NOT EXISTS sales_sold_at_idx ON "
+            + BookContract.SaleEntry.TABLE_NAME + "(" + BookContract.SaleEntry.COLUMN_SALE_SOLD_AT + ")";
+    private static final String SQL_CREATE_SALES_BOOK_INDEX = "CREATE INDEX IF NOT EXISTS sales_book_idx ON "
+            + BookContract.SaleEntry.TABLE_NAME + "(" + BookContract.SaleEntry.COLUMN_SALE_BOOK_ID + COMMA_SEP
+            + BookContract.SaleEntry.COLUMN_SALE_SOLD_AT + ")";
+
+    private static final String SQL_CREATE_PURCHASE_ORDERS_TABLE = "CREATE TABLE " + BookContract.PurchaseOrderEntry.TABLE_NAME + "("
+            + BookContract.PurchaseOrderEntry._ID + INTEGER_TYPE + ID_ATTRIBUTES + COMMA_SEP
+            + BookContract.PurchaseOrderEntry.COLUMN_ORDER_SUPPLIER_NAME + TEXT_TYPE + COMMA_SEP
+            + BookContract.PurchaseOrderEntry.COLUMN_ORDER_SUPPLIER_PHONE_NR + TEXT_TYPE + COMMA_SEP
+            + BookContract.PurchaseOrderEntry.COLUMN_ORDER_STATUS + INTEGER_TYPE + NOT_NULL + DEFAULT + BookContract.PurchaseOrderEntry.ORDER_OPEN + COMMA_SEP
+            + BookContract.PurchaseOrderEntry.COLUMN_ORDER_CREATED_AT + INTEGER_TYPE + NOT_NULL + COMMA_SEP
+            + BookContract.PurchaseOrderEntry.COLUMN_ORDER_RECEIVED_AT + INTEGER_TYPE + ")";
+
+    private static final String SQL_CREATE_PURCHASE_ORDER_ITEMS_TABLE = "CREATE TABLE " + BookContract.PurchaseOrderItemEntry.TABLE_NAME + "("
+            + BookContract.PurchaseOrderItemEntry._ID + INTEGER_TYPE + ID_ATTRIBUTES + COMMA_SEP
+            + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_ORDER_ID + INTEGER_TYPE + NOT_NULL + COMMA_SEP
+            + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_BOOK_ID + INTEGER_TYPE + NOT_NULL + COMMA_SEP
+            + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_QUANTITY + INTEGER_TYPE + NOT_NULL + ")";
+
+    /**
+     * Indexes used to list the open orders, the items of an order, and to skip the books
+     * already on an open order.
+     */
+    private static final String SQL_CREATE_PURCHASE_ORDERS_STATUS_INDEX = "CREATE INDEX IF NOT EXISTS purchase_orders_status_idx ON "
+            + BookContract.PurchaseOrderEntry.TABLE_NAME + "(" + BookContract.PurchaseOrderEntry.COLUMN_ORDER_STATUS + COMMA_SEP
+            + BookContract.PurchaseOrderEntry.COLUMN_ORDER_CREATED_AT + ")";
+    private static final String SQL_CREATE_PURCHASE_ORDER_ITEMS_ORDER_INDEX = "CREATE INDEX IF NOT EXISTS purchase_order_items_order_idx ON "
+            + BookContract.PurchaseOrderItemEntry.TABLE_NAME + "(" + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_ORDER_ID + ")";
+    private static final String SQL_CREATE_PURCHASE_ORDER_ITEMS_BOOK_INDEX = "CREATE INDEX IF NOT EXISTS purchase_order_items_book_idx ON "
+            + BookContract.PurchaseOrderItemEntry.TABLE_NAME + "(" + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_BOOK_ID + ")";
+
+    /**
+     * Trigram index of the titles and authors, maintained by {@link BookTrigrams} in the
+     * transaction of every insert and update. The primary key starts with the trigram, so a
+     * search only reads the index entries of the trigrams it looks for.
+     */
+    static final String TRIGRAMS_TABLE_NAME = "book_trigrams";
+    static final String COLUMN_TRIGRAM = "Trigram";
+    static final String COLUMN_TRIGRAM_BOOK_ID = "Book_Id";
+
+    private static final String SQL_CREATE_TRIGRAMS_TABLE = "CREATE TABLE " + TRIGRAMS_TABLE_NAME + "("
+            + COLUMN_TRIGRAM + TEXT_TYPE + NOT_NULL + COMMA_SEP
+            + COLUMN_TRIGRAM_BOOK_ID + INTEGER_TYPE + NOT_NULL + COMMA_SEP
+            + "PRIMARY KEY (" + COLUMN_TRIGRAM + COMMA_SEP + COLUMN_TRIGRAM_BOOK_ID + "))";
+
+    /**
+     * Index used to drop the trigrams of a book when it is renamed or purged.
+     */
+    private static final String SQL_CREATE_TRIGRAMS_BOOK_INDEX = "CREATE INDEX IF NOT EXISTS book_trigrams_book_idx ON "
+            + TRIGRAMS_TABLE_NAME + "(" + COLUMN_TRIGRAM_BOOK_ID + ")";
+
+    /**
+     * Price history of the books, maintained by {@link PriceHistory}. The primary key is the
+     * index of the lookups of the price of a book at a given time.
+     */
+    private static final String SQL_CREATE_PRICE_HISTORY_TABLE = "CREATE TABLE " + BookContract.PriceHistoryEntry.TABLE_NAME + "("
+            + BookContract.PriceHistoryEntry.COLUMN_PRICE_BOOK_ID + INTEGER_TYPE + NOT_NULL + COMMA_SEP
+            + BookContract.PriceHistoryEntry.COLUMN_PRICE_EFFECTIVE_FROM + INTEGER_TYPE + NOT_NULL + COMMA_SEP
+            + BookContract.PriceHistoryEntry.COLUMN_PRICE_PRICE + INTEGER_TYPE + NOT_NULL + COMMA_SEP
+            + "PRIMARY KEY (" + BookContract.PriceHistoryEntry.COLUMN_PRICE_BOOK_ID + COMMA_SEP
+            + BookContract.PriceHistoryEntry.COLUMN_PRICE_EFFECTIVE_FROM + "))";
+
+    /**
+     * Name given to the default location when it is created
+     */
+    private static final String DEFAULT_LOCATION_NAME = "Main store";
+
+    private static final String SQL_CREATE_LOCATIONS_TABLE = "CREATE TABLE " + BookContract.LocationEntry.TABLE_NAME + "("
+            + BookContract.LocationEntry._ID + INTEGER_TYPE + ID_ATTRIBUTES + COMMA_SEP
+            + BookContract.LocationEntry.COLUMN_LOCATION_NAME + TEXT_TYPE + NOT_NULL + COMMA_SEP
+            + BookContract.LocationEntry.COLUMN_LOCATION_KIND + INTEGER_TYPE + NOT_NULL + DEFAULT + BookContract.LocationEntry.KIND_STORE + ")";
+
+    /**
+     * The primary key starts with the location, so the catalogue of a location looks up the
+     * stock of each book in the index, and the stock rows of two locations never share a row.
+     */
+    private static final String SQL_CREATE_STOCK_TABLE = "CREATE TABLE " + BookContract.StockEntry.TABLE_NAME + "("
+            + BookContract.StockEntry.COLUMN_STOCK_LOCATION_ID + INTEGER_TYPE + NOT_NULL + COMMA_SEP
+            + BookContract.StockEntry.COLUMN_STOCK_BOOK_ID + INTEGER_TYPE + NOT_NULL + COMMA_SEP
+            + BookContract.StockEntry.COLUMN_STOCK_QUANTITY + INTEGER_TYPE + NOT_NULL + DEFAULT + "0" + COMMA_SEP
+            + "PRIMARY KEY (" + BookContract.StockEntry.COLUMN_STOCK_LOCATION_ID + COMMA_SEP
+            + BookContract.StockEntry.COLUMN_STOCK_BOOK_ID + "))";
+
+    /**
+     * Index used to drop the stock rows of the books purged by {@link BookCompactor}.
+     */
+    private static final String SQL_CREATE_STOCK_BOOK_INDEX = "CREATE INDEX IF NOT EXISTS stock_book_idx ON "
+            + BookContract.StockEntry.TABLE_NAME + "(" + BookContract.StockEntry.COLUMN_STOCK_BOOK_ID + ")";
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Free pages are only given back when the compaction job asks for it
+        // (only takes effect on databases created after this setting).
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         String SQL_CREATE_BOOKS_TABLE = "CREATE TABLE " + BookContract.BookEntry.TABLE_NAME + "("
@@ -49,14 +416,191 @@ public class BookDbHelper extends SQLiteOpenHelper {
                 + BookContract.BookEntry.COLUMN_BOOK_PRICE + INTEGER_TYPE + NOT_NULL + DEFAULT + "0" + COMMA_SEP
                 + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + INTEGER_TYPE + NOT_NULL + DEFAULT + "0" + COMMA_SEP
                 + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME + TEXT_TYPE + COMMA_SEP
-                + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR + TEXT_TYPE + NOT_NULL + ")";
+                + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR + TEXT_TYPE + NOT_NULL + COMMA_SEP
+                + BookContract.BookEntry.COLUMN_BOOK_DELETED + INTEGER_TYPE + NOT_NULL + DEFAULT + BookContract.BookEntry.BOOK_ACTIVE + COMMA_SEP
+                + BookContract.BookEntry.COLUMN_BOOK_DELETED_AT + INTEGER_TYPE + COMMA_SEP
+                + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + INTEGER_TYPE + NOT_NULL + DEFAULT + "0" + COMMA_SEP
+                + BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID + TEXT_TYPE + NOT_NULL + COMMA_SEP
+                + BookContract.BookEntry.COLUMN_BOOK_DIRTY + INTEGER_TYPE + NOT_NULL + DEFAULT + "0" + COMMA_SEP
+                + BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY + INTEGER_TYPE + NOT_NULL + DEFAULT + "0" + COMMA_SEP
+                + BookContract.BookEntry.COLUMN_BOOK_COVER_UPDATED_AT + INTEGER_TYPE + NOT_NULL + DEFAULT + "0" + COMMA_SEP
+                + BookContract.BookEntry.COLUMN_BOOK_REORDER_LEVEL + INTEGER_TYPE + NOT_NULL + DEFAULT + BookContract.BookEntry.DEFAULT_REORDER_LEVEL + COMMA_SEP
+                + BookContract.BookEntry.COLUMN_BOOK_REORDER_TARGET + INTEGER_TYPE + NOT_NULL + DEFAULT + BookContract.BookEntry.DEFAULT_REORDER_TARGET + COMMA_SEP
+                + BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY + INTEGER_TYPE + NOT_NULL + DEFAULT + "0" + ")";
 
         db.execSQL(SQL_CREATE_BOOKS_TABLE);
+        db.execSQL(SQL_CREATE_DELETED_INDEX);
+        db.execSQL(SQL_CREATE_CHANGE_SEQ_INDEX);
+        db.execSQL(SQL_CREATE_GLOBAL_ID_INDEX);
+        db.execSQL(SQL_CREATE_DIRTY_INDEX);
+        db.execSQL(SQL_CREATE_DEDUP_KEY_INDEX);
+        createRangeIndexes(db);
+        db.execSQL(SQL_CREATE_SUPPLIER_DIRECTORY_INDEX);
+        db.execSQL(SQL_CREATE_CHANGE_SEQUENCE_TABLE);
+        db.execSQL("INSERT INTO " + CHANGE_SEQUENCE_TABLE_NAME + " VALUES (0)");
+        createSalesTables(db);
+        createPurchaseOrderTables(db);
+        createLocationTables(db);
+        db.execSQL(SQL_CREATE_TRIGRAMS_TABLE);
+        db.execSQL(SQL_CREATE_TRIGRAMS_BOOK_INDEX);
+        db.execSQL(SQL_CREATE_PRICE_HISTORY_TABLE);
         Log.v("CatalogActivity", "Table created: " + SQL_CREATE_BOOKS_TABLE);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            // Version 2 adds the soft-delete tombstone columns
+            db.execSQL("ALTER TABLE " + BookContract.BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookContract.BookEntry.COLUMN_BOOK_DELETED + INTEGER_TYPE + NOT_NULL + DEFAULT + BookContract.BookEntry.BOOK_ACTIVE);
+            db.execSQL("ALTER TABLE " + BookContract.BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookContract.BookEntry.COLUMN_BOOK_DELETED_AT + INTEGER_TYPE);
+            db.execSQL(SQL_CREATE_DELETED_INDEX);
+        }
+        if (oldVersion < 3) {
+            // Version 3 adds the change sequence. Existing books get their ID as first change,
+            // so a consumer reading the feed from 0 still sees all of them.
+            db.execSQL("ALTER TABLE " + BookContract.BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + INTEGER_TYPE + NOT_NULL + DEFAULT + "0");
+            db.execSQL("UPDATE " + BookContract.BookEntry.TABLE_NAME + " SET "
+                    + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + "=" + BookContract.BookEntry._ID);
+            db.execSQL(SQL_CREATE_CHANGE_SEQ_INDEX);
+            db.execSQL(SQL_CREATE_CHANGE_SEQUENCE_TABLE);
+            db.execSQL("INSERT INTO " + CHANGE_SEQUENCE_TABLE_NAME + " SELECT IFNULL(MAX("
+                    + BookContract.BookEntry._ID + "), 0) FROM " + BookContract.BookEntry.TABLE_NAME);
+        }
+        if (oldVersion < 4) {
+            // Version 4 adds the sync columns. Existing books get a random global ID and are
+            // marked dirty, so the first sync pushes their whole quantity to the server.
+            db.execSQL("ALTER TABLE " + BookContract.BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID + TEXT_TYPE);
+            db.execSQL("ALTER TABLE " + BookContract.BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookContract.BookEntry.COLUMN_BOOK_DIRTY + INTEGER_TYPE + NOT_NULL + DEFAULT + "1");
+            db.execSQL("ALTER TABLE " + BookContract.BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY + INTEGER_TYPE + NOT_NULL + DEFAULT + "0");
+            db.execSQL("UPDATE " + BookContract.BookEntry.TABLE_NAME + " SET "
+                    + BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID + "=lower(hex(randomblob(16)))");
+            db.execSQL(SQL_CREATE_GLOBAL_ID_INDEX);
+            db.execSQL(SQL_CREATE_DIRTY_INDEX);
+        }
+        if (oldVersion < 5) {
+            // Version 5 adds the indexes of the catalogue range filters
+            createRangeIndexes(db);
+        }
+        if (oldVersion < 6) {
+            // Version 6 adds the cover images
+            db.execSQL("ALTER TABLE " + BookContract.BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookContract.BookEntry.COLUMN_BOOK_COVER_UPDATED_AT + INTEGER_TYPE + NOT_NULL + DEFAULT + "0");
+        }
+        if (oldVersion < 7) {
+            // Version 7 adds the sales records and their rollups (no sales were recorded before)
+            createSalesTables(db);
+        }
+        if (oldVersion < 8) {
+            // Version 8 adds the reorder thresholds and the purchase orders
+            db.execSQL("ALTER TABLE " + BookContract.BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookContract.BookEntry.COLUMN_BOOK_REORDER_LEVEL + INTEGER_TYPE + NOT_NULL + DEFAULT + BookContract.BookEntry.DEFAULT_REORDER_LEVEL);
+            db.execSQL("ALTER TABLE " + BookContract.BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookContract.BookEntry.COLUMN_BOOK_REORDER_TARGET + INTEGER_TYPE + NOT_NULL + DEFAULT + BookContract.BookEntry.DEFAULT_REORDER_TARGET);
+            createPurchaseOrderTables(db);
+        }
+        if (oldVersion < 9) {
+            // Version 9 adds the locations. The existing quantities become the stock of the
+            // default location.
+            createLocationTables(db);
+        }
+        if (oldVersion < 10) {
+            // Version 10 adds the trigram index of the fuzzy search, built from the existing books
+            db.execSQL(SQL_CREATE_TRIGRAMS_TABLE);
+            db.execSQL(SQL_CREATE_TRIGRAMS_BOOK_INDEX);
+            BookTrigrams.indexAll(db);
+        }
+        if (oldVersion < 11) {
+            // Version 11 adds the duplicate key, computed for the existing books
+            db.execSQL("ALTER TABLE " + BookContract.BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY + INTEGER_TYPE + NOT_NULL + DEFAULT + "0");
+            BookDuplicates.updateAllKeys(db);
+            db.execSQL(SQL_CREATE_DEDUP_KEY_INDEX);
+        }
+        if (oldVersion < 12) {
+            // Version 12 adds the price history. The prices known then are all it can start
+            // with, so they are taken to hold since the beginning.
+            db.execSQL(SQL_CREATE_PRICE_HISTORY_TABLE);
+            PriceHistory.recordAll(db, 0);
+        }
+        if (oldVersion < 13) {
+            // Version 13 adds the supplier directory
+            db.execSQL(SQL_CREATE_SUPPLIER_DIRECTORY_INDEX);
+        }
+        if (oldVersion < 14) {
+            // Version 14 declares the prices of the sales and the revenue of the rollups REAL,
+            // and puts back the decimals the older versions cut off the recorded sales
+            rebuildTable(db, BookContract.SaleEntry.TABLE_NAME, buildCreateSalesTable(BookContract.SaleEntry.TABLE_NAME + "_new"));
+            db.execSQL(SQL_CREATE_SALES_SOLD_AT_INDEX);
+            db.execSQL(SQL_CREATE_SALES_BOOK_INDEX);
+            rebuildTable(db, SALES_DAILY_TABLE_NAME, buildCreateRollupTable(SALES_DAILY_TABLE_NAME + "_new"));
+            rebuildTable(db, SALES_WEEKLY_TABLE_NAME, buildCreateRollupTable(SALES_WEEKLY_TABLE_NAME + "_new"));
+            SalesLedger.restoreTruncatedPrices(db);
+        }
+    }
+
+    /**
+     * Replace a table with a copy of its rows in a table created with the given statement,
+     * under the name of the table followed by "_new". SQLite can't change the type of a column
+     * in place. The indexes of the table are dropped with it.
+     */
+    private static void rebuildTable(SQLiteDatabase db, String tableName, String createStatement) {
+        db.execSQL(createStatement);
+        db.execSQL("INSERT INTO " + tableName + "_new SELECT * FROM " + tableName);
+        db.execSQL("DROP TABLE " + tableName);
+        db.execSQL("ALTER TABLE " + tableName + "_new RENAME TO " + tableName);
+    }
+
+    private static void createLocationTables(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_LOCATIONS_TABLE);
+        db.execSQL("INSERT INTO " + BookContract.LocationEntry.TABLE_NAME + "("
+                + BookContract.LocationEntry._ID + COMMA_SEP + BookContract.LocationEntry.COLUMN_LOCATION_NAME
+                + ") VALUES (" + BookContract.LocationEntry.DEFAULT_LOCATION_ID + ", '" + DEFAULT_LOCATION_NAME + "')");
+        db.execSQL(SQL_CREATE_STOCK_TABLE);
+        db.execSQL(SQL_CREATE_STOCK_BOOK_INDEX);
+    }
+
+    private static void createPurchaseOrderTables(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_PURCHASE_ORDERS_TABLE);
+        db.execSQL(SQL_CREATE_PURCHASE_ORDERS_STATUS_INDEX);
+        db.execSQL(SQL_CREATE_PURCHASE_ORDER_ITEMS_TABLE);
+        db.execSQL(SQL_CREATE_PURCHASE_ORDER_ITEMS_ORDER_INDEX);
+        db.execSQL(SQL_CREATE_PURCHASE_ORDER_ITEMS_BOOK_INDEX);
+    }
+
+    private static void createSalesTables(SQLiteDatabase db) {
+        db.execSQL(buildCreateSalesTable(BookContract.SaleEntry.TABLE_NAME));
+        db.execSQL(SQL_CREATE_SALES_SOLD_AT_INDEX);
+        db.execSQL(SQL_CREATE_SALES_BOOK_INDEX);
+        db.execSQL(buildCreateRollupTable(SALES_DAILY_TABLE_NAME));
+        db.execSQL(buildCreateRollupTable(SALES_WEEKLY_TABLE_NAME));
+    }
+
+    /**
+     * The primary key of a rollup table starts with the bucket, so the reports only read the
+     * rows of the periods they cover.
+     */
+    private static String buildCreateRollupTable(String tableName) {
+        return "CREATE TABLE " + tableName + "("
+                + COLUMN_ROLLUP_BUCKET + INTEGER_TYPE + NOT_NULL + COMMA_SEP
+                + BookContract.SaleEntry.COLUMN_SALE_BOOK_ID + INTEGER_TYPE + NOT_NULL + COMMA_SEP
+                + BookContract.BookEntry.COLUMN_BOOK_NAME + TEXT_TYPE + COMMA_SEP
+                + BookContract.BookEntry.COLUMN_BOOK_AUTHOR + TEXT_TYPE + COMMA_SEP
+                + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME + TEXT_TYPE + COMMA_SEP
+                + COLUMN_ROLLUP_UNITS + INTEGER_TYPE + NOT_NULL + DEFAULT + "0" + COMMA_SEP
+                + COLUMN_ROLLUP_REVENUE + REAL_TYPE + NOT_NULL + DEFAULT + "0" + COMMA_SEP
+                + "PRIMARY KEY (" + COLUMN_ROLLUP_BUCKET + COMMA_SEP + BookContract.SaleEntry.COLUMN_SALE_BOOK_ID + "))";
+    }
 
+    private static void createRangeIndexes(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_PRICE_INDEX);
+        db.execSQL(SQL_CREATE_QUANTITY_INDEX);
+        db.execSQL(SQL_CREATE_AUTHOR_INDEX);
+        db.execSQL(SQL_CREATE_SUPPLIER_INDEX);
     }
 }
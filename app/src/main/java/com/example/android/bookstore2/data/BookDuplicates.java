@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds and merges the duplicate books, e.g. the same title imported twice.
+ *
+ * Every book carries a 64-bit FNV-1a hash of its normalised title, author and supplier name, and
+ * the books sharing a hash are found with a single GROUP BY over the index of the hash instead of
+ * comparing the books pair by pair. A merge first maps every duplicate to the oldest book of its
+ * group in a temporary table, then moves the copies, sales, rollups, order items and stock with
+ * one statement per table, whatever the number of duplicates.
+ */
+final class BookDuplicates {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Goes between the normalised fields, so "a b" + "c" and "a" + "b c" stay apart
+     */
+    private static final char FIELD_SEPARATOR = '\u0001';
+
+    /**
+     * Temporary table mapping every duplicate to the book it is merged into
+     */
+    private static final String MERGE_MAP = "temp.book_merge_map";
+    private static final String COLUMN_DUPLICATE_ID = "Duplicate_Id";
+    private static final String COLUMN_KEEP_ID = "Keep_Id";
+
+    private static final String BOOKS = BookContract.BookEntry.TABLE_NAME;
+    private static final String SELECTION_ACTIVE =
+            BookContract.BookEntry.COLUMN_BOOK_DELETED + "=" + BookContract.BookEntry.BOOK_ACTIVE;
+
+    private BookDuplicates() {
+    }
+
+    /**
+     * Return the fields of a book the way they are compared.
+     */
+    static String normalizedKey(String name, String author, String supplier) {
+        return (name == null ? "" : BookTrigrams.normalize(name)) + FIELD_SEPARATOR
+                + (author == null ? "" : BookTrigrams.normalize(author)) + FIELD_SEPARATOR
+                + (supplier == null ? "" : BookTrigrams.normalize(supplier));
+    }
+
+    /**
+     * Return the duplicate key of a book with the given fields.
+     */
+    static long key(String name, String author, String supplier) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : normalizedKey(name, author, supplier).getBytes(UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Compute the duplicate key of the given books again, from the fields they have in the
+     * database now. Must be called inside the transaction that changed them.
+     */
+    static void updateKeys(SQLiteDatabase database, long[] ids) {
+        for (long id : ids) {
+            updateKeys(database, BookContract.BookEntry._ID + "=" + id);
+        }
+    }
+
+    /**
+     * Compute the duplicate key of all the books, e.g. when the key is added.
+     */
+    static void updateAllKeys(SQLiteDatabase database) {
+        updateKeys(database, null);
+    }
+
+    private static void updateKeys(SQLiteDatabase database, String selection) {
+        SQLiteStatement update = database.compileStatement("UPDATE " + BOOKS
+                + " SET " + BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY + "=?"
+                + " WHERE " + BookContract.BookEntry._ID + "=?");
+        Cursor cursor = database.query(BOOKS, new String[]{BookContract.BookEntry._ID,
+                        BookContract.BookEntry.COLUMN_BOOK_NAME, BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
+                        BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME},
+                selection, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                update.bindLong(1, key(cursor.getString(1), cursor.getString(2), cursor.getString(3)));
+                update.bindLong(2, cursor.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+            update.close();
+        }
+    }
+
+    /**
+     * Query the groups of active books sharing a duplicate key, largest group first. Each row
+     * shows the fields of the oldest book of the group.
+     */
+    static Cursor queryDuplicates(SQLiteDatabase database) {
+        // With MIN(), SQLite takes the other bare columns from the row holding the minimum
+        return database.rawQuery("SELECT MIN(" + BookContract.BookEntry._ID + ") AS " + BookContract.BookEntry._ID + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_NAME + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_AUTHOR + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME + ", "
+                + "COUNT(*) AS " + BookContract.BookEntry.COLUMN_DUPLICATE_COUNT + ", "
+                + "SUM(" + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ") AS " + BookContract.BookEntry.COLUMN_BOOK_QUANTITY
+                + " FROM " + BOOKS + " WHERE " + SELECTION_ACTIVE
+                + " GROUP BY " + BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY
+                + " HAVING COUNT(*) > 1"
+                + " ORDER BY " + BookContract.BookEntry.COLUMN_DUPLICATE_COUNT + " DESC", null);
+    }
+
+    /**
+     * Merge the duplicates of the group with the given key, or of all the groups if the key is
+     * null, into the oldest book of their group. Must be called inside a transaction.
+     * Return the number of books merged away.
+     */
+    static int merge(SQLiteDatabase database, Long dedupKey, long changeSeq, long now) {
+        database.execSQL("CREATE TEMP TABLE IF NOT EXISTS book_merge_map("
+                + COLUMN_DUPLICATE_ID + " INTEGER PRIMARY KEY, " + COLUMN_KEEP_ID + " INTEGER NOT NULL)");
+        database.execSQL("CREATE INDEX IF NOT EXISTS temp.book_merge_map_keep_idx ON book_merge_map(" + COLUMN_KEEP_ID + ")");
+        database.execSQL("DELETE FROM " + MERGE_MAP);
+        try {
+            int merged = mapDuplicates(database, dedupKey);
+            if (merged > 0) {
+                moveBooks(database, changeSeq, now);
+                repoint(database, BookContract.SaleEntry.TABLE_NAME, BookContract.SaleEntry.COLUMN_SALE_BOOK_ID);
+                repoint(database, BookContract.PurchaseOrderItemEntry.TABLE_NAME, BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_BOOK_ID);
+                String[] rollupSums = {BookDbHelper.COLUMN_ROLLUP_UNITS, BookDbHelper.COLUMN_ROLLUP_REVENUE};
+                String[] rollupCopies = {BookContract.BookEntry.COLUMN_BOOK_NAME, BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
+                        BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME};
+                combine(database, BookDbHelper.SALES_DAILY_TABLE_NAME, BookDbHelper.COLUMN_ROLLUP_BUCKET,
+                        BookContract.SaleEntry.COLUMN_SALE_BOOK_ID, rollupSums, rollupCopies);
+                combine(database, BookDbHelper.SALES_WEEKLY_TABLE_NAME, BookDbHelper.COLUMN_ROLLUP_BUCKET,
+                        BookContract.SaleEntry.COLUMN_SALE_BOOK_ID, rollupSums, rollupCopies);
+                combine(database, BookContract.StockEntry.TABLE_NAME, BookContract.StockEntry.COLUMN_STOCK_LOCATION_ID,
+                        BookContract.StockEntry.COLUMN_STOCK_BOOK_ID,
+                        new String[]{BookContract.StockEntry.COLUMN_STOCK_QUANTITY}, new String[0]);
+                // The merged books won't be found by the search anymore
+                database.execSQL("DELETE FROM " + BookDbHelper.TRIGRAMS_TABLE_NAME
+                        + " WHERE " + BookDbHelper.COLUMN_TRIGRAM_BOOK_ID + " IN (SELECT " + COLUMN_DUPLICATE_ID + " FROM " + MERGE_MAP + ")");
+            }
+            return merged;
+        } finally {
+            database.execSQL("DELETE FROM " + MERGE_MAP);
+        }
+    }
+
+    /**
+     * Fill the merge map, in one pass over the books sharing a key in the order of the index.
+     * Books whose hashes collide without their fields being equal are left apart.
+     */
+    private static int mapDuplicates(SQLiteDatabase database, Long dedupKey) {
+        String selection = SELECTION_ACTIVE + " AND " + BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY;
+        String[] selectionArgs = null;
+        if (dedupKey != null) {
+            selection += "=?";
+            selectionArgs = new String[]{String.valueOf(dedupKey)};
+        } else {
+            selection += " IN (SELECT " + BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY + " FROM " + BOOKS
+                    + " WHERE " + SELECTION_ACTIVE + " GROUP BY " + BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY
+                    + " HAVING COUNT(*) > 1)";
+        }
+
+        SQLiteStatement insert = database.compileStatement("INSERT INTO " + MERGE_MAP
+                + "(" + COLUMN_DUPLICATE_ID + ", " + COLUMN_KEEP_ID + ") VALUES (?, ?)");
+        Cursor cursor = database.query(BOOKS, new String[]{BookContract.BookEntry._ID,
+                        BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY, BookContract.BookEntry.COLUMN_BOOK_NAME,
+                        BookContract.BookEntry.COLUMN_BOOK_AUTHOR, BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME},
+                selection, selectionArgs, null, null,
+                BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY + ", " + BookContract.BookEntry._ID);
+        try {
+            // Oldest book of each distinct set of fields within the current group
+            Map<String, Long> keepIds = new HashMap<>();
+            long currentKey = 0;
+            int mapped = 0;
+            while (cursor.moveToNext()) {
+                long key = cursor.getLong(1);
+                if (cursor.isFirst() || key != currentKey) {
+                    keepIds.clear();
+                    currentKey = key;
+                }
+                String fields = normalizedKey(cursor.getString(2), cursor.getString(3), cursor.getString(4));
+                Long keepId = keepIds.get(fields);
+                if (keepId == null) {
+                    keepIds.put(fields, cursor.getLong(0));
+                } else {
+                    insert.bindLong(1, cursor.getLong(0));
+                    insert.bindLong(2, keepId);
+                    insert.executeInsert();
+                    mapped++;
+                }
+            }
+            return mapped;
+        } finally {
+            cursor.close();
+            insert.close();
+        }
+    }
+
+    /**
+     * Add the copies of the duplicates to the books they are merged into, and turn the
+     * duplicates into tombstones, so the merge reaches the sync server too.
+     */
+    private static void moveBooks(SQLiteDatabase database, long changeSeq, long now) {
+        database.execSQL("UPDATE " + BOOKS + " SET "
+                + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + "=" + BookContract.BookEntry.COLUMN_BOOK_QUANTITY
+                + "+(SELECT SUM(d." + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ") FROM " + MERGE_MAP + " m"
+                + " JOIN " + BOOKS + " d ON d." + BookContract.BookEntry._ID + "=m." + COLUMN_DUPLICATE_ID
+                + " WHERE m." + COLUMN_KEEP_ID + "=" + BOOKS + "." + BookContract.BookEntry._ID + "), "
+                + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + "=?, "
+                + BookContract.BookEntry.COLUMN_BOOK_DIRTY + "=1"
+                + " WHERE " + BookContract.BookEntry._ID + " IN (SELECT " + COLUMN_KEEP_ID + " FROM " + MERGE_MAP + ")",
+                new Object[]{changeSeq});
+        database.execSQL("UPDATE " + BOOKS + " SET "
+                + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + "=0, "
+                + BookContract.BookEntry.COLUMN_BOOK_DELETED + "=" + BookContract.BookEntry.BOOK_DELETED + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_DELETED_AT + "=?, "
+                + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + "=?, "
+                + BookContract.BookEntry.COLUMN_BOOK_DIRTY + "=1"
+                + " WHERE " + BookContract.BookEntry._ID + " IN (SELECT " + COLUMN_DUPLICATE_ID + " FROM " + MERGE_MAP + ")",
+                new Object[]{now, changeSeq});
+    }
+
+    /**
+     * Point the rows of a table referring to the duplicates to the books they are merged into.
+     */
+    private static void repoint(SQLiteDatabase database, String table, String bookIdColumn) {
+        database.execSQL("UPDATE " + table + " SET " + bookIdColumn + "=(SELECT " + COLUMN_KEEP_ID
+                + " FROM " + MERGE_MAP + " WHERE " + COLUMN_DUPLICATE_ID + "=" + table + "." + bookIdColumn + ")"
+                + " WHERE " + bookIdColumn + " IN (SELECT " + COLUMN_DUPLICATE_ID + " FROM " + MERGE_MAP + ")");
+    }
+
+    /**
+     * Move the rows of a table keyed on (key, book) from the duplicates to the books they are
+     * merged into, adding up the given columns when both books have a row for the same key.
+     */
+    private static void combine(SQLiteDatabase database, String table, String keyColumn, String bookIdColumn,
+                                String[] sumColumns, String[] copyColumns) {
+        // First add the rows of the duplicates to the rows the kept book already has...
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        for (int i = 0; i < sumColumns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(sumColumns[i]).append("=").append(sumColumns[i])
+                    .append("+IFNULL((SELECT SUM(d.").append(sumColumns[i]).append(") FROM ").append(table).append(" d")
+                    .append(" JOIN ").append(MERGE_MAP).append(" m ON m.").append(COLUMN_DUPLICATE_ID).append("=d.").append(bookIdColumn)
+                    .append(" WHERE m.").append(COLUMN_KEEP_ID).append("=").append(table).append(".").append(bookIdColumn)
+                    .append(" AND d.").append(keyColumn).append("=").append(table).append(".").append(keyColumn).append("), 0)");
+        }
+        sql.append(" WHERE ").append(bookIdColumn).append(" IN (SELECT ").append(COLUMN_KEEP_ID).append(" FROM ").append(MERGE_MAP).append(")");
+        database.execSQL(sql.toString());
+
+        // ...then create the rows it doesn't have yet (the others are ignored, already added)...
+        StringBuilder columns = new StringBuilder(keyColumn).append(", ").append(bookIdColumn);
+        StringBuilder values = new StringBuilder("d.").append(keyColumn).append(", m.").append(COLUMN_KEEP_ID);
+        for (String column : copyColumns) {
+            columns.append(", ").append(column);
+            values.append(", MIN(d.").append(column).append(")");
+        }
+        for (String column : sumColumns) {
+            columns.append(", ").append(column);
+            values.append(", SUM(d.").append(column).append(")");
+        }
+        database.execSQL("INSERT OR IGNORE INTO " + table + "(" + columns + ") SELECT " + values
+                + " FROM " + table + " d JOIN " + MERGE_MAP + " m ON m." + COLUMN_DUPLICATE_ID + "=d." + bookIdColumn
+                + " GROUP BY d." + keyColumn + ", m." + COLUMN_KEEP_ID);
+
+        // ...and drop the rows of the duplicates
+        database.execSQL("DELETE FROM " + table + " WHERE " + bookIdColumn
+                + " IN (SELECT " + COLUMN_DUPLICATE_ID + " FROM " + MERGE_MAP + ")");
+    }
+}
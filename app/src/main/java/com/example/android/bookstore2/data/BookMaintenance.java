@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background job keeping the statistics of the query planner fresh, so its plans follow the
+ * catalogue as it grows, and giving the free pages of the database back to the file system.
+ *
+ * It runs as an {@link InventoryJob}, once per {@link #MAINTENANCE_INTERVAL_MILLIS} while the
+ * device is idle and charging: ANALYZE can take the write lock for a while on a large catalogue.
+ */
+public final class BookMaintenance {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = BookMaintenance.class.getSimpleName();
+
+    /**
+     * Minimum time between two runs of the maintenance
+     */
+    public static final long MAINTENANCE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(12);
+
+    /**
+     * Share of the books added or removed since the last ANALYZE that makes the statistics stale
+     */
+    private static final double ANALYZE_THRESHOLD = 0.1;
+
+    /**
+     * Number of rows of each index sampled by ANALYZE, on SQLite versions supporting it
+     */
+    private static final int ANALYSIS_LIMIT = 1000;
+
+    private static final String PREFERENCES_NAME = "maintenance";
+    private static final String PREF_ANALYZED_ROWS = "analyzed_rows";
+
+    /**
+     * The maintenance job: the statistics are refreshed in a first chunk, ANALYZE can't be
+     * split, then the free pages are vacuumed a few at a time.
+     */
+    static final InventoryJob JOB = new InventoryJob(2, "maintenance", MAINTENANCE_INTERVAL_MILLIS,
+            true, true, true) {
+        @Override
+        void runChunk(Context context, SQLiteDatabase database, Progress progress) {
+            if (progress.phase == 0) {
+                analyze(database, context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE));
+                progress.phase = 1;
+            } else {
+                progress.done = !BookCompactor.vacuumStep(context, database);
+            }
+            progress.items++;
+        }
+    };
+
+    private BookMaintenance() {
+    }
+
+    /**
+     * Refresh the planner statistics if they are stale, and let SQLite tune itself.
+     * Must not be called on the UI thread.
+     */
+    static void analyze(SQLiteDatabase database, SharedPreferences preferences) {
+        long start = SystemClock.elapsedRealtime();
+        String sqliteVersion = DatabaseUtils.stringForQuery(database, "SELECT sqlite_version()", null);
+
+        long rows = DatabaseUtils.queryNumEntries(database, BookContract.BookEntry.TABLE_NAME);
+        long analyzedRows = preferences.getLong(PREF_ANALYZED_ROWS, -1);
+        boolean analyze = analyzedRows < 0 || Math.abs(rows - analyzedRows) > analyzedRows * ANALYZE_THRESHOLD;
+        if (analyze) {
+            if (BookBackup.compareVersions(sqliteVersion, "3.32.0") >= 0) {
+                // Sampling the indexes is enough for the planner, and keeps ANALYZE short
+                runPragma(database, "PRAGMA analysis_limit = " + ANALYSIS_LIMIT);
+            }
+            database.execSQL("ANALYZE");
+            analyzedRows = rows;
+        }
+        if (BookBackup.compareVersions(sqliteVersion, "3.18.0") >= 0) {
+            // Lets SQLite analyze the other tables whose statistics it finds stale
+            runPragma(database, "PRAGMA optimize");
+        }
+
+        preferences.edit()
+                .putLong(PREF_ANALYZED_ROWS, analyzedRows)
+                .apply();
+        Log.v(LOG_TAG, "Planner statistics refreshed in " + (SystemClock.elapsedRealtime() - start) + "ms"
+                + (analyze ? ", analyzed " + rows + " books" : ""));
+    }
+
+    /**
+     * Run a pragma, reading whatever rows it returns to the end.
+     */
+    private static void runPragma(SQLiteDatabase database, String pragma) {
+        Cursor cursor = database.rawQuery(pragma, null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+/**
+ * A page of books held column by column in primitive arrays, filled by
+ * {@link BookCursorReader#readPage}.
+ *
+ * A page is allocated once with a fixed capacity and then refilled for every page of the cursor,
+ * so walking through a whole table allocates nothing per row but the strings of the cursor.
+ */
+public final class BookPage {
+
+    final long[] mIds;
+    final String[] mNames;
+    final String[] mAuthors;
+    final double[] mPrices;
+    final int[] mQuantities;
+    final String[] mSupplierNames;
+    final String[] mSupplierPhoneNrs;
+    final long[] mCoverUpdatedAts;
+
+    /**
+     * Number of rows of the current page
+     */
+    int mSize;
+
+    public BookPage(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Page requires a positive capacity");
+        }
+        mIds = new long[capacity];
+        mNames = new String[capacity];
+        mAuthors = new String[capacity];
+        mPrices = new double[capacity];
+        mQuantities = new int[capacity];
+        mSupplierNames = new String[capacity];
+        mSupplierPhoneNrs = new String[capacity];
+        mCoverUpdatedAts = new long[capacity];
+    }
+
+    public int getCapacity() {
+        return mIds.length;
+    }
+
+    /**
+     * Return the number of rows of the current page.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public long getId(int row) {
+        checkRow(row);
+        return mIds[row];
+    }
+
+    public String getName(int row) {
+        checkRow(row);
+        return mNames[row];
+    }
+
+    public String getAuthor(int row) {
+        checkRow(row);
+        return mAuthors[row];
+    }
+
+    public double getPrice(int row) {
+        checkRow(row);
+        return mPrices[row];
+    }
+
+    public int getQuantity(int row) {
+        checkRow(row);
+        return mQuantities[row];
+    }
+
+    public String getSupplierName(int row) {
+        checkRow(row);
+        return mSupplierNames[row];
+    }
+
+    public String getSupplierPhoneNr(int row) {
+        checkRow(row);
+        return mSupplierPhoneNrs[row];
+    }
+
+    public long getCoverUpdatedAt(int row) {
+        checkRow(row);
+        return mCoverUpdatedAts[row];
+    }
+
+    /**
+     * Return a {@link Book} holding the given row of the page.
+     */
+    public Book getBook(int row) {
+        checkRow(row);
+        return new Book(mIds[row], mNames[row], mAuthors[row], mPrices[row], mQuantities[row],
+                mSupplierNames[row], mSupplierPhoneNrs[row], mCoverUpdatedAts[row]);
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= mSize) {
+            throw new IndexOutOfBoundsException("Row " + row + " of a page of " + mSize);
+        }
+    }
+}
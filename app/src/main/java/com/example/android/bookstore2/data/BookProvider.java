@@ -16,16 +16,37 @@
 package com.example.android.bookstore2.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * {@link ContentProvider} for Bookstore app.
  */
@@ -47,6 +68,107 @@ public class BookProvider extends ContentProvider {
      */
     private static final int BOOK_ID = 101;
 
+    /**
+     * URI matcher code for the content URI to restore soft-deleted books
+     */
+    private static final int BOOKS_RESTORE = 102;
+
+    /**
+     * URI matcher code for the content URI to restore a single soft-deleted book
+     */
+    private static final int BOOK_ID_RESTORE = 103;
+
+    /**
+     * URI matcher code for the content URI of the change feed of the books table
+     */
+    private static final int BOOKS_CHANGES = 104;
+
+    /**
+     * URI matcher code for the content URI of the cover image of a single book
+     */
+    private static final int BOOK_ID_COVER = 105;
+
+    /**
+     * URI matcher code for the content URI to sell the line items of a cart
+     */
+    private static final int BOOKS_CHECKOUT = 106;
+
+    /**
+     * URI matcher code for the content URI for the sales table
+     */
+    private static final int SALES = 107;
+
+    /**
+     * URI matcher code for the content URI of the sales reports
+     */
+    private static final int SALES_REPORT = 108;
+
+    /**
+     * URI matcher codes for the content URIs of the purchase orders, of a single purchase order,
+     * of the reorder suggestions, of the items of a purchase order and to receive it
+     */
+    private static final int PURCHASE_ORDERS = 109;
+    private static final int PURCHASE_ORDER_ID = 110;
+    private static final int PURCHASE_ORDER_SUGGESTIONS = 111;
+    private static final int PURCHASE_ORDER_ID_ITEMS = 112;
+    private static final int PURCHASE_ORDER_ID_RECEIVE = 113;
+
+    /**
+     * URI matcher codes for the content URIs of the locations, of a single location, of the
+     * books at a location, of a single book at a location and to sell from a location
+     */
+    private static final int LOCATIONS = 114;
+    private static final int LOCATION_ID = 115;
+    private static final int LOCATION_ID_BOOKS = 116;
+    private static final int LOCATION_ID_BOOK_ID = 117;
+    private static final int LOCATION_ID_CHECKOUT = 118;
+
+    /**
+     * URI matcher code for the content URI of the fuzzy search
+     */
+    private static final int BOOKS_SEARCH = 119;
+
+    /**
+     * URI matcher code for the content URI of the duplicate books
+     */
+    private static final int BOOKS_DUPLICATES = 120;
+
+    /**
+     * URI matcher code for the content URI of the recent queries
+     */
+    private static final int DIAGNOSTICS_QUERIES = 121;
+
+    /**
+     * URI matcher code for the content URI of the price history of a single book
+     */
+    private static final int BOOK_ID_PRICE = 122;
+
+    /**
+     * URI matcher code for the content URI of the maintenance jobs
+     */
+    private static final int DIAGNOSTICS_JOBS = 123;
+
+    /**
+     * URI matcher codes for the content URI of the supplier directory and of a single supplier
+     */
+    private static final int SUPPLIERS = 124;
+    private static final int SUPPLIER_NAME = 125;
+
+    /**
+     * Number of books returned by the fuzzy search when the caller doesn't say
+     */
+    private static final int DEFAULT_SEARCH_LIMIT = 50;
+
+    /**
+     * Directory of the cover images, inside the app's private files
+     */
+    private static final String COVERS_DIRECTORY = "covers";
+
+    /**
+     * Sort order of the books URIs: a column and an optional direction
+     */
+    private static final Pattern SORT_ORDER = Pattern.compile("\\s*(\\w+)(?:\\s+(ASC|DESC))?\\s*", Pattern.CASE_INSENSITIVE);
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -61,6 +183,30 @@ public class BookProvider extends ContentProvider {
         // when a match is found.
         sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS, BOOKS);
         sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS + "/#", BOOK_ID);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS + "/" + BookContract.PATH_RESTORE, BOOKS_RESTORE);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS + "/#/" + BookContract.PATH_RESTORE, BOOK_ID_RESTORE);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS + "/" + BookContract.PATH_CHANGES, BOOKS_CHANGES);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS + "/" + BookContract.PATH_SEARCH, BOOKS_SEARCH);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS + "/" + BookContract.PATH_DUPLICATES, BOOKS_DUPLICATES);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS + "/#/" + BookContract.PATH_COVER, BOOK_ID_COVER);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS + "/#/" + BookContract.PATH_PRICE, BOOK_ID_PRICE);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS + "/" + BookContract.PATH_CHECKOUT, BOOKS_CHECKOUT);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_SALES, SALES);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_SALES + "/" + BookContract.PATH_REPORT, SALES_REPORT);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_PURCHASE_ORDERS, PURCHASE_ORDERS);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_PURCHASE_ORDERS + "/#", PURCHASE_ORDER_ID);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_PURCHASE_ORDERS + "/" + BookContract.PATH_SUGGESTIONS, PURCHASE_ORDER_SUGGESTIONS);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_PURCHASE_ORDERS + "/#/" + BookContract.PATH_ITEMS, PURCHASE_ORDER_ID_ITEMS);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_PURCHASE_ORDERS + "/#/" + BookContract.PATH_RECEIVE, PURCHASE_ORDER_ID_RECEIVE);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_LOCATIONS, LOCATIONS);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_LOCATIONS + "/#", LOCATION_ID);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_LOCATIONS + "/#/" + BookContract.PATH_BOOKS, LOCATION_ID_BOOKS);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_LOCATIONS + "/#/" + BookContract.PATH_BOOKS + "/#", LOCATION_ID_BOOK_ID);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_LOCATIONS + "/#/" + BookContract.PATH_BOOKS + "/" + BookContract.PATH_CHECKOUT, LOCATION_ID_CHECKOUT);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_SUPPLIERS, SUPPLIERS);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_SUPPLIERS + "/*", SUPPLIER_NAME);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_DIAGNOSTICS + "/" + BookContract.PATH_QUERIES, DIAGNOSTICS_QUERIES);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_DIAGNOSTICS + "/" + BookContract.PATH_JOBS, DIAGNOSTICS_JOBS);
     }
 
     /**
@@ -68,9 +214,46 @@ public class BookProvider extends ContentProvider {
      */
     private BookDbHelper mDbHelper;
 
+    /**
+     * Store of the books, on the database of the helper unless another one is given
+     */
+    private BookStore mStore;
+
+    /**
+     * Handler of the thread told when a cover file is closed (created when first needed)
+     */
+    private Handler mCoverHandler;
+
+    /**
+     * URIs to notify once the batch applied by the current thread is committed, null when the
+     * thread isn't applying a batch
+     */
+    private final ThreadLocal<Set<Uri>> mBatchNotifications = new ThreadLocal<>();
+
+    public BookProvider() {
+    }
+
+    /**
+     * Constructs a provider over the given database instead of the one of the app, so the tests
+     * can run against a scratch database, and over the given store of the books.
+     *
+     * @param store Store of the books, or null for the {@link SqliteBookStore} of the database
+     */
+    BookProvider(BookDbHelper dbHelper, BookStore store) {
+        mDbHelper = dbHelper;
+        mStore = store;
+    }
+
     @Override
     public boolean onCreate() {
-        mDbHelper = new BookDbHelper(getContext());
+        if (mDbHelper == null) {
+            mDbHelper = BookDbHelper.getInstance(getContext());
+        }
+        if (mStore == null) {
+            mStore = new SqliteBookStore(mDbHelper);
+        }
+        // Bring the stored supplier contacts to the storage mode of this build
+        SupplierCipher.scheduleMigration(getContext());
         return true;
     }
 
@@ -82,27 +265,142 @@ public class BookProvider extends ContentProvider {
 
         // This cursor will hold the result of the query
         Cursor cursor;
+        // The books store gives the supplier contacts in plain text already
+        boolean plaintext = false;
 
         // Figure out if the URI matcher can match the URI to a specific code
         int match = sUriMatcher.match(uri);
         switch (match) {
-            case BOOKS:
-                // For the BOOKS code, query the books table directly with the given
-                // projection, selection, selection arguments, and sort order. The cursor
-                // could contain multiple rows of the books table.
-                cursor = database.query(BookContract.BookEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+            case BOOKS: {
+                // For the BOOKS code, query the store with the filters given as query
+                // parameters, in the given sort order. The cursor could contain multiple rows of
+                // the books table. Soft-deleted books are hidden, except from the sync engine
+                // which has to push them.
+                checkNoSelection(uri, selection);
+                BookStore.Filter filter = parseFilter(uri);
+                filter.includeDeleted = isCallerSyncAdapter(uri);
+                cursor = queryStore(projection, filter, sortOrder, parseLimit(uri, 0));
+                plaintext = true;
                 break;
+            }
             case BOOK_ID:
-                // For the BOOK_ID code, extract out the ID from the URI.
-                selection = BookContract.BookEntry._ID + "=?";
+                // For the BOOK_ID code, extract out the ID from the URI and get the book from the store
+                checkNoSelection(uri, selection);
+                cursor = mStore.get(ContentUris.parseId(uri), projection);
+                plaintext = true;
+                break;
+            case BOOKS_CHANGES: {
+                // For the BOOKS_CHANGES code, only return the books changed after the sequence
+                // given by the consumer, tombstones included, in the order they changed.
+                // The change sequence index makes this proportional to the number of changes.
+                checkNoSelection(uri, selection);
+                BookStore.Filter filter = parseFilter(uri);
+                filter.changedAfter = parseSince(uri);
+                filter.changedAfterId = parseId(uri, BookContract.BookEntry.QUERY_PARAMETER_AFTER_ID);
+                filter.includeDeleted = true;
+                cursor = mStore.query(projection, filter, BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ, false,
+                        parseLimit(uri, 0));
+                plaintext = true;
+                break;
+            }
+            case BOOKS_SEARCH:
+                // For the BOOKS_SEARCH code, rank the books by the trigrams of the searched text
+                // they have. The ranking has its own selection and order.
+                cursor = BookTrigrams.search(database,
+                        projection != null ? projection : BookContract.BookEntry.PROJECTION_LIST,
+                        uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_QUERY),
+                        parseLimit(uri, DEFAULT_SEARCH_LIMIT));
+                break;
+            case BOOK_ID_PRICE:
+                // For the BOOK_ID_PRICE code, read the price history of the book (the ID is the
+                // second segment), or only its price at the time asked for
+                cursor = PriceHistory.query(database, projection,
+                        Long.parseLong(uri.getPathSegments().get(1)), parseAt(uri));
+                break;
+            case SUPPLIERS:
+                // Served from memory, computed from the directory index when needed
+                cursor = SupplierDirectory.query(database);
+                break;
+            case SUPPLIER_NAME:
+                cursor = SupplierDirectory.query(database, uri.getLastPathSegment());
+                break;
+            case BOOKS_DUPLICATES:
+                // For the BOOKS_DUPLICATES code, group the active books by their duplicate key.
+                // The groups have fixed columns, so the projection, selection and sort order are ignored.
+                cursor = BookDuplicates.queryDuplicates(database);
+                break;
+            case SALES:
+                // For the SALES code, query the sales table directly, most recent sale first
+                // unless the caller asks otherwise
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = BookContract.SaleEntry.COLUMN_SALE_SOLD_AT + " DESC";
+                }
+                cursor = database.query(BookContract.SaleEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                break;
+            case SALES_REPORT:
+                // For the SALES_REPORT code, sum up the rollup tables. The report has fixed
+                // columns, so the projection, selection and sort order are ignored.
+                cursor = SalesLedger.queryReport(database, parseWeekly(uri), parseGroupColumn(uri),
+                        parseTime(uri, BookContract.SaleEntry.QUERY_PARAMETER_FROM),
+                        parseTime(uri, BookContract.SaleEntry.QUERY_PARAMETER_TO));
+                break;
+            case PURCHASE_ORDERS:
+                // The purchase order queries have fixed columns too
+                cursor = PurchaseOrders.queryOrders(database, null);
+                break;
+            case PURCHASE_ORDER_ID:
+                cursor = PurchaseOrders.queryOrders(database, String.valueOf(ContentUris.parseId(uri)));
+                break;
+            case PURCHASE_ORDER_SUGGESTIONS:
+                cursor = PurchaseOrders.querySuggestions(database);
+                break;
+            case PURCHASE_ORDER_ID_ITEMS:
+                cursor = PurchaseOrders.queryItems(database, uri.getPathSegments().get(1));
+                break;
+            case LOCATIONS:
+                cursor = database.query(BookContract.LocationEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                break;
+            case LOCATION_ID:
+                selection = BookContract.LocationEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                //Perform a query on the book table
-                cursor = database.query(BookContract.BookEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                cursor = database.query(BookContract.LocationEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                break;
+            case LOCATION_ID_BOOK_ID:
+            case LOCATION_ID_BOOKS: {
+                // The ID of the book is the last segment, the one of the location the second
+                checkNoSelection(uri, selection);
+                long locationId = Long.parseLong(uri.getPathSegments().get(1));
+                Long bookId = match == LOCATION_ID_BOOK_ID ? ContentUris.parseId(uri) : null;
+                if (locationId == BookContract.LocationEntry.DEFAULT_LOCATION_ID) {
+                    // The stock of the default location is the quantity of the books
+                    BookStore.Filter filter = new BookStore.Filter();
+                    filter.id = bookId;
+                    cursor = queryStore(projection, filter, sortOrder, 0);
+                    plaintext = true;
+                } else if (bookId != null) {
+                    cursor = LocationStock.queryBooks(database, locationId, projection,
+                            BookContract.BookEntry._ID + "=?", new String[]{String.valueOf(bookId)}, sortOrder);
+                } else {
+                    cursor = LocationStock.queryBooks(database, locationId, projection, null, null, sortOrder);
+                }
+                break;
+            }
+            case DIAGNOSTICS_QUERIES:
+                cursor = queryRecentQueries(database);
+                break;
+            case DIAGNOSTICS_JOBS:
+                cursor = InventoryJobs.queryMetrics(getContext());
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown Uri " + uri);
         }
 
+        // Callers only ever see the supplier contacts in plain text
+        SupplierCipher cipher = SupplierCipher.getInstance();
+        if (cipher != null && !plaintext) {
+            cursor = cipher.wrap(cursor);
+        }
+
         // Set notification URI on the Cursor,
         // so we know what content URI the Cursor was created for.
         // If the data at this URI changes, then we know we need to update the Cursor.
@@ -111,25 +409,388 @@ public class BookProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * List the most recent queries run on the database, slowest first, with the plan SQLite
+     * chooses for them now.
+     */
+    private Cursor queryRecentQueries(SQLiteDatabase database) {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                BookContract.DiagnosticsEntry.COLUMN_QUERY_SQL,
+                BookContract.DiagnosticsEntry.COLUMN_QUERY_DURATION,
+                BookContract.DiagnosticsEntry.COLUMN_QUERY_ROWS,
+                BookContract.DiagnosticsEntry.COLUMN_QUERY_EXECUTED_AT,
+                BookContract.DiagnosticsEntry.COLUMN_QUERY_PLAN,
+                BookContract.DiagnosticsEntry.COLUMN_QUERY_FULL_SCAN});
+        for (QueryLog.Entry entry : mDbHelper.getQueryLog().getSlowestQueries()) {
+            StringBuilder plan = new StringBuilder();
+            boolean fullScan = false;
+            try {
+                // The arguments aren't kept, the plan is explained with them unbound
+                Cursor steps = database.rawQuery("EXPLAIN QUERY PLAN " + entry.sql, null);
+                try {
+                    int detailIndex = steps.getColumnIndexOrThrow("detail");
+                    while (steps.moveToNext()) {
+                        String detail = steps.getString(detailIndex);
+                        plan.append(plan.length() == 0 ? "" : "\n").append(detail);
+                        // "SCAN TABLE books" without "USING ... INDEX" reads every row
+                        fullScan |= detail.startsWith("SCAN") && !detail.contains(" INDEX");
+                    }
+                } finally {
+                    steps.close();
+                }
+            } catch (SQLiteException e) {
+                // e.g. a temporary table that is gone
+                plan.append(e.getMessage());
+            }
+            cursor.addRow(new Object[]{entry.sql, entry.durationMicros, entry.rows, entry.executedAt,
+                    plan.toString(), fullScan ? 1 : 0});
+        }
+        return cursor;
+    }
+
     @Override
     public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
+            case BOOKS_RESTORE:
+            case BOOKS_CHANGES:
+            case BOOKS_CHECKOUT:
+            case BOOKS_SEARCH:
+            case BOOKS_DUPLICATES:
                 return BookContract.BookEntry.CONTENT_LIST_TYPE;
             case BOOK_ID:
+            case BOOK_ID_RESTORE:
+                return BookContract.BookEntry.CONTENT_ITEM_TYPE;
+            case BOOK_ID_COVER:
+                return BookContract.BookEntry.COVER_TYPE;
+            case DIAGNOSTICS_QUERIES:
+            case DIAGNOSTICS_JOBS:
+                return BookContract.DiagnosticsEntry.CONTENT_LIST_TYPE;
+            case BOOK_ID_PRICE:
+                return BookContract.PriceHistoryEntry.CONTENT_LIST_TYPE;
+            case SUPPLIERS:
+                return BookContract.SupplierEntry.CONTENT_LIST_TYPE;
+            case SUPPLIER_NAME:
+                return BookContract.SupplierEntry.CONTENT_ITEM_TYPE;
+            case SALES:
+                return BookContract.SaleEntry.CONTENT_LIST_TYPE;
+            case SALES_REPORT:
+                return BookContract.SaleEntry.CONTENT_REPORT_TYPE;
+            case PURCHASE_ORDERS:
+            case PURCHASE_ORDER_SUGGESTIONS:
+            case PURCHASE_ORDER_ID_ITEMS:
+                return BookContract.PurchaseOrderEntry.CONTENT_LIST_TYPE;
+            case PURCHASE_ORDER_ID:
+            case PURCHASE_ORDER_ID_RECEIVE:
+                return BookContract.PurchaseOrderEntry.CONTENT_ITEM_TYPE;
+            case LOCATIONS:
+                return BookContract.LocationEntry.CONTENT_LIST_TYPE;
+            case LOCATION_ID:
+                return BookContract.LocationEntry.CONTENT_ITEM_TYPE;
+            case LOCATION_ID_BOOKS:
+            case LOCATION_ID_CHECKOUT:
+                return BookContract.BookEntry.CONTENT_LIST_TYPE;
+            case LOCATION_ID_BOOK_ID:
                 return BookContract.BookEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
 
+    /**
+     * Run one of the {@link BookContract.BookEntry} METHOD_* operations. They answer with a few
+     * primitive values, without the cursor, the CursorWindow and the content observer a query
+     * costs.
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        Bundle result = new Bundle();
+        switch (method) {
+            case BookContract.BookEntry.METHOD_COUNT:
+                result.putLong(BookContract.BookEntry.EXTRA_COUNT, mStore.count());
+                return result;
+            case BookContract.BookEntry.METHOD_EXISTS:
+                result.putBoolean(BookContract.BookEntry.EXTRA_EXISTS, mStore.getQuantity(parseBookId(arg)) != null);
+                return result;
+            case BookContract.BookEntry.METHOD_GET_QUANTITY: {
+                Integer quantity = mStore.getQuantity(parseBookId(arg));
+                result.putBoolean(BookContract.BookEntry.EXTRA_EXISTS, quantity != null);
+                result.putInt(BookContract.BookEntry.EXTRA_QUANTITY, quantity == null ? 0 : quantity);
+                return result;
+            }
+            case BookContract.BookEntry.METHOD_SELL: {
+                long id = parseBookId(arg);
+                // A sale of a single book is a checkout of a single line item
+                ContentValues item = new ContentValues();
+                item.put(BookContract.BookEntry._ID, id);
+                item.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, parseCallQuantity(extras));
+                result.putBoolean(BookContract.BookEntry.EXTRA_SUCCESS, checkout(new ContentValues[]{item}) == 1);
+                putQuantity(result, id);
+                return result;
+            }
+            case BookContract.BookEntry.METHOD_RESTOCK: {
+                long id = parseBookId(arg);
+                result.putBoolean(BookContract.BookEntry.EXTRA_SUCCESS, restock(id, parseCallQuantity(extras)));
+                putQuantity(result, id);
+                return result;
+            }
+            case BookContract.PurchaseOrderEntry.METHOD_CREATE_ORDERS:
+                result.putLong(BookContract.BookEntry.EXTRA_COUNT, createPurchaseOrders());
+                return result;
+            case BookContract.BookEntry.METHOD_MERGE_DUPLICATES:
+                result.putLong(BookContract.BookEntry.EXTRA_COUNT, mergeDuplicates(parseDedupKey(arg)));
+                return result;
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+
+    /**
+     * Parse the duplicate key given to {@link BookContract.BookEntry#METHOD_MERGE_DUPLICATES},
+     * null for all the groups.
+     */
+    private static Long parseDedupKey(String arg) {
+        if (arg == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid duplicate key " + arg, e);
+        }
+    }
+
+    /**
+     * Merge the duplicate books of the group with the given key, or of all the groups, in a
+     * single transaction with a single change sequence. Return the number of books merged away.
+     */
+    private int mergeDuplicates(Long dedupKey) {
+        int merged = mStore.mergeDuplicates(dedupKey);
+        if (merged != 0) {
+            notifyChange(BookContract.BookEntry.CONTENT_URI);
+            notifyChange(BookContract.SaleEntry.CONTENT_URI);
+        }
+        return merged;
+    }
+
+    /**
+     * Turn the reorder suggestions of all the suppliers into purchase orders, in a single
+     * transaction. Return the number of orders created.
+     */
+    private int createPurchaseOrders() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int ordersCreated;
+        database.beginTransaction();
+        try {
+            ordersCreated = PurchaseOrders.createOrders(database, System.currentTimeMillis());
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        if (ordersCreated != 0) {
+            notifyChange(BookContract.PurchaseOrderEntry.CONTENT_URI);
+        }
+        return ordersCreated;
+    }
+
+    /**
+     * Receive a purchase order: all of its books are restocked by the store with a single change
+     * sequence and a single change notification, in the transaction closing the order. Return 1
+     * if the order was received, 0 if it isn't open.
+     */
+    private int receivePurchaseOrder(final long orderId) {
+        final SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean received = mStore.applyBatch(new BookStore.Batch<Boolean, RuntimeException>() {
+            @Override
+            public Boolean apply() {
+                boolean nested = database.inTransaction();
+                database.beginTransaction();
+                try {
+                    if (!PurchaseOrders.close(database, orderId, System.currentTimeMillis())) {
+                        // Rolling back a nested transaction would roll back the whole batch it
+                        // belongs to
+                        if (nested) {
+                            database.setTransactionSuccessful();
+                        }
+                        return false;
+                    }
+                    restock(PurchaseOrders.queryReceipt(database, orderId));
+                    database.setTransactionSuccessful();
+                    return true;
+                } finally {
+                    database.endTransaction();
+                }
+            }
+        });
+        if (!received) {
+            return 0;
+        }
+        notifyChange(BookContract.BookEntry.CONTENT_URI);
+        notifyChange(BookContract.PurchaseOrderEntry.CONTENT_URI);
+        return 1;
+    }
+
+    /**
+     * Put the quantity of a book in the result of a call() method, 0 if there is no such book.
+     */
+    private void putQuantity(Bundle result, long id) {
+        Integer quantity = mStore.getQuantity(id);
+        result.putInt(BookContract.BookEntry.EXTRA_QUANTITY, quantity == null ? 0 : quantity);
+    }
+
+    /**
+     * Add copies to the stock of a book. Return false if there is no such book.
+     */
+    private boolean restock(long id, int quantity) {
+        boolean restocked = mStore.restock(new long[]{id}, new int[]{quantity}) != 0;
+        if (restocked) {
+            notifyChange(ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, id));
+        }
+        return restocked;
+    }
+
+    /**
+     * Add the quantities of a cursor of book IDs and quantities to the stock, and close it.
+     */
+    private void restock(Cursor items) {
+        long[] ids;
+        int[] quantities;
+        try {
+            ids = new long[items.getCount()];
+            quantities = new int[ids.length];
+            for (int i = 0; items.moveToNext(); i++) {
+                ids[i] = items.getLong(0);
+                quantities[i] = items.getInt(1);
+            }
+        } finally {
+            items.close();
+        }
+        mStore.restock(ids, quantities);
+    }
+
+    /**
+     * Read the book ID given as argument of a call() method.
+     */
+    private static long parseBookId(String arg) {
+        try {
+            return Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid book ID " + arg);
+        }
+    }
+
+    /**
+     * Read the {@link BookContract.BookEntry#EXTRA_QUANTITY} of a call() method, 1 if missing.
+     */
+    private static int parseCallQuantity(Bundle extras) {
+        int quantity = extras == null ? 1 : extras.getInt(BookContract.BookEntry.EXTRA_QUANTITY, 1);
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Invalid quantity " + quantity);
+        }
+        return quantity;
+    }
+
+    /**
+     * Open the cover image of a book. Covers are kept as files outside of the books table, so
+     * loading the catalogue never carries image data in its CursorWindows.
+     * Writing a cover ("w" mode) stamps the book with a new cover time once the file is closed.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != BOOK_ID_COVER) {
+            throw new IllegalArgumentException("Cannot open file for unknown Uri " + uri);
+        }
+        final long id = Long.parseLong(uri.getPathSegments().get(1));
+        File coverFile = getCoverFile(getContext(), id);
+
+        if ("r".equals(mode)) {
+            return ParcelFileDescriptor.open(coverFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+        if (!"w".equals(mode) && !"wt".equals(mode)) {
+            throw new IllegalArgumentException("Unsupported mode " + mode + " for " + uri);
+        }
+
+        // Only existing books can get a cover
+        if (mStore.getQuantity(id) == null) {
+            throw new FileNotFoundException("No book for " + uri);
+        }
+        coverFile.getParentFile().mkdirs();
+        int fileMode = ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                | ParcelFileDescriptor.MODE_TRUNCATE;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Wait for the writer to be done, so no thumbnail is ever made of half a cover
+            return ParcelFileDescriptor.open(coverFile, fileMode, getCoverHandler(),
+                    new ParcelFileDescriptor.OnCloseListener() {
+                        @Override
+                        public void onClose(IOException e) {
+                            stampCover(id);
+                        }
+                    });
+        }
+        ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(coverFile, fileMode);
+        stampCover(id);
+        return descriptor;
+    }
+
+    /**
+     * Stamp a book with a new cover time, which lets the thumbnail caches know their copy is stale.
+     */
+    private void stampCover(long id) {
+        ContentValues values = new ContentValues();
+        values.put(BookContract.BookEntry.COLUMN_BOOK_COVER_UPDATED_AT, System.currentTimeMillis());
+        // The covers aren't synced, so this is written like a write of the sync engine, without
+        // marking the book dirty
+        int rowsUpdated = mStore.update(BookStore.Filter.forBook(id), values, true);
+        if (rowsUpdated != 0) {
+            notifyChange(ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, id));
+        }
+    }
+
+    /**
+     * Return the background handler the closing of the cover files is reported on.
+     */
+    private synchronized Handler getCoverHandler() {
+        if (mCoverHandler == null) {
+            HandlerThread thread = new HandlerThread("BookCovers");
+            thread.start();
+            mCoverHandler = new Handler(thread.getLooper());
+        }
+        return mCoverHandler;
+    }
+
+    /**
+     * Return the file holding the cover image of a book.
+     */
+    static File getCoverFile(Context context, long id) {
+        return new File(new File(context.getFilesDir(), COVERS_DIRECTORY), id + ".jpg");
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
                 return insertBook(uri, contentValues);
+            case BOOKS_CHECKOUT:
+                // A single line item, so a sale can be part of a batch. Returning null makes the
+                // batch fail, which rolls the whole of it back.
+                if (checkout(new ContentValues[]{contentValues}) == 0) {
+                    return null;
+                }
+                return ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI,
+                        contentValues.getAsLong(BookContract.BookEntry._ID));
+            case LOCATION_ID_CHECKOUT:
+                long locationId = Long.parseLong(uri.getPathSegments().get(1));
+                if (checkout(new ContentValues[]{contentValues}, locationId) == 0) {
+                    return null;
+                }
+                return ContentUris.withAppendedId(BookContract.LocationEntry.buildBooksUri(locationId),
+                        contentValues.getAsLong(BookContract.BookEntry._ID));
+            case LOCATIONS:
+                return insertLocation(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
@@ -141,79 +802,183 @@ public class BookProvider extends ContentProvider {
      */
 
     private Uri insertBook(Uri uri, ContentValues values) {
-        // Check that the name is not null
-        String name = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_NAME);
-        if (name == null) {
-            throw new IllegalArgumentException("Book requires a name");
-        }
-        // Check that the author is not null
-        String author = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_AUTHOR);
-        if (author == null) {
-            throw new IllegalArgumentException("Book requires a name");
+        // Insert the new book with the given values, stamped with a new change sequence
+        long id = mStore.insert(values, isCallerSyncAdapter(uri));
+
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
         }
 
-        // Check if the quantity is valid or if it's greater than or equal to 0 units
-        Integer quantity = values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
-        if (quantity == null || quantity < 0) {
-            throw new IllegalArgumentException("Book requires valid quantity");
+        // Notify all listeners that the data has changed for the book content URI
+        notifyChange(uri);
+
+        // Return the new URI with the ID (of the newly inserted row) appended at the end
+        return ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Apply all the operations as a single batch of the store, in a single transaction of the
+     * database: either all of them are committed, or none of them. Each URI changed by the batch
+     * is only notified once, after the commit.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Set<Uri> notifications = new LinkedHashSet<>();
+        ContentProviderResult[] results;
+        mBatchNotifications.set(notifications);
+        try {
+            results = mStore.applyBatch(new BookStore.Batch<ContentProviderResult[], OperationApplicationException>() {
+                @Override
+                public ContentProviderResult[] apply() throws OperationApplicationException {
+                    // Nested in the batch of the SQLite store, for the other tables otherwise
+                    database.beginTransaction();
+                    try {
+                        ContentProviderResult[] results = BookProvider.super.applyBatch(operations);
+                        database.setTransactionSuccessful();
+                        return results;
+                    } finally {
+                        database.endTransaction();
+                    }
+                }
+            });
+        } finally {
+            mBatchNotifications.remove();
+        }
+        for (Uri uri : notifications) {
+            dispatchChange(uri);
         }
+        return results;
+    }
 
-        // Check if the price is valid or if it's greater than or equal to 0 €
-        Integer price = values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_PRICE);
-        if (price == null || price < 0) {
-            throw new IllegalArgumentException("Book requires valid price");
+    /**
+     * Notify the observers of the given URI, or once the current batch is committed if the
+     * change is part of one.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> notifications = mBatchNotifications.get();
+        if (notifications != null) {
+            notifications.add(uri);
+        } else {
+            dispatchChange(uri);
         }
+        // The books of every location show the names, prices... of the books table, and the
+        // supplier directory is computed from it
+        if (BookContract.PATH_BOOKS.equals(uri.getPathSegments().get(0))) {
+            notifyChange(BookContract.LocationEntry.CONTENT_URI);
+            notifyChange(BookContract.SupplierEntry.CONTENT_URI);
+        }
+    }
 
-        // Check that the supplier is not null
-        String supplier = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME);
-        if (supplier == null) {
-            throw new IllegalArgumentException("Book requires a supplier");
+    /**
+     * Notify the observers of a committed change, drop the cached supplier directory and
+     * refresh the snapshot of the catalogue if the books or their stock may have changed.
+     */
+    private void dispatchChange(Uri uri) {
+        if (BookContract.PATH_SUPPLIERS.equals(uri.getPathSegments().get(0))) {
+            // Before the observers query it again
+            SupplierDirectory.invalidate();
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+        if (BookContract.PATH_LOCATIONS.equals(uri.getPathSegments().get(0))) {
+            // Every change of the books also notifies the locations, so this covers both
+            CatalogSnapshot.invalidate(getContext());
         }
+    }
 
-        // Check that the supplier phone number is not null
-        String supplierPhoneNr = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR);
-        if (supplierPhoneNr == null) {
-            throw new IllegalArgumentException("Book requires a supplier");
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case BOOKS:
+                return importBooks(uri, values);
+            case BOOKS_CHECKOUT:
+                return checkout(values);
+            case LOCATION_ID_CHECKOUT:
+                return checkout(values, Long.parseLong(uri.getPathSegments().get(1)));
+            default:
+                return super.bulkInsert(uri, values);
         }
+    }
 
+    /**
+     * Insert many books at once, e.g. from an import. Every row is validated first, the invalid
+     * rows are skipped and reported in the log, and the valid ones are inserted by the store
+     * with a single change notification. Return the number of books inserted.
+     */
+    private int importBooks(Uri uri, ContentValues[] rows) {
+        BookValidator.Report report = new BookValidator.Report();
+        int rowsInserted = mStore.insertAll(rows, isCallerSyncAdapter(uri), report);
+        if (report.size() != 0) {
+            Log.w(LOG_TAG, "Import of " + rows.length + " books: " + report);
+        }
+        if (rowsInserted != 0) {
+            notifyChange(uri);
+        }
+        return rowsInserted;
+    }
 
-        // Get writable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+    /**
+     * Sell the line items of a cart: decrement the quantity of every book in a single
+     * transaction, with a single change notification, and record the sales. If any book doesn't
+     * have enough copies left, nothing is sold. Return the number of line items sold.
+     */
+    private int checkout(ContentValues[] items) {
+        return checkout(items, BookContract.LocationEntry.DEFAULT_LOCATION_ID);
+    }
 
-        // Insert the new book with the given values
-        long id = database.insert(BookContract.BookEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+    /**
+     * Sell the line items of a cart from the stock of the given location. The sales of a store
+     * other than the default location only update its own stock rows.
+     */
+    private int checkout(ContentValues[] items, long locationId) {
+        long[] ids = new long[items.length];
+        int[] quantities = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            Long id = items[i].getAsLong(BookContract.BookEntry._ID);
+            Integer quantity = items[i].getAsInteger(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
+            if (id == null || quantity == null || quantity <= 0) {
+                throw new IllegalArgumentException("Line item requires a book and a valid quantity");
+            }
+            ids[i] = id;
+            quantities[i] = quantity;
         }
 
-        // Notify all listeners that the data has changed for the book content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (!mStore.checkout(locationId, ids, quantities)) {
+            return 0;
+        }
 
-        // Return the new URI with the ID (of the newly inserted row) appended at the end
-        return ContentUris.withAppendedId(uri, id);
+        boolean defaultLocation = locationId == BookContract.LocationEntry.DEFAULT_LOCATION_ID;
+        if (defaultLocation) {
+            notifyChange(BookContract.BookEntry.CONTENT_URI);
+        } else {
+            notifyChange(BookContract.LocationEntry.buildBooksUri(locationId));
+        }
+        notifyChange(BookContract.SaleEntry.CONTENT_URI);
+        return items.length;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Get writable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
-
         // Track the number of rows that were deleted
         int rowsDeleted;
 
+        // Deleting only turns the rows into tombstones, see SqliteBookStore
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
-                // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(BookContract.BookEntry.TABLE_NAME, selection, selectionArgs);
+                // Delete all rows that match the filters of the query parameters
+                checkNoSelection(uri, selection);
+                rowsDeleted = mStore.delete(parseFilter(uri), isCallerSyncAdapter(uri));
                 break;
             case BOOK_ID:
                 // Delete a single row given by the ID in the URI
-                selection = BookContract.BookEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(BookContract.BookEntry.TABLE_NAME, selection, selectionArgs);
+                checkNoSelection(uri, selection);
+                rowsDeleted = mStore.delete(BookStore.Filter.forBook(ContentUris.parseId(uri)), isCallerSyncAdapter(uri));
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
@@ -222,7 +987,7 @@ public class BookProvider extends ContentProvider {
         // If 1 or more rows were deleted, then notify all listeners that the data at the
         // given URI has changed
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         // Return the number of rows deleted
@@ -234,93 +999,331 @@ public class BookProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
-                return updateBook(uri, contentValues, selection, selectionArgs);
-            case BOOK_ID:
-                // For the BOOK_ID code, extract out the ID from the URI,
-                // so we know which row to update. Selection will be "_id=?" and selection
-                // arguments will be a String array containing the actual ID.
-                selection = BookContract.BookEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return updateBook(uri, contentValues, selection, selectionArgs);
+                checkNoSelection(uri, selection);
+                return updateBook(uri, contentValues, parseFilter(uri));
+            case BOOK_ID: {
+                // For the BOOK_ID code, extract out the ID from the URI, so we know which row
+                // to update
+                checkNoSelection(uri, selection);
+                BookStore.Filter filter = parseFilter(uri);
+                filter.id = ContentUris.parseId(uri);
+                return updateBook(uri, contentValues, filter);
+            }
+            case BOOKS_RESTORE:
+                checkNoSelection(uri, selection);
+                return restoreBooks(uri, parseFilter(uri));
+            case BOOK_ID_RESTORE:
+                // The ID is the second to last segment, before the "restore" path
+                checkNoSelection(uri, selection);
+                return restoreBooks(uri, BookStore.Filter.forBook(Long.parseLong(uri.getPathSegments().get(1))));
+            case PURCHASE_ORDER_ID_RECEIVE:
+                return receivePurchaseOrder(Long.parseLong(uri.getPathSegments().get(1)));
+            case LOCATION_ID_BOOK_ID:
+                return updateStock(Long.parseLong(uri.getPathSegments().get(1)), ContentUris.parseId(uri), contentValues);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
     }
 
     /**
-     * Update books in the database with the given content values. Apply the changes to the rows
-     * specified in the selection and selection arguments (which could be 0 or 1 or more books).
-     * Return the number of rows that were successfully updated.
-     */
-    private int updateBook(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        // If the {@link BookEntry#COLUMN_BOOK_NAME} key is present,
-        // check that the name value is not null.
-        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_NAME)) {
-            String name = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_NAME);
-            if (name == null) {
-                throw new IllegalArgumentException("Book requires a name");
-            }
+     * Set the stock of a book at a location to the {@link BookContract.BookEntry#COLUMN_BOOK_QUANTITY}
+     * of the given values. Return the number of books updated.
+     */
+    private int updateStock(long locationId, long bookId, ContentValues values) {
+        Integer quantity = values == null ? null : values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
+        if (quantity == null || quantity < 0) {
+            throw new IllegalArgumentException("Stock requires a valid quantity");
         }
-        // If the {@link BookEntry#COLUMN_BOOK_AUTHOR} key is present,
-        // check that the author value is not null.
-        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_AUTHOR)) {
-            String author = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_AUTHOR);
-            if (author == null) {
-                throw new IllegalArgumentException("Book requires an author");
-            }
+        if (locationId == BookContract.LocationEntry.DEFAULT_LOCATION_ID) {
+            // The stock of the default location is the quantity of the book
+            ContentValues quantityValues = new ContentValues();
+            quantityValues.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, quantity);
+            return update(ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, bookId), quantityValues, null, null);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        if (!LocationStock.exists(database, locationId)) {
+            throw new IllegalArgumentException("Unknown location " + locationId);
+        }
+        if (!LocationStock.setStock(database, locationId, bookId, quantity)) {
+            return 0;
+        }
+        notifyChange(BookContract.LocationEntry.buildBooksUri(locationId));
+        return 1;
+    }
+
+    /**
+     * Insert a location. Return the content URI of the new location.
+     */
+    private Uri insertLocation(Uri uri, ContentValues values) {
+        String name = values.getAsString(BookContract.LocationEntry.COLUMN_LOCATION_NAME);
+        if (name == null || TextUtils.getTrimmedLength(name) == 0) {
+            throw new IllegalArgumentException("Location requires a name");
+        }
+        Integer kind = values.getAsInteger(BookContract.LocationEntry.COLUMN_LOCATION_KIND);
+        if (kind != null && kind != BookContract.LocationEntry.KIND_STORE && kind != BookContract.LocationEntry.KIND_WAREHOUSE) {
+            throw new IllegalArgumentException("Location requires a valid kind");
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id = database.insert(BookContract.LocationEntry.TABLE_NAME, null, values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
         }
+        notifyChange(uri);
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Bring back the soft-deleted books that match the filter, as long as they haven't been
+     * purged by {@link BookCompactor} yet. Return the number of rows that were restored.
+     */
+    private int restoreBooks(Uri uri, BookStore.Filter filter) {
+        int rowsRestored = mStore.restore(filter, isCallerSyncAdapter(uri));
 
-        // If the {@link BookEntry#COLUMN_BOOK_QUANTITY} key is present,
-        // check that the quantity value is not null.
-        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_QUANTITY)) {
-            Integer quantity = values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
-            if (quantity == null) {
-                throw new IllegalArgumentException("Book requires a quantity");
+        // The restored rows show up again in the books list, so notify its listeners
+        if (rowsRestored != 0) {
+            notifyChange(BookContract.BookEntry.CONTENT_URI);
+        }
+        return rowsRestored;
+    }
+
+    /**
+     * Check if the URI was called by the sync engine, see
+     * {@link BookContract.BookEntry#QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER}.
+     */
+    private static boolean isCallerSyncAdapter(Uri uri) {
+        return Boolean.parseBoolean(uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER));
+    }
+
+    /**
+     * Read the {@link BookContract.BookEntry#QUERY_PARAMETER_AT} query parameter of the price
+     * history URI. Return null if it is missing, for the whole history.
+     */
+    private static Long parseAt(Uri uri) {
+        String at = uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_AT);
+        if (TextUtils.isEmpty(at)) {
+            return null;
+        }
+        try {
+            return Long.parseLong(at);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid time " + uri);
+        }
+    }
+
+    /**
+     * Read the {@link BookContract.BookEntry#QUERY_PARAMETER_LIMIT} query parameter of the books
+     * URIs, or the given default if it's missing.
+     */
+    private static int parseLimit(Uri uri, int defaultLimit) {
+        String limit = uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_LIMIT);
+        if (TextUtils.isEmpty(limit)) {
+            return defaultLimit;
+        }
+        try {
+            int value = Integer.parseInt(limit);
+            if (value <= 0) {
+                throw new IllegalArgumentException("Limit must be positive " + uri);
             }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit " + uri);
         }
+    }
 
-        // If the {@link BookEntry#COLUMN_BOOK_PRICE} key is present,
-        // check that the price value is not null.
-        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_PRICE)) {
-            Integer price = values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_PRICE);
-            if (price == null) {
-                throw new IllegalArgumentException("Book requires a price");
+    /**
+     * Read the {@link BookContract.BookEntry#QUERY_PARAMETER_SINCE} query parameter of the change
+     * feed URI (0 if it's missing).
+     */
+    private static long parseSince(Uri uri) {
+        String since = uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_SINCE);
+        if (TextUtils.isEmpty(since)) {
+            return 0;
+        }
+        try {
+            long value = Long.parseLong(since);
+            if (value < 0) {
+                throw new IllegalArgumentException("Change sequence can't be negative " + uri);
             }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid change sequence " + uri);
+        }
+    }
+
+    /**
+     * Read the {@link BookContract.SaleEntry#QUERY_PARAMETER_PERIOD} query parameter of the
+     * sales report URI. Return true for weekly periods.
+     */
+    private static boolean parseWeekly(Uri uri) {
+        String period = uri.getQueryParameter(BookContract.SaleEntry.QUERY_PARAMETER_PERIOD);
+        if (period == null || BookContract.SaleEntry.PERIOD_DAILY.equals(period)) {
+            return false;
+        }
+        if (BookContract.SaleEntry.PERIOD_WEEKLY.equals(period)) {
+            return true;
+        }
+        throw new IllegalArgumentException("Invalid report period " + uri);
+    }
+
+    /**
+     * Read the {@link BookContract.SaleEntry#QUERY_PARAMETER_GROUP_BY} query parameter of the
+     * sales report URI. Return the column of the rollup tables to group the sales by.
+     */
+    private static String parseGroupColumn(Uri uri) {
+        String groupBy = uri.getQueryParameter(BookContract.SaleEntry.QUERY_PARAMETER_GROUP_BY);
+        if (groupBy == null || BookContract.SaleEntry.GROUP_BY_TITLE.equals(groupBy)) {
+            return BookContract.BookEntry.COLUMN_BOOK_NAME;
+        }
+        if (BookContract.SaleEntry.GROUP_BY_AUTHOR.equals(groupBy)) {
+            return BookContract.BookEntry.COLUMN_BOOK_AUTHOR;
+        }
+        if (BookContract.SaleEntry.GROUP_BY_SUPPLIER.equals(groupBy)) {
+            return BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME;
         }
+        throw new IllegalArgumentException("Invalid report grouping " + uri);
+    }
 
-        // If the {@link BookEntry#COLUMN_BOOK_SUPPLIER_NAME} key is present,
-        // check that the supplier value is not null.
-        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME)) {
-            String supplier = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME);
-            if (supplier == null) {
-                throw new IllegalArgumentException("Book requires a supplier");
+    /**
+     * Read a time query parameter, in milliseconds since the epoch. Return null if it's missing.
+     */
+    private static Long parseTime(Uri uri, String parameter) {
+        String value = uri.getQueryParameter(parameter);
+        if (TextUtils.isEmpty(value)) {
+            return null;
+        }
+        try {
+            long time = Long.parseLong(value);
+            if (time < 0) {
+                throw new IllegalArgumentException("Invalid " + parameter + " " + uri);
             }
+            return time;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + parameter + " " + uri);
+        }
+    }
+
+    /**
+     * Read the filters given as query parameters of the books URIs.
+     */
+    private static BookStore.Filter parseFilter(Uri uri) {
+        BookStore.Filter filter = new BookStore.Filter();
+        filter.minPrice = parsePrice(uri, BookContract.BookEntry.QUERY_PARAMETER_MIN_PRICE);
+        filter.maxPrice = parsePrice(uri, BookContract.BookEntry.QUERY_PARAMETER_MAX_PRICE);
+        filter.minQuantity = parseQuantity(uri, BookContract.BookEntry.QUERY_PARAMETER_MIN_QUANTITY);
+        filter.maxQuantity = parseQuantity(uri, BookContract.BookEntry.QUERY_PARAMETER_MAX_QUANTITY);
+        filter.author = uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_AUTHOR);
+        filter.supplier = uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_SUPPLIER);
+        filter.globalId = uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_GLOBAL_ID);
+        String dirty = uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_DIRTY);
+        if (dirty != null) {
+            filter.dirty = Boolean.parseBoolean(dirty);
         }
+        filter.changeSeq = parseId(uri, BookContract.BookEntry.QUERY_PARAMETER_CHANGE_SEQ);
+        return filter;
+    }
 
-        // If the {@link BookEntry#COLUMN_BOOK_SUPPLIER_PHONE_NR} key is present,
-        // check that the supplier phone number value is not null.
-        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR)) {
-            String supplierPhoneNr = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR);
-            if (supplierPhoneNr == null) {
-                throw new IllegalArgumentException("Book requires a supplier phone number");
+    /**
+     * Read a query parameter holding an ID or a change sequence, which must be an integer
+     * greater than or equal to 0. Return null if it's missing.
+     */
+    private static Long parseId(Uri uri, String parameter) {
+        String value = uri.getQueryParameter(parameter);
+        if (value == null) {
+            return null;
+        }
+        try {
+            long id = Long.parseLong(value);
+            if (id < 0) {
+                throw new IllegalArgumentException("Invalid " + parameter + " " + uri);
             }
+            return id;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + parameter + " " + uri);
         }
+    }
 
-        // If there are no values to update, then don't try to update the database
-        if (values.size() == 0) {
-            return 0;
+    /**
+     * Query the store in the sort order given by the caller: a single column, optionally
+     * followed by ASC or DESC.
+     */
+    private Cursor queryStore(String[] projection, BookStore.Filter filter, String sortOrder, int limit) {
+        if (TextUtils.isEmpty(sortOrder)) {
+            return mStore.query(projection, filter, null, false, limit);
+        }
+        Matcher matcher = SORT_ORDER.matcher(sortOrder);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Sort order must be a single column: " + sortOrder);
         }
+        return mStore.query(projection, filter, matcher.group(1), "DESC".equalsIgnoreCase(matcher.group(2)), limit);
+    }
 
-        // Otherwise, get writable database to update the data
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+    /**
+     * Reject the selections given to the books URIs, which take their filters as query
+     * parameters.
+     */
+    private static void checkNoSelection(Uri uri, String selection) {
+        if (!TextUtils.isEmpty(selection)) {
+            throw new IllegalArgumentException("Selection not supported for " + uri + ", use the query parameters");
+        }
+    }
+
+    /**
+     * Read a price query parameter, which must be a number greater than or equal to 0.
+     * Return null if it's missing.
+     */
+    private static Double parsePrice(Uri uri, String parameter) {
+        String value = uri.getQueryParameter(parameter);
+        if (value == null) {
+            return null;
+        }
+        try {
+            double price = Double.parseDouble(value);
+            if (price < 0 || Double.isNaN(price)) {
+                throw new IllegalArgumentException("Invalid " + parameter + " " + uri);
+            }
+            return price;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + parameter + " " + uri);
+        }
+    }
 
+    /**
+     * Read a quantity query parameter, which must be an integer greater than or equal to 0.
+     * Return null if it's missing.
+     */
+    private static Integer parseQuantity(Uri uri, String parameter) {
+        String value = uri.getQueryParameter(parameter);
+        if (value == null) {
+            return null;
+        }
+        try {
+            int quantity = Integer.parseInt(value);
+            if (quantity < 0) {
+                throw new IllegalArgumentException("Invalid " + parameter + " " + uri);
+            }
+            return quantity;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + parameter + " " + uri);
+        }
+    }
+
+    /**
+     * Update books in the database with the given content values. Apply the changes to the rows
+     * matching the filter (which could be 0 or 1 or more books). The sync engine also updates
+     * the tombstones. Return the number of rows that were successfully updated.
+     */
+    private int updateBook(Uri uri, ContentValues values, BookStore.Filter filter) {
         // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(BookContract.BookEntry.TABLE_NAME, values, selection, selectionArgs);
+        filter.includeDeleted = isCallerSyncAdapter(uri);
+        int rowsUpdated = mStore.update(filter, values, filter.includeDeleted);
 
         // If 1 or more rows were updated, then notify all listeners that the data at the
         // given URI has changed
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         // Return the number of rows updated
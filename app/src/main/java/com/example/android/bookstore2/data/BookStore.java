@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * Storage of the books of the catalogue, the operations of {@link BookProvider} on the books
+ * table without its URIs and notifications.
+ *
+ * {@link SqliteBookStore} is the store of the app. {@link MemoryBookStore} keeps the same books
+ * in memory, so storage engines can be compared on the same workload and the behaviour of the
+ * provider checked without SQLite. Both reject the books {@link BookValidator} rejects, hide the
+ * deleted books unless asked for them, stamp every write with a new change sequence, and apply
+ * a batch either completely or not at all.
+ */
+interface BookStore {
+
+    /**
+     * Return the active book with the given ID, in a cursor with at most one row.
+     */
+    Cursor get(long id, String[] projection);
+
+    /**
+     * Return the books matching the filter, in the given order. Books with the same value of
+     * the column sorted on stay in the order of their IDs.
+     *
+     * @param filter     Filter of the books, or null for all the active ones
+     * @param orderBy    Column the books are sorted on, or null for the order of their IDs
+     * @param descending True to sort from the largest value down
+     * @param limit      Maximum number of books returned, 0 for all of them
+     * @throws IllegalArgumentException if the store can't sort on the column
+     */
+    Cursor query(String[] projection, Filter filter, String orderBy, boolean descending, int limit);
+
+    /**
+     * Return the number of active books.
+     */
+    long count();
+
+    /**
+     * Return the quantity of an active book, or null if there is no such book.
+     */
+    Integer getQuantity(long id);
+
+    /**
+     * Insert a book. Return its ID, or -1 if the insert failed.
+     *
+     * @param callerIsSyncAdapter True for the books of the sync engine, which are checked in
+     *                            relaxed mode and aren't marked dirty
+     * @throws IllegalArgumentException if the book breaks the rules of {@link BookValidator}
+     */
+    long insert(ContentValues values, boolean callerIsSyncAdapter);
+
+    /**
+     * Insert many books at once, e.g. from an import, with a single change sequence. The rows
+     * {@link BookValidator} rejects are skipped and added to the report. Return the number of
+     * books inserted.
+     */
+    int insertAll(ContentValues[] rows, boolean callerIsSyncAdapter, BookValidator.Report report);
+
+    /**
+     * Update the books matching the filter. Return the number of books updated.
+     *
+     * @param callerIsSyncAdapter True for the writes of the sync engine, which are checked in
+     *                            relaxed mode, may set the sync bookkeeping and aren't marked dirty
+     * @throws IllegalArgumentException if the values break the rules of {@link BookValidator}
+     */
+    int update(Filter filter, ContentValues values, boolean callerIsSyncAdapter);
+
+    /**
+     * Turn the active books matching the filter into tombstones. Return the number of books
+     * deleted.
+     *
+     * @param callerIsSyncAdapter True for the deletes of the sync engine, which aren't marked dirty
+     */
+    int delete(Filter filter, boolean callerIsSyncAdapter);
+
+    /**
+     * Bring back the tombstones matching the filter. Return the number of books restored.
+     */
+    int restore(Filter filter, boolean callerIsSyncAdapter);
+
+    /**
+     * Sell copies of books from the stock of a location, all of them or none of them if any
+     * book doesn't have enough copies left. Return true if they were sold.
+     *
+     * @param locationId ID of the location, {@link BookContract.LocationEntry#DEFAULT_LOCATION_ID}
+     *                   for the quantity of the books themselves
+     * @throws IllegalArgumentException if the store doesn't keep the stock of the location
+     */
+    boolean checkout(long locationId, long[] ids, int[] quantities);
+
+    /**
+     * Add copies to the stock of books, with a single change sequence. Books that aren't
+     * active are left alone. Return the number of books restocked.
+     */
+    int restock(long[] ids, int[] quantities);
+
+    /**
+     * Merge the duplicate books of the group with the given duplicate key, or of all the groups
+     * if it is null, into the oldest book of their group, which gets their copies. The others
+     * become tombstones. Return the number of books merged away.
+     */
+    int mergeDuplicates(Long dedupKey);
+
+    /**
+     * Apply the writes made to the store by the batch, all of them or none of them if it
+     * throws. Return the result of the batch.
+     */
+    <T, E extends Exception> T applyBatch(Batch<T, E> batch) throws E;
+
+    /**
+     * Writes applied together by {@link #applyBatch}.
+     */
+    interface Batch<T, E extends Exception> {
+        T apply() throws E;
+    }
+
+    /**
+     * Filters of the books read or written: the ones the books URIs take as query parameters,
+     * and the bookkeeping of the sync engine. A null field doesn't filter anything, and the
+     * filters given together are combined.
+     */
+    final class Filter {
+        Long id;
+        Double minPrice;
+        Double maxPrice;
+        Integer minQuantity;
+        Integer maxQuantity;
+        String author;
+        String supplier;
+        String globalId;
+        Boolean dirty;
+
+        /**
+         * Only the books whose change sequence is greater than this one...
+         */
+        Long changedAfter;
+
+        /**
+         * ...or equal to it with a greater ID, so a reader can page through the books of a bulk
+         * write, which all get the same change sequence
+         */
+        Long changedAfterId;
+
+        /**
+         * Only the book still at this change sequence, to write it only if it didn't change
+         * since it was read
+         */
+        Long changeSeq;
+
+        /**
+         * True to read and update the tombstones too
+         */
+        boolean includeDeleted;
+
+        /**
+         * Return the filter of a single book.
+         */
+        static Filter forBook(long id) {
+            Filter filter = new Filter();
+            filter.id = id;
+            return filter;
+        }
+    }
+}
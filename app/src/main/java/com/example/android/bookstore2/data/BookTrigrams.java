@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.text.Normalizer;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Trigram index of the titles and authors of the books, behind the fuzzy search of
+ * {@link BookProvider}.
+ *
+ * Every book is indexed under the three-letter sequences of its normalised title and author.
+ * A search looks up the trigrams of the searched text in the primary key of the index, counts
+ * them per book in SQL and ranks the books by the share of the trigrams they have, so a typo
+ * only loses the few trigrams it touches and no book row is ever read in Java.
+ *
+ * An index compiles its statements once, and must be closed when the transaction is done.
+ */
+final class BookTrigrams {
+
+    private static final String TABLE_NAME = BookDbHelper.TRIGRAMS_TABLE_NAME;
+    private static final String COLUMN_TRIGRAM = BookDbHelper.COLUMN_TRIGRAM;
+    private static final String COLUMN_BOOK_ID = BookDbHelper.COLUMN_TRIGRAM_BOOK_ID;
+
+    /**
+     * Share of the trigrams of the searched text a book needs to be a match
+     */
+    private static final double MIN_SCORE = 0.4;
+
+    /**
+     * Most trigrams looked up for a single search, well under the SQLite limit of bound arguments
+     */
+    private static final int MAX_QUERY_TRIGRAMS = 200;
+
+    private final SQLiteStatement mReadBook;
+    private final SQLiteStatement mDelete;
+    private final SQLiteStatement mInsert;
+
+    BookTrigrams(SQLiteDatabase database) {
+        mReadBook = database.compileStatement("SELECT IFNULL(" + BookContract.BookEntry.COLUMN_BOOK_NAME + ", '')"
+                + " || ' ' || IFNULL(" + BookContract.BookEntry.COLUMN_BOOK_AUTHOR + ", '')"
+                + " FROM " + BookContract.BookEntry.TABLE_NAME + " WHERE " + BookContract.BookEntry._ID + "=?");
+        mDelete = database.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_BOOK_ID + "=?");
+        mInsert = database.compileStatement("INSERT OR IGNORE INTO " + TABLE_NAME + "("
+                + COLUMN_TRIGRAM + ", " + COLUMN_BOOK_ID + ") VALUES (?, ?)");
+    }
+
+    /**
+     * Index a new book under the trigrams of the given title and author.
+     */
+    void index(long bookId, String name, String author) {
+        for (String trigram : trigrams(name + " " + author)) {
+            mInsert.bindString(1, trigram);
+            mInsert.bindLong(2, bookId);
+            mInsert.executeInsert();
+        }
+    }
+
+    /**
+     * Index a book again, from the title and author it has in the database now. Must be called
+     * inside the transaction that changed them.
+     */
+    void reindex(long bookId) {
+        mDelete.bindLong(1, bookId);
+        mDelete.executeUpdateDelete();
+        mReadBook.bindLong(1, bookId);
+        String text;
+        try {
+            text = mReadBook.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            // The book isn't there anymore
+            return;
+        }
+        for (String trigram : trigrams(text)) {
+            mInsert.bindString(1, trigram);
+            mInsert.bindLong(2, bookId);
+            mInsert.executeInsert();
+        }
+    }
+
+    void close() {
+        mReadBook.close();
+        mDelete.close();
+        mInsert.close();
+    }
+
+    /**
+     * Index all the books, e.g. when the index is created. Must be called inside a transaction.
+     */
+    static void indexAll(SQLiteDatabase database) {
+        BookTrigrams trigrams = new BookTrigrams(database);
+        Cursor cursor = database.rawQuery("SELECT " + BookContract.BookEntry._ID + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_NAME + ", " + BookContract.BookEntry.COLUMN_BOOK_AUTHOR
+                + " FROM " + BookContract.BookEntry.TABLE_NAME, null);
+        try {
+            while (cursor.moveToNext()) {
+                trigrams.index(cursor.getLong(0), cursor.getString(1), cursor.getString(2));
+            }
+        } finally {
+            cursor.close();
+            trigrams.close();
+        }
+    }
+
+    /**
+     * Query the active books matching the given text, best match first.
+     *
+     * @param projection Columns of the books table to return, the score is added after them
+     */
+    static Cursor search(SQLiteDatabase database, String[] projection, String text, int limit) {
+        Set<String> trigrams = trigrams(text);
+        String[] args = new String[Math.min(trigrams.size(), MAX_QUERY_TRIGRAMS)];
+        StringBuilder placeholders = new StringBuilder();
+        int i = 0;
+        for (String trigram : trigrams) {
+            if (i == args.length) {
+                break;
+            }
+            placeholders.append(i == 0 ? "?" : ", ?");
+            args[i++] = trigram;
+        }
+        if (args.length == 0) {
+            // Nothing to search for, return an empty cursor with the right columns
+            placeholders.append("NULL");
+        }
+
+        StringBuilder columns = new StringBuilder();
+        for (String column : projection) {
+            columns.append("b.").append(column).append(", ");
+        }
+        // The matching trigrams are counted in the primary key of the index, without reading
+        // the books; only the books passing the threshold are then looked up by ID
+        int minMatches = Math.max(1, (int) Math.ceil(args.length * MIN_SCORE));
+        return database.rawQuery("SELECT " + columns
+                + "m.Matches * 1.0 / " + Math.max(1, args.length) + " AS " + BookContract.BookEntry.COLUMN_SEARCH_SCORE
+                + " FROM (SELECT " + COLUMN_BOOK_ID + ", COUNT(*) AS Matches FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_TRIGRAM + " IN (" + placeholders + ")"
+                + " GROUP BY " + COLUMN_BOOK_ID + " HAVING COUNT(*) >= " + minMatches + ") m"
+                + " JOIN " + BookContract.BookEntry.TABLE_NAME + " b ON b." + BookContract.BookEntry._ID + "=m." + COLUMN_BOOK_ID
+                + " WHERE b." + BookContract.BookEntry.COLUMN_BOOK_DELETED + "=" + BookContract.BookEntry.BOOK_ACTIVE
+                + " ORDER BY m.Matches DESC, length(b." + BookContract.BookEntry.COLUMN_BOOK_NAME + ") ASC"
+                + " LIMIT " + limit, args);
+    }
+
+    /**
+     * Return a text lower cased, without accents, with its punctuation turned into single spaces.
+     */
+    static String normalize(String text) {
+        return Normalizer.normalize(text, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}+", "")
+                .toLowerCase(Locale.ROOT)
+                .replaceAll("[^\\p{L}\\p{N}]+", " ")
+                .trim();
+    }
+
+    /**
+     * Return the trigrams of a text: it is normalised, and every word is padded with spaces so
+     * its first and last letters weigh as much as the others.
+     */
+    static Set<String> trigrams(String text) {
+        Set<String> trigrams = new LinkedHashSet<>();
+        if (text == null) {
+            return trigrams;
+        }
+        String normalized = normalize(text);
+        if (normalized.isEmpty()) {
+            return trigrams;
+        }
+        for (String word : normalized.split(" ")) {
+            String padded = "  " + word + " ";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                trigrams.add(padded.substring(i, i + 3));
+            }
+        }
+        return trigrams;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.ContentValues;
+
+/**
+ * The rules a book has to follow, shared by the editor and {@link BookProvider}.
+ *
+ * Validation never throws and doesn't allocate: every method returns a bit mask of the
+ * ERROR_* flags of the attributes that broke a rule, {@link #VALID} if there are none. Bulk
+ * imports can then check every row at full speed and report all the rejected rows at once.
+ *
+ * Writes of the sync engine are only checked in relaxed mode: the server is the authority on
+ * the books it sends, and a quantity merged from several tills may briefly drop below 0.
+ */
+public final class BookValidator {
+
+    public static final int VALID = 0;
+    public static final int ERROR_NAME = 1;
+    public static final int ERROR_AUTHOR = 1 << 1;
+    public static final int ERROR_QUANTITY = 1 << 2;
+    public static final int ERROR_PRICE = 1 << 3;
+    public static final int ERROR_SUPPLIER_NAME = 1 << 4;
+    public static final int ERROR_SUPPLIER_PHONE_NR = 1 << 5;
+
+    /**
+     * Only checked in strict mode
+     */
+    public static final int ERROR_SUPPLIER_PHONE_NR_LENGTH = 1 << 6;
+
+    /**
+     * Optional attributes, only checked when present
+     */
+    public static final int ERROR_REORDER_LEVEL = 1 << 7;
+    public static final int ERROR_REORDER_TARGET = 1 << 8;
+
+    /**
+     * Length limits of a supplier phone number, in characters
+     */
+    public static final int PHONE_NR_MIN_LENGTH = 8;
+    public static final int PHONE_NR_MAX_LENGTH = 14;
+
+    /**
+     * Largest number of digits of a quantity, so it always fits in an int
+     */
+    private static final int QUANTITY_MAX_DIGITS = 9;
+
+    private BookValidator() {
+    }
+
+    /**
+     * Validate the values of a new book: every attribute is required.
+     *
+     * @param strict False for the sync engine, see the class documentation
+     */
+    public static int validateInsert(ContentValues values, boolean strict) {
+        int errors = VALID;
+        if (!isText(values.get(BookContract.BookEntry.COLUMN_BOOK_NAME))) {
+            errors |= ERROR_NAME;
+        }
+        if (!isText(values.get(BookContract.BookEntry.COLUMN_BOOK_AUTHOR))) {
+            errors |= ERROR_AUTHOR;
+        }
+        if (!isNumber(values.get(BookContract.BookEntry.COLUMN_BOOK_PRICE), true, false)) {
+            errors |= ERROR_PRICE;
+        }
+        if (!isNumber(values.get(BookContract.BookEntry.COLUMN_BOOK_QUANTITY), false, !strict)) {
+            errors |= ERROR_QUANTITY;
+        }
+        if (!isText(values.get(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME))) {
+            errors |= ERROR_SUPPLIER_NAME;
+        }
+        errors |= validateReorder(values);
+        return errors | validatePhoneNr(values.get(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR), strict);
+    }
+
+    /**
+     * Validate the values of an update: only the attributes present are checked, but they
+     * follow the same rules as for a new book.
+     *
+     * @param strict False for the sync engine, see the class documentation
+     */
+    public static int validateUpdate(ContentValues values, boolean strict) {
+        int errors = VALID;
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_NAME)
+                && !isText(values.get(BookContract.BookEntry.COLUMN_BOOK_NAME))) {
+            errors |= ERROR_NAME;
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_AUTHOR)
+                && !isText(values.get(BookContract.BookEntry.COLUMN_BOOK_AUTHOR))) {
+            errors |= ERROR_AUTHOR;
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_PRICE)
+                && !isNumber(values.get(BookContract.BookEntry.COLUMN_BOOK_PRICE), true, false)) {
+            errors |= ERROR_PRICE;
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_QUANTITY)
+                && !isNumber(values.get(BookContract.BookEntry.COLUMN_BOOK_QUANTITY), false, !strict)) {
+            errors |= ERROR_QUANTITY;
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME)
+                && !isText(values.get(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME))) {
+            errors |= ERROR_SUPPLIER_NAME;
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR)) {
+            errors |= validatePhoneNr(values.get(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR), strict);
+        }
+        return errors | validateReorder(values);
+    }
+
+    /**
+     * The reorder thresholds are optional, with a default, but must be whole numbers >= 0.
+     */
+    private static int validateReorder(ContentValues values) {
+        int errors = VALID;
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_REORDER_LEVEL)
+                && !isNumber(values.get(BookContract.BookEntry.COLUMN_BOOK_REORDER_LEVEL), false, false)) {
+            errors |= ERROR_REORDER_LEVEL;
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_REORDER_TARGET)
+                && !isNumber(values.get(BookContract.BookEntry.COLUMN_BOOK_REORDER_TARGET), false, false)) {
+            errors |= ERROR_REORDER_TARGET;
+        }
+        return errors;
+    }
+
+    /**
+     * Validate the text typed in the fields of the editor, already trimmed.
+     */
+    public static int validateFields(CharSequence name, CharSequence author, CharSequence price,
+                                     CharSequence quantity, CharSequence supplierName,
+                                     CharSequence supplierPhoneNr) {
+        int errors = VALID;
+        if (!isText(name)) {
+            errors |= ERROR_NAME;
+        }
+        if (!isText(author)) {
+            errors |= ERROR_AUTHOR;
+        }
+        if (!isNumber(price, true, false)) {
+            errors |= ERROR_PRICE;
+        }
+        if (!isNumber(quantity, false, false)) {
+            errors |= ERROR_QUANTITY;
+        }
+        if (!isText(supplierName)) {
+            errors |= ERROR_SUPPLIER_NAME;
+        }
+        return errors | validatePhoneNr(supplierPhoneNr, true);
+    }
+
+    /**
+     * Validate all the rows of a bulk import, and write the rejected ones to the report.
+     * Return the number of valid rows.
+     */
+    public static int validateAll(ContentValues[] rows, boolean strict, Report report) {
+        report.clear();
+        for (int row = 0; row < rows.length; row++) {
+            int errors = validateInsert(rows[row], strict);
+            if (errors != VALID) {
+                report.add(row, errors);
+            }
+        }
+        return rows.length - report.size();
+    }
+
+    /**
+     * Return the first error of the mask, in the order of the editor fields, or {@link #VALID}.
+     */
+    public static int firstError(int errors) {
+        return Integer.lowestOneBit(errors);
+    }
+
+    private static int validatePhoneNr(Object value, boolean strict) {
+        if (!isText(value)) {
+            return ERROR_SUPPLIER_PHONE_NR;
+        }
+        if (strict) {
+            int length = ((CharSequence) value).length();
+            if (length < PHONE_NR_MIN_LENGTH || length > PHONE_NR_MAX_LENGTH) {
+                return ERROR_SUPPLIER_PHONE_NR_LENGTH;
+            }
+        }
+        return VALID;
+    }
+
+    /**
+     * Check that the value is a non empty text.
+     */
+    private static boolean isText(Object value) {
+        return value instanceof CharSequence && ((CharSequence) value).length() > 0;
+    }
+
+    /**
+     * Check that the value is a number, either given as a number or as text as SQLite would
+     * convert it.
+     */
+    private static boolean isNumber(Object value, boolean decimal, boolean allowNegative) {
+        if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                return false;
+            }
+            if (!decimal && (value instanceof Float || value instanceof Double) && number != Math.floor(number)) {
+                return false;
+            }
+            return allowNegative || number >= 0;
+        }
+        if (!(value instanceof CharSequence)) {
+            return false;
+        }
+        // Parse the text by hand, so an invalid number costs neither an exception nor garbage
+        CharSequence text = (CharSequence) value;
+        int start = 0;
+        if (text.length() > 0 && text.charAt(0) == '-') {
+            if (!allowNegative) {
+                return false;
+            }
+            start = 1;
+        }
+        int digits = 0;
+        boolean point = false;
+        for (int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            } else if (c == '.' && decimal && !point) {
+                point = true;
+            } else {
+                return false;
+            }
+        }
+        return digits > 0 && (decimal || digits <= QUANTITY_MAX_DIGITS);
+    }
+
+    /**
+     * Rows rejected by a bulk validation, with the errors of each one. A report keeps its
+     * arrays between validations, so it only allocates when it has to grow.
+     */
+    public static final class Report {
+
+        private int[] mRows = new int[16];
+        private int[] mErrors = new int[16];
+        private int mSize;
+
+        void add(int row, int errors) {
+            if (mSize == mRows.length) {
+                int[] rows = new int[mSize * 2];
+                int[] rowErrors = new int[mSize * 2];
+                System.arraycopy(mRows, 0, rows, 0, mSize);
+                System.arraycopy(mErrors, 0, rowErrors, 0, mSize);
+                mRows = rows;
+                mErrors = rowErrors;
+            }
+            mRows[mSize] = row;
+            mErrors[mSize] = errors;
+            mSize++;
+        }
+
+        public void clear() {
+            mSize = 0;
+        }
+
+        /**
+         * Return the number of rejected rows.
+         */
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * Return the index in the bulk of the given rejected row.
+         */
+        public int getRow(int index) {
+            checkIndex(index);
+            return mRows[index];
+        }
+
+        /**
+         * Return the error mask of the given rejected row.
+         */
+        public int getErrors(int index) {
+            checkIndex(index);
+            return mErrors[index];
+        }
+
+        /**
+         * Return whether the given row of the bulk was rejected. The rows are reported in
+         * order, so this is a binary search.
+         */
+        public boolean isRejected(int row) {
+            int low = 0;
+            int high = mSize - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (mRows[middle] < row) {
+                    low = middle + 1;
+                } else if (mRows[middle] > row) {
+                    high = middle - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("Rejected row " + index + " of " + mSize);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder().append(mSize).append(" rejected rows");
+            for (int i = 0; i < mSize && i < 10; i++) {
+                builder.append(i == 0 ? ": " : ", ").append(mRows[i])
+                        .append("=0x").append(Integer.toHexString(mErrors[i]));
+            }
+            return builder.append(mSize > 10 ? ", ..." : "").toString();
+        }
+    }
+}
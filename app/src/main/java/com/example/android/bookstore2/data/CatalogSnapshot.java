@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compact binary snapshot of the first screenful of the catalogue, so the list can be shown as
+ * soon as the app starts, before the first live query returns.
+ *
+ * The snapshot holds the first rows of the books of one location, in the columns of
+ * {@link BookContract.BookEntry#PROJECTION_LIST}. It is rewritten in the background shortly
+ * after every commit that changes the books or their stock, and memory-mapped when read.
+ *
+ * The snapshot is only a preview: as soon as the live query returns, its rows replace the
+ * snapshot's, and the snapshot is rewritten from them if the two differ. See
+ * {@link #reconcile(Context, long, Cursor)}.
+ */
+public final class CatalogSnapshot {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = CatalogSnapshot.class.getSimpleName();
+
+    /**
+     * Name of the snapshot file, in the app's files directory
+     */
+    private static final String FILE_NAME = "catalog-snapshot.bin";
+
+    /**
+     * Number of rows in the snapshot, more than fit on the first screen of a tablet
+     */
+    static final int ROWS = 24;
+
+    /**
+     * Marks the file as a catalogue snapshot, "BSNP"
+     */
+    private static final int MAGIC = 0x42534e50;
+
+    /**
+     * Version of the file format, changed whenever the layout of the rows changes
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Delay between a commit and the rewrite of the snapshot, so a burst of commits, e.g. a
+     * checkout, only rewrites it once
+     */
+    private static final long REFRESH_DELAY_MILLIS = 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Single background thread, so two writes never run at the same time
+     */
+    private static final ScheduledExecutorService sExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Whether a refresh is scheduled and hasn't started yet
+     */
+    private static boolean sRefreshPending;
+
+    private CatalogSnapshot() {
+    }
+
+    /**
+     * Return the snapshot of the books of the given location, in the columns of
+     * {@link BookContract.BookEntry#PROJECTION_LIST}, or null if there is no valid snapshot of
+     * that location. Only reads a few kilobytes, so it may be called on the UI thread.
+     */
+    public static Cursor read(Context context, long locationId) {
+        File file = getFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = in.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return decode(buffer, locationId);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read the catalogue snapshot", e);
+            return null;
+        }
+    }
+
+    /**
+     * Decode the rows of the snapshot, or return null if it is of another location or can't
+     * be decoded.
+     */
+    private static Cursor decode(ByteBuffer buffer, long locationId) {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION || buffer.getLong() != locationId) {
+                return null;
+            }
+            int rows = buffer.getInt();
+            if (rows < 0 || rows > ROWS) {
+                return null;
+            }
+            MatrixCursor cursor = new MatrixCursor(BookContract.BookEntry.PROJECTION_LIST, rows);
+            for (int i = 0; i < rows; i++) {
+                // In the order of the columns of PROJECTION_LIST
+                cursor.addRow(new Object[]{buffer.getLong(), getString(buffer), getString(buffer),
+                        buffer.getDouble(), buffer.getInt(), buffer.getLong()});
+            }
+            return cursor;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // Truncated or corrupt, the live query will write a new one
+            Log.w(LOG_TAG, "Invalid catalogue snapshot", e);
+            return null;
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Make the snapshot agree with the rows returned by the live query of the given location,
+     * which always win: if the first rows of the cursor differ from the snapshot, or there is no
+     * snapshot of that location yet, the snapshot is rewritten from them in the background.
+     * The position of the cursor is left untouched.
+     */
+    public static void reconcile(Context context, long locationId, Cursor cursor) {
+        final File file = getFile(context);
+        final byte[] bytes = encode(locationId, cursor);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!Arrays.equals(bytes, readBytes(file))) {
+                    write(file, bytes);
+                }
+            }
+        });
+    }
+
+    /**
+     * Rewrite the snapshot a moment after a commit that may have changed it. Called by
+     * {@link BookProvider} once the change is committed.
+     */
+    static void invalidate(Context context) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (CatalogSnapshot.class) {
+            if (sRefreshPending) {
+                return;
+            }
+            sRefreshPending = true;
+        }
+        sExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CatalogSnapshot.class) {
+                    sRefreshPending = false;
+                }
+                refresh(appContext);
+            }
+        }, REFRESH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Rewrite the snapshot of the location it holds from the database. Nothing to do if there
+     * is no snapshot: the catalogue writes the first one when it is shown.
+     */
+    private static void refresh(Context context) {
+        File file = getFile(context);
+        byte[] current = readBytes(file);
+        if (current == null || current.length < 16) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.wrap(current);
+        if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+            file.delete();
+            return;
+        }
+        long locationId = header.getLong();
+        Cursor cursor = context.getContentResolver().query(BookContract.LocationEntry.buildBooksUri(locationId),
+                BookContract.BookEntry.PROJECTION_LIST, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            byte[] bytes = encode(locationId, cursor);
+            if (!Arrays.equals(bytes, current)) {
+                write(file, bytes);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Encode the first rows of the cursor, in the columns of
+     * {@link BookContract.BookEntry#PROJECTION_LIST}. The position of the cursor is left untouched.
+     */
+    private static byte[] encode(long locationId, Cursor cursor) {
+        BookCursorReader reader = new BookCursorReader(cursor);
+        int rows = Math.min(cursor.getCount(), ROWS);
+        int position = cursor.getPosition();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * (rows + 1));
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(locationId);
+            out.writeInt(rows);
+            for (int i = 0; i < rows && cursor.moveToPosition(i); i++) {
+                Book book = reader.readBook(cursor);
+                out.writeLong(book.getId());
+                writeString(out, book.getName());
+                writeString(out, book.getAuthor());
+                out.writeDouble(book.getPrice());
+                out.writeInt(book.getQuantity());
+                out.writeLong(book.getCoverUpdatedAt());
+            }
+        } catch (IOException e) {
+            // Can't happen when writing to memory
+            throw new IllegalStateException(e);
+        } finally {
+            cursor.moveToPosition(position);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value == null ? "" : value).getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Return the content of the snapshot file, or null if there is none.
+     */
+    private static byte[] readBytes(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                byte[] bytes = new byte[(int) in.length()];
+                in.readFully(bytes);
+                return bytes;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replace the snapshot file with an atomic rename, so a reader never maps a file that is
+     * only half written.
+     */
+    private static void write(File file, byte[] bytes) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(bytes);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to write the catalogue snapshot", e);
+            tempFile.delete();
+        }
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A maintenance task of the inventory, run in the background by {@link InventoryJobs}.
+ *
+ * A job runs in chunks, each one short enough not to hold the write lock for long while the till
+ * is selling books. The position reached is kept in its {@link Progress} after every chunk, so a
+ * job stopped halfway, e.g. because the device left idle mode, resumes from there the next time.
+ */
+abstract class InventoryJob {
+
+    /**
+     * ID of the job with the JobScheduler, unique in the app
+     */
+    final int id;
+
+    /**
+     * Name of the job, in the log and the metrics
+     */
+    final String name;
+
+    /**
+     * Time between two runs of the job
+     */
+    final long intervalMillis;
+
+    /**
+     * Whether the job only runs while the device is idle, i.e. no one is selling at the till
+     */
+    final boolean requiresIdle;
+
+    /**
+     * Whether the job only runs while the device is charging
+     */
+    final boolean requiresCharging;
+
+    /**
+     * Whether the job may need as much free storage as the size of the database, e.g. for a
+     * VACUUM. It doesn't run while the storage is that low.
+     */
+    final boolean requiresStorage;
+
+    InventoryJob(int id, String name, long intervalMillis, boolean requiresIdle, boolean requiresCharging,
+                 boolean requiresStorage) {
+        this.id = id;
+        this.name = name;
+        this.intervalMillis = intervalMillis;
+        this.requiresIdle = requiresIdle;
+        this.requiresCharging = requiresCharging;
+        this.requiresStorage = requiresStorage;
+    }
+
+    /**
+     * Run the next chunk of the job, from the position kept in the progress, and move the
+     * progress past it. Set {@link Progress#done} once nothing is left to do.
+     */
+    abstract void runChunk(Context context, SQLiteDatabase database, Progress progress);
+
+    /**
+     * Position reached by a job in its current run.
+     */
+    static final class Progress {
+
+        /**
+         * Step the job is at, for jobs made of several steps
+         */
+        int phase;
+
+        /**
+         * Position in the current step, e.g. the last ID processed
+         */
+        long checkpoint;
+
+        /**
+         * Number of items processed so far
+         */
+        long items;
+
+        /**
+         * Whether the run is complete
+         */
+        boolean done;
+    }
+}
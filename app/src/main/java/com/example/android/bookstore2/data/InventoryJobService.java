@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+import android.util.SparseArray;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the maintenance jobs of {@link InventoryJobs} when the JobScheduler starts them, and
+ * stops them at the end of the current chunk when their constraints stop being met.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class InventoryJobService extends JobService {
+
+    /**
+     * Stop signal of each running job, by job ID
+     */
+    private final SparseArray<AtomicBoolean> mRunningJobs = new SparseArray<>();
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final InventoryJob job = InventoryJobs.findJob(params.getJobId());
+        if (job == null) {
+            return false;
+        }
+        final AtomicBoolean stopped = new AtomicBoolean();
+        synchronized (mRunningJobs) {
+            mRunningJobs.put(job.id, stopped);
+        }
+        InventoryJobs.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean done = InventoryJobs.run(getApplicationContext(), job, stopped);
+                synchronized (mRunningJobs) {
+                    mRunningJobs.remove(job.id);
+                }
+                // A job stopped for low storage is tried again later. One stopped by the
+                // scheduler is rescheduled by onStopJob.
+                if (!stopped.get()) {
+                    jobFinished(params, !done);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        synchronized (mRunningJobs) {
+            AtomicBoolean stopped = mRunningJobs.get(params.getJobId());
+            if (stopped != null) {
+                stopped.set(true);
+            }
+        }
+        // Resume from the saved progress next time
+        return true;
+    }
+}
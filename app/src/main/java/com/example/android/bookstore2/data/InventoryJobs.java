@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.StatFs;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Schedules and runs the maintenance jobs of the inventory, such as purging the tombstones of
+ * deleted books and refreshing the statistics of the query planner.
+ *
+ * From Lollipop on, the jobs are scheduled with the JobScheduler, under the constraints each job
+ * asks for (device idle, charging), and run by {@link InventoryJobService}. On older versions
+ * they run when the till leaves the screen, once their interval has passed.
+ *
+ * Either way, the jobs run one at a time on a single background thread, one chunk after the
+ * other with a short pause in between so the writes of the till get the lock. Their progress is
+ * saved after every chunk, and the timing of their last run is kept for
+ * {@link BookContract.DiagnosticsEntry#CONTENT_JOBS_URI}.
+ */
+public final class InventoryJobs {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = InventoryJobs.class.getSimpleName();
+
+    /**
+     * All the jobs of the app
+     */
+    private static final InventoryJob[] JOBS = {BookCompactor.JOB, BookMaintenance.JOB};
+
+    /**
+     * Pause between two chunks of a job, so the writes waiting for the lock get their turn
+     */
+    private static final long CHUNK_PAUSE_MILLIS = 50;
+
+    /**
+     * Free storage left to the rest of the device by the jobs that need room, on top of the
+     * size of the database
+     */
+    private static final long STORAGE_MARGIN_BYTES = 50L * 1024 * 1024;
+
+    private static final String PREFERENCES_NAME = "inventory_jobs";
+    private static final String PREF_PHASE = "_phase";
+    private static final String PREF_CHECKPOINT = "_checkpoint";
+    private static final String PREF_ITEMS = "_items";
+    private static final String PREF_DONE = "_done";
+    private static final String PREF_LAST_RUN_AT = "_last_run_at";
+    private static final String PREF_DURATION = "_duration";
+    private static final String PREF_CHUNKS = "_chunks";
+    private static final String PREF_FINISHED_AT = "_finished_at";
+
+    /**
+     * Single background thread, so two jobs never run at the same time
+     */
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private InventoryJobs() {
+    }
+
+    /**
+     * Make sure the jobs are scheduled. Called when the till leaves the screen, which is also
+     * when the jobs run on versions without the JobScheduler.
+     */
+    public static void schedule(Context context) {
+        Context appContext = context.getApplicationContext();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            scheduleJobs(appContext);
+        } else {
+            runDueJobs(appContext);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJobs(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        Set<Integer> pendingIds = new HashSet<>();
+        for (JobInfo pendingJob : scheduler.getAllPendingJobs()) {
+            pendingIds.add(pendingJob.getId());
+        }
+        ComponentName service = new ComponentName(context, InventoryJobService.class);
+        for (InventoryJob job : JOBS) {
+            if (pendingIds.contains(job.id)) {
+                continue;
+            }
+            scheduler.schedule(new JobInfo.Builder(job.id, service)
+                    .setPeriodic(job.intervalMillis)
+                    .setRequiresDeviceIdle(job.requiresIdle)
+                    .setRequiresCharging(job.requiresCharging)
+                    .setPersisted(true)
+                    .build());
+        }
+    }
+
+    /**
+     * Run the jobs whose interval has passed, in the background. The caller tells the device
+     * is idle; charging is checked here.
+     */
+    private static void runDueJobs(final Context context) {
+        final SharedPreferences preferences = getPreferences(context);
+        final boolean charging = isCharging(context);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (InventoryJob job : JOBS) {
+                    boolean due = now - preferences.getLong(job.name + PREF_FINISHED_AT, 0) >= job.intervalMillis;
+                    if (due && (charging || !job.requiresCharging)) {
+                        InventoryJobs.run(context, job, new AtomicBoolean());
+                    }
+                }
+            }
+        });
+    }
+
+    static boolean isCharging(Context context) {
+        // The battery broadcast is sticky, no receiver needed to read the last one
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Return the job with the given ID, or null if there is none, e.g. a job of an older version
+     * of the app.
+     */
+    static InventoryJob findJob(int id) {
+        for (InventoryJob job : JOBS) {
+            if (job.id == id) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run a task on the thread of the jobs.
+     */
+    static void execute(Runnable task) {
+        sExecutor.execute(task);
+    }
+
+    /**
+     * Run a job chunk by chunk, from where its last run stopped, until it is complete, or it is
+     * told to stop, or the storage gets too low for it. Return whether it is complete.
+     * Must be called on the thread of the jobs.
+     */
+    static boolean run(Context context, InventoryJob job, AtomicBoolean stopped) {
+        SharedPreferences preferences = getPreferences(context);
+        InventoryJob.Progress progress = new InventoryJob.Progress();
+        if (!preferences.getBoolean(job.name + PREF_DONE, true)) {
+            // Resume the run stopped halfway
+            progress.phase = preferences.getInt(job.name + PREF_PHASE, 0);
+            progress.checkpoint = preferences.getLong(job.name + PREF_CHECKPOINT, 0);
+            progress.items = preferences.getLong(job.name + PREF_ITEMS, 0);
+        }
+
+        SQLiteDatabase database = BookDbHelper.getInstance(context).getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+        int chunks = 0;
+        while (!progress.done && !stopped.get()) {
+            if (job.requiresStorage && !hasRoomForDatabase(context)) {
+                Log.w(LOG_TAG, "Storage too low for " + job.name + ", stopped");
+                break;
+            }
+            job.runChunk(context, database, progress);
+            chunks++;
+            saveProgress(preferences, job, progress);
+            if (!progress.done) {
+                SystemClock.sleep(CHUNK_PAUSE_MILLIS);
+            }
+        }
+
+        long duration = SystemClock.elapsedRealtime() - start;
+        SharedPreferences.Editor editor = preferences.edit()
+                .putLong(job.name + PREF_LAST_RUN_AT, System.currentTimeMillis())
+                .putLong(job.name + PREF_DURATION, duration)
+                .putInt(job.name + PREF_CHUNKS, chunks);
+        if (progress.done) {
+            editor.putLong(job.name + PREF_FINISHED_AT, System.currentTimeMillis());
+        }
+        editor.apply();
+        Log.v(LOG_TAG, job.name + ": " + chunks + " chunks in " + duration + "ms, " + progress.items
+                + " items so far" + (progress.done ? ", complete" : ", to be resumed"));
+        return progress.done;
+    }
+
+    private static void saveProgress(SharedPreferences preferences, InventoryJob job, InventoryJob.Progress progress) {
+        preferences.edit()
+                .putInt(job.name + PREF_PHASE, progress.phase)
+                .putLong(job.name + PREF_CHECKPOINT, progress.checkpoint)
+                .putLong(job.name + PREF_ITEMS, progress.items)
+                .putBoolean(job.name + PREF_DONE, progress.done)
+                .apply();
+    }
+
+    /**
+     * Check that the storage of the database has room for a copy of it, and some to spare.
+     */
+    @SuppressWarnings("deprecation")
+    private static boolean hasRoomForDatabase(Context context) {
+        File databaseFile = context.getDatabasePath(BookDbHelper.DATABASE_NAME);
+        StatFs statFs = new StatFs(databaseFile.getParent());
+        long availableBytes = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                ? statFs.getAvailableBytes()
+                : (long) statFs.getAvailableBlocks() * statFs.getBlockSize();
+        return availableBytes - STORAGE_MARGIN_BYTES >= databaseFile.length();
+    }
+
+    /**
+     * Return the progress and the timing of the last run of every job, in the columns of
+     * {@link BookContract.DiagnosticsEntry}.
+     */
+    static Cursor queryMetrics(Context context) {
+        SharedPreferences preferences = getPreferences(context);
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                BookContract.DiagnosticsEntry.COLUMN_JOB_NAME,
+                BookContract.DiagnosticsEntry.COLUMN_JOB_PHASE,
+                BookContract.DiagnosticsEntry.COLUMN_JOB_CHECKPOINT,
+                BookContract.DiagnosticsEntry.COLUMN_JOB_ITEMS,
+                BookContract.DiagnosticsEntry.COLUMN_JOB_COMPLETE,
+                BookContract.DiagnosticsEntry.COLUMN_JOB_LAST_RUN_AT,
+                BookContract.DiagnosticsEntry.COLUMN_JOB_DURATION,
+                BookContract.DiagnosticsEntry.COLUMN_JOB_CHUNKS,
+                BookContract.DiagnosticsEntry.COLUMN_JOB_FINISHED_AT});
+        for (InventoryJob job : JOBS) {
+            cursor.addRow(new Object[]{job.name,
+                    preferences.getInt(job.name + PREF_PHASE, 0),
+                    preferences.getLong(job.name + PREF_CHECKPOINT, 0),
+                    preferences.getLong(job.name + PREF_ITEMS, 0),
+                    preferences.getBoolean(job.name + PREF_DONE, true) ? 1 : 0,
+                    preferences.getLong(job.name + PREF_LAST_RUN_AT, 0),
+                    preferences.getLong(job.name + PREF_DURATION, 0),
+                    preferences.getInt(job.name + PREF_CHUNKS, 0),
+                    preferences.getLong(job.name + PREF_FINISHED_AT, 0)});
+        }
+        return cursor;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+/**
+ * Reads and writes the stock of the books at the locations other than the
+ * {@link BookContract.LocationEntry#DEFAULT_LOCATION_ID default one}, whose stock is the quantity
+ * of the books table.
+ *
+ * Every statement is keyed on the location first, which is also the start of the primary key of
+ * the stock table, so a till only ever reads and writes the stock rows of its own store.
+ */
+final class LocationStock {
+
+    private static final String BOOKS = BookContract.BookEntry.TABLE_NAME;
+    private static final String STOCK = BookContract.StockEntry.TABLE_NAME;
+
+    /**
+     * Selection that hides the tombstones of soft-deleted books
+     */
+    private static final String SELECTION_ACTIVE =
+            "b." + BookContract.BookEntry.COLUMN_BOOK_DELETED + "=" + BookContract.BookEntry.BOOK_ACTIVE;
+
+    private LocationStock() {
+    }
+
+    /**
+     * Query the active books with their stock at the given location, which replaces their
+     * quantity. A book without a stock row has no copies at the location.
+     */
+    static Cursor queryBooks(SQLiteDatabase database, long locationId, String[] projection,
+                             String selection, String[] selectionArgs, String sortOrder) {
+        if (projection == null) {
+            projection = BookContract.BookEntry.PROJECTION_DETAILS;
+        }
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < projection.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(qualify(projection[i]));
+        }
+        // One lookup in the primary key of the stock table per book
+        sql.append(" FROM ").append(BOOKS).append(" b LEFT JOIN ").append(STOCK).append(" s ON s.")
+                .append(BookContract.StockEntry.COLUMN_STOCK_LOCATION_ID).append("=").append(locationId)
+                .append(" AND s.").append(BookContract.StockEntry.COLUMN_STOCK_BOOK_ID).append("=b.")
+                .append(BookContract.BookEntry._ID)
+                .append(" WHERE ").append(SELECTION_ACTIVE);
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" AND (").append(selection).append(")");
+        }
+        if (!TextUtils.isEmpty(sortOrder)) {
+            sql.append(" ORDER BY ").append(sortOrder);
+        }
+        return database.rawQuery(sql.toString(), selectionArgs);
+    }
+
+    /**
+     * Take a column of the books table from the books, except for the quantity which is the
+     * stock of the location.
+     */
+    private static String qualify(String column) {
+        if (BookContract.BookEntry.COLUMN_BOOK_QUANTITY.equals(column)) {
+            return "IFNULL(s." + BookContract.StockEntry.COLUMN_STOCK_QUANTITY + ", 0) AS " + column;
+        }
+        // Expressions are left as they are
+        return column.matches("\\w+") ? "b." + column : column;
+    }
+
+    /**
+     * Compile the statement selling copies of a book from the stock of the given location.
+     * Bind the number of copies as parameter 1 and the ID of the book as parameter 2. Nothing
+     * is updated if the location doesn't have enough copies, or if the book was deleted.
+     */
+    static SQLiteStatement compileSell(SQLiteDatabase database, long locationId) {
+        return database.compileStatement("UPDATE " + STOCK
+                + " SET " + BookContract.StockEntry.COLUMN_STOCK_QUANTITY + "=" + BookContract.StockEntry.COLUMN_STOCK_QUANTITY + "-?1"
+                + " WHERE " + BookContract.StockEntry.COLUMN_STOCK_LOCATION_ID + "=" + locationId
+                + " AND " + BookContract.StockEntry.COLUMN_STOCK_BOOK_ID + "=?2"
+                + " AND " + BookContract.StockEntry.COLUMN_STOCK_QUANTITY + ">=?1"
+                + " AND EXISTS (SELECT 1 FROM " + BOOKS + " b WHERE b." + BookContract.BookEntry._ID + "=?2"
+                + " AND " + SELECTION_ACTIVE + ")");
+    }
+
+    /**
+     * Set the stock of a book at the given location. Return false if there is no such book.
+     */
+    static boolean setStock(SQLiteDatabase database, long locationId, long bookId, int quantity) {
+        SQLiteStatement statement = database.compileStatement("INSERT OR REPLACE INTO " + STOCK + "("
+                + BookContract.StockEntry.COLUMN_STOCK_LOCATION_ID + ", "
+                + BookContract.StockEntry.COLUMN_STOCK_BOOK_ID + ", "
+                + BookContract.StockEntry.COLUMN_STOCK_QUANTITY + ")"
+                + " SELECT " + locationId + ", b." + BookContract.BookEntry._ID + ", ?"
+                + " FROM " + BOOKS + " b WHERE b." + BookContract.BookEntry._ID + "=? AND " + SELECTION_ACTIVE);
+        try {
+            statement.bindLong(1, quantity);
+            statement.bindLong(2, bookId);
+            return statement.executeUpdateDelete() != 0;
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Return true if there is a location with the given ID.
+     */
+    static boolean exists(SQLiteDatabase database, long locationId) {
+        Cursor cursor = database.rawQuery("SELECT 1 FROM " + BookContract.LocationEntry.TABLE_NAME
+                + " WHERE " + BookContract.LocationEntry._ID + "=" + locationId, null);
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,635 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A {@link BookStore} keeping the books in memory, for comparing storage engines and checking
+ * the behaviour of the store without SQLite.
+ *
+ * The books are kept column by column in arrays of primitives, in the order of their IDs. IDs
+ * only grow, so a book is found by binary search and a new one is appended, and deleted books
+ * stay in place as tombstones, like in the books table. The columns a user of the catalogue
+ * edits are stored with the bookkeeping of the sync engine; the tables derived from the books
+ * (search trigrams, price history, sales) and the stock of the other locations are left out.
+ */
+final class MemoryBookStore implements BookStore {
+
+    /**
+     * Columns of the books, in the order of the arrays below
+     */
+    private static final String[] COLUMNS = {
+            BookContract.BookEntry._ID,
+            BookContract.BookEntry.COLUMN_BOOK_NAME,
+            BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
+            BookContract.BookEntry.COLUMN_BOOK_PRICE,
+            BookContract.BookEntry.COLUMN_BOOK_QUANTITY,
+            BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME,
+            BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR,
+            BookContract.BookEntry.COLUMN_BOOK_COVER_UPDATED_AT,
+            BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID,
+            BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY,
+            BookContract.BookEntry.COLUMN_BOOK_DIRTY,
+            BookContract.BookEntry.COLUMN_BOOK_DELETED,
+            BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ};
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int AUTHOR = 2;
+    private static final int PRICE = 3;
+    private static final int QUANTITY = 4;
+    private static final int SUPPLIER_NAME = 5;
+    private static final int SUPPLIER_PHONE_NR = 6;
+    private static final int COVER_UPDATED_AT = 7;
+    private static final int GLOBAL_ID = 8;
+    private static final int SYNCED_QUANTITY = 9;
+    private static final int DIRTY = 10;
+    private static final int DELETED = 11;
+    private static final int CHANGE_SEQ = 12;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] mIds = new long[INITIAL_CAPACITY];
+    private boolean[] mDeleted = new boolean[INITIAL_CAPACITY];
+    private String[] mNames = new String[INITIAL_CAPACITY];
+    private String[] mAuthors = new String[INITIAL_CAPACITY];
+    private double[] mPrices = new double[INITIAL_CAPACITY];
+    private int[] mQuantities = new int[INITIAL_CAPACITY];
+    private String[] mSupplierNames = new String[INITIAL_CAPACITY];
+    private String[] mSupplierPhoneNrs = new String[INITIAL_CAPACITY];
+    private long[] mCoverUpdatedAts = new long[INITIAL_CAPACITY];
+    private String[] mGlobalIds = new String[INITIAL_CAPACITY];
+    private int[] mSyncedQuantities = new int[INITIAL_CAPACITY];
+    private boolean[] mDirty = new boolean[INITIAL_CAPACITY];
+    private long[] mChangeSeqs = new long[INITIAL_CAPACITY];
+    private int mSize;
+    private long mLastId;
+    private long mLastChangeSeq;
+
+    @Override
+    public synchronized Cursor get(long id, String[] projection) {
+        int[] columns = resolveProjection(projection);
+        MatrixCursor cursor = new MatrixCursor(columnNames(columns), 1);
+        int index = indexOf(id);
+        if (index >= 0) {
+            addRow(cursor, columns, index);
+        }
+        return cursor;
+    }
+
+    @Override
+    public synchronized Cursor query(String[] projection, Filter filter, String orderBy, boolean descending,
+                                     int limit) {
+        int[] columns = resolveProjection(projection);
+        final int sortColumn = orderBy != null ? resolveColumn(orderBy) : ID;
+
+        // One pass over the columns the filter reads
+        Integer[] matches = new Integer[mSize];
+        int matchCount = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (matches(filter, i)) {
+                matches[matchCount++] = i;
+            }
+        }
+        if (sortColumn != ID) {
+            // Stable, so books with the same value stay in the order of their IDs
+            Arrays.sort(matches, 0, matchCount, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer index, Integer other) {
+                    return compareColumn(sortColumn, index, other);
+                }
+            });
+        }
+
+        int rowCount = limit > 0 ? Math.min(limit, matchCount) : matchCount;
+        MatrixCursor cursor = new MatrixCursor(columnNames(columns), rowCount);
+        for (int i = 0; i < rowCount; i++) {
+            addRow(cursor, columns, matches[descending ? matchCount - 1 - i : i]);
+        }
+        return cursor;
+    }
+
+    @Override
+    public synchronized long count() {
+        long count = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (!mDeleted[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized Integer getQuantity(long id) {
+        int index = indexOf(id);
+        return index >= 0 ? mQuantities[index] : null;
+    }
+
+    @Override
+    public synchronized long insert(ContentValues values, boolean callerIsSyncAdapter) {
+        checkInsert(values, !callerIsSyncAdapter);
+        return append(values, ++mLastChangeSeq, callerIsSyncAdapter);
+    }
+
+    @Override
+    public synchronized int insertAll(ContentValues[] rows, boolean callerIsSyncAdapter, BookValidator.Report report) {
+        BookValidator.validateAll(rows, !callerIsSyncAdapter, report);
+        for (int row = 0; row < rows.length; row++) {
+            if (!report.isRejected(row)) {
+                checkColumns(rows[row]);
+            }
+        }
+        long changeSeq = ++mLastChangeSeq;
+        int rowsInserted = 0;
+        for (int row = 0; row < rows.length; row++) {
+            if (!report.isRejected(row)) {
+                append(rows[row], changeSeq, callerIsSyncAdapter);
+                rowsInserted++;
+            }
+        }
+        return rowsInserted;
+    }
+
+    @Override
+    public synchronized int update(Filter filter, ContentValues values, boolean callerIsSyncAdapter) {
+        checkUpdate(values, !callerIsSyncAdapter);
+        if (values.size() == 0) {
+            return 0;
+        }
+        if (!callerIsSyncAdapter) {
+            // Only the sync engine may change the sync bookkeeping of a book
+            values = new ContentValues(values);
+            values.remove(BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID);
+            values.remove(BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY);
+        }
+        long changeSeq = mLastChangeSeq + 1;
+        int rowsUpdated = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (matches(filter, i)) {
+                setValues(i, values);
+                stamp(i, changeSeq, !callerIsSyncAdapter);
+                rowsUpdated++;
+            }
+        }
+        return commitChangeSeq(rowsUpdated);
+    }
+
+    @Override
+    public synchronized int delete(Filter filter, boolean callerIsSyncAdapter) {
+        return setDeleted(filter, true, !callerIsSyncAdapter);
+    }
+
+    @Override
+    public synchronized int restore(Filter filter, boolean callerIsSyncAdapter) {
+        return setDeleted(filter, false, !callerIsSyncAdapter);
+    }
+
+    /**
+     * Only the stock of the default location, the quantity of the books, is kept. No sales are
+     * recorded.
+     */
+    @Override
+    public synchronized boolean checkout(long locationId, long[] ids, int[] quantities) {
+        if (locationId != BookContract.LocationEntry.DEFAULT_LOCATION_ID) {
+            throw new IllegalArgumentException("Location not kept by the memory store: " + locationId);
+        }
+        // Check everything first: once the checks pass, nothing can fail halfway
+        Map<Integer, Integer> left = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            int index = indexOf(ids[i]);
+            if (index < 0) {
+                return false;
+            }
+            Integer quantity = left.get(index);
+            quantity = (quantity == null ? mQuantities[index] : quantity) - quantities[i];
+            if (quantity < 0) {
+                return false;
+            }
+            left.put(index, quantity);
+        }
+        long changeSeq = ++mLastChangeSeq;
+        for (Map.Entry<Integer, Integer> book : left.entrySet()) {
+            mQuantities[book.getKey()] = book.getValue();
+            stamp(book.getKey(), changeSeq, true);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized int restock(long[] ids, int[] quantities) {
+        long changeSeq = mLastChangeSeq + 1;
+        int restocked = 0;
+        for (int i = 0; i < ids.length; i++) {
+            int index = indexOf(ids[i]);
+            if (index >= 0) {
+                mQuantities[index] += quantities[i];
+                stamp(index, changeSeq, true);
+                restocked++;
+            }
+        }
+        return commitChangeSeq(restocked);
+    }
+
+    /**
+     * The books of a group are the active books with the same title, author and supplier once
+     * normalized, the way {@link BookDuplicates} compares them.
+     */
+    @Override
+    public synchronized int mergeDuplicates(Long dedupKey) {
+        long changeSeq = mLastChangeSeq + 1;
+        Map<String, Integer> keepIndexes = new HashMap<>();
+        int merged = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (mDeleted[i] || (dedupKey != null
+                    && BookDuplicates.key(mNames[i], mAuthors[i], mSupplierNames[i]) != dedupKey)) {
+                continue;
+            }
+            String fields = BookDuplicates.normalizedKey(mNames[i], mAuthors[i], mSupplierNames[i]);
+            Integer keep = keepIndexes.get(fields);
+            if (keep == null) {
+                // Books come in the order of their IDs, so the first one is the oldest
+                keepIndexes.put(fields, i);
+                continue;
+            }
+            mQuantities[keep] += mQuantities[i];
+            stamp(keep, changeSeq, true);
+            mQuantities[i] = 0;
+            mDeleted[i] = true;
+            stamp(i, changeSeq, true);
+            merged++;
+        }
+        return commitChangeSeq(merged);
+    }
+
+    /**
+     * The batch writes to copies of the columns, which are dropped if it throws. The store is
+     * locked for the whole batch.
+     */
+    @Override
+    public synchronized <T, E extends Exception> T applyBatch(Batch<T, E> batch) throws E {
+        MemoryBookStore saved = new MemoryBookStore();
+        saved.assign(this);
+        resize(mIds.length);
+        boolean applied = false;
+        try {
+            T result = batch.apply();
+            applied = true;
+            return result;
+        } finally {
+            if (!applied) {
+                assign(saved);
+            }
+        }
+    }
+
+    private static void checkInsert(ContentValues values, boolean strict) {
+        int errors = BookValidator.validateInsert(values, strict);
+        if (errors != BookValidator.VALID) {
+            throw new IllegalArgumentException("Invalid book (errors 0x" + Integer.toHexString(errors) + ")");
+        }
+        checkColumns(values);
+    }
+
+    private static void checkUpdate(ContentValues values, boolean strict) {
+        int errors = BookValidator.validateUpdate(values, strict);
+        if (errors != BookValidator.VALID) {
+            throw new IllegalArgumentException("Invalid book (errors 0x" + Integer.toHexString(errors) + ")");
+        }
+        checkColumns(values);
+    }
+
+    private static void checkColumns(ContentValues values) {
+        for (String column : values.keySet()) {
+            int index = resolveColumn(column);
+            if (index == ID || index == DELETED || index == CHANGE_SEQ) {
+                throw new IllegalArgumentException("Column set by the store: " + column);
+            }
+        }
+    }
+
+    /**
+     * Append a new book, already checked, with the bookkeeping of a new book. Return its ID.
+     */
+    private long append(ContentValues values, long changeSeq, boolean callerIsSyncAdapter) {
+        if (mSize == mIds.length) {
+            resize(mSize * 2);
+        }
+        int index = mSize++;
+        mIds[index] = ++mLastId;
+        mDeleted[index] = false;
+        // The defaults of the books table
+        mPrices[index] = 0;
+        mQuantities[index] = 0;
+        mSupplierNames[index] = null;
+        mSupplierPhoneNrs[index] = null;
+        mCoverUpdatedAts[index] = 0;
+        mGlobalIds[index] = UUID.randomUUID().toString();
+        mSyncedQuantities[index] = 0;
+        mDirty[index] = false;
+        setValues(index, values);
+        // A book created on this till has never been agreed with the sync server
+        stamp(index, changeSeq, !callerIsSyncAdapter);
+        if (!callerIsSyncAdapter) {
+            mSyncedQuantities[index] = 0;
+        }
+        return mLastId;
+    }
+
+    private void setValues(int index, ContentValues values) {
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_NAME)) {
+            mNames[index] = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_NAME);
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_AUTHOR)) {
+            mAuthors[index] = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_AUTHOR);
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_PRICE)) {
+            mPrices[index] = values.getAsDouble(BookContract.BookEntry.COLUMN_BOOK_PRICE);
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_QUANTITY)) {
+            mQuantities[index] = values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME)) {
+            mSupplierNames[index] = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME);
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR)) {
+            mSupplierPhoneNrs[index] = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR);
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_COVER_UPDATED_AT)) {
+            mCoverUpdatedAts[index] = values.getAsLong(BookContract.BookEntry.COLUMN_BOOK_COVER_UPDATED_AT);
+        }
+        if (values.getAsString(BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID) != null) {
+            mGlobalIds[index] = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID);
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY)) {
+            mSyncedQuantities[index] = values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY);
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_DIRTY)) {
+            mDirty[index] = values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_DIRTY) != 0;
+        }
+    }
+
+    /**
+     * Stamp a book with a change sequence, marking it dirty for the sync engine if requested.
+     */
+    private void stamp(int index, long changeSeq, boolean markDirty) {
+        mChangeSeqs[index] = changeSeq;
+        if (markDirty) {
+            mDirty[index] = true;
+        }
+    }
+
+    /**
+     * Keep the change sequence the books were stamped with if any book was written. Return the
+     * number of books written.
+     */
+    private int commitChangeSeq(int booksWritten) {
+        if (booksWritten != 0) {
+            mLastChangeSeq++;
+        }
+        return booksWritten;
+    }
+
+    /**
+     * Turn the books matching the filter into tombstones, or back into active books.
+     */
+    private int setDeleted(Filter filter, boolean deleted, boolean markDirty) {
+        long changeSeq = mLastChangeSeq + 1;
+        int rowsWritten = 0;
+        for (int i = 0; i < mSize; i++) {
+            // Only the books in the other state are written
+            if (mDeleted[i] != deleted && matchesFields(filter, i)) {
+                mDeleted[i] = deleted;
+                stamp(i, changeSeq, markDirty);
+                rowsWritten++;
+            }
+        }
+        return commitChangeSeq(rowsWritten);
+    }
+
+    /**
+     * Return the index of the active book with the given ID, or -1.
+     */
+    private int indexOf(long id) {
+        int index = Arrays.binarySearch(mIds, 0, mSize, id);
+        return index >= 0 && !mDeleted[index] ? index : -1;
+    }
+
+    /**
+     * Check a book against a filter, tombstones only matching if the filter includes them.
+     */
+    private boolean matches(Filter filter, int index) {
+        if (mDeleted[index] && (filter == null || !filter.includeDeleted)) {
+            return false;
+        }
+        return matchesFields(filter, index);
+    }
+
+    /**
+     * Check the columns of a book against a filter, whether the book is deleted or not.
+     */
+    private boolean matchesFields(Filter filter, int index) {
+        if (filter == null) {
+            return true;
+        }
+        long changeSeq = mChangeSeqs[index];
+        return (filter.id == null || mIds[index] == filter.id)
+                && (filter.minPrice == null || mPrices[index] >= filter.minPrice)
+                && (filter.maxPrice == null || mPrices[index] <= filter.maxPrice)
+                && (filter.minQuantity == null || mQuantities[index] >= filter.minQuantity)
+                && (filter.maxQuantity == null || mQuantities[index] <= filter.maxQuantity)
+                && (filter.author == null || filter.author.equals(mAuthors[index]))
+                && (filter.supplier == null || filter.supplier.equals(mSupplierNames[index]))
+                && (filter.globalId == null || filter.globalId.equals(mGlobalIds[index]))
+                && (filter.dirty == null || filter.dirty == mDirty[index])
+                && (filter.changedAfter == null || changeSeq > filter.changedAfter
+                        || (filter.changedAfterId != null && changeSeq == filter.changedAfter
+                                && mIds[index] > filter.changedAfterId))
+                && (filter.changeSeq == null || changeSeq == filter.changeSeq);
+    }
+
+    /**
+     * Compare two books on a column, in the order of SQLite: nulls first, text in binary order.
+     */
+    private int compareColumn(int column, int index, int other) {
+        switch (column) {
+            case PRICE:
+                return Double.compare(mPrices[index], mPrices[other]);
+            case QUANTITY:
+                return compareLongs(mQuantities[index], mQuantities[other]);
+            case SYNCED_QUANTITY:
+                return compareLongs(mSyncedQuantities[index], mSyncedQuantities[other]);
+            case COVER_UPDATED_AT:
+                return compareLongs(mCoverUpdatedAts[index], mCoverUpdatedAts[other]);
+            case CHANGE_SEQ:
+                return compareLongs(mChangeSeqs[index], mChangeSeqs[other]);
+            case DIRTY:
+                return Boolean.compare(mDirty[index], mDirty[other]);
+            case DELETED:
+                return Boolean.compare(mDeleted[index], mDeleted[other]);
+            case NAME:
+                return compareStrings(mNames[index], mNames[other]);
+            case AUTHOR:
+                return compareStrings(mAuthors[index], mAuthors[other]);
+            case SUPPLIER_NAME:
+                return compareStrings(mSupplierNames[index], mSupplierNames[other]);
+            case SUPPLIER_PHONE_NR:
+                return compareStrings(mSupplierPhoneNrs[index], mSupplierPhoneNrs[other]);
+            case GLOBAL_ID:
+                return compareStrings(mGlobalIds[index], mGlobalIds[other]);
+            default:
+                return index < other ? -1 : index > other ? 1 : 0;
+        }
+    }
+
+    private static int compareLongs(long value, long other) {
+        return value < other ? -1 : value > other ? 1 : 0;
+    }
+
+    private static int compareStrings(String value, String other) {
+        if (value == null || other == null) {
+            return value == null ? (other == null ? 0 : -1) : 1;
+        }
+        return value.compareTo(other);
+    }
+
+    private void addRow(MatrixCursor cursor, int[] columns, int index) {
+        MatrixCursor.RowBuilder row = cursor.newRow();
+        for (int column : columns) {
+            switch (column) {
+                case ID:
+                    row.add(mIds[index]);
+                    break;
+                case NAME:
+                    row.add(mNames[index]);
+                    break;
+                case AUTHOR:
+                    row.add(mAuthors[index]);
+                    break;
+                case PRICE:
+                    row.add(mPrices[index]);
+                    break;
+                case QUANTITY:
+                    row.add(mQuantities[index]);
+                    break;
+                case SUPPLIER_NAME:
+                    row.add(mSupplierNames[index]);
+                    break;
+                case SUPPLIER_PHONE_NR:
+                    row.add(mSupplierPhoneNrs[index]);
+                    break;
+                case COVER_UPDATED_AT:
+                    row.add(mCoverUpdatedAts[index]);
+                    break;
+                case GLOBAL_ID:
+                    row.add(mGlobalIds[index]);
+                    break;
+                case SYNCED_QUANTITY:
+                    row.add(mSyncedQuantities[index]);
+                    break;
+                case DIRTY:
+                    row.add(mDirty[index] ? 1 : 0);
+                    break;
+                case DELETED:
+                    row.add(mDeleted[index] ? BookContract.BookEntry.BOOK_DELETED : BookContract.BookEntry.BOOK_ACTIVE);
+                    break;
+                default:
+                    row.add(mChangeSeqs[index]);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Move the columns to new arrays of the given capacity.
+     */
+    private void resize(int capacity) {
+        mIds = Arrays.copyOf(mIds, capacity);
+        mDeleted = Arrays.copyOf(mDeleted, capacity);
+        mNames = Arrays.copyOf(mNames, capacity);
+        mAuthors = Arrays.copyOf(mAuthors, capacity);
+        mPrices = Arrays.copyOf(mPrices, capacity);
+        mQuantities = Arrays.copyOf(mQuantities, capacity);
+        mSupplierNames = Arrays.copyOf(mSupplierNames, capacity);
+        mSupplierPhoneNrs = Arrays.copyOf(mSupplierPhoneNrs, capacity);
+        mCoverUpdatedAts = Arrays.copyOf(mCoverUpdatedAts, capacity);
+        mGlobalIds = Arrays.copyOf(mGlobalIds, capacity);
+        mSyncedQuantities = Arrays.copyOf(mSyncedQuantities, capacity);
+        mDirty = Arrays.copyOf(mDirty, capacity);
+        mChangeSeqs = Arrays.copyOf(mChangeSeqs, capacity);
+    }
+
+    /**
+     * Take the columns and counters of another store, sharing its arrays.
+     */
+    private void assign(MemoryBookStore other) {
+        mIds = other.mIds;
+        mDeleted = other.mDeleted;
+        mNames = other.mNames;
+        mAuthors = other.mAuthors;
+        mPrices = other.mPrices;
+        mQuantities = other.mQuantities;
+        mSupplierNames = other.mSupplierNames;
+        mSupplierPhoneNrs = other.mSupplierPhoneNrs;
+        mCoverUpdatedAts = other.mCoverUpdatedAts;
+        mGlobalIds = other.mGlobalIds;
+        mSyncedQuantities = other.mSyncedQuantities;
+        mDirty = other.mDirty;
+        mChangeSeqs = other.mChangeSeqs;
+        mSize = other.mSize;
+        mLastId = other.mLastId;
+        mLastChangeSeq = other.mLastChangeSeq;
+    }
+
+    /**
+     * Return the indexes of the columns of a projection, all of them if it is null.
+     */
+    private static int[] resolveProjection(String[] projection) {
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = resolveColumn(projection[i]);
+        }
+        return columns;
+    }
+
+    private static int resolveColumn(String name) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Column not kept by the memory store: " + name);
+    }
+
+    private static String[] columnNames(int[] columns) {
+        String[] names = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            names[i] = COLUMNS[columns[i]];
+        }
+        return names;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reactive queries on the {@link BookContract} URIs.
+ *
+ * Subscribers asking for the same URI, projection, selection, arguments and sort order share a
+ * single query and a single content observer. When the data changes the query is run again on a
+ * background thread, and the new {@link QuerySnapshot} is published to every subscriber on the UI
+ * thread. Changes arriving while the query runs are coalesced into one more run, so a burst of
+ * writes never queues up more than one query per shape.
+ *
+ * All the methods must be called on the UI thread.
+ */
+public final class ObservableQueries {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = ObservableQueries.class.getSimpleName();
+
+    /**
+     * Interface to be given the snapshots of a query
+     */
+    public interface Listener {
+        void onSnapshot(QuerySnapshot snapshot);
+    }
+
+    private static ObservableQueries sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(2);
+
+    /**
+     * Queries with at least one subscriber, by shape
+     */
+    private final Map<QueryKey, SharedQuery> mQueries = new HashMap<>();
+
+    /**
+     * Return the queries shared by all the screens of the app.
+     */
+    public static synchronized ObservableQueries getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ObservableQueries(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ObservableQueries(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Start watching a query. The listener is given the latest snapshot right away if the query
+     * already has one, and then a new snapshot every time the data at the URI changes.
+     * Return the subscription to cancel when the listener isn't needed anymore.
+     */
+    public Subscription subscribe(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                                  String sortOrder, Listener listener) {
+        QueryKey key = new QueryKey(uri, projection, selection, selectionArgs, sortOrder);
+        SharedQuery query = mQueries.get(key);
+        if (query == null) {
+            query = new SharedQuery(key);
+            mQueries.put(key, query);
+            mResolver.registerContentObserver(uri, true, query.mObserver);
+            query.refresh();
+        } else if (query.mSnapshot != null) {
+            listener.onSnapshot(query.mSnapshot);
+        }
+        query.mListeners.add(listener);
+        return new Subscription(query, listener);
+    }
+
+    /**
+     * Handle to stop watching a query.
+     */
+    public final class Subscription {
+
+        private final SharedQuery mQuery;
+        private Listener mListener;
+
+        private Subscription(SharedQuery query, Listener listener) {
+            mQuery = query;
+            mListener = listener;
+        }
+
+        /**
+         * Stop giving snapshots to the listener. The query itself stops once it has no
+         * listener left.
+         */
+        public void unsubscribe() {
+            if (mListener == null) {
+                return;
+            }
+            mQuery.mListeners.remove(mListener);
+            mListener = null;
+            if (mQuery.mListeners.isEmpty()) {
+                mQuery.mClosed = true;
+                mResolver.unregisterContentObserver(mQuery.mObserver);
+                mQueries.remove(mQuery.mKey);
+            }
+        }
+    }
+
+    /**
+     * A query and its subscribers. Only touched on the UI thread, except for the query itself.
+     */
+    private final class SharedQuery {
+
+        final QueryKey mKey;
+        final List<Listener> mListeners = new ArrayList<>();
+        final ContentObserver mObserver;
+        QuerySnapshot mSnapshot;
+
+        /**
+         * Set while the query runs, and when the data changed again meanwhile
+         */
+        boolean mRunning;
+        boolean mPending;
+        boolean mClosed;
+
+        SharedQuery(QueryKey key) {
+            mKey = key;
+            mObserver = new ContentObserver(mMainHandler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    refresh();
+                }
+            };
+        }
+
+        /**
+         * Run the query again, or remember to do so once the running query is done.
+         */
+        void refresh() {
+            if (mClosed) {
+                return;
+            }
+            if (mRunning) {
+                mPending = true;
+                return;
+            }
+            mRunning = true;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final QuerySnapshot snapshot = runQuery(mKey);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            publish(snapshot);
+                        }
+                    });
+                }
+            });
+        }
+
+        void publish(QuerySnapshot snapshot) {
+            mRunning = false;
+            if (mClosed) {
+                return;
+            }
+            if (snapshot != null) {
+                mSnapshot = snapshot;
+                // Copy the listeners, one of them may unsubscribe while being told
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    listener.onSnapshot(snapshot);
+                }
+            }
+            if (mPending) {
+                mPending = false;
+                refresh();
+            }
+        }
+    }
+
+    /**
+     * Run a query and copy its rows. Runs on a background thread.
+     * Return null if the query failed.
+     */
+    private QuerySnapshot runQuery(QueryKey key) {
+        Cursor cursor;
+        try {
+            cursor = mResolver.query(key.mUri, key.mProjection, key.mSelection, key.mSelectionArgs, key.mSortOrder);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to query " + key.mUri, e);
+            return null;
+        }
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return QuerySnapshot.fromCursor(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Shape of a query, identical shapes share the same {@link SharedQuery}.
+     */
+    private static final class QueryKey {
+
+        final Uri mUri;
+        final String[] mProjection;
+        final String mSelection;
+        final String[] mSelectionArgs;
+        final String mSortOrder;
+
+        QueryKey(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+            mUri = uri;
+            mProjection = projection == null ? null : projection.clone();
+            mSelection = selection;
+            mSelectionArgs = selectionArgs == null ? null : selectionArgs.clone();
+            mSortOrder = sortOrder;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey other = (QueryKey) o;
+            return mUri.equals(other.mUri)
+                    && Arrays.equals(mProjection, other.mProjection)
+                    && equal(mSelection, other.mSelection)
+                    && Arrays.equals(mSelectionArgs, other.mSelectionArgs)
+                    && equal(mSortOrder, other.mSortOrder);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = mUri.hashCode();
+            hash = 31 * hash + Arrays.hashCode(mProjection);
+            hash = 31 * hash + (mSelection == null ? 0 : mSelection.hashCode());
+            hash = 31 * hash + Arrays.hashCode(mSelectionArgs);
+            hash = 31 * hash + (mSortOrder == null ? 0 : mSortOrder.hashCode());
+            return hash;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
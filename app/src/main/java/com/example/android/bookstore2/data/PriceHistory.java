@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Writes and reads the price history of the books.
+ *
+ * The history lives in its own table keyed on (book, effective from), so the books row stays
+ * small and looking up the price of a book at any time is a single descent of that key.
+ */
+final class PriceHistory {
+
+    private static final String HISTORY = BookContract.PriceHistoryEntry.TABLE_NAME;
+    private static final String BOOKS = BookContract.BookEntry.TABLE_NAME;
+
+    private final SQLiteStatement mRecord;
+
+    PriceHistory(SQLiteDatabase database) {
+        // Only appends the current price of the book if it differs from the last one recorded,
+        // so updates leaving the price alone don't grow the history
+        mRecord = database.compileStatement("INSERT OR REPLACE INTO " + HISTORY + "("
+                + BookContract.PriceHistoryEntry.COLUMN_PRICE_BOOK_ID + ", "
+                + BookContract.PriceHistoryEntry.COLUMN_PRICE_EFFECTIVE_FROM + ", "
+                + BookContract.PriceHistoryEntry.COLUMN_PRICE_PRICE + ")"
+                + " SELECT " + BookContract.BookEntry._ID + ", ?1, " + BookContract.BookEntry.COLUMN_BOOK_PRICE
+                + " FROM " + BOOKS + " WHERE " + BookContract.BookEntry._ID + "=?2"
+                + " AND " + BookContract.BookEntry.COLUMN_BOOK_PRICE + " IS NOT (SELECT "
+                + BookContract.PriceHistoryEntry.COLUMN_PRICE_PRICE + " FROM " + HISTORY
+                + " WHERE " + BookContract.PriceHistoryEntry.COLUMN_PRICE_BOOK_ID + "=?2"
+                + " ORDER BY " + BookContract.PriceHistoryEntry.COLUMN_PRICE_EFFECTIVE_FROM + " DESC LIMIT 1)");
+    }
+
+    /**
+     * Record the current price of a book, effective from the given time, unless it is already
+     * the last price recorded. Must be called inside the transaction that set the price.
+     */
+    void record(long id, long effectiveFrom) {
+        mRecord.bindLong(1, effectiveFrom);
+        mRecord.bindLong(2, id);
+        mRecord.executeInsert();
+    }
+
+    void close() {
+        mRecord.close();
+    }
+
+    /**
+     * Record the current price of all the books, effective from the given time, e.g. when the
+     * history starts.
+     */
+    static void recordAll(SQLiteDatabase database, long effectiveFrom) {
+        database.execSQL("INSERT OR REPLACE INTO " + HISTORY + "("
+                + BookContract.PriceHistoryEntry.COLUMN_PRICE_BOOK_ID + ", "
+                + BookContract.PriceHistoryEntry.COLUMN_PRICE_EFFECTIVE_FROM + ", "
+                + BookContract.PriceHistoryEntry.COLUMN_PRICE_PRICE + ")"
+                + " SELECT " + BookContract.BookEntry._ID + ", ?, " + BookContract.BookEntry.COLUMN_BOOK_PRICE
+                + " FROM " + BOOKS, new Object[]{effectiveFrom});
+    }
+
+    /**
+     * Query the price history of a book, newest price first, or only the price it had at the
+     * given time if it isn't null.
+     */
+    static Cursor query(SQLiteDatabase database, String[] projection, long id, Long at) {
+        String selection = BookContract.PriceHistoryEntry.COLUMN_PRICE_BOOK_ID + "=?";
+        String[] selectionArgs;
+        String limit = null;
+        if (at != null) {
+            // The last price set at or before the time: the first entry of the key walked backwards
+            selection += " AND " + BookContract.PriceHistoryEntry.COLUMN_PRICE_EFFECTIVE_FROM + "<=?";
+            selectionArgs = new String[]{String.valueOf(id), String.valueOf(at)};
+            limit = "1";
+        } else {
+            selectionArgs = new String[]{String.valueOf(id)};
+        }
+        return database.query(HISTORY, projection, selection, selectionArgs, null, null,
+                BookContract.PriceHistoryEntry.COLUMN_PRICE_EFFECTIVE_FROM + " DESC", limit);
+    }
+}
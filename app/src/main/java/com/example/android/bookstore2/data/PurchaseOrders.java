@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Restock workflow of {@link BookProvider}: reorder suggestions, purchase orders and their
+ * reception.
+ *
+ * The books to reorder are the ones whose quantity dropped to their reorder level and that
+ * aren't on an open order yet. They are found by a single aggregate query grouped by supplier,
+ * and a whole order is received in a single transaction, however many books it holds, the
+ * {@link BookStore} adding its quantities to the stock.
+ */
+final class PurchaseOrders {
+
+    private static final String ORDERS = BookContract.PurchaseOrderEntry.TABLE_NAME;
+    private static final String ITEMS = BookContract.PurchaseOrderItemEntry.TABLE_NAME;
+    private static final String BOOKS = BookContract.BookEntry.TABLE_NAME;
+
+    /**
+     * Selection of the books to reorder
+     */
+    private static final String SELECTION_TO_REORDER = BookContract.BookEntry.COLUMN_BOOK_DELETED + "=" + BookContract.BookEntry.BOOK_ACTIVE
+            + " AND " + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + "<=" + BookContract.BookEntry.COLUMN_BOOK_REORDER_LEVEL
+            + " AND " + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + "<" + BookContract.BookEntry.COLUMN_BOOK_REORDER_TARGET
+            + " AND " + BookContract.BookEntry._ID + " NOT IN (SELECT i." + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_BOOK_ID
+            + " FROM " + ITEMS + " i JOIN " + ORDERS + " o ON o." + BookContract.PurchaseOrderEntry._ID
+            + "=i." + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_ORDER_ID
+            + " WHERE o." + BookContract.PurchaseOrderEntry.COLUMN_ORDER_STATUS + "=" + BookContract.PurchaseOrderEntry.ORDER_OPEN + ")";
+
+    /**
+     * Number of copies that bring a book back to its reorder target
+     */
+    private static final String REORDER_QUANTITY =
+            BookContract.BookEntry.COLUMN_BOOK_REORDER_TARGET + "-" + BookContract.BookEntry.COLUMN_BOOK_QUANTITY;
+
+    private PurchaseOrders() {
+    }
+
+    /**
+     * Query the reorder suggestions, one row per supplier. The phone number of the supplier is
+     * the one of the directory, taken from its most recently changed book.
+     */
+    static Cursor querySuggestions(SQLiteDatabase database) {
+        return database.rawQuery("SELECT MIN(" + BookContract.BookEntry._ID + ") AS " + BookContract.PurchaseOrderEntry._ID + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME + " AS " + BookContract.PurchaseOrderEntry.COLUMN_ORDER_SUPPLIER_NAME + ", "
+                + SupplierDirectory.SQL_LATEST_PHONE_NR + " AS " + BookContract.PurchaseOrderEntry.COLUMN_ORDER_SUPPLIER_PHONE_NR + ", "
+                + "COUNT(*) AS " + BookContract.PurchaseOrderEntry.COLUMN_ORDER_BOOK_COUNT + ", "
+                + "SUM(" + REORDER_QUANTITY + ") AS " + BookContract.PurchaseOrderEntry.COLUMN_ORDER_UNITS
+                + " FROM " + BOOKS + " WHERE " + SELECTION_TO_REORDER
+                + " GROUP BY " + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME
+                + " ORDER BY " + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME, null);
+    }
+
+    /**
+     * Turn every reorder suggestion into an open purchase order. Must be called inside a
+     * transaction. Return the number of orders created.
+     */
+    static int createOrders(SQLiteDatabase database, long now) {
+        // Read all the suggestions before writing the orders, which change them
+        List<String> suppliers = new ArrayList<>();
+        List<String> phoneNrs = new ArrayList<>();
+        Cursor cursor = querySuggestions(database);
+        try {
+            int supplierColumn = cursor.getColumnIndexOrThrow(BookContract.PurchaseOrderEntry.COLUMN_ORDER_SUPPLIER_NAME);
+            int phoneNrColumn = cursor.getColumnIndexOrThrow(BookContract.PurchaseOrderEntry.COLUMN_ORDER_SUPPLIER_PHONE_NR);
+            while (cursor.moveToNext()) {
+                suppliers.add(cursor.getString(supplierColumn));
+                phoneNrs.add(cursor.getString(phoneNrColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        SQLiteStatement insertOrder = database.compileStatement("INSERT INTO " + ORDERS + "("
+                + BookContract.PurchaseOrderEntry.COLUMN_ORDER_SUPPLIER_NAME + ", "
+                + BookContract.PurchaseOrderEntry.COLUMN_ORDER_SUPPLIER_PHONE_NR + ", "
+                + BookContract.PurchaseOrderEntry.COLUMN_ORDER_STATUS + ", "
+                + BookContract.PurchaseOrderEntry.COLUMN_ORDER_CREATED_AT + ") VALUES (?, ?, "
+                + BookContract.PurchaseOrderEntry.ORDER_OPEN + ", ?)");
+        // All the items of a supplier are copied in a single statement
+        SQLiteStatement insertItems = database.compileStatement("INSERT INTO " + ITEMS + "("
+                + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_ORDER_ID + ", "
+                + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_BOOK_ID + ", "
+                + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_QUANTITY + ")"
+                + " SELECT ?, " + BookContract.BookEntry._ID + ", " + REORDER_QUANTITY
+                + " FROM " + BOOKS + " WHERE " + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME + " IS ?"
+                + " AND " + SELECTION_TO_REORDER);
+        try {
+            for (int i = 0; i < suppliers.size(); i++) {
+                bindStringOrNull(insertOrder, 1, suppliers.get(i));
+                bindStringOrNull(insertOrder, 2, phoneNrs.get(i));
+                insertOrder.bindLong(3, now);
+                long orderId = insertOrder.executeInsert();
+
+                insertItems.bindLong(1, orderId);
+                bindStringOrNull(insertItems, 2, suppliers.get(i));
+                insertItems.executeInsert();
+            }
+        } finally {
+            insertOrder.close();
+            insertItems.close();
+        }
+        return suppliers.size();
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Query the purchase orders with their number of books and copies, open orders first.
+     * Only the given order if the ID isn't null.
+     */
+    static Cursor queryOrders(SQLiteDatabase database, String orderId) {
+        return database.rawQuery("SELECT o." + BookContract.PurchaseOrderEntry._ID + ", "
+                + "o." + BookContract.PurchaseOrderEntry.COLUMN_ORDER_SUPPLIER_NAME + ", "
+                + "o." + BookContract.PurchaseOrderEntry.COLUMN_ORDER_SUPPLIER_PHONE_NR + ", "
+                + "o." + BookContract.PurchaseOrderEntry.COLUMN_ORDER_STATUS + ", "
+                + "o." + BookContract.PurchaseOrderEntry.COLUMN_ORDER_CREATED_AT + ", "
+                + "o." + BookContract.PurchaseOrderEntry.COLUMN_ORDER_RECEIVED_AT + ", "
+                + "COUNT(i." + BookContract.PurchaseOrderItemEntry._ID + ") AS " + BookContract.PurchaseOrderEntry.COLUMN_ORDER_BOOK_COUNT + ", "
+                + "IFNULL(SUM(i." + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_QUANTITY + "), 0) AS " + BookContract.PurchaseOrderEntry.COLUMN_ORDER_UNITS
+                + " FROM " + ORDERS + " o LEFT JOIN " + ITEMS + " i ON i." + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_ORDER_ID
+                + "=o." + BookContract.PurchaseOrderEntry._ID
+                + (orderId == null ? "" : " WHERE o." + BookContract.PurchaseOrderEntry._ID + "=?")
+                + " GROUP BY o." + BookContract.PurchaseOrderEntry._ID
+                + " ORDER BY o." + BookContract.PurchaseOrderEntry.COLUMN_ORDER_STATUS + " ASC, "
+                + "o." + BookContract.PurchaseOrderEntry.COLUMN_ORDER_CREATED_AT + " DESC",
+                orderId == null ? null : new String[]{orderId});
+    }
+
+    /**
+     * Query the items of a purchase order, with the names of their books.
+     */
+    static Cursor queryItems(SQLiteDatabase database, String orderId) {
+        return database.rawQuery("SELECT i." + BookContract.PurchaseOrderItemEntry._ID + ", "
+                + "i." + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_ORDER_ID + ", "
+                + "i." + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_BOOK_ID + ", "
+                + "i." + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_QUANTITY + ", "
+                + "b." + BookContract.BookEntry.COLUMN_BOOK_NAME
+                + " FROM " + ITEMS + " i LEFT JOIN " + BOOKS + " b ON b." + BookContract.BookEntry._ID
+                + "=i." + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_BOOK_ID
+                + " WHERE i." + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_ORDER_ID + "=?"
+                + " ORDER BY b." + BookContract.BookEntry.COLUMN_BOOK_NAME, new String[]{orderId});
+    }
+
+    /**
+     * Close an open purchase order as received. Must be called inside the transaction that adds
+     * its items to the stock, see {@link #queryReceipt}. Return false if the order isn't open.
+     */
+    static boolean close(SQLiteDatabase database, long orderId, long now) {
+        SQLiteStatement close = database.compileStatement("UPDATE " + ORDERS + " SET "
+                + BookContract.PurchaseOrderEntry.COLUMN_ORDER_STATUS + "=" + BookContract.PurchaseOrderEntry.ORDER_RECEIVED + ", "
+                + BookContract.PurchaseOrderEntry.COLUMN_ORDER_RECEIVED_AT + "=?"
+                + " WHERE " + BookContract.PurchaseOrderEntry._ID + "=?"
+                + " AND " + BookContract.PurchaseOrderEntry.COLUMN_ORDER_STATUS + "=" + BookContract.PurchaseOrderEntry.ORDER_OPEN);
+        try {
+            close.bindLong(1, now);
+            close.bindLong(2, orderId);
+            return close.executeUpdateDelete() != 0;
+        } finally {
+            close.close();
+        }
+    }
+
+    /**
+     * Query the quantities a purchase order adds to the stock: the ID of each of its books
+     * followed by the total quantity ordered, whatever the number of items per book.
+     */
+    static Cursor queryReceipt(SQLiteDatabase database, long orderId) {
+        return database.rawQuery("SELECT " + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_BOOK_ID + ", "
+                + "SUM(" + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_QUANTITY + ")"
+                + " FROM " + ITEMS
+                + " WHERE " + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_ORDER_ID + "=?"
+                + " GROUP BY " + BookContract.PurchaseOrderItemEntry.COLUMN_ITEM_BOOK_ID,
+                new String[]{String.valueOf(orderId)});
+    }
+}
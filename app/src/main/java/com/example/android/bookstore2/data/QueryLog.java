@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Cursor factory of {@link BookDbHelper} timing every query run on the database, and keeping the
+ * most recent ones in a ring buffer for {@link BookContract.DiagnosticsEntry}.
+ *
+ * A query only runs when its cursor first fills its window, which is also when it counts its
+ * rows, so the time is taken around the first {@link Cursor#getCount()}: every move of a fresh
+ * cursor goes through it. Recording a query is a few field writes, cheap enough to stay on in
+ * production.
+ */
+final class QueryLog implements SQLiteDatabase.CursorFactory {
+
+    /**
+     * Number of queries kept
+     */
+    private static final int CAPACITY = 100;
+
+    /**
+     * Prefix of {@link SQLiteQuery#toString()} before the SQL
+     */
+    private static final String QUERY_PREFIX = "SQLiteQuery: ";
+
+    /**
+     * A query run on the database.
+     */
+    static final class Entry {
+        final String sql;
+        final long durationMicros;
+        final int rows;
+        final long executedAt;
+
+        Entry(String sql, long durationMicros, int rows, long executedAt) {
+            this.sql = sql;
+            this.durationMicros = durationMicros;
+            this.rows = rows;
+            this.executedAt = executedAt;
+        }
+    }
+
+    private final Entry[] mEntries = new Entry[CAPACITY];
+    private int mNext;
+
+    @Override
+    public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable, SQLiteQuery query) {
+        String sql = query.toString();
+        if (sql.startsWith(QUERY_PREFIX)) {
+            sql = sql.substring(QUERY_PREFIX.length());
+        }
+        // The diagnostics don't record themselves
+        if (sql.startsWith("EXPLAIN") || sql.startsWith("PRAGMA")) {
+            return new SQLiteCursor(masterQuery, editTable, query);
+        }
+        return new TimedCursor(masterQuery, editTable, query, sql);
+    }
+
+    private synchronized void record(Entry entry) {
+        mEntries[mNext] = entry;
+        mNext = (mNext + 1) % CAPACITY;
+    }
+
+    /**
+     * Return the queries recorded, slowest first.
+     */
+    synchronized List<Entry> getSlowestQueries() {
+        List<Entry> entries = new ArrayList<>(CAPACITY);
+        for (Entry entry : mEntries) {
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry entry, Entry other) {
+                return entry.durationMicros > other.durationMicros ? -1
+                        : entry.durationMicros < other.durationMicros ? 1 : 0;
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Cursor recording the time its query took to run.
+     */
+    private final class TimedCursor extends SQLiteCursor {
+
+        private final String mSql;
+        private boolean mTimed;
+
+        TimedCursor(SQLiteCursorDriver driver, String editTable, SQLiteQuery query, String sql) {
+            super(driver, editTable, query);
+            mSql = sql;
+        }
+
+        @Override
+        public int getCount() {
+            if (mTimed) {
+                return super.getCount();
+            }
+            mTimed = true;
+            long start = System.nanoTime();
+            int count = super.getCount();
+            record(new Entry(mSql, (System.nanoTime() - start) / 1000, count, System.currentTimeMillis()));
+            return count;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+/**
+ * Immutable copy of the rows of a query, published by {@link ObservableQueries}.
+ *
+ * The values are read out of the cursor once, on the background thread that ran the query, so
+ * a snapshot can be handed to any number of screens and read on the UI thread without touching
+ * the database again.
+ */
+public final class QuerySnapshot {
+
+    private final String[] mColumnNames;
+    private final Object[][] mRows;
+
+    private QuerySnapshot(String[] columnNames, Object[][] rows) {
+        mColumnNames = columnNames;
+        mRows = rows;
+    }
+
+    /**
+     * Copy all the rows of the cursor, keeping the type SQLite returned for every value.
+     * The cursor is left open.
+     */
+    static QuerySnapshot fromCursor(Cursor cursor) {
+        String[] columnNames = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        int row = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext() && row < rows.length) {
+            Object[] values = new Object[columnNames.length];
+            for (int column = 0; column < columnNames.length; column++) {
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[column] = cursor.getLong(column);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values[column] = cursor.getDouble(column);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        values[column] = cursor.getString(column);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        values[column] = cursor.getBlob(column);
+                        break;
+                    default:
+                        values[column] = null;
+                        break;
+                }
+            }
+            rows[row++] = values;
+        }
+        return new QuerySnapshot(columnNames.clone(), rows);
+    }
+
+    public int getCount() {
+        return mRows.length;
+    }
+
+    public String[] getColumnNames() {
+        return mColumnNames.clone();
+    }
+
+    /**
+     * Return the index of the given column, or -1 if the query didn't return it.
+     */
+    public int getColumnIndex(String columnName) {
+        for (int column = 0; column < mColumnNames.length; column++) {
+            if (mColumnNames[column].equals(columnName)) {
+                return column;
+            }
+        }
+        return -1;
+    }
+
+    public int getColumnIndexOrThrow(String columnName) {
+        int column = getColumnIndex(columnName);
+        if (column == -1) {
+            throw new IllegalArgumentException("Column " + columnName + " does not exist");
+        }
+        return column;
+    }
+
+    public boolean isNull(int row, int column) {
+        return mRows[row][column] == null;
+    }
+
+    public long getLong(int row, int column) {
+        Object value = mRows[row][column];
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    public int getInt(int row, int column) {
+        return (int) getLong(row, column);
+    }
+
+    public double getDouble(int row, int column) {
+        Object value = mRows[row][column];
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value == null ? 0 : Double.parseDouble(value.toString());
+    }
+
+    public String getString(int row, int column) {
+        Object value = mRows[row][column];
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Return a new cursor over the rows of the snapshot, e.g. for a CursorAdapter.
+     */
+    public Cursor toCursor() {
+        MatrixCursor cursor = new MatrixCursor(mColumnNames, mRows.length);
+        for (Object[] row : mRows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the sales of {@link BookProvider} and keeps their daily and weekly rollups up to date.
+ *
+ * Every sale adds a row to the sales table and to the rollup row of its book for the day and the
+ * week, inside the transaction of the sale itself. Reports only read the rollups, so they cost
+ * the number of books sold per period instead of the number of sales ever made.
+ *
+ * A ledger compiles its statements once, and must be closed when the transaction is done.
+ */
+final class SalesLedger {
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * The epoch was a Thursday, shifting the days by 3 makes the weeks start on Monday
+     */
+    private static final int WEEK_SHIFT_DAYS = 3;
+
+    private final SQLiteStatement mReadPrice;
+    private final SQLiteStatement mInsertSale;
+    private final SQLiteStatement mInsertDaily;
+    private final SQLiteStatement mUpdateDaily;
+    private final SQLiteStatement mInsertWeekly;
+    private final SQLiteStatement mUpdateWeekly;
+
+    SalesLedger(SQLiteDatabase database) {
+        mReadPrice = database.compileStatement("SELECT " + BookContract.BookEntry.COLUMN_BOOK_PRICE
+                + " FROM " + BookContract.BookEntry.TABLE_NAME + " WHERE " + BookContract.BookEntry._ID + "=?");
+        mInsertSale = database.compileStatement("INSERT INTO " + BookContract.SaleEntry.TABLE_NAME + "("
+                + BookContract.SaleEntry.COLUMN_SALE_BOOK_ID + ", "
+                + BookContract.SaleEntry.COLUMN_SALE_QUANTITY + ", "
+                + BookContract.SaleEntry.COLUMN_SALE_UNIT_PRICE + ", "
+                + BookContract.SaleEntry.COLUMN_SALE_SOLD_AT + ") VALUES (?, ?, ?, ?)");
+        mInsertDaily = database.compileStatement(buildInsertRollup(BookDbHelper.SALES_DAILY_TABLE_NAME));
+        mUpdateDaily = database.compileStatement(buildUpdateRollup(BookDbHelper.SALES_DAILY_TABLE_NAME));
+        mInsertWeekly = database.compileStatement(buildInsertRollup(BookDbHelper.SALES_WEEKLY_TABLE_NAME));
+        mUpdateWeekly = database.compileStatement(buildUpdateRollup(BookDbHelper.SALES_WEEKLY_TABLE_NAME));
+    }
+
+    /**
+     * Create the rollup row of a book for a period, with the book's current details, if it
+     * doesn't exist yet.
+     */
+    private static String buildInsertRollup(String tableName) {
+        return "INSERT OR IGNORE INTO " + tableName + "("
+                + BookDbHelper.COLUMN_ROLLUP_BUCKET + ", "
+                + BookContract.SaleEntry.COLUMN_SALE_BOOK_ID + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_NAME + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_AUTHOR + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME + ")"
+                + " SELECT ?, " + BookContract.BookEntry._ID + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_NAME + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_AUTHOR + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME
+                + " FROM " + BookContract.BookEntry.TABLE_NAME + " WHERE " + BookContract.BookEntry._ID + "=?";
+    }
+
+    private static String buildUpdateRollup(String tableName) {
+        return "UPDATE " + tableName + " SET "
+                + BookDbHelper.COLUMN_ROLLUP_UNITS + "=" + BookDbHelper.COLUMN_ROLLUP_UNITS + "+?, "
+                + BookDbHelper.COLUMN_ROLLUP_REVENUE + "=" + BookDbHelper.COLUMN_ROLLUP_REVENUE + "+?"
+                + " WHERE " + BookDbHelper.COLUMN_ROLLUP_BUCKET + "=? AND "
+                + BookContract.SaleEntry.COLUMN_SALE_BOOK_ID + "=?";
+    }
+
+    /**
+     * Record the sale of some copies of a book, at the book's current price. Must be called
+     * inside the transaction that decremented the quantity of the book.
+     */
+    void record(long bookId, int quantity, long soldAt) {
+        mReadPrice.bindLong(1, bookId);
+        // Prices are decimals, simpleQueryForLong() would cut them off
+        double unitPrice = Double.parseDouble(mReadPrice.simpleQueryForString());
+
+        mInsertSale.bindLong(1, bookId);
+        mInsertSale.bindLong(2, quantity);
+        mInsertSale.bindDouble(3, unitPrice);
+        mInsertSale.bindLong(4, soldAt);
+        mInsertSale.executeInsert();
+
+        long day = getDay(soldAt);
+        addToRollup(mInsertDaily, mUpdateDaily, day, bookId, quantity, quantity * unitPrice);
+        addToRollup(mInsertWeekly, mUpdateWeekly, getWeek(day), bookId, quantity, quantity * unitPrice);
+    }
+
+    private static void addToRollup(SQLiteStatement insert, SQLiteStatement update,
+                                    long bucket, long bookId, int units, double revenue) {
+        insert.bindLong(1, bucket);
+        insert.bindLong(2, bookId);
+        insert.executeInsert();
+
+        update.bindLong(1, units);
+        update.bindDouble(2, revenue);
+        update.bindLong(3, bucket);
+        update.bindLong(4, bookId);
+        update.executeUpdateDelete();
+    }
+
+    void close() {
+        mReadPrice.close();
+        mInsertSale.close();
+        mInsertDaily.close();
+        mUpdateDaily.close();
+        mInsertWeekly.close();
+        mUpdateWeekly.close();
+    }
+
+    /**
+     * Put back the decimals of the unit prices cut off by the versions that recorded them as
+     * whole numbers, and add the revenue lost to the rollups. The price of a sale is taken from
+     * the price history at the time of the sale, and only when cutting it off gives the price
+     * recorded. Called once by the upgrade of the database.
+     */
+    static void restoreTruncatedPrices(SQLiteDatabase database) {
+        String historyPrice = "(SELECT " + BookContract.PriceHistoryEntry.COLUMN_PRICE_PRICE
+                + " FROM " + BookContract.PriceHistoryEntry.TABLE_NAME
+                + " WHERE " + BookContract.PriceHistoryEntry.COLUMN_PRICE_BOOK_ID + "=s." + BookContract.SaleEntry.COLUMN_SALE_BOOK_ID
+                + " AND " + BookContract.PriceHistoryEntry.COLUMN_PRICE_EFFECTIVE_FROM + "<=s." + BookContract.SaleEntry.COLUMN_SALE_SOLD_AT
+                + " ORDER BY " + BookContract.PriceHistoryEntry.COLUMN_PRICE_EFFECTIVE_FROM + " DESC LIMIT 1)";
+        Cursor cursor = database.rawQuery("SELECT * FROM (SELECT s." + BookContract.SaleEntry._ID
+                + ", s." + BookContract.SaleEntry.COLUMN_SALE_BOOK_ID
+                + ", s." + BookContract.SaleEntry.COLUMN_SALE_QUANTITY
+                + ", s." + BookContract.SaleEntry.COLUMN_SALE_SOLD_AT
+                + ", s." + BookContract.SaleEntry.COLUMN_SALE_UNIT_PRICE
+                + ", " + historyPrice + " AS price"
+                + " FROM " + BookContract.SaleEntry.TABLE_NAME + " s)"
+                + " WHERE price IS NOT NULL AND price<>" + BookContract.SaleEntry.COLUMN_SALE_UNIT_PRICE
+                + " AND CAST(price AS INTEGER)=" + BookContract.SaleEntry.COLUMN_SALE_UNIT_PRICE, null);
+        SQLiteStatement updateSale = database.compileStatement("UPDATE " + BookContract.SaleEntry.TABLE_NAME
+                + " SET " + BookContract.SaleEntry.COLUMN_SALE_UNIT_PRICE + "=? WHERE " + BookContract.SaleEntry._ID + "=?");
+        // Only the revenue is missing, the units were counted
+        String addRevenue = "UPDATE %s SET " + BookDbHelper.COLUMN_ROLLUP_REVENUE + "=" + BookDbHelper.COLUMN_ROLLUP_REVENUE + "+?"
+                + " WHERE " + BookDbHelper.COLUMN_ROLLUP_BUCKET + "=? AND " + BookContract.SaleEntry.COLUMN_SALE_BOOK_ID + "=?";
+        SQLiteStatement updateDaily = database.compileStatement(String.format(addRevenue, BookDbHelper.SALES_DAILY_TABLE_NAME));
+        SQLiteStatement updateWeekly = database.compileStatement(String.format(addRevenue, BookDbHelper.SALES_WEEKLY_TABLE_NAME));
+        try {
+            while (cursor.moveToNext()) {
+                long bookId = cursor.getLong(1);
+                double price = cursor.getDouble(5);
+                double lostRevenue = cursor.getInt(2) * (price - cursor.getDouble(4));
+                updateSale.bindDouble(1, price);
+                updateSale.bindLong(2, cursor.getLong(0));
+                updateSale.executeUpdateDelete();
+
+                long day = getDay(cursor.getLong(3));
+                addRevenue(updateDaily, day, bookId, lostRevenue);
+                addRevenue(updateWeekly, getWeek(day), bookId, lostRevenue);
+            }
+        } finally {
+            cursor.close();
+            updateSale.close();
+            updateDaily.close();
+            updateWeekly.close();
+        }
+    }
+
+    private static void addRevenue(SQLiteStatement update, long bucket, long bookId, double revenue) {
+        update.bindDouble(1, revenue);
+        update.bindLong(2, bucket);
+        update.bindLong(3, bookId);
+        update.executeUpdateDelete();
+    }
+
+    /**
+     * Return the number of the local day holding the given time, counted from the epoch.
+     */
+    private static long getDay(long time) {
+        return (time + TimeZone.getDefault().getOffset(time)) / DAY_MILLIS;
+    }
+
+    /**
+     * Return the number of the week (starting on Monday) holding the given day.
+     */
+    private static long getWeek(long day) {
+        return (day + WEEK_SHIFT_DAYS) / 7;
+    }
+
+    /**
+     * Query the units sold and the revenue of every period, grouped by the given column of the
+     * rollups, most recent period first. The bounds (null when missing) are times in
+     * milliseconds since the epoch.
+     */
+    static Cursor queryReport(SQLiteDatabase database, boolean weekly, String groupColumn,
+                              Long from, Long to) {
+        String tableName = weekly ? BookDbHelper.SALES_WEEKLY_TABLE_NAME : BookDbHelper.SALES_DAILY_TABLE_NAME;
+        // Buckets count days (or weeks) since the epoch, SQLite turns them back into a date
+        String periodStart = weekly
+                ? "date((" + BookDbHelper.COLUMN_ROLLUP_BUCKET + "*7-" + WEEK_SHIFT_DAYS + ")*86400, 'unixepoch')"
+                : "date(" + BookDbHelper.COLUMN_ROLLUP_BUCKET + "*86400, 'unixepoch')";
+        // Two books may share a title, they still get a row each
+        String groupBy = BookContract.BookEntry.COLUMN_BOOK_NAME.equals(groupColumn)
+                ? BookContract.SaleEntry.COLUMN_SALE_BOOK_ID : groupColumn;
+
+        StringBuilder where = new StringBuilder();
+        List<String> args = new ArrayList<>();
+        if (from != null) {
+            where.append(BookDbHelper.COLUMN_ROLLUP_BUCKET).append(">=?");
+            args.add(String.valueOf(weekly ? getWeek(getDay(from)) : getDay(from)));
+        }
+        if (to != null) {
+            if (where.length() > 0) {
+                where.append(" AND ");
+            }
+            where.append(BookDbHelper.COLUMN_ROLLUP_BUCKET).append("<=?");
+            args.add(String.valueOf(weekly ? getWeek(getDay(to)) : getDay(to)));
+        }
+
+        return database.rawQuery("SELECT " + periodStart + " AS " + BookContract.SaleEntry.COLUMN_REPORT_PERIOD_START + ", "
+                + groupColumn + " AS " + BookContract.SaleEntry.COLUMN_REPORT_GROUP + ", "
+                + "SUM(" + BookDbHelper.COLUMN_ROLLUP_UNITS + ") AS " + BookContract.SaleEntry.COLUMN_REPORT_UNITS + ", "
+                + "SUM(" + BookDbHelper.COLUMN_ROLLUP_REVENUE + ") AS " + BookContract.SaleEntry.COLUMN_REPORT_REVENUE
+                + " FROM " + tableName
+                + (where.length() > 0 ? " WHERE " + where : "")
+                + " GROUP BY " + BookDbHelper.COLUMN_ROLLUP_BUCKET + ", " + groupBy
+                + " ORDER BY " + BookDbHelper.COLUMN_ROLLUP_BUCKET + " DESC, "
+                + BookContract.SaleEntry.COLUMN_REPORT_REVENUE + " DESC",
+                args.toArray(new String[args.size()]));
+    }
+}
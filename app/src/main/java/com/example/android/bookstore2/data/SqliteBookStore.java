@@ -0,0 +1,595 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The {@link BookStore} of the app, on the books table of {@link BookDbHelper}.
+ *
+ * Every write stamps the books with a new change sequence and keeps the tables derived from the
+ * books (search trigrams, duplicate keys, price history, sales) in step, in the transaction of
+ * the write. {@link BookProvider} goes through it for all the reads and writes of its books
+ * URIs, adding the change notifications. The store shares the database of the provider, so the
+ * writes of a batch of the provider to the other tables are part of the same transaction.
+ */
+final class SqliteBookStore implements BookStore {
+
+    private static final String LOG_TAG = SqliteBookStore.class.getSimpleName();
+
+    private static final String BOOKS = BookContract.BookEntry.TABLE_NAME;
+
+    /**
+     * Selection of the books that aren't soft-deleted
+     */
+    private static final String SELECTION_ACTIVE =
+            BookContract.BookEntry.COLUMN_BOOK_DELETED + "=" + BookContract.BookEntry.BOOK_ACTIVE;
+
+    /**
+     * Selection of the soft-deleted books
+     */
+    private static final String SELECTION_DELETED =
+            BookContract.BookEntry.COLUMN_BOOK_DELETED + "=" + BookContract.BookEntry.BOOK_DELETED;
+
+    /**
+     * Number of books imported between two chances for other writers to take the lock
+     */
+    private static final int IMPORT_YIELD_ROWS = 500;
+
+    private final BookDbHelper mDbHelper;
+
+    SqliteBookStore(BookDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    @Override
+    public Cursor get(long id, String[] projection) {
+        return decrypt(mDbHelper.getReadableDatabase().query(BOOKS, projection,
+                BookContract.BookEntry._ID + "=? AND " + SELECTION_ACTIVE, new String[]{String.valueOf(id)},
+                null, null, null));
+    }
+
+    @Override
+    public Cursor query(String[] projection, Filter filter, String orderBy, boolean descending, int limit) {
+        List<String> args = new ArrayList<>();
+        String sql = buildQuery(projection, filter, orderBy, descending, limit, args);
+        return decrypt(mDbHelper.getReadableDatabase().rawQuery(sql, args.toArray(new String[args.size()])));
+    }
+
+    /**
+     * Build the query of the books matching a filter, adding its values to the arguments.
+     */
+    static String buildQuery(String[] projection, Filter filter, String orderBy, boolean descending,
+                             int limit, List<String> args) {
+        String selection = buildSelection(filter, args);
+        String direction = descending ? " DESC" : " ASC";
+        if (orderBy == null || orderBy.equals(BookContract.BookEntry._ID)) {
+            orderBy = BookContract.BookEntry._ID + direction;
+            // Once ANALYZE has run, the planner prefers scanning the table in ID order to sorting
+            // the rows of a one-sided range. The unary plus hides that order from it, so the
+            // filter is served by its index.
+            if (selection != null) {
+                orderBy = "+" + orderBy;
+            }
+        } else {
+            // The ID breaks the ties, the way the memory store keeps them
+            orderBy += direction + ", " + BookContract.BookEntry._ID + direction;
+        }
+        return SQLiteQueryBuilder.buildQueryString(false, BOOKS, projection,
+                where(selection, filter == null || !filter.includeDeleted ? SELECTION_ACTIVE : null),
+                null, null, orderBy, limit > 0 ? String.valueOf(limit) : null);
+    }
+
+    /**
+     * Return the cursor with the supplier contacts in plain text.
+     */
+    private static Cursor decrypt(Cursor cursor) {
+        SupplierCipher cipher = SupplierCipher.getInstance();
+        return cipher != null ? cipher.wrap(cursor) : cursor;
+    }
+
+    @Override
+    public long count() {
+        return DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(), BOOKS, SELECTION_ACTIVE);
+    }
+
+    @Override
+    public Integer getQuantity(long id) {
+        SQLiteStatement statement = mDbHelper.getReadableDatabase().compileStatement(
+                "SELECT " + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + " FROM " + BOOKS
+                        + " WHERE " + BookContract.BookEntry._ID + "=? AND " + SELECTION_ACTIVE);
+        try {
+            statement.bindLong(1, id);
+            return (int) statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return null;
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Override
+    public <T, E extends Exception> T applyBatch(Batch<T, E> batch) throws E {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            T result = batch.apply();
+            database.setTransactionSuccessful();
+            return result;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Insert a book with the bookkeeping of a new book.
+     */
+    @Override
+    public long insert(ContentValues values, boolean callerIsSyncAdapter) {
+        // Check the book against the rules shared with the editor
+        int errors = BookValidator.validateInsert(values, !callerIsSyncAdapter);
+        if (errors != BookValidator.VALID) {
+            throw new IllegalArgumentException("Invalid book (errors 0x" + Integer.toHexString(errors) + ")");
+        }
+
+        // Insert the new book with the given values, stamped with a new change sequence
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id;
+        database.beginTransaction();
+        try {
+            values = prepareInsert(values, nextChangeSeq(database), callerIsSyncAdapter);
+            id = database.insert(BOOKS, null, values);
+            if (id != -1) {
+                BookTrigrams trigrams = new BookTrigrams(database);
+                PriceHistory prices = new PriceHistory(database);
+                try {
+                    trigrams.index(id, values.getAsString(BookContract.BookEntry.COLUMN_BOOK_NAME),
+                            values.getAsString(BookContract.BookEntry.COLUMN_BOOK_AUTHOR));
+                    prices.record(id, System.currentTimeMillis());
+                } finally {
+                    trigrams.close();
+                    prices.close();
+                }
+                database.setTransactionSuccessful();
+            }
+        } finally {
+            database.endTransaction();
+        }
+        return id;
+    }
+
+    /**
+     * Insert the valid rows in large transactions, with the trigrams and the first price of
+     * every book. The transaction yields every {@link #IMPORT_YIELD_ROWS} books when another
+     * writer waits, so the till can sell in the middle of a long import.
+     */
+    @Override
+    public int insertAll(ContentValues[] rows, boolean callerIsSyncAdapter, BookValidator.Report report) {
+        BookValidator.validateAll(rows, !callerIsSyncAdapter, report);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsInserted = 0;
+        long now = System.currentTimeMillis();
+        database.beginTransaction();
+        try {
+            // Compiled inside the transaction's try, so a failure still ends the transaction
+            BookTrigrams trigrams = new BookTrigrams(database);
+            try {
+                PriceHistory prices = new PriceHistory(database);
+                try {
+                    long changeSeq = nextChangeSeq(database);
+                    for (int row = 0; row < rows.length; row++) {
+                        if (report.isRejected(row)) {
+                            continue;
+                        }
+                        long id = database.insert(BOOKS, null, prepareInsert(rows[row], changeSeq, callerIsSyncAdapter));
+                        if (id != -1) {
+                            trigrams.index(id, rows[row].getAsString(BookContract.BookEntry.COLUMN_BOOK_NAME),
+                                    rows[row].getAsString(BookContract.BookEntry.COLUMN_BOOK_AUTHOR));
+                            prices.record(id, now);
+                            rowsInserted++;
+                        }
+                        // Each yield commits the books inserted so far, so the next ones get a
+                        // new change sequence
+                        if (row % IMPORT_YIELD_ROWS == IMPORT_YIELD_ROWS - 1 && database.yieldIfContendedSafely()) {
+                            changeSeq = nextChangeSeq(database);
+                        }
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    prices.close();
+                }
+            } finally {
+                trigrams.close();
+            }
+        } finally {
+            database.endTransaction();
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Update the books matching the filter. Tombstones are left untouched unless the filter
+     * includes them, for the sync engine which clears their dirty flag once pushed.
+     */
+    @Override
+    public int update(Filter filter, ContentValues values, boolean callerIsSyncAdapter) {
+        // Check the values present against the rules shared with the editor. Negative
+        // quantities are only accepted from the sync engine.
+        int errors = BookValidator.validateUpdate(values, !callerIsSyncAdapter);
+        if (errors != BookValidator.VALID) {
+            throw new IllegalArgumentException("Invalid book (errors 0x" + Integer.toHexString(errors) + ")");
+        }
+
+        // If there are no values to update, then don't try to update the database
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        List<String> args = new ArrayList<>();
+        String selection = where(buildSelection(filter, args),
+                filter != null && filter.includeDeleted ? null : SELECTION_ACTIVE);
+        String[] selectionArgs = args.toArray(new String[args.size()]);
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        if (!callerIsSyncAdapter) {
+            // Only the sync engine may change the sync bookkeeping of a book
+            values = new ContentValues(values);
+            values.remove(BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID);
+            values.remove(BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY);
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY)) {
+            // The duplicate key is always derived from the other columns
+            values = new ContentValues(values);
+            values.remove(BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY);
+        }
+        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR)) {
+            values = new ContentValues(values);
+            encryptSupplierContact(values);
+        }
+        int rowsUpdated;
+        boolean renamed = values.containsKey(BookContract.BookEntry.COLUMN_BOOK_NAME)
+                || values.containsKey(BookContract.BookEntry.COLUMN_BOOK_AUTHOR)
+                || values.containsKey(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME);
+        boolean repriced = values.containsKey(BookContract.BookEntry.COLUMN_BOOK_PRICE);
+        if (renamed || repriced) {
+            // The books renamed are indexed again for the fuzzy search and get a new duplicate
+            // key, and the new prices are appended to the price history, in the same transaction
+            long now = System.currentTimeMillis();
+            database.beginTransaction();
+            BookTrigrams trigrams = new BookTrigrams(database);
+            PriceHistory prices = new PriceHistory(database);
+            try {
+                long[] ids = queryIds(database, selection, selectionArgs);
+                rowsUpdated = updateWithChangeSeq(database, values, selection, selectionArgs, !callerIsSyncAdapter);
+                for (long id : ids) {
+                    if (renamed) {
+                        trigrams.reindex(id);
+                    }
+                    if (repriced) {
+                        prices.record(id, now);
+                    }
+                }
+                if (renamed) {
+                    BookDuplicates.updateKeys(database, ids);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                trigrams.close();
+                prices.close();
+                database.endTransaction();
+            }
+        } else {
+            rowsUpdated = updateWithChangeSeq(database, values, selection, selectionArgs, !callerIsSyncAdapter);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Delete the active books matching the filter. Deleting only turns the rows into
+     * tombstones, which is a cheap flag update that can be undone by {@link #restore}. The rows
+     * are purged later by {@link BookCompactor}.
+     */
+    @Override
+    public int delete(Filter filter, boolean callerIsSyncAdapter) {
+        ContentValues tombstone = new ContentValues();
+        tombstone.put(BookContract.BookEntry.COLUMN_BOOK_DELETED, BookContract.BookEntry.BOOK_DELETED);
+        tombstone.put(BookContract.BookEntry.COLUMN_BOOK_DELETED_AT, System.currentTimeMillis());
+        return updateWithChangeSeq(tombstone, filter, SELECTION_ACTIVE, !callerIsSyncAdapter);
+    }
+
+    /**
+     * Bring back the tombstones matching the filter, as long as they haven't been purged by
+     * {@link BookCompactor} yet.
+     */
+    @Override
+    public int restore(Filter filter, boolean callerIsSyncAdapter) {
+        ContentValues values = new ContentValues();
+        values.put(BookContract.BookEntry.COLUMN_BOOK_DELETED, BookContract.BookEntry.BOOK_ACTIVE);
+        values.putNull(BookContract.BookEntry.COLUMN_BOOK_DELETED_AT);
+        return updateWithChangeSeq(values, filter, SELECTION_DELETED, !callerIsSyncAdapter);
+    }
+
+    /**
+     * Sell the copies in a single transaction, and record the sales. The sales of a location
+     * other than the default one only update its own stock rows.
+     */
+    @Override
+    public boolean checkout(long locationId, long[] ids, int[] quantities) {
+        boolean defaultLocation = locationId == BookContract.LocationEntry.DEFAULT_LOCATION_ID;
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            // The stock check is part of the update, so no other sale can slip in between
+            SQLiteStatement sell = defaultLocation ? database.compileStatement("UPDATE " + BOOKS
+                    + " SET " + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + "=" + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + "-?, "
+                    + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + "=?, "
+                    + BookContract.BookEntry.COLUMN_BOOK_DIRTY + "=1"
+                    + " WHERE " + BookContract.BookEntry._ID + "=? AND " + SELECTION_ACTIVE
+                    + " AND " + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ">=?")
+                    : LocationStock.compileSell(database, locationId);
+            SalesLedger ledger = new SalesLedger(database);
+            try {
+                // Only the books table has a change feed
+                long changeSeq = defaultLocation ? nextChangeSeq(database) : 0;
+                long soldAt = System.currentTimeMillis();
+                for (int i = 0; i < ids.length; i++) {
+                    if (defaultLocation) {
+                        sell.bindLong(1, quantities[i]);
+                        sell.bindLong(2, changeSeq);
+                        sell.bindLong(3, ids[i]);
+                        sell.bindLong(4, quantities[i]);
+                    } else {
+                        sell.bindLong(1, quantities[i]);
+                        sell.bindLong(2, ids[i]);
+                    }
+                    if (sell.executeUpdateDelete() == 0) {
+                        // Leaving without marking the transaction successful rolls back the sale
+                        Log.v(LOG_TAG, "Checkout cancelled, book " + ids[i] + " is out of stock");
+                        return false;
+                    }
+                    ledger.record(ids[i], quantities[i], soldAt);
+                }
+            } finally {
+                sell.close();
+                ledger.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return true;
+    }
+
+    @Override
+    public int restock(long[] ids, int[] quantities) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean nested = database.inTransaction();
+        int restocked = 0;
+        database.beginTransaction();
+        try {
+            SQLiteStatement statement = database.compileStatement("UPDATE " + BOOKS
+                    + " SET " + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + "=" + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + "+?, "
+                    + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + "=?, "
+                    + BookContract.BookEntry.COLUMN_BOOK_DIRTY + "=1"
+                    + " WHERE " + BookContract.BookEntry._ID + "=? AND " + SELECTION_ACTIVE);
+            try {
+                long changeSeq = nextChangeSeq(database);
+                for (int i = 0; i < ids.length; i++) {
+                    statement.bindLong(1, quantities[i]);
+                    statement.bindLong(2, changeSeq);
+                    statement.bindLong(3, ids[i]);
+                    restocked += statement.executeUpdateDelete();
+                }
+            } finally {
+                statement.close();
+            }
+            // Only keep the new sequence if a book was there, or if rolling back would roll
+            // back the whole batch this is part of
+            if (restocked != 0 || nested) {
+                database.setTransactionSuccessful();
+            }
+        } finally {
+            database.endTransaction();
+        }
+        return restocked;
+    }
+
+    /**
+     * Merge the duplicates in a single transaction with a single change sequence. The kept
+     * books also get the sales, rollups, order items and stock of their duplicates.
+     */
+    @Override
+    public int mergeDuplicates(Long dedupKey) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int merged;
+        database.beginTransaction();
+        try {
+            merged = BookDuplicates.merge(database, dedupKey, nextChangeSeq(database), System.currentTimeMillis());
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return merged;
+    }
+
+    /**
+     * Build the selection of a filter, adding its values to the arguments. Return null if the
+     * filter doesn't filter anything. The range clauses are served by the composite indexes of
+     * the books table, and the sync clauses by the indexes of the sync bookkeeping.
+     */
+    static String buildSelection(Filter filter, List<String> args) {
+        if (filter == null) {
+            return null;
+        }
+        StringBuilder selection = new StringBuilder();
+        // Selection arguments are bound as text, SQLite converts them back to numbers when
+        // comparing them with the INTEGER affinity columns
+        appendClause(selection, args, BookContract.BookEntry._ID + "=?", filter.id);
+        appendClause(selection, args, BookContract.BookEntry.COLUMN_BOOK_PRICE + ">=?", filter.minPrice);
+        appendClause(selection, args, BookContract.BookEntry.COLUMN_BOOK_PRICE + "<=?", filter.maxPrice);
+        appendClause(selection, args, BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ">=?", filter.minQuantity);
+        appendClause(selection, args, BookContract.BookEntry.COLUMN_BOOK_QUANTITY + "<=?", filter.maxQuantity);
+        appendClause(selection, args, BookContract.BookEntry.COLUMN_BOOK_AUTHOR + "=?", filter.author);
+        appendClause(selection, args, BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME + "=?", filter.supplier);
+        appendClause(selection, args, BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID + "=?", filter.globalId);
+        appendClause(selection, args, BookContract.BookEntry.COLUMN_BOOK_DIRTY + "=?",
+                filter.dirty == null ? null : filter.dirty ? 1 : 0);
+        if (filter.changedAfterId == null) {
+            appendClause(selection, args, BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + ">?", filter.changedAfter);
+        } else if (filter.changedAfter != null) {
+            appendClause(selection, args, "(" + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + ">? OR ("
+                    + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + "=? AND " + BookContract.BookEntry._ID + ">?))",
+                    filter.changedAfter);
+            args.add(String.valueOf(filter.changedAfter));
+            args.add(String.valueOf(filter.changedAfterId));
+        }
+        appendClause(selection, args, BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + "=?", filter.changeSeq);
+        return selection.length() == 0 ? null : selection.toString();
+    }
+
+    private static void appendClause(StringBuilder selection, List<String> args, String clause, Object value) {
+        if (value == null) {
+            return;
+        }
+        if (selection.length() > 0) {
+            selection.append(" AND ");
+        }
+        selection.append(clause);
+        args.add(String.valueOf(value));
+    }
+
+    /**
+     * Combine the selection of a filter with the clause on the deleted flag, either of them
+     * possibly null.
+     */
+    private static String where(String selection, String deletedClause) {
+        if (selection == null) {
+            return deletedClause;
+        }
+        return deletedClause == null ? selection : deletedClause + " AND " + selection;
+    }
+
+    /**
+     * Copy the values of a new book, stamped with the given change sequence and with the sync
+     * bookkeeping of a new book.
+     */
+    private static ContentValues prepareInsert(ContentValues values, long changeSeq, boolean callerIsSyncAdapter) {
+        values = new ContentValues(values);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ, changeSeq);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_DEDUP_KEY, BookDuplicates.key(
+                values.getAsString(BookContract.BookEntry.COLUMN_BOOK_NAME),
+                values.getAsString(BookContract.BookEntry.COLUMN_BOOK_AUTHOR),
+                values.getAsString(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME)));
+        if (values.getAsString(BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID) == null) {
+            values.put(BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID, UUID.randomUUID().toString());
+        }
+        encryptSupplierContact(values);
+        if (!callerIsSyncAdapter) {
+            // A book created on this till has never been agreed with the sync server
+            values.put(BookContract.BookEntry.COLUMN_BOOK_DIRTY, 1);
+            values.put(BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY, 0);
+        }
+        return values;
+    }
+
+    /**
+     * Replace the supplier phone number of the values, already validated, with the form it is
+     * stored in.
+     */
+    private static void encryptSupplierContact(ContentValues values) {
+        SupplierCipher cipher = SupplierCipher.getInstance();
+        String phoneNr = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR);
+        if (cipher != null && phoneNr != null) {
+            values.put(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR, cipher.toStored(phoneNr));
+        }
+    }
+
+    /**
+     * Update the books matching the filter and the clause on their deleted flag, see below.
+     */
+    private int updateWithChangeSeq(ContentValues values, Filter filter, String deletedClause, boolean markDirty) {
+        List<String> args = new ArrayList<>();
+        String selection = where(buildSelection(filter, args), deletedClause);
+        return updateWithChangeSeq(mDbHelper.getWritableDatabase(), values, selection,
+                args.toArray(new String[args.size()]), markDirty);
+    }
+
+    /**
+     * Update the books that match the selection with the given values, stamping them with a new
+     * change sequence in the same transaction, and marking them dirty for the sync engine if
+     * requested. Return the number of rows updated.
+     */
+    private static int updateWithChangeSeq(SQLiteDatabase database, ContentValues values,
+                                   String selection, String[] selectionArgs, boolean markDirty) {
+        boolean nested = database.inTransaction();
+        database.beginTransaction();
+        try {
+            values = new ContentValues(values);
+            values.put(BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ, nextChangeSeq(database));
+            if (markDirty) {
+                values.put(BookContract.BookEntry.COLUMN_BOOK_DIRTY, 1);
+            }
+            int rowsUpdated = database.update(BOOKS, values, selection, selectionArgs);
+            // Only keep the new sequence if something actually changed, or if rolling back
+            // would roll back the whole batch this is part of
+            if (rowsUpdated != 0 || nested) {
+                database.setTransactionSuccessful();
+            }
+            return rowsUpdated;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Take the next value of the change sequence. Must be called inside the transaction of the
+     * write it stamps, so the sequence and the rows are committed together.
+     */
+    static long nextChangeSeq(SQLiteDatabase database) {
+        database.execSQL("UPDATE " + BookDbHelper.CHANGE_SEQUENCE_TABLE_NAME + " SET "
+                + BookDbHelper.COLUMN_CHANGE_SEQUENCE_VALUE + "=" + BookDbHelper.COLUMN_CHANGE_SEQUENCE_VALUE + "+1");
+        return DatabaseUtils.longForQuery(database, "SELECT " + BookDbHelper.COLUMN_CHANGE_SEQUENCE_VALUE
+                + " FROM " + BookDbHelper.CHANGE_SEQUENCE_TABLE_NAME, null);
+    }
+
+    /**
+     * Return the IDs of the books that match the selection and selection arguments.
+     */
+    private static long[] queryIds(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        Cursor cursor = database.query(BOOKS, new String[]{BookContract.BookEntry._ID},
+                selection, selectionArgs, null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.example.android.bookstore2.BuildConfig;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encryption at rest of the supplier phone numbers, the contact data the database holds.
+ *
+ * Builds with BuildConfig.ENCRYPT_SUPPLIER_CONTACTS set store the phone numbers of the books and
+ * purchase orders encrypted with AES-GCM, under a key generated in the Android Keystore, so it
+ * never leaves the secure hardware and never appears in a backup. The key store needs
+ * Android 6.0: on older devices the numbers stay in plain text.
+ *
+ * The provider encrypts the numbers it writes and decrypts the columns of the cursors it returns,
+ * so its callers, the sync engine included, only ever see plain text. Values stored before the
+ * mode was switched on (or off) are converted by {@link #scheduleMigration} in the background,
+ * and meanwhile both forms are read.
+ */
+final class SupplierCipher {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = SupplierCipher.class.getSimpleName();
+
+    static final String KEY_STORE = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "bookstore_supplier_contacts";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_SIZE = 256;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+
+    /**
+     * Prefix of the encrypted values, followed by the Base64 of the IV and the ciphertext
+     */
+    static final String PREFIX = "enc1:";
+
+    /**
+     * Name of the encrypted column, the same in the books and purchase orders tables
+     */
+    static final String COLUMN = BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR;
+
+    /**
+     * Number of values converted in a single transaction by the migration
+     */
+    private static final int MIGRATION_BATCH_SIZE = 200;
+
+    /**
+     * Every call to the key goes through the key store daemon, so the few numbers of the
+     * suppliers are kept in memory both ways
+     */
+    private static final int CACHE_SIZE = 256;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private static SupplierCipher sInstance;
+    private static boolean sLoaded;
+
+    private final SecretKey mKey;
+    private final boolean mEnabled;
+    private final LruCache<String, String> mPlaintexts = new LruCache<>(CACHE_SIZE);
+    private final LruCache<String, String> mCiphertexts = new LruCache<>(CACHE_SIZE);
+
+    /**
+     * Return the cipher of the supplier contacts, or null if no value can be encrypted in this
+     * build on this device.
+     */
+    static synchronized SupplierCipher getInstance() {
+        if (!sLoaded) {
+            sLoaded = true;
+            sInstance = load(BuildConfig.ENCRYPT_SUPPLIER_CONTACTS);
+        }
+        return sInstance;
+    }
+
+    private static SupplierCipher load(boolean enabled) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            if (enabled) {
+                Log.w(LOG_TAG, "No key store on this device, supplier contacts stay in plain text");
+            }
+            return null;
+        }
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KEY_STORE);
+            keyStore.load(null);
+            SecretKey key = (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+            if (key == null) {
+                if (!enabled) {
+                    // Nothing was ever encrypted
+                    return null;
+                }
+                key = generateKey(KEY_ALIAS);
+            }
+            // With the mode off, the key is still needed to read the values encrypted before
+            return new SupplierCipher(key, enabled);
+        } catch (GeneralSecurityException | IOException e) {
+            Log.e(LOG_TAG, "Key store unavailable, supplier contacts stay in plain text", e);
+            return null;
+        }
+    }
+
+    /**
+     * Generate a key in the key store under the given alias.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    static SecretKey generateKey(String alias) throws GeneralSecurityException {
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEY_STORE);
+        generator.init(new KeyGenParameterSpec.Builder(alias,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(KEY_SIZE)
+                .build());
+        return generator.generateKey();
+    }
+
+    SupplierCipher(SecretKey key, boolean enabled) {
+        mKey = key;
+        mEnabled = enabled;
+    }
+
+    /**
+     * Return the key of the cipher.
+     */
+    SecretKey getKey() {
+        return mKey;
+    }
+
+    /**
+     * Return true if the values written have to be encrypted.
+     */
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Return true if the stored value is encrypted.
+     */
+    static boolean isEncrypted(String value) {
+        return value != null && value.startsWith(PREFIX);
+    }
+
+    /**
+     * Return the value to store for the given plain text.
+     */
+    String encrypt(String plaintext) {
+        if (plaintext == null) {
+            return null;
+        }
+        // A number still in the cache gets the ciphertext it got last time, which only tells
+        // what the supplier name stored next to it already does. Once evicted it gets a new IV,
+        // so the stored forms of a number differ and can't be compared or grouped in SQL.
+        String cached = mCiphertexts.get(plaintext);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, mKey);
+            byte[] iv = cipher.getIV();
+            byte[] ciphertext = cipher.doFinal(plaintext.getBytes(UTF_8));
+            byte[] stored = new byte[iv.length + ciphertext.length];
+            System.arraycopy(iv, 0, stored, 0, iv.length);
+            System.arraycopy(ciphertext, 0, stored, iv.length, ciphertext.length);
+            String value = PREFIX + Base64.encodeToString(stored, Base64.NO_WRAP);
+            mCiphertexts.put(plaintext, value);
+            mPlaintexts.put(value, plaintext);
+            return value;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to encrypt a supplier contact", e);
+        }
+    }
+
+    /**
+     * Return the plain text of a stored value. Values in plain text are returned as they are,
+     * and values that can't be decrypted (e.g. restored from another device) as null.
+     */
+    String decrypt(String value) {
+        if (!isEncrypted(value)) {
+            return value;
+        }
+        String cached = mPlaintexts.get(value);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            byte[] stored = Base64.decode(value.substring(PREFIX.length()), Base64.NO_WRAP);
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, mKey, new GCMParameterSpec(TAG_LENGTH, stored, 0, IV_LENGTH));
+            String plaintext = new String(cipher.doFinal(stored, IV_LENGTH, stored.length - IV_LENGTH), UTF_8);
+            mPlaintexts.put(value, plaintext);
+            return plaintext;
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            Log.e(LOG_TAG, "Failed to decrypt a supplier contact", e);
+            return null;
+        }
+    }
+
+    /**
+     * Return the value to store for the given plain text in the current mode.
+     */
+    String toStored(String plaintext) {
+        return mEnabled ? encrypt(plaintext) : plaintext;
+    }
+
+    /**
+     * Return a cursor decrypting the encrypted column of the given one, or the cursor itself if
+     * it doesn't have the column.
+     */
+    Cursor wrap(Cursor cursor) {
+        final int column = cursor.getColumnIndex(COLUMN);
+        if (column == -1) {
+            return cursor;
+        }
+        return new CursorWrapper(cursor) {
+            @Override
+            public String getString(int columnIndex) {
+                String value = super.getString(columnIndex);
+                return columnIndex == column ? decrypt(value) : value;
+            }
+        };
+    }
+
+    /**
+     * Convert the values stored in the other mode to the current one, in the background.
+     */
+    static void scheduleMigration(Context context) {
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Loading the key goes through the key store daemon, off the UI thread too
+                SupplierCipher cipher = getInstance();
+                if (cipher == null) {
+                    return;
+                }
+                SQLiteDatabase database = BookDbHelper.getInstance(appContext).getWritableDatabase();
+                int converted = cipher.migrate(database, BookContract.BookEntry.TABLE_NAME)
+                        + cipher.migrate(database, BookContract.PurchaseOrderEntry.TABLE_NAME);
+                if (converted > 0) {
+                    Log.i(LOG_TAG, converted + " supplier contacts " + (cipher.mEnabled ? "encrypted" : "decrypted"));
+                }
+            }
+        });
+    }
+
+    /**
+     * Convert the values of a table stored in the other mode, in small batches walking the
+     * table in ID order, each one in its own short transaction. Return the number of values
+     * converted. Must not be called on the UI thread.
+     */
+    int migrate(SQLiteDatabase database, String table) {
+        String selectBatch = "SELECT " + BookContract.BookEntry._ID + ", " + COLUMN + " FROM " + table
+                + " WHERE " + BookContract.BookEntry._ID + ">? AND " + COLUMN + (mEnabled ? " NOT" : "")
+                + " GLOB '" + PREFIX + "*' ORDER BY " + BookContract.BookEntry._ID + " LIMIT " + MIGRATION_BATCH_SIZE;
+        // Only if the value is still the one read, so an edit made meanwhile is never lost.
+        // The stored form isn't a change of the book: no change sequence, nothing to sync.
+        SQLiteStatement update = database.compileStatement("UPDATE " + table + " SET " + COLUMN + "=?"
+                + " WHERE " + BookContract.BookEntry._ID + "=? AND " + COLUMN + "=?");
+        long lastId = 0;
+        int rowsConverted = 0;
+        int batchSize;
+        try {
+            do {
+                batchSize = 0;
+                database.beginTransaction();
+                try {
+                    Cursor cursor = database.rawQuery(selectBatch, new String[]{String.valueOf(lastId)});
+                    try {
+                        while (cursor.moveToNext()) {
+                            batchSize++;
+                            lastId = cursor.getLong(0);
+                            String value = cursor.getString(1);
+                            String newValue = mEnabled ? encrypt(value) : decrypt(value);
+                            if (newValue == null) {
+                                // Can't be decrypted anymore, leave it
+                                continue;
+                            }
+                            update.bindString(1, newValue);
+                            update.bindLong(2, lastId);
+                            update.bindString(3, value);
+                            rowsConverted += update.executeUpdateDelete();
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            } while (batchSize == MIGRATION_BATCH_SIZE);
+        } finally {
+            update.close();
+        }
+        return rowsConverted;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The supplier directory: one row per supplier of the books, with its phone number, its number
+ * of books and its total stock.
+ *
+ * The rows are computed with a single GROUP BY over the covering index of the directory, which
+ * only reads the books table to find the most recently changed book of each supplier, the one
+ * its phone number is taken from. They are kept in memory until a write to the books invalidates
+ * them.
+ * Opening the supplier list or looking up the number of a supplier is then a lookup in memory.
+ */
+final class SupplierDirectory {
+
+    /**
+     * Columns of the directory, in the order of the rows
+     */
+    static final String[] COLUMNS = {
+            BookContract.SupplierEntry._ID,
+            BookContract.SupplierEntry.COLUMN_SUPPLIER_NAME,
+            BookContract.SupplierEntry.COLUMN_SUPPLIER_PHONE_NR,
+            BookContract.SupplierEntry.COLUMN_SUPPLIER_BOOK_COUNT,
+            BookContract.SupplierEntry.COLUMN_SUPPLIER_STOCK};
+
+    private static final int COLUMN_NAME = 1;
+    private static final int COLUMN_PHONE_NR = 2;
+
+    /**
+     * Phone number of a supplier, the one of its most recently changed active book that has a
+     * number, for a query grouping the books table by supplier. Comparing the stored numbers
+     * wouldn't do: an encrypted number is stored in a different form every time it is written.
+     */
+    static final String SQL_LATEST_PHONE_NR = "(SELECT p." + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR
+            + " FROM " + BookContract.BookEntry.TABLE_NAME + " p"
+            + " WHERE p." + BookContract.BookEntry.COLUMN_BOOK_DELETED + "=" + BookContract.BookEntry.BOOK_ACTIVE
+            + " AND p." + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME + "=" + BookContract.BookEntry.TABLE_NAME
+            + "." + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME
+            + " AND p." + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR + " IS NOT NULL"
+            + " ORDER BY p." + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + " DESC, p." + BookContract.BookEntry._ID + " DESC"
+            + " LIMIT 1)";
+
+    /**
+     * Groups the active books in the order of the directory index, so no temporary B-tree is
+     * needed. The lowest book ID gives a stable ID to the row, and the number of every supplier
+     * is looked up through the same index.
+     */
+    private static final String SQL_QUERY = "SELECT MIN(" + BookContract.BookEntry._ID + ")"
+            + ", " + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME
+            + ", " + SQL_LATEST_PHONE_NR
+            + ", COUNT(*)"
+            + ", SUM(" + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ")"
+            + " FROM " + BookContract.BookEntry.TABLE_NAME
+            + " WHERE " + BookContract.BookEntry.COLUMN_BOOK_DELETED + "=" + BookContract.BookEntry.BOOK_ACTIVE
+            + " AND " + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME + " IS NOT NULL"
+            + " GROUP BY " + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME
+            + " ORDER BY " + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME;
+
+    /**
+     * Cached directory, null until computed or once invalidated
+     */
+    private static Directory sDirectory;
+
+    /**
+     * Incremented by every invalidation, so rows computed before a write committed are never
+     * cached after it
+     */
+    private static long sGeneration;
+
+    private SupplierDirectory() {
+    }
+
+    /**
+     * Return all the suppliers, sorted by name.
+     */
+    static Cursor query(SQLiteDatabase database) {
+        Directory directory = getDirectory(database);
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, directory.rows.length);
+        for (Object[] row : directory.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Return the supplier with the given name, empty if there is none.
+     */
+    static Cursor query(SQLiteDatabase database, String name) {
+        Directory directory = getDirectory(database);
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, 1);
+        Integer position = directory.positions.get(name);
+        if (position != null) {
+            cursor.addRow(directory.rows[position]);
+        }
+        return cursor;
+    }
+
+    /**
+     * Drop the cached rows. Called once a write to the books is committed.
+     */
+    static synchronized void invalidate() {
+        sGeneration++;
+        sDirectory = null;
+    }
+
+    /**
+     * Return the cached directory, computing it first if needed.
+     */
+    private static Directory getDirectory(SQLiteDatabase database) {
+        long generation;
+        synchronized (SupplierDirectory.class) {
+            if (sDirectory != null) {
+                return sDirectory;
+            }
+            generation = sGeneration;
+        }
+
+        // Computed outside the lock, so a slow query never blocks the readers of the cache
+        SupplierCipher cipher = SupplierCipher.getInstance();
+        Cursor cursor = database.rawQuery(SQL_QUERY, null);
+        Object[][] rows;
+        Map<String, Integer> positions = new HashMap<>();
+        try {
+            rows = new Object[cursor.getCount()][];
+            while (cursor.moveToNext()) {
+                String phoneNr = cursor.getString(COLUMN_PHONE_NR);
+                rows[cursor.getPosition()] = new Object[]{cursor.getLong(0), cursor.getString(COLUMN_NAME),
+                        cipher == null ? phoneNr : cipher.decrypt(phoneNr), cursor.getInt(3), cursor.getLong(4)};
+                positions.put(cursor.getString(COLUMN_NAME), cursor.getPosition());
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Directory directory = new Directory(rows, positions);
+        synchronized (SupplierDirectory.class) {
+            if (generation == sGeneration) {
+                sDirectory = directory;
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Immutable rows of the directory, with the position of each supplier by name.
+     */
+    private static final class Directory {
+
+        final Object[][] rows;
+        final Map<String, Integer> positions;
+
+        Directory(Object[][] rows, Map<String, Integer> positions) {
+            this.rows = rows;
+            this.positions = positions;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.sync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-process stand-in for the sync server. Several {@link SyncEngine}s sharing one instance
+ * behave like tills syncing against the same inventory, without any network.
+ *
+ * Quantities are merged by adding up the deltas pushed by every till, so concurrent sales on
+ * different tills are never lost. The other fields follow the last push, and deletes win.
+ */
+public class LoopbackSyncServer implements SyncTransport {
+
+    /**
+     * Latest state of every book known by the server, by global ID
+     */
+    private final Map<String, SyncRecord> mRecords = new HashMap<>();
+
+    /**
+     * Global ID of the book changed at every server sequence, so a pull only walks the changes
+     * after the caller's sequence
+     */
+    private final TreeMap<Long, String> mChanges = new TreeMap<>();
+
+    /**
+     * Last server sequence given to a change
+     */
+    private long mServerSeq;
+
+    @Override
+    public synchronized List<SyncRecord> push(List<SyncRecord> changes) {
+        List<SyncRecord> merged = new ArrayList<>(changes.size());
+        for (SyncRecord change : changes) {
+            SyncRecord current = mRecords.get(change.globalId);
+            int quantity = change.quantityDelta;
+            boolean deleted = change.deleted;
+            if (current != null) {
+                // Sales events from all the tills add up
+                quantity += current.quantity;
+                deleted |= current.deleted;
+                mChanges.remove(current.serverSeq);
+            }
+            long serverSeq = ++mServerSeq;
+            SyncRecord record = new SyncRecord(change.globalId, change.name, change.author,
+                    change.price, change.supplierName, change.supplierPhoneNr, quantity, 0,
+                    deleted, serverSeq);
+            mRecords.put(record.globalId, record);
+            mChanges.put(serverSeq, record.globalId);
+            merged.add(record);
+        }
+        return merged;
+    }
+
+    @Override
+    public synchronized List<SyncRecord> pull(long sinceServerSeq, int limit) {
+        List<SyncRecord> records = new ArrayList<>();
+        for (String globalId : mChanges.tailMap(sinceServerSeq, false).values()) {
+            if (records.size() == limit) {
+                break;
+            }
+            records.add(mRecords.get(globalId));
+        }
+        return records;
+    }
+
+    /**
+     * Return the merged quantity of a book, or -1 if the server doesn't know it.
+     */
+    public synchronized int getQuantity(String globalId) {
+        SyncRecord record = mRecords.get(globalId);
+        return record == null ? -1 : record.quantity;
+    }
+}
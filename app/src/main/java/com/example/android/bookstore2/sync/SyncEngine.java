@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.bookstore2.data.BookContract;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replicates the books of this till with the other tills of the shop through a
+ * {@link SyncTransport}.
+ *
+ * A sync first pushes the dirty books in batches, then pulls the books changed on the server
+ * since the last sync. Stock is merged as sales events: a till pushes the quantity change it made
+ * since the last agreed quantity ({@link BookContract.BookEntry#COLUMN_BOOK_SYNCED_QUANTITY}),
+ * and rebases its own pending changes on top of the merged quantity it gets back. Local writes
+ * racing with the sync are detected through the change sequence of the book and retried.
+ *
+ * Must not be called on the UI thread.
+ */
+public class SyncEngine {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = SyncEngine.class.getSimpleName();
+
+    /**
+     * Number of books pushed or pulled in a single round trip
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * Number of times a book is re-read when a local write races with the sync
+     */
+    private static final int MAX_RETRIES = 5;
+
+    /**
+     * Shared preferences key of the last server sequence pulled by this till
+     */
+    private static final String KEY_LAST_SERVER_SEQ = "last_server_seq";
+
+    /**
+     * Books URI used by the sync engine, so its writes don't mark the books dirty again
+     */
+    private static final Uri SYNC_URI = BookContract.BookEntry.CONTENT_URI.buildUpon()
+            .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER, "true")
+            .build();
+
+    /**
+     * Columns of a book read by the sync engine
+     */
+    private static final String[] PROJECTION = {
+            BookContract.BookEntry._ID,
+            BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID,
+            BookContract.BookEntry.COLUMN_BOOK_NAME,
+            BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
+            BookContract.BookEntry.COLUMN_BOOK_PRICE,
+            BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME,
+            BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR,
+            BookContract.BookEntry.COLUMN_BOOK_QUANTITY,
+            BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY,
+            BookContract.BookEntry.COLUMN_BOOK_DIRTY,
+            BookContract.BookEntry.COLUMN_BOOK_DELETED,
+            BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ};
+
+    private final ContentResolver mResolver;
+    private final SharedPreferences mPreferences;
+    private final SyncTransport mTransport;
+
+    /**
+     * Constructs a new {@link SyncEngine}.
+     *
+     * @param context   The context
+     * @param name      Name of the sync state, one per server this till syncs with
+     * @param transport Connection to the sync server
+     */
+    public SyncEngine(Context context, String name, SyncTransport transport) {
+        mResolver = context.getContentResolver();
+        mPreferences = context.getSharedPreferences("sync_" + name, Context.MODE_PRIVATE);
+        mTransport = transport;
+    }
+
+    /**
+     * Push the local changes, then pull the changes of the other tills.
+     */
+    public synchronized void sync() throws IOException {
+        int pushed = push();
+        int pulled = pull();
+        Log.v(LOG_TAG, pushed + " books pushed, " + pulled + " books pulled");
+    }
+
+    /**
+     * Push the dirty books to the server in batches. Return the number of books pushed.
+     */
+    private int push() throws IOException {
+        int pushed = 0;
+        long lastChangeSeq = 0;
+        long lastId = 0;
+        while (true) {
+            // Walk the dirty books by change sequence, so a book re-dirtied during the sync
+            // is pushed again at most once more. A bulk write gives all its rows the same
+            // sequence, so the ID breaks the ties and a batch never stops in the middle of them.
+            List<LocalBook> books = queryBooks(BookContract.BookEntry.CONTENT_CHANGES_URI.buildUpon()
+                    .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_DIRTY, "true")
+                    .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_SINCE, String.valueOf(lastChangeSeq))
+                    .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_AFTER_ID, String.valueOf(lastId))
+                    .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_LIMIT, String.valueOf(BATCH_SIZE))
+                    .build());
+            if (books.isEmpty()) {
+                return pushed;
+            }
+
+            List<SyncRecord> changes = new ArrayList<>(books.size());
+            for (LocalBook book : books) {
+                changes.add(book.toChange());
+                lastChangeSeq = book.changeSeq;
+                lastId = book.id;
+            }
+            List<SyncRecord> merged = mTransport.push(changes);
+            for (int i = 0; i < books.size(); i++) {
+                acknowledge(books.get(i), merged.get(i));
+            }
+            pushed += books.size();
+            if (books.size() < BATCH_SIZE) {
+                return pushed;
+            }
+        }
+    }
+
+    /**
+     * Store the merged state returned by the server for a pushed book.
+     */
+    private void acknowledge(LocalBook pushed, SyncRecord merged) {
+        // Usual case: the book didn't change since it was read, so it is now clean
+        ContentValues values = new ContentValues();
+        values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, merged.quantity);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY, merged.quantity);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_DIRTY, 0);
+        if (updateIfUnchanged(pushed, values)) {
+            return;
+        }
+
+        // Otherwise it was sold or edited during the push: keep it dirty, and move the change
+        // made meanwhile on top of the merged quantity
+        LocalBook current = pushed;
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            current = queryBook(current.globalId);
+            if (current == null) {
+                return;
+            }
+            values = new ContentValues();
+            values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY,
+                    merged.quantity + current.quantity - pushed.quantity);
+            values.put(BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY, merged.quantity);
+            if (updateIfUnchanged(current, values)) {
+                return;
+            }
+        }
+        Log.w(LOG_TAG, "Gave up acknowledging " + pushed.globalId + ", it will be pushed again");
+    }
+
+    /**
+     * Pull the books changed on the server since the last sync. Return the number of books pulled.
+     */
+    private int pull() throws IOException {
+        int pulled = 0;
+        long lastServerSeq = mPreferences.getLong(KEY_LAST_SERVER_SEQ, 0);
+        while (true) {
+            List<SyncRecord> records = mTransport.pull(lastServerSeq, BATCH_SIZE);
+            for (SyncRecord record : records) {
+                applyRemote(record);
+                lastServerSeq = Math.max(lastServerSeq, record.serverSeq);
+            }
+            // Save the position after every batch, so an interrupted sync resumes from there
+            mPreferences.edit().putLong(KEY_LAST_SERVER_SEQ, lastServerSeq).apply();
+            pulled += records.size();
+            if (records.size() < BATCH_SIZE) {
+                return pulled;
+            }
+        }
+    }
+
+    /**
+     * Merge a book changed on the server into the local books table.
+     */
+    private void applyRemote(SyncRecord record) {
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            LocalBook local = queryBook(record.globalId);
+            if (local == null) {
+                // New book created on another till
+                if (!record.deleted) {
+                    ContentValues values = fieldsOf(record);
+                    values.put(BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID, record.globalId);
+                    values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, record.quantity);
+                    values.put(BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY, record.quantity);
+                    mResolver.insert(SYNC_URI, values);
+                }
+                return;
+            }
+            if (local.deleted) {
+                // Deletes win, and a local delete is pushed by the next sync if not yet
+                return;
+            }
+            if (record.deleted) {
+                mResolver.delete(ContentUris.withAppendedId(SYNC_URI, local.id), null, null);
+                return;
+            }
+
+            // Keep the local changes that haven't been pushed yet on top of the merged quantity.
+            // The other fields of a dirty book are only replaced once its own edit is pushed.
+            ContentValues values = local.dirty ? new ContentValues() : fieldsOf(record);
+            values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY,
+                    record.quantity + local.quantity - local.syncedQuantity);
+            values.put(BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY, record.quantity);
+            if (updateIfUnchanged(local, values)) {
+                return;
+            }
+        }
+        Log.w(LOG_TAG, "Gave up applying " + record);
+    }
+
+    /**
+     * Update a book only if it didn't change since it was read. Return true if it was updated.
+     */
+    private boolean updateIfUnchanged(LocalBook book, ContentValues values) {
+        Uri uri = ContentUris.withAppendedId(SYNC_URI, book.id).buildUpon()
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_CHANGE_SEQ, String.valueOf(book.changeSeq))
+                .build();
+        return mResolver.update(uri, values, null, null) != 0;
+    }
+
+    /**
+     * Return the fields of a book that follow the last push, as content values.
+     */
+    private static ContentValues fieldsOf(SyncRecord record) {
+        ContentValues values = new ContentValues();
+        values.put(BookContract.BookEntry.COLUMN_BOOK_NAME, record.name);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_AUTHOR, record.author);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_PRICE, record.price);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME, record.supplierName);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR, record.supplierPhoneNr);
+        return values;
+    }
+
+    /**
+     * Read a book by its global ID, tombstones included. Return null if it doesn't exist.
+     */
+    private LocalBook queryBook(String globalId) {
+        List<LocalBook> books = queryBooks(SYNC_URI.buildUpon()
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_GLOBAL_ID, globalId)
+                .build());
+        return books.isEmpty() ? null : books.get(0);
+    }
+
+    private List<LocalBook> queryBooks(Uri uri) {
+        List<LocalBook> books = new ArrayList<>();
+        Cursor cursor = mResolver.query(uri, PROJECTION, null, null, null);
+        if (cursor == null) {
+            return books;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                books.add(new LocalBook(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return books;
+    }
+
+    /**
+     * Local state of a book, as read in {@link #PROJECTION} order.
+     */
+    private static final class LocalBook {
+        final long id;
+        final String globalId;
+        final String name;
+        final String author;
+        final double price;
+        final String supplierName;
+        final String supplierPhoneNr;
+        final int quantity;
+        final int syncedQuantity;
+        final boolean dirty;
+        final boolean deleted;
+        final long changeSeq;
+
+        LocalBook(Cursor cursor) {
+            id = cursor.getLong(0);
+            globalId = cursor.getString(1);
+            name = cursor.getString(2);
+            author = cursor.getString(3);
+            price = cursor.getDouble(4);
+            supplierName = cursor.getString(5);
+            supplierPhoneNr = cursor.getString(6);
+            quantity = cursor.getInt(7);
+            syncedQuantity = cursor.getInt(8);
+            dirty = cursor.getInt(9) != 0;
+            deleted = cursor.getInt(10) == BookContract.BookEntry.BOOK_DELETED;
+            changeSeq = cursor.getLong(11);
+        }
+
+        SyncRecord toChange() {
+            return new SyncRecord(globalId, name, author, price, supplierName, supplierPhoneNr,
+                    quantity, quantity - syncedQuantity, deleted, 0);
+        }
+    }
+}
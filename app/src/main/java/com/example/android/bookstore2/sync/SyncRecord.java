@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.sync;
+
+/**
+ * Immutable state of a book exchanged between a till and the sync server.
+ *
+ * When pushed by a till, {@link #quantityDelta} holds the sales and restocks made locally since
+ * the last sync. When returned by the server, {@link #quantity} holds the merged stock of all the
+ * tills and {@link #serverSeq} the position of the change in the server's feed.
+ */
+public final class SyncRecord {
+
+    public final String globalId;
+    public final String name;
+    public final String author;
+    public final double price;
+    public final String supplierName;
+    public final String supplierPhoneNr;
+    public final int quantity;
+    public final int quantityDelta;
+    public final boolean deleted;
+    public final long serverSeq;
+
+    public SyncRecord(String globalId, String name, String author, double price,
+                      String supplierName, String supplierPhoneNr, int quantity, int quantityDelta,
+                      boolean deleted, long serverSeq) {
+        this.globalId = globalId;
+        this.name = name;
+        this.author = author;
+        this.price = price;
+        this.supplierName = supplierName;
+        this.supplierPhoneNr = supplierPhoneNr;
+        this.quantity = quantity;
+        this.quantityDelta = quantityDelta;
+        this.deleted = deleted;
+        this.serverSeq = serverSeq;
+    }
+
+    @Override
+    public String toString() {
+        return "SyncRecord{" + globalId + ", quantity=" + quantity + ", delta=" + quantityDelta
+                + ", deleted=" + deleted + ", seq=" + serverSeq + "}";
+    }
+}
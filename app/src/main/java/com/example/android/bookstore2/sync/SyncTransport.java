@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.sync;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Connection between a till's {@link SyncEngine} and the sync server. Implementations can talk
+ * to a remote server over the network, or to an in-process {@link LoopbackSyncServer}.
+ */
+public interface SyncTransport {
+
+    /**
+     * Send a batch of local changes to the server. The server merges the quantity deltas with the
+     * sales of the other tills, and returns the merged state of every pushed book, in order.
+     */
+    List<SyncRecord> push(List<SyncRecord> changes) throws IOException;
+
+    /**
+     * Read at most {@code limit} books changed on the server after the given server sequence,
+     * in the order they changed.
+     */
+    List<SyncRecord> pull(long sinceServerSeq, int limit) throws IOException;
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.bookstore2.data.BookContract;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress harness of {@link com.example.android.bookstore2.data.BookProvider}, run by
+ * {@link ProviderStressTest}.
+ *
+ * Several threads run a mix of sales, restocks, edits, queries and bulk imports against the
+ * provider behind the given resolver. Every operation is timed, and once all the threads are done
+ * the harness checks that no stock went below 0 and that no sale or restock was lost.
+ */
+final class ProviderStressHarness {
+
+    /**
+     * Supplier of the books created by the harness
+     */
+    static final String SUPPLIER = "Stress harness";
+
+    private static final String PHONE_NR = "5550000000";
+
+    /**
+     * Kinds of operations, with their share of the traffic in percent
+     */
+    private static final int SELL = 0;
+    private static final int RESTOCK = 1;
+    private static final int EDIT = 2;
+    private static final int QUERY = 3;
+    private static final int IMPORT = 4;
+    private static final String[] OPERATION_NAMES = {"sell", "restock", "edit", "query", "import"};
+    private static final int[] OPERATION_SHARES = {40, 10, 15, 30, 5};
+
+    /**
+     * Number of books of a bulk import
+     */
+    private static final int IMPORT_ROWS = 20;
+
+    private final ContentResolver mResolver;
+    private final int mThreadCount;
+    private final int mOperationsPerThread;
+    private final int mBookCount;
+    private final int mInitialStock;
+
+    /**
+     * @param threadCount         Number of threads writing at the same time
+     * @param operationsPerThread Number of operations run by each thread
+     * @param bookCount           Number of books the sales and restocks fight over
+     * @param initialStock        Number of copies of each book at the start
+     */
+    ProviderStressHarness(ContentResolver resolver, int threadCount, int operationsPerThread,
+                          int bookCount, int initialStock) {
+        mResolver = resolver;
+        mThreadCount = threadCount;
+        mOperationsPerThread = operationsPerThread;
+        mBookCount = bookCount;
+        mInitialStock = initialStock;
+    }
+
+    /**
+     * Run the harness and return its report.
+     */
+    Result run() throws InterruptedException {
+        final long[] ids = createBooks();
+        final AtomicIntegerArray sold = new AtomicIntegerArray(ids.length);
+        final AtomicIntegerArray restocked = new AtomicIntegerArray(ids.length);
+        final AtomicLong negativeStockSeen = new AtomicLong();
+        final long[][][] latencies = new long[mThreadCount][OPERATION_NAMES.length][];
+        final int[][] counts = new int[mThreadCount][OPERATION_NAMES.length];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(mThreadCount);
+        final Throwable[] failure = new Throwable[1];
+
+        for (int t = 0; t < mThreadCount; t++) {
+            final int thread = t;
+            for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+                latencies[thread][operation] = new long[mOperationsPerThread];
+            }
+            new Thread("StressHarness-" + t) {
+                @Override
+                public void run() {
+                    Random random = new Random(thread);
+                    try {
+                        start.await();
+                        for (int i = 0; i < mOperationsPerThread; i++) {
+                            int operation = pickOperation(random);
+                            int book = random.nextInt(ids.length);
+                            long begin = System.nanoTime();
+                            switch (operation) {
+                                case SELL:
+                                    if (sell(ids[book])) {
+                                        sold.incrementAndGet(book);
+                                    }
+                                    break;
+                                case RESTOCK:
+                                    if (restock(ids[book])) {
+                                        restocked.incrementAndGet(book);
+                                    }
+                                    break;
+                                case EDIT:
+                                    edit(ids[book], random.nextInt(50));
+                                    break;
+                                case QUERY:
+                                    negativeStockSeen.addAndGet(countNegativeStock());
+                                    break;
+                                case IMPORT:
+                                    importBooks(thread, i);
+                                    break;
+                            }
+                            latencies[thread][operation][counts[thread][operation]++] = System.nanoTime() - begin;
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        // The clock of Robolectric only moves when told to, the wall clock measures the run
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = (System.nanoTime() - begin) / 1000000;
+
+        Result result = new Result();
+        result.mElapsedMillis = elapsed;
+        result.mOperations = (long) mThreadCount * mOperationsPerThread;
+        result.mFailure = failure[0];
+        result.mNegativeStockSeen = negativeStockSeen.get();
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            result.mLatencies[operation] = merge(latencies, counts, operation);
+        }
+
+        // Every successful sale and restock must show in the final stock, exactly once
+        for (int book = 0; book < ids.length; book++) {
+            int expected = mInitialStock - sold.get(book) + restocked.get(book);
+            int actual = getQuantity(ids[book]);
+            if (actual != expected) {
+                result.mLostUpdates++;
+                result.mViolations.add("Book " + ids[book] + ": quantity " + actual + ", expected " + expected);
+            }
+            if (actual < 0) {
+                result.mViolations.add("Book " + ids[book] + ": negative quantity " + actual);
+            }
+        }
+        return result;
+    }
+
+    private static int pickOperation(Random random) {
+        int share = random.nextInt(100);
+        for (int operation = 0; operation < OPERATION_SHARES.length; operation++) {
+            share -= OPERATION_SHARES[operation];
+            if (share < 0) {
+                return operation;
+            }
+        }
+        return QUERY;
+    }
+
+    private long[] createBooks() {
+        ContentValues[] rows = new ContentValues[mBookCount];
+        for (int i = 0; i < mBookCount; i++) {
+            rows[i] = newBook("Stress book " + i, mInitialStock);
+        }
+        mResolver.bulkInsert(BookContract.BookEntry.CONTENT_URI, rows);
+
+        long[] ids = new long[mBookCount];
+        Cursor cursor = mResolver.query(buildSupplierUri(), new String[]{BookContract.BookEntry._ID},
+                null, null, BookContract.BookEntry._ID + " ASC");
+        try {
+            int count = 0;
+            while (cursor.moveToNext() && count < ids.length) {
+                ids[count++] = cursor.getLong(0);
+            }
+            if (count != ids.length) {
+                throw new IllegalStateException("Only " + count + " of " + ids.length + " stress books created");
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    private static ContentValues newBook(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookContract.BookEntry.COLUMN_BOOK_NAME, name);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_AUTHOR, "Harness");
+        values.put(BookContract.BookEntry.COLUMN_BOOK_PRICE, 10);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, quantity);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME, SUPPLIER);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR, PHONE_NR);
+        return values;
+    }
+
+    private Uri buildSupplierUri() {
+        return BookContract.BookEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_SUPPLIER, SUPPLIER).build();
+    }
+
+    private boolean sell(long id) {
+        Bundle result = mResolver.call(BookContract.BookEntry.CONTENT_URI, BookContract.BookEntry.METHOD_SELL,
+                String.valueOf(id), null);
+        return result != null && result.getBoolean(BookContract.BookEntry.EXTRA_SUCCESS);
+    }
+
+    private boolean restock(long id) {
+        Bundle result = mResolver.call(BookContract.BookEntry.CONTENT_URI, BookContract.BookEntry.METHOD_RESTOCK,
+                String.valueOf(id), null);
+        return result != null && result.getBoolean(BookContract.BookEntry.EXTRA_SUCCESS);
+    }
+
+    private int getQuantity(long id) {
+        Bundle result = mResolver.call(BookContract.BookEntry.CONTENT_URI, BookContract.BookEntry.METHOD_GET_QUANTITY,
+                String.valueOf(id), null);
+        return result.getInt(BookContract.BookEntry.EXTRA_QUANTITY);
+    }
+
+    /**
+     * Edit the price only: an edit of the quantity would race with the sales by design.
+     */
+    private void edit(long id, int price) {
+        ContentValues values = new ContentValues();
+        values.put(BookContract.BookEntry.COLUMN_BOOK_PRICE, price);
+        mResolver.update(ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, id), values, null, null);
+    }
+
+    /**
+     * Query the stress books the way the catalogue does, and count the negative quantities seen.
+     */
+    private int countNegativeStock() {
+        Cursor cursor = mResolver.query(buildSupplierUri(), BookContract.BookEntry.PROJECTION_LIST, null, null, null);
+        try {
+            int quantityColumn = cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
+            int negative = 0;
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(quantityColumn) < 0) {
+                    negative++;
+                }
+            }
+            return negative;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Import books that are out of stock, so they never change the stock of the books sold.
+     */
+    private void importBooks(int thread, int operation) {
+        ContentValues[] rows = new ContentValues[IMPORT_ROWS];
+        for (int i = 0; i < IMPORT_ROWS; i++) {
+            rows[i] = newBook("Stress import " + thread + "-" + operation + "-" + i, 0);
+        }
+        mResolver.bulkInsert(BookContract.BookEntry.CONTENT_URI, rows);
+    }
+
+    /**
+     * Merge the latencies of an operation measured by all the threads, sorted.
+     */
+    private static long[] merge(long[][][] latencies, int[][] counts, int operation) {
+        int total = 0;
+        for (int[] threadCounts : counts) {
+            total += threadCounts[operation];
+        }
+        long[] merged = new long[total];
+        int offset = 0;
+        for (int thread = 0; thread < counts.length; thread++) {
+            System.arraycopy(latencies[thread][operation], 0, merged, offset, counts[thread][operation]);
+            offset += counts[thread][operation];
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    /**
+     * Report of a run of the harness.
+     */
+    static final class Result {
+
+        long mElapsedMillis;
+        long mOperations;
+        long mNegativeStockSeen;
+        int mLostUpdates;
+        Throwable mFailure;
+        final List<String> mViolations = new ArrayList<>();
+        final long[][] mLatencies = new long[OPERATION_NAMES.length][];
+
+        /**
+         * Return true if no thread failed and every invariant held.
+         */
+        boolean isSuccessful() {
+            return mFailure == null && mViolations.isEmpty() && mNegativeStockSeen == 0;
+        }
+
+        /**
+         * Return the number of books whose final stock doesn't match the sales and restocks
+         * that succeeded.
+         */
+        int getLostUpdates() {
+            return mLostUpdates;
+        }
+
+        /**
+         * Return the number of negative quantities the queries saw while the threads ran.
+         */
+        long getNegativeStockSeen() {
+            return mNegativeStockSeen;
+        }
+
+        /**
+         * Return the first exception thrown by a thread, or null.
+         */
+        Throwable getFailure() {
+            return mFailure;
+        }
+
+        double getThroughput() {
+            return mElapsedMillis == 0 ? 0 : mOperations * 1000.0 / mElapsedMillis;
+        }
+
+        /**
+         * Return the given percentile of the latency of an operation, in microseconds.
+         */
+        private long getPercentile(int operation, double percentile) {
+            long[] latencies = mLatencies[operation];
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1000;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(isSuccessful() ? "PASSED" : "FAILED")
+                    .append(": ").append(mOperations).append(" operations in ").append(mElapsedMillis)
+                    .append("ms, ").append(String.format("%.1f", getThroughput())).append(" ops/s\n");
+            for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+                report.append(OPERATION_NAMES[operation]).append(": ").append(mLatencies[operation].length)
+                        .append(" ops, p50 ").append(getPercentile(operation, 50))
+                        .append("us, p99 ").append(getPercentile(operation, 99))
+                        .append("us, max ").append(getPercentile(operation, 100)).append("us\n");
+            }
+            report.append("lost updates: ").append(mLostUpdates)
+                    .append(", negative stock seen: ").append(mNegativeStockSeen).append('\n');
+            for (String violation : mViolations) {
+                report.append(violation).append('\n');
+            }
+            if (mFailure != null) {
+                report.append("failure: ").append(mFailure);
+            }
+            return report.toString();
+        }
+    }
+}
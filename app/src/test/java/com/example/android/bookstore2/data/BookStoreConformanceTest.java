@@ -0,0 +1,531 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Conformance suite and workload of the {@link BookStore} implementations.
+ *
+ * Every store runs the same checks, directly and through a {@link BookProvider} keeping its
+ * books in it, and must pass all of them. The same seeded workload of inserts, lookups, filtered
+ * queries, updates and batches is then timed on each store, and its rates printed, so the
+ * performance of the backends can be compared.
+ */
+public abstract class BookStoreConformanceTest {
+
+    private static final String DATABASE_NAME = "store-conformance.db";
+
+    private static final String[] SUPPLIERS = {"Alpha Books", "Beta Press", "Gamma Media"};
+
+    private static final int WORKLOAD_BOOKS = 2000;
+    private static final int WORKLOAD_OPERATIONS = 500;
+
+    private BookDbHelper mDbHelper;
+    private BookStore mStore;
+
+    /**
+     * Return the store under test, on the given database if it keeps its books in one.
+     */
+    abstract BookStore createStore(BookDbHelper dbHelper);
+
+    @Before
+    public void setUp() {
+        mDbHelper = TestProvider.newDatabase(DATABASE_NAME);
+        mStore = createStore(mDbHelper);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        RuntimeEnvironment.application.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void insert_returnsIncreasingIds() {
+        long first = insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+        long second = insert("Matilda", "Roald Dahl", 800, 0, SUPPLIERS[1]);
+
+        assertTrue(first > 0);
+        assertTrue(second > first);
+        assertEquals("Peter Pan", readString(mStore.get(first, null), BookContract.BookEntry.COLUMN_BOOK_NAME));
+        assertEquals(Integer.valueOf(3), mStore.getQuantity(first));
+        assertEquals(2, mStore.count());
+    }
+
+    @Test
+    public void get_unknownBook_isEmpty() {
+        insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+
+        assertEquals(0, count(mStore.get(Long.MAX_VALUE, null)));
+        assertNull(mStore.getQuantity(Long.MAX_VALUE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void insert_rejectsAnEmptyTitle() {
+        insert("", "Nobody", 100, 1, SUPPLIERS[0]);
+    }
+
+    @Test
+    public void update_changesOnlyTheGivenColumns() {
+        long id = insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+        ContentValues price = new ContentValues();
+        price.put(BookContract.BookEntry.COLUMN_BOOK_PRICE, 1099.95);
+
+        assertEquals(1, mStore.update(BookStore.Filter.forBook(id), price, false));
+        assertEquals(1099.95, readDouble(mStore.get(id, null), BookContract.BookEntry.COLUMN_BOOK_PRICE), 0);
+        assertEquals("J. M. Barrie", readString(mStore.get(id, null), BookContract.BookEntry.COLUMN_BOOK_AUTHOR));
+        assertEquals(0, mStore.update(BookStore.Filter.forBook(Long.MAX_VALUE), price, false));
+
+        BookStore.Filter filter = new BookStore.Filter();
+        filter.minPrice = 1099.9;
+        filter.maxPrice = 1099.99;
+        assertEquals(1, count(mStore.query(null, filter, null, false, 0)));
+    }
+
+    @Test
+    public void update_ofAFilter_updatesEveryBookMatching() {
+        insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+        insert("Matilda", "Roald Dahl", 800, 0, SUPPLIERS[1]);
+        long third = insert("Momo", "Michael Ende", 1500, 7, SUPPLIERS[0]);
+        BookStore.Filter filter = new BookStore.Filter();
+        filter.supplier = SUPPLIERS[0];
+        ContentValues quantity = new ContentValues();
+        quantity.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, 9);
+
+        assertEquals(2, mStore.update(filter, quantity, false));
+        assertEquals(Integer.valueOf(9), mStore.getQuantity(third));
+        filter.supplier = "Nobody";
+        assertEquals(0, mStore.delete(filter, false));
+    }
+
+    @Test
+    public void query_appliesAllTheFilters() {
+        long first = insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+        insert("Matilda", "Roald Dahl", 800, 0, SUPPLIERS[1]);
+        long third = insert("Momo", "Michael Ende", 1500, 7, SUPPLIERS[0]);
+
+        BookStore.Filter filter = new BookStore.Filter();
+        filter.supplier = SUPPLIERS[0];
+        filter.minPrice = 1300.0;
+        assertArrayEquals(new long[]{third}, readIds(mStore.query(idProjection(), filter, null, false, 0)));
+
+        filter = new BookStore.Filter();
+        filter.minQuantity = 1;
+        filter.maxQuantity = 5;
+        assertArrayEquals(new long[]{first}, readIds(mStore.query(idProjection(), filter, null, false, 0)));
+
+        filter = new BookStore.Filter();
+        filter.author = "Michael Ende";
+        assertArrayEquals(new long[]{third}, readIds(mStore.query(idProjection(), filter, null, false, 0)));
+    }
+
+    @Test
+    public void query_sortsOnAColumn_withTheIdBreakingTies() {
+        long first = insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+        long second = insert("Matilda", "Roald Dahl", 800, 0, SUPPLIERS[1]);
+        long third = insert("Momo", "Michael Ende", 1200, 7, SUPPLIERS[0]);
+        String price = BookContract.BookEntry.COLUMN_BOOK_PRICE;
+
+        assertArrayEquals(new long[]{second, first, third}, readIds(mStore.query(idProjection(), null, price, false, 0)));
+        assertArrayEquals(new long[]{third, first, second}, readIds(mStore.query(idProjection(), null, price, true, 0)));
+        assertArrayEquals(new long[]{third, second, first}, readIds(mStore.query(idProjection(), null, null, true, 0)));
+        assertArrayEquals(new long[]{second, first}, readIds(mStore.query(idProjection(), null, price, false, 2)));
+    }
+
+    @Test
+    public void delete_hidesTheBook_untilItIsRestored() {
+        long first = insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+        long second = insert("Matilda", "Roald Dahl", 800, 0, SUPPLIERS[1]);
+
+        assertEquals(1, mStore.delete(BookStore.Filter.forBook(second), false));
+        assertEquals(0, mStore.delete(BookStore.Filter.forBook(second), false));
+        assertEquals(0, count(mStore.get(second, null)));
+        assertNull(mStore.getQuantity(second));
+        assertEquals(1, mStore.count());
+        assertArrayEquals(new long[]{first}, readIds(mStore.query(idProjection(), null, null, false, 0)));
+
+        // The sync engine still sees the tombstone
+        BookStore.Filter tombstones = new BookStore.Filter();
+        tombstones.includeDeleted = true;
+        assertArrayEquals(new long[]{first, second}, readIds(mStore.query(idProjection(), tombstones, null, false, 0)));
+
+        assertEquals(1, mStore.restore(BookStore.Filter.forBook(second), false));
+        assertEquals(0, mStore.restore(BookStore.Filter.forBook(second), false));
+        assertEquals("Matilda", readString(mStore.get(second, null), BookContract.BookEntry.COLUMN_BOOK_NAME));
+        assertEquals(2, mStore.count());
+    }
+
+    @Test
+    public void writes_markTheBooksDirty_unlessMadeByTheSyncEngine() {
+        long id = insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+        String globalId = readString(mStore.get(id, null), BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID);
+        assertNotNull(globalId);
+        BookStore.Filter dirty = new BookStore.Filter();
+        dirty.dirty = true;
+        assertArrayEquals(new long[]{id}, readIds(mStore.query(idProjection(), dirty, null, false, 0)));
+
+        // Pushed by the sync engine
+        ContentValues pushed = new ContentValues();
+        pushed.put(BookContract.BookEntry.COLUMN_BOOK_DIRTY, 0);
+        pushed.put(BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY, 3);
+        assertEquals(1, mStore.update(BookStore.Filter.forBook(id), pushed, true));
+        assertEquals(0, count(mStore.query(null, dirty, null, false, 0)));
+        assertEquals(3, readInt(mStore.get(id, null), BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY));
+
+        // Only the sync engine may change the sync bookkeeping
+        ContentValues edited = new ContentValues();
+        edited.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, 2);
+        edited.put(BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY, 0);
+        assertEquals(1, mStore.update(BookStore.Filter.forBook(id), edited, false));
+        assertEquals(3, readInt(mStore.get(id, null), BookContract.BookEntry.COLUMN_BOOK_SYNCED_QUANTITY));
+        assertArrayEquals(new long[]{id}, readIds(mStore.query(idProjection(), dirty, null, false, 0)));
+
+        BookStore.Filter byGlobalId = new BookStore.Filter();
+        byGlobalId.globalId = globalId;
+        assertArrayEquals(new long[]{id}, readIds(mStore.query(idProjection(), byGlobalId, null, false, 0)));
+    }
+
+    @Test
+    public void update_ofAChangeSequence_onlyAppliesIfTheBookDidNotChange() {
+        long id = insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+        BookStore.Filter unchanged = BookStore.Filter.forBook(id);
+        unchanged.changeSeq = readLong(mStore.get(id, null), BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ);
+        ContentValues values = new ContentValues();
+        values.put(BookContract.BookEntry.COLUMN_BOOK_DIRTY, 0);
+
+        assertEquals(1, mStore.update(unchanged, values, true));
+        assertEquals(0, mStore.update(unchanged, values, true));
+    }
+
+    @Test
+    public void changedAfter_pagesThroughTheBooksOfAChangeSequence() {
+        long before = insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+        long since = readLong(mStore.get(before, null), BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ);
+        ContentValues[] rows = {
+                book("Matilda", "Roald Dahl", 800, 0, SUPPLIERS[1]),
+                book("Momo", "Michael Ende", 1500, 7, SUPPLIERS[0]),
+                book("Heidi", "Johanna Spyri", 900, 2, SUPPLIERS[2])};
+        assertEquals(3, mStore.insertAll(rows, false, new BookValidator.Report()));
+
+        BookStore.Filter changes = new BookStore.Filter();
+        changes.changedAfter = since;
+        changes.includeDeleted = true;
+        long[] ids = readIds(mStore.query(idProjection(), changes, BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ, false, 2));
+        assertEquals(2, ids.length);
+
+        // An import stamps all its books with the same sequence: the next page resumes after
+        // the ID of the last book seen
+        changes.changedAfter = readLong(mStore.get(ids[1], null), BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ);
+        changes.changedAfterId = ids[1];
+        long[] next = readIds(mStore.query(idProjection(), changes, BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ, false, 2));
+        assertEquals(1, next.length);
+        assertTrue(next[0] > ids[1]);
+    }
+
+    @Test
+    public void insertAll_skipsTheRejectedRows() {
+        ContentValues[] rows = {
+                book("Matilda", "Roald Dahl", 800, 0, SUPPLIERS[1]),
+                book("", "Nobody", 100, 1, SUPPLIERS[0]),
+                book("Heidi", "Johanna Spyri", 900, 2, SUPPLIERS[2])};
+        BookValidator.Report report = new BookValidator.Report();
+
+        assertEquals(2, mStore.insertAll(rows, false, report));
+        assertEquals(1, report.size());
+        assertTrue(report.isRejected(1));
+        assertEquals(2, mStore.count());
+    }
+
+    @Test
+    public void checkout_sellsAllTheLinesOrNone() {
+        long first = insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+        long second = insert("Matilda", "Roald Dahl", 800, 1, SUPPLIERS[1]);
+        long location = BookContract.LocationEntry.DEFAULT_LOCATION_ID;
+
+        assertFalse(mStore.checkout(location, new long[]{first, second}, new int[]{2, 2}));
+        assertEquals(Integer.valueOf(3), mStore.getQuantity(first));
+        assertEquals(Integer.valueOf(1), mStore.getQuantity(second));
+
+        assertTrue(mStore.checkout(location, new long[]{first, second}, new int[]{2, 1}));
+        assertEquals(Integer.valueOf(1), mStore.getQuantity(first));
+        assertEquals(Integer.valueOf(0), mStore.getQuantity(second));
+
+        // Two lines of the same book take from the same stock
+        assertFalse(mStore.checkout(location, new long[]{first, first}, new int[]{1, 1}));
+        assertEquals(Integer.valueOf(1), mStore.getQuantity(first));
+        assertFalse(mStore.checkout(location, new long[]{Long.MAX_VALUE}, new int[]{1}));
+    }
+
+    @Test
+    public void restock_skipsTheMissingBooks() {
+        long first = insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+        long second = insert("Matilda", "Roald Dahl", 800, 1, SUPPLIERS[1]);
+        mStore.delete(BookStore.Filter.forBook(second), false);
+
+        assertEquals(1, mStore.restock(new long[]{first, second, Long.MAX_VALUE}, new int[]{2, 2, 2}));
+        assertEquals(Integer.valueOf(5), mStore.getQuantity(first));
+        assertEquals(0, mStore.restock(new long[]{second}, new int[]{2}));
+    }
+
+    @Test
+    public void mergeDuplicates_keepsTheOldestBookOfEachGroup() {
+        long first = insert("Momo", "Michael Ende", 1500, 2, SUPPLIERS[0]);
+        long second = insert("MOMO!", "michael ende", 1500, 3, SUPPLIERS[0]);
+        long other = insert("Momo", "Michael Ende", 1500, 4, SUPPLIERS[1]);
+
+        assertEquals(0, mStore.mergeDuplicates(BookDuplicates.key("Peter Pan", "J. M. Barrie", SUPPLIERS[0])));
+        assertEquals(1, mStore.mergeDuplicates(null));
+        assertEquals(Integer.valueOf(5), mStore.getQuantity(first));
+        assertNull(mStore.getQuantity(second));
+        assertEquals(Integer.valueOf(4), mStore.getQuantity(other));
+        assertEquals(0, mStore.mergeDuplicates(null));
+    }
+
+    @Test
+    public void applyBatch_rollsBackEveryWrite_whenTheBatchFails() {
+        final long first = insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+        try {
+            mStore.applyBatch(new BookStore.Batch<Void, IOException>() {
+                @Override
+                public Void apply() throws IOException {
+                    insert("Heidi", "Johanna Spyri", 900, 2, SUPPLIERS[2]);
+                    mStore.delete(BookStore.Filter.forBook(first), false);
+                    throw new IOException("Cancelled");
+                }
+            });
+            fail("The batch didn't fail");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertArrayEquals(new long[]{first}, readIds(mStore.query(idProjection(), null, null, false, 0)));
+
+        long inserted = mStore.applyBatch(new BookStore.Batch<Long, RuntimeException>() {
+            @Override
+            public Long apply() {
+                mStore.delete(BookStore.Filter.forBook(first), false);
+                return insert("Heidi", "Johanna Spyri", 900, 2, SUPPLIERS[2]);
+            }
+        });
+        assertArrayEquals(new long[]{inserted}, readIds(mStore.query(idProjection(), null, null, false, 0)));
+    }
+
+    @Test
+    public void provider_queriesTheStore_withTheFiltersOfTheUri() {
+        ContentResolver resolver = new TestProvider(mDbHelper, DATABASE_NAME, mStore).getContentResolver();
+        long first = insert("Peter Pan", "J. M. Barrie", 1200, 3, SUPPLIERS[0]);
+        insert("Matilda", "Roald Dahl", 800, 0, SUPPLIERS[1]);
+        long third = insert("Momo", "Michael Ende", 1500, 7, SUPPLIERS[0]);
+        Uri uri = BookContract.BookEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_SUPPLIER, SUPPLIERS[0])
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_MIN_QUANTITY, "1")
+                .build();
+
+        assertArrayEquals(new long[]{third, first}, readIds(resolver.query(uri, idProjection(), null, null,
+                BookContract.BookEntry.COLUMN_BOOK_PRICE + " DESC")));
+        try {
+            resolver.query(uri, idProjection(), BookContract.BookEntry._ID + "=1", null, null);
+            fail("The selection wasn't rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void provider_appliesItsBatches_asABatchOfTheStore() throws Exception {
+        ContentResolver resolver = new TestProvider(mDbHelper, DATABASE_NAME, mStore).getContentResolver();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(BookContract.BookEntry.CONTENT_URI)
+                .withValues(book("Heidi", "Johanna Spyri", 900, 2, SUPPLIERS[2])).build());
+        operations.add(ContentProviderOperation.newInsert(BookContract.BookEntry.CONTENT_URI)
+                .withValues(book("", "Nobody", 100, 1, SUPPLIERS[0])).build());
+        try {
+            resolver.applyBatch(BookContract.CONTENT_AUTHORITY, operations);
+            fail("The invalid book wasn't rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(0, mStore.count());
+
+        operations.remove(1);
+        resolver.applyBatch(BookContract.CONTENT_AUTHORITY, operations);
+        assertEquals(1, mStore.count());
+    }
+
+    @Test
+    public void workload_reportsTheRateOfEveryOperation() {
+        Random random = new Random(42);
+        long[] ids = new long[WORKLOAD_BOOKS];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < WORKLOAD_BOOKS; i++) {
+            ids[i] = insert("Book " + i, "Author " + (i % 100), 100 + random.nextInt(5000),
+                    random.nextInt(50), SUPPLIERS[i % SUPPLIERS.length]);
+        }
+        long insertNanos = System.nanoTime() - start;
+        assertEquals(WORKLOAD_BOOKS, mStore.count());
+
+        start = System.nanoTime();
+        for (int i = 0; i < WORKLOAD_OPERATIONS; i++) {
+            count(mStore.get(ids[random.nextInt(WORKLOAD_BOOKS)], null));
+        }
+        long getNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < WORKLOAD_OPERATIONS; i++) {
+            BookStore.Filter filter = new BookStore.Filter();
+            filter.minPrice = (double) random.nextInt(4000);
+            filter.maxPrice = filter.minPrice + 200;
+            count(mStore.query(null, filter, BookContract.BookEntry.COLUMN_BOOK_PRICE, false, 0));
+        }
+        long queryNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < WORKLOAD_OPERATIONS; i++) {
+            ContentValues values = new ContentValues();
+            values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, random.nextInt(50));
+            mStore.update(BookStore.Filter.forBook(ids[random.nextInt(WORKLOAD_BOOKS)]), values, false);
+        }
+        long updateNanos = System.nanoTime() - start;
+
+        final long[] restocked = new long[WORKLOAD_OPERATIONS];
+        final int[] quantities = new int[WORKLOAD_OPERATIONS];
+        for (int i = 0; i < WORKLOAD_OPERATIONS; i++) {
+            restocked[i] = ids[random.nextInt(WORKLOAD_BOOKS)];
+            quantities[i] = 1 + random.nextInt(5);
+        }
+        start = System.nanoTime();
+        int restockedCount = mStore.applyBatch(new BookStore.Batch<Integer, RuntimeException>() {
+            @Override
+            public Integer apply() {
+                return mStore.restock(restocked, quantities);
+            }
+        });
+        long batchNanos = System.nanoTime() - start;
+        assertEquals(WORKLOAD_OPERATIONS, restockedCount);
+
+        System.out.println(String.format(Locale.US, "%s: insert %s, get %s, query %s, update %s, batch %s",
+                mStore.getClass().getSimpleName(), rate(WORKLOAD_BOOKS, insertNanos),
+                rate(WORKLOAD_OPERATIONS, getNanos), rate(WORKLOAD_OPERATIONS, queryNanos),
+                rate(WORKLOAD_OPERATIONS, updateNanos), rate(WORKLOAD_OPERATIONS, batchNanos)));
+    }
+
+    private long insert(String name, String author, int price, int quantity, String supplier) {
+        return mStore.insert(book(name, author, price, quantity, supplier), false);
+    }
+
+    private static ContentValues book(String name, String author, int price, int quantity, String supplier) {
+        ContentValues values = new ContentValues();
+        values.put(BookContract.BookEntry.COLUMN_BOOK_NAME, name);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_AUTHOR, author);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_PRICE, price);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, quantity);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME, supplier);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR, "5550000000");
+        return values;
+    }
+
+    private static String[] idProjection() {
+        return new String[]{BookContract.BookEntry._ID};
+    }
+
+    /**
+     * Return the number of rows of a cursor, reading all of them, and close it.
+     */
+    private static int count(Cursor cursor) {
+        try {
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                rows++;
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the IDs in the first column of a cursor, in order, and close it.
+     */
+    private static long[] readIds(Cursor cursor) {
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String readString(Cursor cursor, String column) {
+        try {
+            assertTrue("No such book", cursor.moveToFirst());
+            return cursor.getString(cursor.getColumnIndexOrThrow(column));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int readInt(Cursor cursor, String column) {
+        return (int) readLong(cursor, column);
+    }
+
+    private static long readLong(Cursor cursor, String column) {
+        try {
+            assertTrue("No such book", cursor.moveToFirst());
+            return cursor.getLong(cursor.getColumnIndexOrThrow(column));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static double readDouble(Cursor cursor, String column) {
+        try {
+            assertTrue("No such book", cursor.moveToFirst());
+            return cursor.getDouble(cursor.getColumnIndexOrThrow(column));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String rate(int operations, long nanos) {
+        return String.format(Locale.US, "%.0f/s", operations * 1e9 / Math.max(nanos, 1));
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Runs the {@link BookStoreConformanceTest} suite against {@link MemoryBookStore}. The database
+ * is only used by the provider, for its other tables.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MemoryBookStoreTest extends BookStoreConformanceTest {
+
+    @Override
+    BookStore createStore(BookDbHelper dbHelper) {
+        return new MemoryBookStore();
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the query plans of the catalogue filters and of the sync engine's queries.
+ *
+ * Every URI is queried through the provider, and the SQL it ran, taken from the query log of the
+ * database, must be the query {@link SqliteBookStore} builds for the same filter. SQLite is then
+ * asked with EXPLAIN QUERY PLAN how it runs that query with its arguments: it must search the
+ * books through the index of the filter rather than scan the table, both on a new database and
+ * once ANALYZE has collected the statistics, as the maintenance job does.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class QueryPlanTest {
+
+    private static final String DATABASE_NAME = "query-plan-test.db";
+
+    private static final int BOOK_COUNT = 5000;
+
+    private static final String[] PROJECTION = {
+            BookContract.BookEntry._ID,
+            BookContract.BookEntry.COLUMN_BOOK_NAME,
+            BookContract.BookEntry.COLUMN_BOOK_PRICE,
+            BookContract.BookEntry.COLUMN_BOOK_QUANTITY};
+
+    private TestProvider mProvider;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mProvider = new TestProvider(DATABASE_NAME);
+        mDatabase = mProvider.getDbHelper().getWritableDatabase();
+        fill(mDatabase);
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.close();
+    }
+
+    @Test
+    public void catalogueFilters_searchTheirIndex() {
+        checkCatalogueFilters();
+    }
+
+    @Test
+    public void catalogueFilters_searchTheirIndex_afterAnalyze() {
+        mDatabase.execSQL("ANALYZE");
+        checkCatalogueFilters();
+    }
+
+    @Test
+    public void syncQueries_searchTheirIndex() {
+        checkSyncQueries();
+    }
+
+    @Test
+    public void syncQueries_searchTheirIndex_afterAnalyze() {
+        mDatabase.execSQL("ANALYZE");
+        checkSyncQueries();
+    }
+
+    private void checkCatalogueFilters() {
+        BookStore.Filter filter = new BookStore.Filter();
+        filter.minPrice = 20.0;
+        checkPlan(booksUri(BookContract.BookEntry.QUERY_PARAMETER_MIN_PRICE, "20"), filter, null, false,
+                "books_price_idx");
+
+        filter = new BookStore.Filter();
+        filter.maxPrice = 20.0;
+        checkPlan(booksUri(BookContract.BookEntry.QUERY_PARAMETER_MAX_PRICE, "20"), filter, null, false,
+                "books_price_idx");
+
+        filter = new BookStore.Filter();
+        filter.minPrice = 20.0;
+        filter.maxPrice = 40.0;
+        checkPlan(booksUri(BookContract.BookEntry.QUERY_PARAMETER_MIN_PRICE, "20",
+                BookContract.BookEntry.QUERY_PARAMETER_MAX_PRICE, "40"), filter, null, false, "books_price_idx");
+        checkPlan(booksUri(BookContract.BookEntry.QUERY_PARAMETER_MIN_PRICE, "20",
+                BookContract.BookEntry.QUERY_PARAMETER_MAX_PRICE, "40"), filter,
+                BookContract.BookEntry.COLUMN_BOOK_PRICE, true, "books_price_idx");
+
+        filter = new BookStore.Filter();
+        filter.minQuantity = 40;
+        checkPlan(booksUri(BookContract.BookEntry.QUERY_PARAMETER_MIN_QUANTITY, "40"), filter, null, false,
+                "books_quantity_idx");
+
+        filter = new BookStore.Filter();
+        filter.author = "Author 7";
+        checkPlan(booksUri(BookContract.BookEntry.QUERY_PARAMETER_AUTHOR, "Author 7"), filter, null, false,
+                "books_author_idx");
+        checkPlan(booksUri(BookContract.BookEntry.QUERY_PARAMETER_AUTHOR, "Author 7"), filter,
+                BookContract.BookEntry.COLUMN_BOOK_PRICE, false, "books_author_idx");
+
+        // The index of the supplier directory starts with the same columns, and serves it as well
+        filter = new BookStore.Filter();
+        filter.supplier = "Supplier 7";
+        checkPlan(booksUri(BookContract.BookEntry.QUERY_PARAMETER_SUPPLIER, "Supplier 7"), filter, null, false,
+                "books_supplier_idx", "books_supplier_directory_idx");
+    }
+
+    private void checkSyncQueries() {
+        // A page of the books to push
+        Uri uri = BookContract.BookEntry.CONTENT_CHANGES_URI.buildUpon()
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_DIRTY, "true")
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_SINCE, String.valueOf(BOOK_COUNT - 100))
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_AFTER_ID, "10")
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_LIMIT, "50")
+                .build();
+        BookStore.Filter filter = new BookStore.Filter();
+        filter.dirty = true;
+        filter.changedAfter = (long) (BOOK_COUNT - 100);
+        filter.changedAfterId = 10L;
+        filter.includeDeleted = true;
+        checkPlan(uri, null, filter, BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ, false, 50,
+                "books_change_seq_idx", "books_dirty_idx");
+
+        // A book pulled from the server
+        uri = BookContract.BookEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER, "true")
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_GLOBAL_ID, "plan-check-42")
+                .build();
+        filter = new BookStore.Filter();
+        filter.globalId = "plan-check-42";
+        filter.includeDeleted = true;
+        checkPlan(uri, null, filter, null, false, 0, "books_global_id_idx");
+    }
+
+    private void checkPlan(Uri uri, BookStore.Filter filter, String orderBy, boolean descending, String... indexes) {
+        String sortOrder = orderBy == null ? null : orderBy + (descending ? " DESC" : " ASC");
+        checkPlan(uri, sortOrder, filter, orderBy, descending, 0, indexes);
+    }
+
+    /**
+     * Query the URI through the provider, check that it ran the query of the filter, and that
+     * this query searches the books with one of the given indexes.
+     */
+    private void checkPlan(Uri uri, String sortOrder, BookStore.Filter filter, String orderBy, boolean descending,
+                           int limit, String... indexes) {
+        List<String> args = new ArrayList<>();
+        String sql = SqliteBookStore.buildQuery(PROJECTION, filter, orderBy, descending, limit, args);
+        assertEquals("Query of " + uri, sql, queryThroughProvider(uri, sortOrder));
+
+        List<String> plan = explain(sql, args);
+        boolean indexed = false;
+        boolean scanned = false;
+        for (String detail : plan) {
+            for (String index : indexes) {
+                // Older versions of SQLite say "TABLE books", and "COVERING INDEX" for some plans
+                if (detail.contains("INDEX " + index + " ")) {
+                    indexed = true;
+                }
+            }
+            if (detail.startsWith("SCAN ") && !detail.contains(" INDEX ")) {
+                scanned = true;
+            }
+        }
+        assertTrue(String.format(Locale.US, "%s doesn't search its index: %s", uri, plan), indexed && !scanned);
+    }
+
+    /**
+     * Query the URI through the provider and return the SQL of the books query it ran, as
+     * recorded by the query log of the database.
+     */
+    private String queryThroughProvider(Uri uri, String sortOrder) {
+        QueryLog log = mProvider.getDbHelper().getQueryLog();
+        Set<QueryLog.Entry> before = new HashSet<>(log.getSlowestQueries());
+        Cursor cursor = mProvider.getContentResolver().query(uri, PROJECTION, null, null, sortOrder);
+        assertNotNull(cursor);
+        try {
+            // The query runs, and is recorded, when the cursor fills its window
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+
+        String sql = null;
+        for (QueryLog.Entry entry : log.getSlowestQueries()) {
+            if (!before.contains(entry) && entry.sql.contains(" FROM " + BookContract.BookEntry.TABLE_NAME)) {
+                sql = entry.sql;
+            }
+        }
+        assertNotNull("No query of the books for " + uri, sql);
+        return sql;
+    }
+
+    private List<String> explain(String sql, List<String> args) {
+        List<String> plan = new ArrayList<>();
+        Cursor cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, args.toArray(new String[args.size()]));
+        try {
+            int detailColumn = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+
+    /**
+     * Return the books URI with the given query parameters, as name and value pairs.
+     */
+    private static Uri booksUri(String... parameters) {
+        Uri.Builder builder = BookContract.BookEntry.CONTENT_URI.buildUpon();
+        for (int i = 0; i < parameters.length; i += 2) {
+            builder.appendQueryParameter(parameters[i], parameters[i + 1]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Insert the books in a single transaction: prices, authors and suppliers spread enough for
+     * the indexes to be selective, and a share of dirty books and tombstones like on a till.
+     */
+    private static void fill(SQLiteDatabase database) {
+        SQLiteStatement insert = database.compileStatement("INSERT INTO " + BookContract.BookEntry.TABLE_NAME + "("
+                + BookContract.BookEntry.COLUMN_BOOK_NAME + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_AUTHOR + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_PRICE + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_NAME + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NR + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_DELETED + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_DIRTY + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_CHANGE_SEQ + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_GLOBAL_ID + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < BOOK_COUNT; i++) {
+                insert.bindString(1, "Book " + i);
+                insert.bindString(2, "Author " + i % 300);
+                insert.bindDouble(3, 5 + i % 9000 / 100.0);
+                insert.bindLong(4, i % 50);
+                insert.bindString(5, "Supplier " + i % 40);
+                insert.bindString(6, String.format(Locale.US, "555%07d", i % 40));
+                insert.bindLong(7, i % 20 == 0 ? BookContract.BookEntry.BOOK_DELETED : BookContract.BookEntry.BOOK_ACTIVE);
+                insert.bindLong(8, i % 10 == 0 ? 1 : 0);
+                insert.bindLong(9, i + 1);
+                insert.bindString(10, "plan-check-" + i);
+                insert.executeInsert();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            insert.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bookstore2.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowContentResolver;
+
+/**
+ * A {@link BookProvider} on a database of its own, registered with the content resolver of the
+ * Robolectric application, for the tests going through the provider.
+ *
+ * Every test gets a fresh application, so the database starts empty; {@link #close()} deletes it
+ * all the same, so a test doesn't leave files behind.
+ */
+public final class TestProvider {
+
+    private final Context mContext;
+    private final String mDatabaseName;
+    private final BookDbHelper mDbHelper;
+
+    /**
+     * Register a provider on a new database of the given name.
+     */
+    public TestProvider(String databaseName) {
+        this(newDatabase(databaseName), databaseName, null);
+    }
+
+    /**
+     * Register a provider on the given database, keeping its books in the given store, or in the
+     * database if it is null.
+     */
+    TestProvider(BookDbHelper dbHelper, String databaseName, BookStore store) {
+        mContext = RuntimeEnvironment.application;
+        mDatabaseName = databaseName;
+        mDbHelper = dbHelper;
+
+        BookProvider provider = new BookProvider(mDbHelper, store);
+        provider.attachInfo(mContext, null);
+        ShadowContentResolver.registerProviderInternal(BookContract.CONTENT_AUTHORITY, provider);
+    }
+
+    /**
+     * Return the helper of a new database of the given name, deleting the one left by an earlier
+     * run.
+     */
+    static BookDbHelper newDatabase(String databaseName) {
+        Context context = RuntimeEnvironment.application;
+        context.deleteDatabase(databaseName);
+        return new BookDbHelper(context, databaseName);
+    }
+
+    public ContentResolver getContentResolver() {
+        return mContext.getContentResolver();
+    }
+
+    /**
+     * Return the helper of the database behind the provider.
+     */
+    BookDbHelper getDbHelper() {
+        return mDbHelper;
+    }
+
+    /**
+     * Close and delete the database.
+     */
+    public void close() {
+        mDbHelper.close();
+        mContext.deleteDatabase(mDatabaseName);
+    }
+}